@@ -57,7 +57,27 @@ public class WhisperServerConfiguration extends Configuration {
   @NotNull
   @Valid
   @JsonProperty
-  private RedisConfiguration directory;
+  private DirectoryConfiguration directory;
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountCacheConfiguration accountCache = new AccountCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private PreKeyPoolConfiguration preKeyPool = new PreKeyPoolConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountCreationBatchingConfiguration accountCreationBatching = new AccountCreationBatchingConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageDeliveryConfiguration messageDelivery = new MessageDeliveryConfiguration();
 
   @NotNull
   @Valid
@@ -226,10 +246,26 @@ public class WhisperServerConfiguration extends Configuration {
     return metricsCluster;
   }
 
-  public RedisConfiguration getDirectoryConfiguration() {
+  public DirectoryConfiguration getDirectoryConfiguration() {
     return directory;
   }
 
+  public AccountCacheConfiguration getAccountCacheConfiguration() {
+    return accountCache;
+  }
+
+  public PreKeyPoolConfiguration getPreKeyPoolConfiguration() {
+    return preKeyPool;
+  }
+
+  public AccountCreationBatchingConfiguration getAccountCreationBatchingConfiguration() {
+    return accountCreationBatching;
+  }
+
+  public MessageDeliveryConfiguration getMessageDeliveryConfiguration() {
+    return messageDelivery;
+  }
+
   public SecureStorageServiceConfiguration getSecureStorageServiceConfiguration() {
     return storageService;
   }
@@ -55,6 +55,7 @@ import io.lettuce.core.resource.ClientResources;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
 import io.minio.MinioClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import su.sres.dispatch.DispatchManager;
 import su.sres.shadowserver.auth.AccountAuthenticator;
@@ -148,6 +149,7 @@ import su.sres.shadowserver.websocket.ProvisioningConnectListener;
 import su.sres.shadowserver.websocket.WebSocketAccountAuthenticator;
 import su.sres.shadowserver.workers.CertificateCommand;
 import su.sres.shadowserver.workers.CreateAccountsDbCommand;
+import su.sres.shadowserver.workers.CreateCqlTablesCommand;
 import su.sres.shadowserver.workers.CreateDeletedAccountsDbCommand;
 import su.sres.shadowserver.workers.CreateGroupDbCommand;
 import su.sres.shadowserver.workers.CreateGroupLogsDbCommand;
@@ -191,6 +193,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     bootstrap.addCommand(new CertificateCommand());
     bootstrap.addCommand(new CreateAccountsDbCommand());
+    bootstrap.addCommand(new CreateCqlTablesCommand());
     bootstrap.addCommand(new CreateDeletedAccountsDbCommand());
     bootstrap.addCommand(new CreateGroupDbCommand());
     bootstrap.addCommand(new CreateGroupLogsDbCommand());
@@ -346,6 +349,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ScyllaDbConfiguration scyllaConfig = config.getScyllaDbConfiguration();
 
     DynamoDbClient scyllaDbClient = ScyllaDbFromConfig.client(scyllaConfig);
+    DynamoDbAsyncClient scyllaDbAsyncClient = ScyllaDbFromConfig.asyncClient(scyllaConfig, null);
 
     AmazonDynamoDBClientBuilder scyllaDbClientBuilder = AmazonDynamoDBClientBuilder
         .standard()
@@ -359,13 +363,16 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());
 
-    Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize());
+    Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize(), scyllaConfig.getAccountWriteFormat());
 
     Usernames usernames = new Usernames(accountDatabase);
     ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
     Profiles profiles = new Profiles(accountDatabase);
-    KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-    MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+    ScyllaDbStores scyllaDbStores = new ScyllaDbStores(scyllaConfig, scyllaDbClient, scyllaDbAsyncClient,
+        config.getMessageCacheConfiguration().getPersisterMaxConcurrentBatchWrites());
+    environment.lifecycle().manage(scyllaDbStores);
+    PreKeyStore preKeyStore = scyllaDbStores.getPreKeyStore();
+    MessageStore messageStore = scyllaDbStores.getMessageStore();
     GroupsScyllaDb groupsScyllaDb = new GroupsScyllaDb(groupsDynamoDb, scyllaConfig.getGroupsTableName());
     GroupLogsScyllaDb groupLogsScyllaDb = new GroupLogsScyllaDb(groupLogsDynamoDb, scyllaConfig.getGroupLogsTableName());
     AbusiveHostRules abusiveHostRules = new AbusiveHostRules(abuseDatabase);
@@ -417,9 +424,10 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     // environment.lifecycle().executorService(name(getClass(),
     // "apnSender-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService gcmSenderExecutor = environment.lifecycle().executorService(name(getClass(), "gcmSender-%d")).maxThreads(1).minThreads(1).build();
-    ExecutorService multiRecipientMessageExecutor = environment.lifecycle().executorService(name(getClass(), "multiRecipientMessage-%d")).minThreads(64).maxThreads(64).build();
+    ExecutorService accountDeletionExecutor = environment.lifecycle().executorService(name(getClass(), "accountDeletion-%d")).maxThreads(8).minThreads(8).build();
 
-    ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor);
+    ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor,
+        config.getMessageCacheConfiguration().isServerChannelNotifications());
 
     DynamicConfiguration dynamicConfig = new DynamicConfiguration();
     DirectoryManager directory = new DirectoryManager(directoryClient);
@@ -428,11 +436,24 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     StoredVerificationCodeManager pendingDevicesManager = new StoredVerificationCodeManager(pendingDevices, lifetime);
     UsernamesManager usernamesManager = new UsernamesManager(usernames, reservedUsernames, cacheCluster);
     ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);
-    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor);
+    PreKeyPool preKeyPool = null;
+    if (config.getPreKeyPoolConfiguration().isEnabled()) {
+      final int refillThreads = config.getPreKeyPoolConfiguration().getRefillThreads();
+      ExecutorService preKeyPoolRefillExecutor = environment.lifecycle().executorService(name(getClass(), "preKeyPoolRefill-%d")).maxThreads(refillThreads).minThreads(refillThreads).build();
+      preKeyPool = new PreKeyPool(cacheCluster, preKeyStore, preKeyPoolRefillExecutor,
+          config.getPreKeyPoolConfiguration().getSize(), config.getPreKeyPoolConfiguration().getHotClaimsPerMinute());
+    }
+    KeysManager keysManager = scyllaDbStores.buildKeysManager(cacheCluster, preKeyPool);
+    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor,
+        config.getMessageCacheConfiguration().isServerChannelNotifications(), config.getMessageCacheConfiguration().getEnvelopeCodec());
     PushLatencyManager pushLatencyManager = new PushLatencyManager(metricsCluster);
     ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-    MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
-    AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
+    final int queueReadThreads = config.getMessageCacheConfiguration().getQueueReadThreads();
+    ExecutorService queueReadExecutor = environment.lifecycle().executorService(name(getClass(), "queueRead-%d")).maxThreads(queueReadThreads).minThreads(queueReadThreads).build();
+    MessagesManager messagesManager = new MessagesManager(messageStore, messagesCache, pushLatencyManager, reportMessageManager, queueReadExecutor);
+    LocalAccountCache localAccountCache = config.getAccountCacheConfiguration().getMaxSize() > 0 ? new LocalAccountCache(cacheCluster, config.getAccountCacheConfiguration()) : null;
+    AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysManager, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager, localAccountCache,
+        accountDeletionExecutor, config.getAccountCreationBatchingConfiguration());
     RemoteConfigsManager remoteConfigsManager = new RemoteConfigsManager(remoteConfigs);
     DeadLetterHandler deadLetterHandler = new DeadLetterHandler(accountsManager, messagesManager);
     DispatchManager dispatchManager = new DispatchManager(pubSubClientFactory, Optional.of(deadLetterHandler));
@@ -476,7 +497,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
         fcmSender, pushChallengeScyllaDb);
     RateLimitChallengeManager rateLimitChallengeManager = new RateLimitChallengeManager(pushChallengeManager, transitionalRecaptchaClient, preKeyRateLimiter, unsealedSenderRateLimiter, rateLimiters, dynamicConfig.getRateLimitChallengeConfiguration());
 
-    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfig, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()));
+    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfig, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()),
+        config.getMessageCacheConfiguration().getPersisterWorkerThreads(), config.getMessageCacheConfiguration().getPersisterQueuesInFlightPerWorker());
 
     // TODO listeners must be ordered so that ones that directly update accounts
     // come last, so that read-only ones are not working with stale data
@@ -484,6 +506,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     // PushFeedbackProcessor may update device properties
     accountDatabaseCrawlerListeners.add(new PushFeedbackProcessor(accountsManager));
+    accountDatabaseCrawlerListeners.add(new PreKeyCountReconciler(keysManager));
 
     // delete accounts last
     if (localParams.getAccountExpirationPolicy() != 0)
@@ -508,6 +531,9 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.lifecycle().manage(messagesCache);
     environment.lifecycle().manage(messagePersister);
     environment.lifecycle().manage(clientPresenceManager);
+    if (localAccountCache != null) {
+      environment.lifecycle().manage(localAccountCache);
+    }
     if (serviceConfig.isPaymentsEnabled())
       environment.lifecycle().manage(currencyManager);
     environment.lifecycle().manage(torExitNodeManager);
@@ -557,7 +583,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ///
     WebSocketEnvironment<AuthenticatedAccount> webSocketEnvironment = new WebSocketEnvironment<>(environment, config.getWebSocketConfiguration(), 90000);
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(accountAuthenticator));
-    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor));
+    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor,
+        config.getMessageDeliveryConfiguration()));
     webSocketEnvironment.jersey().register(new WebsocketRefreshApplicationEventListener(clientPresenceManager));
     webSocketEnvironment.jersey().register(new ContentLengthFilter(TrafficSource.WEBSOCKET));
     webSocketEnvironment.jersey().register(MultiRecipientMessageProvider.class);
@@ -569,16 +596,16 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.jersey().register(new AccountController(pendingAccountsManager, accountsManager, usernamesManager, abusiveHostRules, rateLimiters, turnTokenGenerator, config.getTestDevices(), transitionalRecaptchaClient, fcmSender
     // , apnSender
         , localParams, serviceConfig));
-    environment.jersey().register(new KeysController(rateLimiters, keysScyllaDb, accountsManager, preKeyRateLimiter, rateLimitChallengeManager));
+    environment.jersey().register(new KeysController(rateLimiters, keysManager, accountsManager, preKeyRateLimiter, rateLimitChallengeManager));
 
     final List<Object> coreCommonControllers = List.of(
         new AttachmentControllerV1(rateLimiters, minioConfig.getAccessKey(), minioConfig.getAccessSecret(), minioConfig.getAttachmentBucket(), minioConfig.getUri()),
         new AttachmentControllerV2(rateLimiters, minioConfig.getAccessKey(), minioConfig.getAccessSecret(), minioConfig.getRegion(), minioConfig.getAttachmentBucket()),
         new CertificateController(new CertificateGenerator(config.getDeliveryCertificate().getCertificate(), config.getDeliveryCertificate().getPrivateKey(), config.getDeliveryCertificate().getExpiresDays()), zkAuthOperations),
         new ChallengeController(rateLimitChallengeManager),
-        new DeviceController(pendingDevicesManager, accountsManager, messagesManager, keysScyllaDb, rateLimiters, config.getMaxDevices(), localParams.getVerificationCodeLifetime()),
-        new PlainDirectoryController(rateLimiters, accountsManager),
-        new MessageController(rateLimiters, messageSender, receiptSender, accountsManager, messagesManager, unsealedSenderRateLimiter, null, dynamicConfig, rateLimitChallengeManager, reportMessageManager, metricsCluster, declinedMessageReceiptExecutor, multiRecipientMessageExecutor),
+        new DeviceController(pendingDevicesManager, accountsManager, messagesManager, keysManager, rateLimiters, config.getMaxDevices(), localParams.getVerificationCodeLifetime()),
+        new PlainDirectoryController(rateLimiters, accountsManager, new DirectorySnapshotCache(config.getDirectoryConfiguration().isCompressSnapshots())),
+        new MessageController(rateLimiters, messageSender, receiptSender, accountsManager, messagesManager, unsealedSenderRateLimiter, null, dynamicConfig, rateLimitChallengeManager, reportMessageManager, metricsCluster, declinedMessageReceiptExecutor),
         new ProfileController(clock, rateLimiters, accountsManager, profilesManager, usernamesManager, profileBadgeConverter, config.getBadges(), minioClient, profileCdnPolicyGenerator, profileCdnPolicySigner, minioConfig.getProfileBucket(), zkProfileOperations),
         new ProvisioningController(rateLimiters, provisioningManager),
         // new RemoteConfigController(remoteConfigsManager,
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class AccountCacheConfiguration {
+
+  // the number of accounts each server keeps in memory; 0 turns the in-process
+  // cache off
+  @JsonProperty
+  @Min(0)
+  private long maxSize = 100_000;
+
+  // an upper bound on how long a server may go on using an account updated
+  // elsewhere, should the invalidation message get lost
+  @JsonProperty
+  @NotNull
+  private Duration ttl = Duration.ofMinutes(1);
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public Duration getTtl() {
+    return ttl;
+  }
+}
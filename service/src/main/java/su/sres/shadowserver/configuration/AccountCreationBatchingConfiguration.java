@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class AccountCreationBatchingConfiguration {
+
+  // whether registrations arriving while another one is being created are
+  // coalesced into batches
+  @JsonProperty
+  private boolean enabled = false;
+
+  // the most registrations created in one batch
+  @JsonProperty
+  @Min(2)
+  private int maxBatchSize = 100;
+
+  // how long a queued registration waits for a batch to pick it up before it's
+  // created on its own
+  @JsonProperty
+  @NotNull
+  private Duration maxQueueWait = Duration.ofMillis(50);
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public Duration getMaxQueueWait() {
+    return maxQueueWait;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+import java.util.List;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Access to Scylla over the native CQL protocol, used by the message and prekey
+ * stores when the CQL storage backend is selected.
+ */
+public class CqlConfiguration {
+
+  // host:port pairs of the nodes the driver first connects to; it discovers the
+  // rest of the cluster from them
+  @JsonProperty
+  @NotEmpty
+  private List<@NotEmpty String> contactPoints = List.of("localhost:9042");
+
+  @JsonProperty
+  @NotEmpty
+  private String localDatacenter = "datacenter1";
+
+  @JsonProperty
+  @NotEmpty
+  private String keyspace = "shadow";
+
+  // used when the keyspace is created
+  @JsonProperty
+  @Min(1)
+  private int replicationFactor = 1;
+
+  @JsonProperty
+  private String username;
+
+  @JsonProperty
+  private String password;
+
+  // rows fetched per page when results are paged
+  @JsonProperty
+  @Min(1)
+  private int pageSize = 100;
+
+  @JsonProperty
+  @NotNull
+  private Duration requestTimeout = Duration.ofSeconds(10);
+
+  public List<String> getContactPoints() {
+    return contactPoints;
+  }
+
+  public String getLocalDatacenter() {
+    return localDatacenter;
+  }
+
+  public String getKeyspace() {
+    return keyspace;
+  }
+
+  public int getReplicationFactor() {
+    return replicationFactor;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class DirectoryConfiguration extends RedisConfiguration {
+
+  // whether full directory snapshots are additionally kept gzip-compressed for
+  // clients accepting that encoding
+  @JsonProperty
+  private boolean compressSnapshots = true;
+
+  public boolean isCompressSnapshots() {
+    return compressSnapshots;
+  }
+}
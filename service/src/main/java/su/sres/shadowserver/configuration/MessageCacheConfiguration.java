@@ -1,15 +1,20 @@
 /*
  * Original software: Copyright 2013-2020 Signal Messenger, LLC
- * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * Modified software: Copyright 2019-2023 Anton Alipov, sole trader
  * SPDX-License-Identifier: AGPL-3.0-only
  */
 package su.sres.shadowserver.configuration;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
+import su.sres.shadowserver.util.EnvelopeCodec;
+import su.sres.shadowserver.util.EnvelopeCodec.Compression;
+
 public class MessageCacheConfiguration {
 
     @JsonProperty
@@ -20,6 +25,48 @@ public class MessageCacheConfiguration {
     @JsonProperty
     private int persistDelayMinutes = 10;
 
+    // threads taking queues to persist from the cache, one slot at a time
+    @JsonProperty
+    @Min(1)
+    private int persisterWorkerThreads = 4;
+
+    // queues each persister worker keeps persisting at once
+    @JsonProperty
+    @Min(1)
+    private int persisterQueuesInFlightPerWorker = 8;
+
+    // batch writes to the messages table in flight at once, across all queues
+    @JsonProperty
+    @Min(1)
+    private int persisterMaxConcurrentBatchWrites = 32;
+
+    // threads reading a device's cached messages once its persisted messages have
+    // been loaded asynchronously
+    @JsonProperty
+    @Min(1)
+    private int queueReadThreads = 8;
+
+    // if set, message availability and presence displacement are signalled on one
+    // channel per server instead of keyspace notification subscriptions per
+    // connected device; turn on only once every server supports it
+    @JsonProperty
+    private boolean serverChannelNotifications = false;
+
+    // the algorithm queued envelopes are compressed with; servers read compressed
+    // and uncompressed envelopes alike, so this may be changed at any time
+    @JsonProperty
+    @NotNull
+    private Compression envelopeCompression = Compression.NONE;
+
+    // envelopes smaller than this many bytes are queued uncompressed
+    @JsonProperty
+    @Min(0)
+    private int envelopeCompressionThreshold = 256;
+
+    // built from the two settings above on first use
+    @JsonIgnore
+    private EnvelopeCodec envelopeCodec;
+
     public RedisClusterConfiguration getRedisClusterConfiguration() {
 	return cluster;
     }
@@ -27,4 +74,32 @@ public class MessageCacheConfiguration {
     public int getPersistDelayMinutes() {
 	return persistDelayMinutes;
     }
+
+    public int getPersisterWorkerThreads() {
+	return persisterWorkerThreads;
+    }
+
+    public int getPersisterQueuesInFlightPerWorker() {
+	return persisterQueuesInFlightPerWorker;
+    }
+
+    public int getPersisterMaxConcurrentBatchWrites() {
+	return persisterMaxConcurrentBatchWrites;
+    }
+
+    public int getQueueReadThreads() {
+	return queueReadThreads;
+    }
+
+    public boolean isServerChannelNotifications() {
+	return serverChannelNotifications;
+    }
+
+    public synchronized EnvelopeCodec getEnvelopeCodec() {
+	if (envelopeCodec == null) {
+	    envelopeCodec = new EnvelopeCodec(envelopeCompression, envelopeCompressionThreshold);
+	}
+
+	return envelopeCodec;
+    }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import su.sres.shadowserver.util.ua.ClientPlatform;
+
+public class MessageDeliveryConfiguration {
+
+  // stored messages are read a page of 100 at a time, and a window of more than
+  // half a page would leave the next page, read while the window is in flight,
+  // mostly made of messages already sent
+  public static final int MAX_SEND_WINDOW = 50;
+
+  // the number of stored messages a connection sends before waiting for the
+  // client to acknowledge any of them
+  @JsonProperty
+  @Min(1)
+  @Max(MAX_SEND_WINDOW)
+  private int sendWindow = 32;
+
+  // overrides of the send window for particular client platforms
+  @JsonProperty
+  @NotNull
+  private Map<ClientPlatform, @Min(1) @Max(MAX_SEND_WINDOW) Integer> platformSendWindows = Collections.emptyMap();
+
+  public int getSendWindow() {
+    return sendWindow;
+  }
+
+  public int getSendWindow(final ClientPlatform platform) {
+    return platform != null ? platformSendWindows.getOrDefault(platform, sendWindow) : sendWindow;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class PreKeyPoolConfiguration {
+
+  // whether devices whose keys are claimed often get a pool of keys in the
+  // cache cluster
+  @JsonProperty
+  private boolean enabled = false;
+
+  // the number of keys a hot device's pool is filled up to
+  @JsonProperty
+  @Min(1)
+  private int size = 50;
+
+  // the claims a device's keys get within a minute for the device to be pooled
+  @JsonProperty
+  @Min(1)
+  private int hotClaimsPerMinute = 30;
+
+  // threads moving keys from the store into pools
+  @JsonProperty
+  @Min(1)
+  private int refillThreads = 4;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getHotClaimsPerMinute() {
+    return hotClaimsPerMinute;
+  }
+
+  public int getRefillThreads() {
+    return refillThreads;
+  }
+}
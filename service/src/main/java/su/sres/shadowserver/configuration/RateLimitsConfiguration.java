@@ -165,6 +165,13 @@ public class RateLimitsConfiguration {
     @JsonProperty
     private double leakRatePerMinute;
 
+    // permits each node leases from a bucket at a time; 0 leaves leasing off
+    @JsonProperty
+    private int localLeaseSize;
+
+    @JsonProperty
+    private Duration localLeaseDuration = Duration.ofSeconds(10);
+
     public RateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
       this.bucketSize = bucketSize;
       this.leakRatePerMinute = leakRatePerMinute;
@@ -180,6 +187,14 @@ public class RateLimitsConfiguration {
     public double getLeakRatePerMinute() {
       return leakRatePerMinute;
     }
+
+    public int getLocalLeaseSize() {
+      return localLeaseSize;
+    }
+
+    public Duration getLocalLeaseDuration() {
+      return localLeaseDuration;
+    }
   }
 
   public static class CardinalityRateLimitConfiguration {
@@ -8,11 +8,35 @@ package su.sres.shadowserver.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
 import java.time.Duration;
 
 public class ScyllaDbConfiguration {
 
+    public enum StorageBackend {
+      // the DynamoDB-compatible Alternator API
+      ALTERNATOR,
+      // the native CQL protocol; used for messages and prekeys only
+      CQL
+    }
+
+    public enum KeysUploadMode {
+      // an upload replaces all of a device's keys
+      REPLACE,
+      // an upload adds to a device's keys, dropping the oldest past the cap;
+      // a new identity key still replaces them
+      APPEND
+    }
+
+    public enum AccountWriteFormat {
+      // the JSON every version reads
+      JSON,
+      // the compact binary format; switch to it only once every node reads it
+      BINARY
+    }
+
     private String endpoint;
     private String region;
            
@@ -42,6 +66,25 @@ public class ScyllaDbConfiguration {
     
     // used by messages
     private Duration timeToLive = Duration.ofDays(14);
+
+    // used by keys: the number of keys read at a time when claiming one
+    @Min(1)
+    private int keysTakePageSize = 4;
+
+    // used by keys: how a device's prekey upload treats the keys it already has
+    private KeysUploadMode keysUploadMode = KeysUploadMode.REPLACE;
+
+    // used by keys: the most keys a device keeps when uploads append
+    @Min(1)
+    private int keysMaxPerDevice = 200;
+
+    // used by accounts: the format accounts are written in, to the accounts table
+    // and the account cache alike; both formats are always read
+    private AccountWriteFormat accountWriteFormat = AccountWriteFormat.JSON;
+
+    private StorageBackend storageBackend = StorageBackend.ALTERNATOR;
+
+    private CqlConfiguration cql = new CqlConfiguration();
     
     @Valid
     @NotEmpty
@@ -84,6 +127,41 @@ public class ScyllaDbConfiguration {
     return timeToLive;
     }
     
+    @NotNull
+    @JsonProperty
+    public StorageBackend getStorageBackend() {
+      return storageBackend;
+    }
+
+    @Valid
+    @NotNull
+    @JsonProperty("cql")
+    public CqlConfiguration getCqlConfiguration() {
+      return cql;
+    }
+
+    @JsonProperty
+    public int getKeysTakePageSize() {
+      return keysTakePageSize;
+    }
+
+    @NotNull
+    @JsonProperty
+    public KeysUploadMode getKeysUploadMode() {
+      return keysUploadMode;
+    }
+
+    @NotNull
+    @JsonProperty
+    public AccountWriteFormat getAccountWriteFormat() {
+      return accountWriteFormat;
+    }
+
+    @JsonProperty
+    public int getKeysMaxPerDevice() {
+      return keysMaxPerDevice;
+    }
+
     @JsonProperty
     public int getScanPageSize() {
       return scanPageSize;
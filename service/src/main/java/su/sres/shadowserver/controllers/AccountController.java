@@ -271,13 +271,6 @@ public class AccountController {
       throw new WebApplicationException(Response.status(409).build());
     }
 
-    if (accounts.getAccountCreationLock() || accounts.getAccountRemovalLock()
-        || accounts.getDirectoryManager().getDirectoryReadLock() || accounts.getDirectoryRestoreLock()) {
-
-      throw new WebApplicationException(
-          Response.status(503).header("Retry-After", Integer.valueOf(60)).build());
-    }
-
     Account account = accounts.create(userLogin, password, signalAgent, accountAttributes);
 
     {
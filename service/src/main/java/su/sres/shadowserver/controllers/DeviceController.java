@@ -43,7 +43,7 @@ import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.Device.DeviceCapabilities;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.PreKeyStore;
 import su.sres.shadowserver.storage.MessagesManager;
 import su.sres.shadowserver.storage.StoredVerificationCodeManager;
 import su.sres.shadowserver.util.Util;
@@ -59,7 +59,7 @@ public class DeviceController {
   private final StoredVerificationCodeManager pendingDevices;
   private final AccountsManager accounts;
   private final MessagesManager messages;
-  private final KeysScyllaDb keys;
+  private final PreKeyStore keys;
   private final RateLimiters rateLimiters;
   private final Map<String, Integer> maxDeviceConfiguration;
   private final int verificationCodeLifetime;
@@ -67,7 +67,7 @@ public class DeviceController {
   public DeviceController(StoredVerificationCodeManager pendingDevices,
       AccountsManager accounts,
       MessagesManager messages,
-      KeysScyllaDb keys,
+      PreKeyStore keys,
       RateLimiters rateLimiters,
       Map<String, Integer> maxDeviceConfiguration,
       int verificationCodeLifetime) {
@@ -33,6 +33,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import io.dropwizard.auth.Auth;
 import io.micrometer.core.instrument.Metrics;
@@ -49,14 +51,14 @@ import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.Device;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.KeysManager;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 @Path("/v2/keys")
 public class KeysController {
 
   private final RateLimiters rateLimiters;
-  private final KeysScyllaDb keysScyllaDb;
+  private final KeysManager keys;
   private final AccountsManager accounts;
 
   private final PreKeyRateLimiter preKeyRateLimiter;
@@ -65,10 +67,10 @@ public class KeysController {
 
   private static final String RATE_LIMITED_GET_PREKEYS_COUNTER_NAME = name(KeysController.class, "rateLimitedGetPreKeys");
 
-  public KeysController(RateLimiters rateLimiters, KeysScyllaDb keysScyllaDb, AccountsManager accounts, PreKeyRateLimiter preKeyRateLimiter,
+  public KeysController(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts, PreKeyRateLimiter preKeyRateLimiter,
       RateLimitChallengeManager rateLimitChallengeManager) {
     this.rateLimiters = rateLimiters;
-    this.keysScyllaDb = keysScyllaDb;
+    this.keys = keys;
     this.accounts = accounts;
     this.preKeyRateLimiter = preKeyRateLimiter;
 
@@ -78,7 +80,7 @@ public class KeysController {
   @GET
   @Produces(MediaType.APPLICATION_JSON)
   public PreKeyCount getStatus(@Auth AuthenticatedAccount auth) {
-    int count = keysScyllaDb.getCount(auth.getAccount(), auth.getAuthenticatedDevice().getId());
+    int count = keys.getCount(auth.getAccount(), auth.getAuthenticatedDevice().getId());
 
     if (count > 0) {
       count = count - 1;
@@ -94,6 +96,7 @@ public class KeysController {
     Account account = disabledPermittedAuth.getAccount();
     Device device = disabledPermittedAuth.getAuthenticatedDevice();
     boolean updateAccount = false;
+    boolean identityKeyChanged = false;
 
     if (!preKeys.getSignedPreKey().equals(device.getSignedPreKey())) {
       updateAccount = true;
@@ -101,6 +104,7 @@ public class KeysController {
 
     if (!preKeys.getIdentityKey().equals(account.getIdentityKey())) {
       updateAccount = true;
+      identityKeyChanged = true;
     }
 
     if (updateAccount) {
@@ -110,14 +114,19 @@ public class KeysController {
       });
     }
 
-    keysScyllaDb.store(account, device.getId(), preKeys.getPreKeys());
+    // keys made for a previous identity key are no use to anyone
+    if (identityKeyChanged) {
+      keys.store(account, device.getId(), preKeys.getPreKeys());
+    } else {
+      keys.refill(account, device.getId(), preKeys.getPreKeys());
+    }
   }
 
   @Timed
   @GET
   @Path("/{identifier}/{device_id}")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
+  public CompletableFuture<Response> getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
       @HeaderParam(OptionalAccess.UNIDENTIFIED) Optional<Anonymous> accessKey,
       @PathParam("identifier") UUID targetUuid, @PathParam("device_id") String deviceId, @HeaderParam("User-Agent") String userAgent)
       throws RateLimitExceededException, RateLimitChallengeException, ServerRejectedException {
@@ -155,25 +164,28 @@ public class KeysController {
       }
     }
 
-    Map<Long, PreKey> preKeysByDeviceId = getLocalKeys(target.get(), deviceId);
-    List<PreKeyResponseItem> responseItems = new LinkedList<>();
+    final Account targetAccount = target.get();
+
+    return getLocalKeys(targetAccount, deviceId).thenApply(preKeysByDeviceId -> {
+      List<PreKeyResponseItem> responseItems = new LinkedList<>();
 
-    for (Device device : target.get().getDevices()) {
-      if (device.isEnabled() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
-        SignedPreKey signedPreKey = device.getSignedPreKey();
-        PreKey preKey = preKeysByDeviceId.get(device.getId());
+      for (Device device : targetAccount.getDevices()) {
+        if (device.isEnabled() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
+          SignedPreKey signedPreKey = device.getSignedPreKey();
+          PreKey preKey = preKeysByDeviceId.get(device.getId());
 
-        if (signedPreKey != null || preKey != null) {
-          responseItems.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
+          if (signedPreKey != null || preKey != null) {
+            responseItems.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
+          }
         }
       }
-    }
 
-    if (responseItems.isEmpty()) {
-      // this triggers mark unregistered on the client side
-      return Response.status(404).build();
-    } else
-      return Response.ok().entity(new PreKeyResponse(target.get().getIdentityKey(), responseItems)).build();
+      if (responseItems.isEmpty()) {
+        // this triggers mark unregistered on the client side
+        return Response.status(404).build();
+      } else
+        return Response.ok().entity(new PreKeyResponse(targetAccount.getIdentityKey(), responseItems)).build();
+    });
   }
 
   @Timed
@@ -200,20 +212,27 @@ public class KeysController {
       return Optional.empty();
   }
 
-  private Map<Long, PreKey> getLocalKeys(Account destination, String deviceIdSelector) {
+  private CompletableFuture<Map<Long, PreKey>> getLocalKeys(Account destination, String deviceIdSelector) {
 // excluded federation (?), reserved for future use 
     // throws NoSuchUserException
 
     try {
       if (deviceIdSelector.equals("*")) {
-        return keysScyllaDb.take(destination);
+        // keys are claimed for every device at once, and only for the devices
+        // the response includes
+        return keys.takeAsync(destination, destination.getDevices().stream()
+            .filter(Device::isEnabled)
+            .map(Device::getId)
+            .collect(Collectors.toList()));
       }
 
       long deviceId = Long.parseLong(deviceIdSelector);
 
-      return keysScyllaDb.take(destination, deviceId)
-          .map(preKey -> Map.of(deviceId, preKey))
-          .orElse(Collections.emptyMap());
+      // a single key is claimed without holding the request thread
+      return keys.takeAsync(destination, deviceId)
+          .thenApply(maybePreKey -> maybePreKey
+              .map(preKey -> Map.of(deviceId, preKey))
+              .orElse(Collections.emptyMap()));
     } catch (NumberFormatException e) {
       throw new WebApplicationException(Response.status(422).build());
     }
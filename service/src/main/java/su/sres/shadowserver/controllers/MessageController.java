@@ -18,7 +18,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nonnull;
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -42,21 +41,18 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -137,7 +133,6 @@ public class MessageController {
   private final ApnFallbackManager apnFallbackManager;
   private final DynamicConfiguration dynamicConfiguration;
   private final ScheduledExecutorService receiptExecutorService;
-  private final ExecutorService             multiRecipientMessageExecutor;
 
   private final Random random = new Random();
 
@@ -165,8 +160,7 @@ public class MessageController {
       RateLimitChallengeManager rateLimitChallengeManager,
       ReportMessageManager reportMessageManager,
       FaultTolerantRedisCluster metricsCluster,
-      ScheduledExecutorService receiptExecutorService,
-      @Nonnull ExecutorService multiRecipientMessageExecutor) {
+      ScheduledExecutorService receiptExecutorService) {
     this.rateLimiters = rateLimiters;
     this.messageSender = messageSender;
     this.receiptSender = receiptSender;
@@ -178,7 +172,6 @@ public class MessageController {
     this.rateLimitChallengeManager = rateLimitChallengeManager;
     this.reportMessageManager = reportMessageManager;
     this.receiptExecutorService = receiptExecutorService;
-    this.multiRecipientMessageExecutor = Objects.requireNonNull(multiRecipientMessageExecutor);
   }
 
   @Timed
@@ -343,16 +336,16 @@ public class MessageController {
 
     unidentifiedMeter.mark(multiRecipientMessage.getRecipients().length);
 
-    Map<UUID, Account> uuidToAccountMap = Arrays.stream(multiRecipientMessage.getRecipients())
+    Set<UUID> recipientUuids = Arrays.stream(multiRecipientMessage.getRecipients())
         .map(Recipient::getUuid)
-        .distinct()
-        .collect(Collectors.toUnmodifiableMap(Function.identity(), uuid -> {
-          Optional<Account> account = accountsManager.get(uuid);
-          if (account.isEmpty()) {
-            throw new WebApplicationException(Status.NOT_FOUND);
-          }
-          return account.get();
-        }));
+        .collect(Collectors.toSet());
+
+    Map<UUID, Account> uuidToAccountMap = accountsManager.getAll(recipientUuids);
+
+    if (uuidToAccountMap.size() != recipientUuids.size()) {
+      throw new WebApplicationException(Status.NOT_FOUND);
+    }
+
     checkAccessKeys(accessKeys, uuidToAccountMap);
 
     final Map<Account, HashSet<Pair<Long, Integer>>> accountToDeviceIdAndRegistrationIdMap = Arrays
@@ -401,28 +394,32 @@ public class MessageController {
         UserAgentTagUtil.getPlatformTag(userAgent),
         Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
         Tag.of(SENDER_TYPE_TAG_NAME, "unidentified"));
-    List<UUID> uuids404 = Collections.synchronizedList(new ArrayList<>());
     final Counter counter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, tags);
-    try {
-      multiRecipientMessageExecutor.invokeAll(Arrays.stream(multiRecipientMessage.getRecipients())
-          .map(recipient -> (Callable<Void>) () -> {
-            Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
-         // we asserted this must exist in validateCompleteDeviceList
-            Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
-            counter.increment();
-            try {
-              sendMessage(destinationAccount, destinationDevice, timestamp, online, recipient,
-                  multiRecipientMessage.getCommonPayload());
-            } catch (NoSuchUserException e) {
-              uuids404.add(destinationAccount.getUuid());
-            }
-            return null;
-          })
-          .collect(Collectors.toList()));
-    } catch (InterruptedException e) {
-      logger.error("interrupted while delivering multi-recipient messages", e);
-      return Response.serverError().entity("interrupted during delivery").build();
+
+    final Map<Pair<Account, Device>, Envelope> messages = new HashMap<>();
+
+    for (Recipient recipient : multiRecipientMessage.getRecipients()) {
+      Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
+      // we asserted this must exist in validateCompleteDeviceList
+      Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
+
+      messages.put(new Pair<>(destinationAccount, destinationDevice),
+          buildMultiRecipientEnvelope(timestamp, recipient, multiRecipientMessage.getCommonPayload()));
+    }
+
+    counter.increment(messages.size());
+
+    final List<UUID> uuids404;
+
+    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
+      // unregistered master devices trigger mark unregistered on the client side
+      uuids404 = messageSender.sendMessages(messages, online).stream()
+          .filter(destination -> destination.second().isMaster())
+          .map(destination -> destination.first().getUuid())
+          .distinct()
+          .collect(Collectors.toList());
     }
+
     return Response.ok(new SendMultiRecipientMessageResponse(uuids404)).build();
   }
 
@@ -610,33 +607,21 @@ public class MessageController {
     }
   }
 
-  private void sendMessage(Account destinationAccount, Device destinationDevice, long timestamp, boolean online,
-      Recipient recipient, byte[] commonPayload) throws NoSuchUserException {
-    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
-      long serverTimestamp = System.currentTimeMillis();
-      byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
-
-      byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
-      payload[0] = MultiRecipientMessageProvider.VERSION;
-      System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
-      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
+  private static Envelope buildMultiRecipientEnvelope(long timestamp, Recipient recipient, byte[] commonPayload) {
+    long serverTimestamp = System.currentTimeMillis();
+    byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
 
-      messageBuilder
-          .setType(Type.UNIDENTIFIED_SENDER)
-          .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
-          .setServerTimestamp(serverTimestamp)
-          .setContent(ByteString.copyFrom(payload));
+    byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
+    payload[0] = MultiRecipientMessageProvider.VERSION;
+    System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
+    System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
 
-      messageSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build(), online);
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isMaster()) {
-        // this triggers mark unregistered on the client side
-        throw new NoSuchUserException(e);        
-      } else {
-        logger.debug("Not registered", e);
-      }
-    }
+    return Envelope.newBuilder()
+        .setType(Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
+        .setServerTimestamp(serverTimestamp)
+        .setContent(ByteString.copyFrom(payload))
+        .build();
   }
 
   @VisibleForTesting
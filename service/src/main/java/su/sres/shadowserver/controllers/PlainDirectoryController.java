@@ -10,12 +10,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Optional;
 
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.protobuf.ProtocolBufferMediaType;
@@ -24,9 +28,12 @@ import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.DirectoryManager;
+import su.sres.shadowserver.storage.DirectorySnapshotCache;
+import su.sres.shadowserver.storage.DirectorySnapshotCache.DirectorySnapshot;
 import su.sres.shadowserver.storage.protos.DirectoryResponse;
 import su.sres.shadowserver.storage.protos.DirectoryUpdate;
 import su.sres.shadowserver.storage.protos.DirectoryUpdate.Type;
+import su.sres.shadowserver.util.Pair;
 
 import static su.sres.shadowserver.storage.DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD;
 
@@ -40,33 +47,31 @@ public class PlainDirectoryController {
   private final RateLimiters rateLimiters;
   private final DirectoryManager directory;
   private final AccountsManager accountsManager;
-  private final AtomicInteger directoryReadLock;
+  private final DirectorySnapshotCache snapshotCache;
 
-  public PlainDirectoryController(RateLimiters rateLimiters, AccountsManager accountsManager) {
+  public PlainDirectoryController(RateLimiters rateLimiters, AccountsManager accountsManager, DirectorySnapshotCache snapshotCache) {
     this.accountsManager = accountsManager;
     this.rateLimiters = rateLimiters;
+    this.snapshotCache = snapshotCache;
 
     directory = accountsManager.getDirectoryManager();
-    directoryReadLock = new AtomicInteger(0);
   }
 
   @Timed
   @GET
   @Path("/download/{version}")
   @Produces(ProtocolBufferMediaType.APPLICATION_PROTOBUF)
-  public DirectoryResponse downloadDirectory(@PathParam("version") String receivedVersion, @Auth AuthenticatedAccount auth) throws RateLimitExceededException {
+  public Response downloadDirectory(@PathParam("version") String receivedVersion,
+      @HeaderParam(HttpHeaders.ACCEPT_ENCODING) Optional<String> acceptEncoding,
+      @Auth AuthenticatedAccount auth) throws RateLimitExceededException {
     rateLimiters.getDirectoryLimiter().validate(auth.getAccount().getUuid());
 
     long remoteVersion = Long.parseLong(receivedVersion);
     long localVersion = accountsManager.getDirectoryVersion();
 
-    if (
-    // if directory is write locked, return no-update, whatever the version
-    accountsManager.getAccountCreationLock() ||
-        accountsManager.getAccountRemovalLock() ||
-        accountsManager.getDirectoryRestoreLock() ||
-        // if the local version is same as remote, return no-update as well
-        remoteVersion == localVersion) {
+    // no locking is needed here: the delta log entries up to the local version are
+    // immutable, and the full directory is read atomically with its version
+    if (remoteVersion == localVersion) {
 
       return noUpdateResponse(localVersion);
     }
@@ -77,44 +82,34 @@ public class PlainDirectoryController {
       throw new WebApplicationException(500);
     }
 
-    directoryReadLock.getAndIncrement();
-    directory.setDirectoryReadLock();
+    if (remoteVersion == 0) {
 
-    try {
+      return fullDirectoryResponse(localVersion, acceptEncoding);
 
-      if (remoteVersion == 0) {
-
-        return fullDirectoryResponse(localVersion);
-
-      } else {
+    } else {
 
-        long versionDiff = localVersion - remoteVersion;
+      long versionDiff = localVersion - remoteVersion;
 
-        if (versionDiff > INCREMENTAL_UPDATES_TO_HOLD) {
+      if (versionDiff > INCREMENTAL_UPDATES_TO_HOLD) {
 
-          return fullDirectoryResponse(localVersion);
+        return fullDirectoryResponse(localVersion, acceptEncoding);
 
-        } else {
+      } else {
 
-          HashMap<String, String> incrementalUpdate = directory.retrieveIncrementalUpdate((int) versionDiff);
+        Optional<HashMap<String, String>> incrementalUpdate = directory.retrieveIncrementalUpdate(remoteVersion, localVersion);
 
-          if (!incrementalUpdate.isEmpty()) {
+        if (incrementalUpdate.isPresent()) {
 
-            return DirectoryResponse.newBuilder()
-                .setVersion(localVersion)
-                .setDirectoryUpdate(buildIncrementalUpdate(incrementalUpdate))
-                .build();
-          } else {
+          return Response.ok(DirectoryResponse.newBuilder()
+              .setVersion(localVersion)
+              .setDirectoryUpdate(buildIncrementalUpdate(incrementalUpdate.get()))
+              .build()).build();
+        } else {
 
-            return fullDirectoryResponse(localVersion);
-          }
+          // the delta log does not cover the requested range
+          return fullDirectoryResponse(localVersion, acceptEncoding);
         }
-
       }
-    } finally {
-
-      if (directoryReadLock.decrementAndGet() == 0)
-        directory.releaseDirectoryReadLock();
     }
   }
 
@@ -122,80 +117,69 @@ public class PlainDirectoryController {
   @GET
   @Path("/download/forcefull")
   @Produces(ProtocolBufferMediaType.APPLICATION_PROTOBUF)
-  public DirectoryResponse downloadFullDirectory(@Auth AuthenticatedAccount auth) throws RateLimitExceededException {
+  public Response downloadFullDirectory(@HeaderParam(HttpHeaders.ACCEPT_ENCODING) Optional<String> acceptEncoding,
+      @Auth AuthenticatedAccount auth) throws RateLimitExceededException {
     rateLimiters.getDirectoryLimiter().validate(auth.getAccount().getUuid());
 
-    long localVersion = accountsManager.getDirectoryVersion();
-
-    if (
-    // if directory is write locked, return no-update, whatever the version
-    accountsManager.getAccountCreationLock() ||
-        accountsManager.getAccountRemovalLock() ||
-        accountsManager.getDirectoryRestoreLock()) {
-
-      return noUpdateResponse(localVersion);
-    }
-
-    directoryReadLock.getAndIncrement();
-    directory.setDirectoryReadLock();
-
-    try {
-      return fullDirectoryResponse(localVersion);
-    } finally {
-      if (directoryReadLock.decrementAndGet() == 0)
-        directory.releaseDirectoryReadLock();
-    }
+    return fullDirectoryResponse(accountsManager.getDirectoryVersion(), acceptEncoding);
   }
 
-  private DirectoryResponse fullDirectoryResponse(long version) {
+  private Response fullDirectoryResponse(long version, Optional<String> acceptEncoding) {
 
-    if (!accountsManager.getDirectoryRestoreLock()) {
+    DirectorySnapshot snapshot = snapshotCache.get(version, () -> getFullDirectory(version));
 
-      return DirectoryResponse.newBuilder()
-          .setVersion(version)
-          .setDirectoryUpdate(getFullDirectory())
-          .build();
-    } else {
+    if (snapshot.getCompressed().isPresent() && acceptsGzip(acceptEncoding)) {
 
-      // if directory restore is currently in progress, we simply return no-update in
-      // order to avoid a possible race condition
-      return noUpdateResponse(version);
+      return Response.ok(snapshot.getCompressed().get())
+          .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+          .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+          .build();
     }
+
+    // the body depends on Accept-Encoding either way, so caches mustn't serve
+    // one variant for the other
+    return Response.ok(snapshot.getSerialized())
+        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+        .build();
   }
 
-  private DirectoryResponse noUpdateResponse(long version) {
+  private Response noUpdateResponse(long version) {
 
-    return DirectoryResponse.newBuilder()
+    return Response.ok(DirectoryResponse.newBuilder()
         .setVersion(version)
         .setIsUpdate(false)
-        .build();
+        .build()).build();
   }
 
-  private DirectoryUpdate getFullDirectory() {
-
-    HashMap<String, String> retrievedPlainDirectory = directory.retrievePlainDirectory();
+  private static boolean acceptsGzip(Optional<String> acceptEncoding) {
+    return acceptEncoding.map(encodings -> Arrays.stream(encodings.split(","))
+        .map(encoding -> encoding.trim().split(";")[0])
+        .anyMatch("gzip"::equalsIgnoreCase))
+        .orElse(false);
+  }
 
-    if (!retrievedPlainDirectory.isEmpty()) {
+  private DirectoryResponse getFullDirectory(long version) {
 
-      return DirectoryUpdate.newBuilder()
-          .setType(Type.FULL)
-          .putAllDirectoryEntry(retrievedPlainDirectory)
-          .build();
+    Pair<Optional<Long>, HashMap<String, String>> versionedDirectory = directory.retrieveVersionedPlainDirectory();
 
-    } else {
+    if (versionedDirectory.second().isEmpty()) {
 
       // plain directory should never be empty; if it's not the case then something is
-      // wrong with Redis and we need to recreate it from SQL
-
-      // getFullDirectory() should not be invoked while the directory restoration lock
-      // is set, so there should be no race condition here
+      // wrong with Redis and we need to recreate it from Scylla
       accountsManager.restorePlainDirectory();
 
-      return DirectoryUpdate.newBuilder()
-          .setType(Type.FULL)
-          .putAllDirectoryEntry(directory.retrievePlainDirectory())
-          .build();
+      versionedDirectory = directory.retrieveVersionedPlainDirectory();
     }
+
+    // the directory may have moved on since the requested version was read, in which
+    // case the newer version is served along with its contents
+    return DirectoryResponse.newBuilder()
+        .setVersion(versionedDirectory.first().orElse(version))
+        .setDirectoryUpdate(DirectoryUpdate.newBuilder()
+            .setType(Type.FULL)
+            .putAllDirectoryEntry(versionedDirectory.second())
+            .build())
+        .build();
   }
 
   private DirectoryUpdate buildIncrementalUpdate(HashMap<String, String> incrementalUpdate) {
@@ -7,9 +7,11 @@ package su.sres.shadowserver.entities;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.protobuf.ByteString;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 
 public class OutgoingMessageEntity {
@@ -50,6 +52,11 @@ public class OutgoingMessageEntity {
     @JsonProperty
     private long serverTimestamp;
 
+    // the envelope as it's delivered to the client, if the store already has it
+    // serialized
+    @JsonIgnore
+    private ByteString envelope;
+
     public OutgoingMessageEntity() {
     }
 
@@ -71,6 +78,15 @@ public class OutgoingMessageEntity {
 	this.serverTimestamp = serverTimestamp;
     }
 
+    public OutgoingMessageEntity(long id, boolean cached,
+	    UUID guid, int type, String relay, long timestamp,
+	    String source, UUID sourceUuid, int sourceDevice,
+	    byte[] message, byte[] content, long serverTimestamp,
+	    ByteString envelope) {
+	this(id, cached, guid, type, relay, timestamp, source, sourceUuid, sourceDevice, message, content, serverTimestamp);
+	this.envelope = envelope;
+    }
+
     public UUID getGuid() {
 	return guid;
     }
@@ -121,6 +137,11 @@ public class OutgoingMessageEntity {
 	return serverTimestamp;
     }
 
+    @JsonIgnore
+    public Optional<ByteString> getEnvelope() {
+	return Optional.ofNullable(envelope);
+    }
+
     @Override
     public boolean equals(final Object o) {
 	if (this == o)
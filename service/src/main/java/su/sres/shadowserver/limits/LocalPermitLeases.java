@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.limits;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permits this node has leased from the rate limiter buckets in the cluster. A
+ * lease takes a slice of a bucket at once and is then spent locally, so keys well
+ * within their limits don't cost a round trip per validation. Whatever is left of
+ * a lease once it expires or gets replaced is collected to be given back to its
+ * bucket.
+ */
+class LocalPermitLeases {
+
+  private final int leaseSize;
+  private final long leaseDurationMillis;
+
+  private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+  private final Map<String, Integer> unusedPermits = new ConcurrentHashMap<>();
+  private final AtomicLong nextCollectionMillis = new AtomicLong();
+
+  LocalPermitLeases(final int leaseSize, final Duration leaseDuration) {
+    this.leaseSize = leaseSize;
+    this.leaseDurationMillis = leaseDuration.toMillis();
+  }
+
+  int getLeaseSize() {
+    return leaseSize;
+  }
+
+  boolean tryTake(final String key, final int amount, final long currentTimeMillis) {
+    final Lease lease = leases.get(key);
+
+    return lease != null && lease.tryTake(amount, currentTimeMillis);
+  }
+
+  boolean hasPermits(final String key, final int amount, final long currentTimeMillis) {
+    final Lease lease = leases.get(key);
+
+    return lease != null && lease.hasPermits(amount, currentTimeMillis);
+  }
+
+  void add(final String key, final int permits, final long currentTimeMillis) {
+    final Lease previous = leases.put(key, new Lease(permits, currentTimeMillis + leaseDurationMillis));
+
+    if (previous != null) {
+      release(key, previous);
+    }
+  }
+
+  /**
+   * Drops the lease of the given key without giving its permits back, e.g. when
+   * the bucket itself is cleared.
+   */
+  void discard(final String key) {
+    final Lease lease = leases.remove(key);
+
+    if (lease != null) {
+      lease.expire();
+    }
+
+    unusedPermits.remove(key);
+  }
+
+  /**
+   * Collects the permits of expired and replaced leases. Expired leases are only
+   * looked for once per lease duration; in between, an empty map is returned.
+   *
+   * @return the numbers of unused permits by key
+   */
+  Map<String, Integer> collectUnused(final long currentTimeMillis) {
+    final long nextCollection = nextCollectionMillis.get();
+
+    if (currentTimeMillis < nextCollection
+        || !nextCollectionMillis.compareAndSet(nextCollection, currentTimeMillis + leaseDurationMillis)) {
+
+      return Map.of();
+    }
+
+    leases.forEach((key, lease) -> {
+      if (lease.isExpired(currentTimeMillis) && leases.remove(key, lease)) {
+        release(key, lease);
+      }
+    });
+
+    final Map<String, Integer> collected = new HashMap<>();
+
+    for (String key : unusedPermits.keySet()) {
+      final Integer permits = unusedPermits.remove(key);
+
+      if (permits != null) {
+        collected.put(key, permits);
+      }
+    }
+
+    return collected;
+  }
+
+  private void release(final String key, final Lease lease) {
+    final int remaining = lease.expire();
+
+    if (remaining > 0) {
+      unusedPermits.merge(key, remaining, Integer::sum);
+    }
+  }
+
+  private static class Lease {
+
+    private final long expirationMillis;
+    private int remaining;
+
+    private Lease(final int remaining, final long expirationMillis) {
+      this.remaining = remaining;
+      this.expirationMillis = expirationMillis;
+    }
+
+    private synchronized boolean tryTake(final int amount, final long currentTimeMillis) {
+      if (!hasPermits(amount, currentTimeMillis)) {
+        return false;
+      }
+
+      remaining -= amount;
+      return true;
+    }
+
+    private synchronized boolean hasPermits(final int amount, final long currentTimeMillis) {
+      return !isExpired(currentTimeMillis) && remaining >= amount;
+    }
+
+    private boolean isExpired(final long currentTimeMillis) {
+      return currentTimeMillis >= expirationMillis;
+    }
+
+    /**
+     * @return the permits left, which can't be taken from this lease any more
+     */
+    private synchronized int expire() {
+      final int unused = remaining;
+      remaining = 0;
+
+      return unused;
+    }
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * Original software: Copyright 2013-2020 Signal Messenger, LLC
- * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * Modified software: Copyright 2019-2023 Anton Alipov, sole trader
  * SPDX-License-Identifier: AGPL-3.0-only
  */
 package su.sres.shadowserver.limits;
@@ -9,13 +9,15 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import io.lettuce.core.ScriptOutputType;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.annotation.Nullable;
@@ -24,49 +26,95 @@ import static com.codahale.metrics.MetricRegistry.name;
 
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
-import su.sres.shadowserver.util.SystemMapper;
 
+/**
+ * A leaky bucket rate limiter. Buckets are kept in the cache cluster and updated
+ * by a Lua script, so a validation is a single atomic round trip and concurrent
+ * requests can't overwrite each other's updates.
+ * <p>
+ * Optionally, the limiter leases a slice of a bucket at a time and spends it
+ * locally (see {@link LocalPermitLeases}); then only keys close to their limits
+ * need a round trip for every validation. Since leased permits count as spent
+ * until they're given back, a key used on several nodes at once may be limited
+ * slightly earlier than it would be otherwise.
+ */
 public class RateLimiter {
 
-  private final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
+  private static final String VALIDATE_SCRIPT = "lua/validate_rate_limit.lua";
 
   private final Meter meter;
+  private final Meter leasedMeter;
   private final Timer validateTimer;
   protected final FaultTolerantRedisCluster cacheCluster;
   protected final String name;
   private final int bucketSize;
   private final double leakRatePerMinute;
-  private final double leakRatePerMillis;  
-  
+  private final double leakRatePerMillis;
+  private final ClusterLuaScript validateScript;
+
+  @Nullable
+  private final LocalPermitLeases leases;
+
   public RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute)
+  {
+    this(cacheCluster, name, bucketSize, leakRatePerMinute, 0, Duration.ZERO);
+  }
+
+  /**
+   * @param leaseSize     the number of permits leased for local use at a time, or
+   *                      0 to go to the cluster for every validation
+   * @param leaseDuration how long leased permits may be used before the rest of
+   *                      them are given back
+   */
+  public RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute, int leaseSize, Duration leaseDuration)
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
     this.meter = metricRegistry.meter(name(getClass(), name, "exceeded"));
+    this.leasedMeter = metricRegistry.meter(name(getClass(), name, "leased"));
     this.validateTimer = metricRegistry.timer(name(getClass(), name, "validate"));
-    this.cacheCluster = cacheCluster;    
+    this.cacheCluster = cacheCluster;
     this.name = name;
     this.bucketSize = bucketSize;
     this.leakRatePerMinute = leakRatePerMinute;
-    this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);    
+    this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);
+    this.leases = leaseSize > 1 ? new LocalPermitLeases(leaseSize, leaseDuration) : null;
+
+    try {
+      this.validateScript = ClusterLuaScript.fromResource(cacheCluster, VALIDATE_SCRIPT, ScriptOutputType.INTEGER);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
     try (final Timer.Context ignored = validateTimer.time()) {
-      LeakyBucket bucket = getBucket(key);
+      if (leases != null && amount < leases.getLeaseSize()) {
+        final long currentTimeMillis = System.currentTimeMillis();
 
-      if (bucket.add(amount)) {
-        setBucket(key, bucket);
-      } else {
-        meter.mark();
-        throw new RateLimitExceededException(key + " , " + amount, bucket.getTimeUntilSpaceAvailable(amount));
+        if (leases.tryTake(key, amount, currentTimeMillis)) {
+          leasedMeter.mark();
+          return;
+        }
+
+        returnUnusedPermits(currentTimeMillis);
+
+        if (execute(key, leases.getLeaseSize(), false) == 0) {
+          leases.add(key, leases.getLeaseSize() - amount, currentTimeMillis);
+          return;
+        }
+
+        // too close to the limit for a whole lease, so only the permits needed
+        // right now are taken
       }
+
+      checkResult(key, amount, execute(key, amount, false));
     }
   }
-  
+
   public void validate(final UUID accountUuid) throws RateLimitExceededException {
     validate(accountUuid.toString());
   }
@@ -80,21 +128,35 @@ public class RateLimiter {
   public void validate(String key) throws RateLimitExceededException {
     validate(key, 1);
   }
-  
+
   public boolean hasAvailablePermits(final UUID accountUuid, final int permits) {
     return hasAvailablePermits(accountUuid.toString(), permits);
   }
-  
+
   public boolean hasAvailablePermits(final String key, final int permits) {
-    return getBucket(key).getTimeUntilSpaceAvailable(permits).equals(Duration.ZERO);
+    if (leases != null && leases.hasPermits(key, permits, System.currentTimeMillis())) {
+      return true;
+    }
+
+    final long result = execute(key, permits, true);
+
+    if (result < 0) {
+      throw new IllegalArgumentException("Requested permits exceed maximum bucket size");
+    }
+
+    return result == 0;
   }
-  
+
   public void clear(final UUID accountUuid) {
     clear(accountUuid.toString());
   }
 
   public void clear(String key) {
-    cacheCluster.useCluster(connection -> connection.sync().del(getBucketName(key)));   
+    if (leases != null) {
+      leases.discard(key);
+    }
+
+    cacheCluster.useCluster(connection -> connection.sync().del(getBucketName(key)));
   }
 
   public int getBucketSize() {
@@ -105,35 +167,64 @@ public class RateLimiter {
     return leakRatePerMinute;
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
-        
-    try {
-      final String serialized = bucket.serialize(mapper);
-      cacheCluster.useCluster(connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+  private long execute(final String key, final int amount, final boolean dryRun) {
+    return (long) validateScript.execute(List.of(getBucketName(key)), getScriptArgs(amount, dryRun));
+  }
+
+  private void returnUnusedPermits(final long currentTimeMillis) {
+    final Map<String, Integer> unusedPermits = leases.collectUnused(currentTimeMillis);
+
+    if (unusedPermits.isEmpty()) {
+      return;
     }
+
+    final List<List<String>> bucketNames = new ArrayList<>(unusedPermits.size());
+    final List<List<String>> args = new ArrayList<>(unusedPermits.size());
+
+    unusedPermits.forEach((key, permits) -> {
+      bucketNames.add(List.of(getBucketName(key)));
+      // a negative amount puts permits back into the bucket
+      args.add(getScriptArgs(-permits, false));
+    });
+
+    validateScript.executeBatch(bucketNames, args);
   }
 
-  private LeakyBucket getBucket(String key) {
-    try {
-      final String serialized = cacheCluster.withCluster(connection -> connection.sync().get(getBucketName(key)));
+  private List<String> getScriptArgs(final int amount, final boolean dryRun) {
+    return List.of(String.valueOf(bucketSize),
+        String.valueOf(leakRatePerMillis),
+        String.valueOf(System.currentTimeMillis()),
+        String.valueOf(amount),
+        String.valueOf((int) Math.ceil((bucketSize / leakRatePerMillis) / 1000)),
+        dryRun ? "1" : "0");
+  }
 
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
-      }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
-    }    
+  private void checkResult(final String key, final int amount, final long result) throws RateLimitExceededException {
+    if (result == 0) {
+      return;
+    }
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+    meter.mark();
+
+    if (result < 0) {
+      // This shouldn't happen today but if so we should bubble this to the clients
+      // somehow
+      throw new IllegalArgumentException("Requested permits exceed maximum bucket size");
+    }
+
+    throw new RateLimitExceededException(key + " , " + amount, Duration.ofMillis(result));
   }
 
-  private String getBucketName(String key) {
+  String getBucketName(String key) {
     return "leaky_bucket::" + name + "::" + key;
   }
 
   public boolean hasConfiguration(final RateLimitConfiguration configuration) {
-    return bucketSize == configuration.getBucketSize() && leakRatePerMinute == configuration.getLeakRatePerMinute();
+    return bucketSize == configuration.getBucketSize() && leakRatePerMinute == configuration.getLeakRatePerMinute()
+        && getLeaseSize() == configuration.getLocalLeaseSize();
+  }
+
+  private int getLeaseSize() {
+    return leases != null ? leases.getLeaseSize() : 0;
   }
 }
@@ -82,7 +82,9 @@ public class RateLimiters {
 
     this.messagesLimiter = new RateLimiter(cacheCluster,  "messages",
         config.getMessages().getBucketSize(),
-        config.getMessages().getLeakRatePerMinute());
+        config.getMessages().getLeakRatePerMinute(),
+        config.getMessages().getLocalLeaseSize(),
+        config.getMessages().getLocalLeaseDuration());
 
     this.allocateDeviceLimiter = new RateLimiter(cacheCluster,  "allocateDevice",
         config.getAllocateDevice().getBucketSize(), config.getAllocateDevice().getLeakRatePerMinute());
@@ -324,6 +326,8 @@ public class RateLimiters {
   private RateLimiter createLimiter(FaultTolerantRedisCluster cacheCluster,  RateLimitConfiguration configuration, String name) {
     return new RateLimiter(cacheCluster, name,
         configuration.getBucketSize(),
-        configuration.getLeakRatePerMinute());
+        configuration.getLeakRatePerMinute(),
+        configuration.getLocalLeaseSize(),
+        configuration.getLocalLeaseDuration());
   }
 }
@@ -1,6 +1,6 @@
 /*
  * Original software: Copyright 2013-2020 Signal Messenger, LLC
- * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * Modified software: Copyright 2019-2023 Anton Alipov, sole trader
  * SPDX-License-Identifier: AGPL-3.0-only
  */
 package su.sres.shadowserver.push;
@@ -11,9 +11,10 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.SlotHash;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
@@ -23,9 +24,13 @@ import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.Pair;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -47,7 +52,9 @@ import static com.codahale.metrics.MetricRegistry.name;
  * <p/>
  * The client presence manager depends on Redis keyspace notifications and
  * requires that the Redis instance support at least the following notification
- * types: {@code K$z}.
+ * types: {@code K$z}. Alternatively, a manager displacing a client may tell the
+ * client's previous manager directly on that manager's own channel, so that no
+ * manager needs a subscription per client.
  */
 public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, String> implements Managed {
 
@@ -58,6 +65,9 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
 
   private final ClusterLuaScript clearPresenceScript;
+  private final ClusterLuaScript setPresenceScript;
+
+  private final boolean managerChannelDisplacement;
 
   private final ExecutorService keyspaceNotificationExecutorService;
   private final ScheduledExecutorService scheduledExecutorService;
@@ -66,6 +76,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final Map<String, DisplacedPresenceListener> displacementListenersByPresenceKey = new ConcurrentHashMap<>();
 
   private final Timer checkPresenceTimer;
+  private final Timer checkPresenceBatchTimer;
   private final Timer setPresenceTimer;
   private final Timer clearPresenceTimer;
   private final Timer prunePeersTimer;
@@ -77,12 +88,21 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
   static final String MANAGER_SET_KEY = "presence::managers";
 
+  private static final String DISPLACE_MESSAGE_PREFIX = "displace:";
+
   private static final Logger log = LoggerFactory.getLogger(ClientPresenceManager.class);
 
   public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster, final ScheduledExecutorService scheduledExecutorService, final ExecutorService keyspaceNotificationExecutorService) throws IOException {
+    this(presenceCluster, scheduledExecutorService, keyspaceNotificationExecutorService, false);
+  }
+
+  public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster, final ScheduledExecutorService scheduledExecutorService, final ExecutorService keyspaceNotificationExecutorService,
+      final boolean managerChannelDisplacement) throws IOException {
     this.presenceCluster = presenceCluster;
     this.pubSubConnection = this.presenceCluster.createPubSubConnection();
     this.clearPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/clear_presence.lua", ScriptOutputType.INTEGER);
+    this.setPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/set_presence.lua", ScriptOutputType.STATUS);
+    this.managerChannelDisplacement = managerChannelDisplacement;
     this.scheduledExecutorService = scheduledExecutorService;
     this.keyspaceNotificationExecutorService = keyspaceNotificationExecutorService;
 
@@ -90,6 +110,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     metricRegistry.gauge(name(getClass(), "localClientCount"), () -> displacementListenersByPresenceKey::size);
 
     this.checkPresenceTimer = metricRegistry.timer(name(getClass(), "checkPresence"));
+    this.checkPresenceBatchTimer = metricRegistry.timer(name(getClass(), "checkPresenceBatch"));
     this.setPresenceTimer = metricRegistry.timer(name(getClass(), "setPresence"));
     this.clearPresenceTimer = metricRegistry.timer(name(getClass(), "clearPresence"));
     this.prunePeersTimer = metricRegistry.timer(name(getClass(), "prunePeers"));
@@ -156,14 +177,12 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
       displacementListenersByPresenceKey.put(presenceKey, displacementListener);
 
-      presenceCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      presenceCluster.useCluster(connection -> connection.sync().sadd(connectedClientSetKey, presenceKey));
+      setPresenceScript.execute(List.of(presenceKey), List.of(managerId, DISPLACE_MESSAGE_PREFIX));
 
-        commands.sadd(connectedClientSetKey, presenceKey);
-        commands.set(presenceKey, managerId);
-      });
-
-      subscribeForRemotePresenceChanges(presenceKey);
+      if (!managerChannelDisplacement) {
+        subscribeForRemotePresenceChanges(presenceKey);
+      }
     }
   }
   
@@ -187,6 +206,36 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     }
   }
 
+  /**
+   * Checks the presence of a number of devices at once; the checks are pipelined
+   * rather than made one by one.
+   *
+   * @param devices pairs of account UUIDs and device IDs
+   * @return those of the given devices that are present
+   */
+  public Set<Pair<UUID, Long>> getPresent(final Collection<Pair<UUID, Long>> devices) {
+    try (final Timer.Context ignored = checkPresenceBatchTimer.time()) {
+      return presenceCluster.withCluster(connection -> {
+        final RedisAdvancedClusterAsyncCommands<String, String> commands = connection.async();
+        final Map<Pair<UUID, Long>, RedisFuture<Long>> futures = new HashMap<>(devices.size());
+
+        for (final Pair<UUID, Long> device : devices) {
+          futures.put(device, commands.exists(getPresenceKey(device.first(), device.second())));
+        }
+
+        final Set<Pair<UUID, Long>> present = new HashSet<>();
+
+        futures.forEach((device, future) -> {
+          if (future.toCompletableFuture().join() == 1) {
+            present.add(device);
+          }
+        });
+
+        return present;
+      });
+    }
+  }
+
   public boolean isLocallyPresent(final UUID accountUuid, final long deviceId) {
     return displacementListenersByPresenceKey.containsKey(getPresenceKey(accountUuid, deviceId));
   }
@@ -198,7 +247,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private boolean clearPresence(final String presenceKey) {
     try (final Timer.Context ignored = clearPresenceTimer.time()) {
       displacementListenersByPresenceKey.remove(presenceKey);
-      unsubscribeFromRemotePresenceChanges(presenceKey);
+
+      if (!managerChannelDisplacement) {
+        unsubscribeFromRemotePresenceChanges(presenceKey);
+      }
 
       final boolean removed = clearPresenceScript.execute(List.of(presenceKey), List.of(managerId)) != null;
       presenceCluster.useCluster(connection -> connection.sync().srem(connectedClientSetKey, presenceKey));
@@ -216,6 +268,18 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   }
 
   private void resubscribeAll() {
+    if (managerChannelDisplacement) {
+      // displacement messages arrive on the manager's own channel
+      final String presenceChannel = getManagerPresenceChannel(managerId);
+      final int slot = SlotHash.getSlot(presenceChannel);
+
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
+          .commands()
+          .subscribe(presenceChannel));
+
+      return;
+    }
+
     for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
       subscribeForRemotePresenceChanges(presenceKey);
     }
@@ -272,6 +336,17 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
           log.warn("Error displacing presence", e);
         }
       });
+    } else if (managerChannelDisplacement && message.startsWith(DISPLACE_MESSAGE_PREFIX) && channel.equals(getManagerPresenceChannel(managerId))) {
+      // Another manager has taken over this presence key; as above, leave the
+      // Lettuce IO thread before making synchronous calls.
+      keyspaceNotificationExecutorService.execute(() -> {
+        try {
+          displacePresence(message.substring(DISPLACE_MESSAGE_PREFIX.length()));
+          remoteDisplacementMeter.mark();
+        } catch (final Exception e) {
+          log.warn("Error displacing presence", e);
+        }
+      });
     }
   }
 
@@ -5,8 +5,14 @@
  */
 package su.sres.shadowserver.push;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +30,7 @@ import su.sres.shadowserver.redis.RedisOperation;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessagesManager;
+import su.sres.shadowserver.util.Pair;
 import su.sres.shadowserver.util.Util;
 
 /**
@@ -36,6 +43,8 @@ import su.sres.shadowserver.util.Util;
  * destination device if possible. Some messages may be designated for "online"
  * delivery only and will not be delivered (and clients will not be notified) if
  * the destination device isn't actively connected to a Signal server.
+ * Online messages for devices connected to this very server are handed to
+ * their connections directly, and only get queued if not acknowledged.
  *
  * @see ClientPresenceManager
  * @see su.sres.shadowserver.storage.MessageAvailabilityListener
@@ -74,30 +83,22 @@ public class MessageSender implements Managed {
 
   public void sendMessage(final Account account, final Device device, final Envelope message, boolean online)
       throws NotPushRegisteredException {
-    if (device.getGcmId() == null && device.getApnId() == null && !device.getFetchesMessages()) {
-      throw new NotPushRegisteredException("No delivery possible!");
-    }
-
-    final String channel;
 
-    if (device.getGcmId() != null) {
-      channel = "gcm";
-      ;
-    } else if (device.getApnId() != null) {
-      channel = "apn";
-    } else if (device.getFetchesMessages()) {
-      channel = "websocket";
-    } else {
-      throw new AssertionError();
-    }
+    final String channel = getChannel(device);
 
     final boolean clientPresent;
 
     if (online) {
-      clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+      final Envelope ephemeralMessage = message.toBuilder().setEphemeral(true).build();
 
-      if (clientPresent) {
-        messagesManager.insert(account.getUuid(), device.getId(), message.toBuilder().setEphemeral(true).build());
+      if (deliverLocally(account.getUuid(), device.getId(), ephemeralMessage)) {
+        clientPresent = true;
+      } else {
+        clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+
+        if (clientPresent) {
+          messagesManager.insert(account.getUuid(), device.getId(), ephemeralMessage);
+        }
       }
     } else {
       messagesManager.insert(account.getUuid(), device.getId(), message);
@@ -115,6 +116,105 @@ public class MessageSender implements Managed {
       }
     }
 
+    countSentMessage(channel, online, clientPresent);
+  }
+
+  /**
+   * Sends a message to each of the given devices, like {@link #sendMessage} does,
+   * but inserts all the messages and checks the presence of all the devices in a
+   * couple of pipelined batches rather than device by device.
+   *
+   * @param messages messages by destination account and device
+   * @return the destinations the messages couldn't be delivered to, since the
+   *         devices are registered neither for push notifications nor for fetching
+   *         messages
+   */
+  public List<Pair<Account, Device>> sendMessages(final Map<Pair<Account, Device>, Envelope> messages, final boolean online) {
+    final List<Pair<Account, Device>> undeliverable = new ArrayList<>();
+    final Map<Pair<UUID, Long>, Pair<Account, Device>> destinations = new HashMap<>(messages.size());
+    final Map<Pair<UUID, Long>, String> channels = new HashMap<>(messages.size());
+
+    messages.keySet().forEach(destination -> {
+      try {
+        final Pair<UUID, Long> address = new Pair<>(destination.first().getUuid(), destination.second().getId());
+
+        channels.put(address, getChannel(destination.second()));
+        destinations.put(address, destination);
+      } catch (final NotPushRegisteredException e) {
+        undeliverable.add(destination);
+      }
+    });
+
+    if (destinations.isEmpty()) {
+      return undeliverable;
+    }
+
+    final Set<Pair<UUID, Long>> present;
+
+    if (online) {
+      present = new HashSet<>();
+
+      final Set<Pair<UUID, Long>> remoteDestinations = new HashSet<>(destinations.size());
+
+      destinations.forEach((address, destination) -> {
+        if (deliverLocally(address.first(), address.second(), messages.get(destination).toBuilder().setEphemeral(true).build())) {
+          present.add(address);
+        } else {
+          remoteDestinations.add(address);
+        }
+      });
+
+      final Set<Pair<UUID, Long>> remotePresent = remoteDestinations.isEmpty() ? Set.of() : clientPresenceManager.getPresent(remoteDestinations);
+      final Map<Pair<UUID, Long>, Envelope> ephemeralMessages = new HashMap<>(remotePresent.size());
+
+      for (final Pair<UUID, Long> address : remotePresent) {
+        ephemeralMessages.put(address, messages.get(destinations.get(address)).toBuilder().setEphemeral(true).build());
+      }
+
+      if (!ephemeralMessages.isEmpty()) {
+        messagesManager.insert(ephemeralMessages);
+      }
+
+      present.addAll(remotePresent);
+    } else {
+      final Map<Pair<UUID, Long>, Envelope> addressedMessages = new HashMap<>(destinations.size());
+      destinations.forEach((address, destination) -> addressedMessages.put(address, messages.get(destination)));
+
+      messagesManager.insert(addressedMessages);
+
+      // see sendMessage() on why presence is checked after inserting
+      present = clientPresenceManager.getPresent(destinations.keySet());
+
+      destinations.forEach((address, destination) -> {
+        if (!present.contains(address)) {
+          sendNewMessageNotification(destination.first(), destination.second());
+        }
+      });
+    }
+
+    channels.forEach((address, channel) -> countSentMessage(channel, online, present.contains(address)));
+
+    return undeliverable;
+  }
+
+  private boolean deliverLocally(final UUID accountUuid, final long deviceId, final Envelope ephemeralMessage) {
+    return clientPresenceManager.isLocallyPresent(accountUuid, deviceId)
+        && messagesManager.deliverLocally(accountUuid, deviceId, ephemeralMessage);
+  }
+
+  private static String getChannel(final Device device) throws NotPushRegisteredException {
+    if (device.getGcmId() != null) {
+      return "gcm";
+    } else if (device.getApnId() != null) {
+      return "apn";
+    } else if (device.getFetchesMessages()) {
+      return "websocket";
+    } else {
+      throw new NotPushRegisteredException("No delivery possible!");
+    }
+  }
+
+  private static void countSentMessage(final String channel, final boolean online, final boolean clientPresent) {
     final List<Tag> tags = List.of(
         Tag.of(CHANNEL_TAG_NAME, channel),
         Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
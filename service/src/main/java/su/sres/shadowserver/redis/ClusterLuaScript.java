@@ -5,16 +5,20 @@
  */
 package su.sres.shadowserver.redis;
 
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.RedisNoScriptException;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -69,6 +73,56 @@ public class ClusterLuaScript {
     execute(connection, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY)));
   }
 
+  /**
+   * Executes the script once for each of the given sets of keys and arguments.
+   * All the invocations are sent before any reply is awaited, so a batch costs
+   * about a single round trip to every node involved rather than one round trip
+   * per invocation.
+   *
+   * @return the results of the invocations, in order
+   */
+  public List<Object> executeBatch(final List<List<String>> keys, final List<List<String>> args) {
+    return redisCluster.withCluster(connection -> executeBatch(connection, keys, args, STRING_ARRAY));
+  }
+
+  /**
+   * The binary counterpart of {@link #executeBatch(List, List)}.
+   */
+  public List<Object> executeBinaryBatch(final List<List<byte[]>> keys, final List<List<byte[]>> args) {
+    return redisCluster.withBinaryCluster(connection -> executeBatch(connection, keys, args, BYTE_ARRAY_ARRAY));
+  }
+
+  private <T> List<Object> executeBatch(final StatefulRedisClusterConnection<T, T> connection, final List<List<T>> keys, final List<List<T>> args, final T[] emptyArray) {
+    if (keys.size() != args.size()) {
+      throw new IllegalArgumentException("Keys and arguments must be given for every invocation");
+    }
+
+    final RedisAdvancedClusterAsyncCommands<T, T> commands = connection.async();
+    final List<RedisFuture<Object>> futures = new ArrayList<>(keys.size());
+
+    for (int i = 0; i < keys.size(); i++) {
+      futures.add(commands.evalsha(sha, scriptOutputType, keys.get(i).toArray(emptyArray), args.get(i).toArray(emptyArray)));
+    }
+
+    final List<Object> results = new ArrayList<>(futures.size());
+
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results.add(futures.get(i).toCompletableFuture().join());
+      } catch (final CompletionException e) {
+        if (e.getCause() instanceof RedisNoScriptException) {
+          // EVAL caches the script on that node, so later invocations find it there
+          results.add(connection.sync().eval(script, scriptOutputType, keys.get(i).toArray(emptyArray), args.get(i).toArray(emptyArray)));
+        } else {
+          log.warn("Failed to execute script", e.getCause());
+          throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+      }
+    }
+
+    return results;
+  }
+
   public Object executeBinary(final List<byte[]> keys, final List<byte[]> args) {
     return redisCluster.withBinaryCluster(connection ->
     execute(connection, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY)));
@@ -1,11 +1,17 @@
 package su.sres.shadowserver.storage;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
@@ -15,8 +21,17 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -27,31 +42,158 @@ public class AbstractScyllaDbStore {
 
   private final DynamoDbClient scyllaDbClient;
 
+  @Nullable
+  private final DynamoDbAsyncClient scyllaDbAsyncClient;
+
   private final Timer batchWriteItemsFirstPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "true");
   private final Timer batchWriteItemsRetryPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "false");
   private final Counter batchWriteItemsUnprocessed = counter(name(getClass(), "batchWriteItemsUnprocessed"));
 
+  private final Counter asyncRequestsQueued = counter(name(getClass(), "asyncRequestsQueued"));
+
+  // asynchronous requests beyond the limit wait here for one in flight to finish
+  private final Semaphore asyncRequestPermits;
+  private final Queue<Runnable> queuedAsyncRequests = new ConcurrentLinkedQueue<>();
+
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
   private static final int MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE = 25; // This was arbitrarily chosen and may be entirely too high.
+  public static final int DEFAULT_MAX_CONCURRENT_ASYNC_REQUESTS = 64;
+
+  // unprocessed items are retried after a random delay of up to the base delay,
+  // doubled with each attempt up to the cap, so that retries don't come back in
+  // lock-step to a node that's already shedding load
+  private static final long RETRY_BASE_DELAY_MILLIS = 10;
+  private static final long RETRY_MAX_DELAY_MILLIS = 1_000;
+
   public static final int DYNAMO_DB_MAX_BATCH_SIZE = 25; // This limit comes from Amazon Dynamo DB itself. It will reject batch writes
   // larger than this.
   public static final int RESULT_SET_CHUNK_SIZE = 100;
+  public static final int BATCH_GET_MAX_SIZE = 100; // Likewise, this is the maximum number of keys for a batch get.
     
   public AbstractScyllaDbStore(final DynamoDbClient scyllaDbClient) {
+    this(scyllaDbClient, null);
+  }
+
+  public AbstractScyllaDbStore(final DynamoDbClient scyllaDbClient, @Nullable final DynamoDbAsyncClient scyllaDbAsyncClient) {
+    this(scyllaDbClient, scyllaDbAsyncClient, DEFAULT_MAX_CONCURRENT_ASYNC_REQUESTS);
+  }
+
+  public AbstractScyllaDbStore(final DynamoDbClient scyllaDbClient, @Nullable final DynamoDbAsyncClient scyllaDbAsyncClient,
+      final int maxConcurrentAsyncRequests) {
     this.scyllaDbClient = scyllaDbClient;
+    this.scyllaDbAsyncClient = scyllaDbAsyncClient;
+    this.asyncRequestPermits = new Semaphore(maxConcurrentAsyncRequests);
   }
 
   protected DynamoDbClient db() {
     return scyllaDbClient;
   }
 
+  /**
+   * @return the asynchronous client, or null if this store was created without one
+   */
+  @Nullable
+  protected DynamoDbAsyncClient asyncDb() {
+    return scyllaDbAsyncClient;
+  }
+
+  /**
+   * Issues a request through the asynchronous client, once fewer than the
+   * store's limit of asynchronous requests are in flight. The calling thread
+   * never waits; a request over the limit is issued by whichever request
+   * finishes first.
+   */
+  protected <T> CompletableFuture<T> executeAsync(final Supplier<CompletableFuture<T>> request) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+
+    final Runnable issue = () -> {
+      final CompletableFuture<T> response;
+
+      try {
+        response = request.get();
+      } catch (final Exception e) {
+        releaseAsyncRequestPermit();
+        result.completeExceptionally(e);
+        return;
+      }
+
+      response.whenComplete((value, cause) -> {
+        releaseAsyncRequestPermit();
+
+        if (cause == null) {
+          result.complete(value);
+        } else {
+          result.completeExceptionally(cause);
+        }
+      });
+    };
+
+    if (asyncRequestPermits.tryAcquire()) {
+      issue.run();
+    } else {
+      asyncRequestsQueued.increment();
+      queuedAsyncRequests.add(issue);
+
+      // a permit may have been released between the failed acquire and queueing
+      if (asyncRequestPermits.tryAcquire()) {
+        releaseAsyncRequestPermit();
+      }
+    }
+
+    return result;
+  }
+
+  // hands a permit on to a queued request, if there is one
+  private void releaseAsyncRequestPermit() {
+    final Runnable queued = queuedAsyncRequests.poll();
+
+    if (queued != null) {
+      queued.run();
+    } else {
+      asyncRequestPermits.release();
+
+      // a request may have been queued just before the permit was released
+      if (!queuedAsyncRequests.isEmpty() && asyncRequestPermits.tryAcquire()) {
+        releaseAsyncRequestPermit();
+      }
+    }
+  }
+
+  /**
+   * Reads up to the given number of items matching a query through the
+   * asynchronous client, following pages as needed.
+   */
+  protected CompletableFuture<List<Map<String, AttributeValue>>> queryAsync(final QueryRequest queryRequest, final int maxItems) {
+    final List<Map<String, AttributeValue>> items = new ArrayList<>();
+
+    return executeAsync(() -> asyncDb().queryPaginator(queryRequest)
+        .items()
+        .limit(maxItems)
+        .subscribe(items::add))
+        .thenApply(ignored -> items);
+  }
+
+  static long getRetryDelayMillis(final int attemptCount) {
+    final long maxDelay = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(attemptCount, 16));
+    return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+  }
+
+  private static void sleepBeforeRetry(final int attemptCount) {
+    try {
+      Thread.sleep(getRetryDelayMillis(attemptCount));
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   protected void executeTableWriteItemsUntilComplete(final Map<String, List<WriteRequest>> items) {
     AtomicReference<BatchWriteItemResponse> outcome = new AtomicReference<>();
     batchWriteItemsFirstPass.record(() -> outcome.set(scyllaDbClient.batchWriteItem(BatchWriteItemRequest.builder().requestItems(items).build())));
 
     int attemptCount = 0;
     while (!outcome.get().unprocessedItems().isEmpty() && attemptCount < MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+      sleepBeforeRetry(attemptCount);
       batchWriteItemsRetryPass.record(() -> outcome.set(scyllaDbClient.batchWriteItem(BatchWriteItemRequest.builder()
           .requestItems(outcome.get().unprocessedItems())
           .build())));
@@ -63,7 +205,86 @@ public class AbstractScyllaDbStore {
       batchWriteItemsUnprocessed.increment(totalItems);
     }
   }
+
+  /**
+   * Like {@link #executeTableWriteItemsUntilComplete(Map)}, but through the
+   * asynchronous client, so that the calling thread may go on to issue other
+   * batches while this one is in flight.
+   */
+  protected CompletableFuture<Void> executeTableWriteItemsUntilCompleteAsync(final Map<String, List<WriteRequest>> items) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return executeAsync(() -> asyncDb().batchWriteItem(BatchWriteItemRequest.builder().requestItems(items).build()))
+        .thenCompose(response -> {
+          sample.stop(batchWriteItemsFirstPass);
+          return retryUnprocessedItemsAsync(response, 0);
+        });
+  }
+
+  private CompletableFuture<Void> retryUnprocessedItemsAsync(final BatchWriteItemResponse response, final int attemptCount) {
+    if (response.unprocessedItems().isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    if (attemptCount >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+      int totalItems = response.unprocessedItems().values().stream().mapToInt(List::size).sum();
+      logger.error("Attempt count ({}) reached max ({}}) before applying all batch writes to scylla. {} unprocessed items remain.", attemptCount, MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE, totalItems);
+      batchWriteItemsUnprocessed.increment(totalItems);
+
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final Executor delayedExecutor = CompletableFuture.delayedExecutor(getRetryDelayMillis(attemptCount), TimeUnit.MILLISECONDS);
+
+    return CompletableFuture.supplyAsync(() -> Timer.start(Metrics.globalRegistry), delayedExecutor)
+        .thenCompose(sample -> executeAsync(() -> asyncDb().batchWriteItem(BatchWriteItemRequest.builder()
+                .requestItems(response.unprocessedItems())
+                .build()))
+            .thenApply(retryResponse -> {
+              sample.stop(batchWriteItemsRetryPass);
+              return retryResponse;
+            }))
+        .thenCompose(retryResponse -> retryUnprocessedItemsAsync(retryResponse, attemptCount + 1));
+  }
   
+  /**
+   * Fetches the items with the given keys from a single table, in chunks of
+   * {@link #BATCH_GET_MAX_SIZE} keys, re-requesting unprocessed keys until
+   * everything is read. Items that don't exist are simply absent from the result.
+   */
+  protected List<Map<String, AttributeValue>> batchGetItems(final String tableName, final List<Map<String, AttributeValue>> keys, final boolean consistentRead) {
+    final List<Map<String, AttributeValue>> items = new ArrayList<>(keys.size());
+
+    for (int i = 0; i < keys.size(); i += BATCH_GET_MAX_SIZE) {
+      Map<String, KeysAndAttributes> requestItems = Map.of(tableName, KeysAndAttributes.builder()
+          .keys(keys.subList(i, Math.min(i + BATCH_GET_MAX_SIZE, keys.size())))
+          .consistentRead(consistentRead)
+          .build());
+
+      int attemptCount = 0;
+
+      while (!requestItems.isEmpty() && attemptCount < MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+        if (attemptCount > 0) {
+          sleepBeforeRetry(attemptCount - 1);
+        }
+
+        final BatchGetItemResponse response = scyllaDbClient.batchGetItem(BatchGetItemRequest.builder()
+            .requestItems(requestItems)
+            .build());
+
+        items.addAll(response.responses().getOrDefault(tableName, List.of()));
+        requestItems = response.unprocessedKeys();
+        ++attemptCount;
+      }
+
+      if (!requestItems.isEmpty()) {
+        throw new IllegalStateException("Unprocessed keys remain after " + attemptCount + " batch get attempts");
+      }
+    }
+
+    return items;
+  }
+
   protected List<Map<String, AttributeValue>> scan(ScanRequest scanRequest, int max) {
 
     return db().scanPaginator(scanRequest)
@@ -80,6 +80,32 @@ public class Account {
     this.unidentifiedAccessKey = unidentifiedAccessKey;
   } 
 
+  /**
+   * Creates a deep copy of an account; the copy shares nothing with the original
+   * that either of them could modify.
+   */
+  public Account(Account account) {
+    this.uuid = account.uuid;
+    this.userLogin = account.userLogin;
+    this.VD = account.VD;
+    this.identityKey = account.identityKey;
+    this.currentProfileVersion = account.currentProfileVersion;
+    this.name = account.name;
+    this.avatar = account.avatar;
+    // badges are immutable
+    this.badges = new ArrayList<>(account.badges);
+    this.unidentifiedAccessKey = account.unidentifiedAccessKey != null ? account.unidentifiedAccessKey.clone() : null;
+    this.unrestrictedUnidentifiedAccess = account.unrestrictedUnidentifiedAccess;
+    this.discoverableByUserLogin = account.discoverableByUserLogin;
+    this.version = account.version;
+
+    this.devices = new HashSet<>(account.devices.size());
+
+    for (Device device : account.devices) {
+      this.devices.add(new Device(device));
+    }
+  }
+
   public UUID getUuid() {
     // this is the one method that may be called on a stale account
     return uuid;
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.AccountWriteFormat;
+import su.sres.shadowserver.entities.SignedPreKey;
+import su.sres.shadowserver.storage.protos.StoredAccount;
+import su.sres.shadowserver.storage.protos.StoredAccountBadge;
+import su.sres.shadowserver.storage.protos.StoredDevice;
+import su.sres.shadowserver.storage.protos.StoredDeviceCapabilities;
+import su.sres.shadowserver.storage.protos.StoredSignedPreKey;
+import su.sres.shadowserver.util.SystemMapper;
+
+/**
+ * Encodes accounts for the account cache and the accounts table, either as JSON
+ * or as a format version byte followed by a {@link StoredAccount}. Both formats
+ * are always read, so that the binary format can be switched on once every node
+ * reads it, and accounts get rewritten in the configured format the next time
+ * they're stored. The UUID is kept outside the encoded account, as before.
+ */
+final class AccountCodec {
+
+  private static final byte FORMAT_VERSION = 1;
+
+  // JSON accounts are objects, and the mapper writes no leading whitespace
+  private static final byte JSON_START = '{';
+
+  private AccountCodec() {
+  }
+
+  static byte[] encode(Account account, AccountWriteFormat format) {
+    return format == AccountWriteFormat.BINARY ? encodeBinary(account) : encodeJson(account);
+  }
+
+  private static byte[] encodeJson(Account account) {
+    try {
+      return SystemMapper.getMapper().writeValueAsBytes(account);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static byte[] encodeBinary(Account account) {
+    final StoredAccount.Builder builder = StoredAccount.newBuilder()
+        .setUnrestrictedUnidentifiedAccess(account.isUnrestrictedUnidentifiedAccess())
+        .setDiscoverableByUserLogin(account.isDiscoverableByUserLogin())
+        .setVersion(account.getVersion());
+
+    if (account.getUserLogin() != null) builder.setUserLogin(account.getUserLogin());
+    if (account.getVD() != null) builder.setVd(account.getVD());
+    if (account.getIdentityKey() != null) builder.setIdentityKey(account.getIdentityKey());
+    if (account.getProfileName() != null) builder.setName(account.getProfileName());
+    if (account.getAvatar() != null) builder.setAvatar(account.getAvatar());
+
+    account.getCurrentProfileVersion().ifPresent(builder::setCurrentProfileVersion);
+    account.getUnidentifiedAccessKey().map(ByteString::copyFrom).ifPresent(builder::setUnidentifiedAccessKey);
+
+    for (Device device : account.getDevices()) {
+      builder.addDevices(encodeDevice(device));
+    }
+
+    for (AccountBadge badge : account.getBadges()) {
+      builder.addBadges(encodeBadge(badge));
+    }
+
+    final byte[] encoded = builder.build().toByteArray();
+    final byte[] versioned = new byte[encoded.length + 1];
+
+    versioned[0] = FORMAT_VERSION;
+    System.arraycopy(encoded, 0, versioned, 1, encoded.length);
+
+    return versioned;
+  }
+
+  static Account decode(byte[] data) throws IOException {
+    if (data.length == 0) {
+      throw new IOException("Empty account data");
+    }
+
+    if (data[0] == JSON_START) {
+      return SystemMapper.getMapper().readValue(data, Account.class);
+    }
+
+    if (data[0] != FORMAT_VERSION) {
+      throw new IOException("Unknown account format version: " + data[0]);
+    }
+
+    final StoredAccount stored = StoredAccount.parseFrom(ByteString.copyFrom(data, 1, data.length - 1));
+
+    final Set<Device> devices = new HashSet<>(stored.getDevicesCount());
+
+    for (StoredDevice storedDevice : stored.getDevicesList()) {
+      devices.add(decodeDevice(storedDevice));
+    }
+
+    final Account account = new Account(stored.hasUserLogin() ? stored.getUserLogin() : null,
+        null,
+        devices,
+        stored.hasUnidentifiedAccessKey() ? stored.getUnidentifiedAccessKey().toByteArray() : null);
+
+    account.setVD(stored.hasVd() ? stored.getVd() : null);
+    account.setIdentityKey(stored.hasIdentityKey() ? stored.getIdentityKey() : null);
+    account.setCurrentProfileVersion(stored.hasCurrentProfileVersion() ? stored.getCurrentProfileVersion() : null);
+    account.setProfileName(stored.hasName() ? stored.getName() : null);
+    account.setAvatar(stored.hasAvatar() ? stored.getAvatar() : null);
+    account.getBadges().addAll(decodeBadges(stored.getBadgesList()));
+    account.setUnrestrictedUnidentifiedAccess(stored.getUnrestrictedUnidentifiedAccess());
+    account.setDiscoverableByUserLogin(stored.getDiscoverableByUserLogin());
+    account.setVersion(stored.getVersion());
+
+    return account;
+  }
+
+  private static StoredDevice encodeDevice(Device device) {
+    final StoredDevice.Builder builder = StoredDevice.newBuilder()
+        .setId(device.getId())
+        .setPushTimestamp(device.getPushTimestamp())
+        .setUninstalledFeedback(device.getUninstalledFeedbackTimestamp())
+        .setFetchesMessages(device.getFetchesMessages())
+        .setRegistrationId(device.getRegistrationId())
+        .setLastSeen(device.getLastSeen())
+        .setCreated(device.getCreated());
+
+    final String authToken = device.getAuthenticationCredentials().getHashedAuthenticationToken();
+    final String salt = device.getAuthenticationCredentials().getSalt();
+
+    if (device.getName() != null) builder.setName(device.getName());
+    if (authToken != null) builder.setAuthToken(authToken);
+    if (salt != null) builder.setSalt(salt);
+    if (device.getGcmId() != null) builder.setGcmId(device.getGcmId());
+    if (device.getApnId() != null) builder.setApnId(device.getApnId());
+    if (device.getVoipApnId() != null) builder.setVoipApnId(device.getVoipApnId());
+    if (device.getUserAgent() != null) builder.setUserAgent(device.getUserAgent());
+
+    final SignedPreKey signedPreKey = device.getSignedPreKey();
+
+    if (signedPreKey != null) {
+      final StoredSignedPreKey.Builder keyBuilder = StoredSignedPreKey.newBuilder().setKeyId(signedPreKey.getKeyId());
+
+      if (signedPreKey.getPublicKey() != null) keyBuilder.setPublicKey(signedPreKey.getPublicKey());
+      if (signedPreKey.getSignature() != null) keyBuilder.setSignature(signedPreKey.getSignature());
+
+      builder.setSignedPreKey(keyBuilder);
+    }
+
+    final Device.DeviceCapabilities capabilities = device.getCapabilities();
+
+    if (capabilities != null) {
+      builder.setCapabilities(StoredDeviceCapabilities.newBuilder()
+          .setGv2(capabilities.isGv2())
+          .setGv22(capabilities.isGv2_2())
+          .setGv23(capabilities.isGv2_3())
+          .setStorage(capabilities.isStorage())
+          .setTransfer(capabilities.isTransfer())
+          .setGv1Migration(capabilities.isGv1Migration())
+          .setSenderKey(capabilities.isSenderKey())
+          .setAnnouncementGroup(capabilities.isAnnouncementGroup())
+          .setChangeUserLogin(capabilities.isChangeUserLogin()));
+    }
+
+    return builder.build();
+  }
+
+  private static Device decodeDevice(StoredDevice stored) {
+    final SignedPreKey signedPreKey = stored.hasSignedPreKey()
+        ? new SignedPreKey(stored.getSignedPreKey().getKeyId(),
+            stored.getSignedPreKey().hasPublicKey() ? stored.getSignedPreKey().getPublicKey() : null,
+            stored.getSignedPreKey().hasSignature() ? stored.getSignedPreKey().getSignature() : null)
+        : null;
+
+    final Device.DeviceCapabilities capabilities = stored.hasCapabilities()
+        ? new Device.DeviceCapabilities(stored.getCapabilities().getGv2(),
+            stored.getCapabilities().getGv22(),
+            stored.getCapabilities().getGv23(),
+            stored.getCapabilities().getStorage(),
+            stored.getCapabilities().getTransfer(),
+            stored.getCapabilities().getGv1Migration(),
+            stored.getCapabilities().getSenderKey(),
+            stored.getCapabilities().getAnnouncementGroup(),
+            stored.getCapabilities().getChangeUserLogin())
+        : null;
+
+    final Device device = new Device(stored.getId(),
+        stored.hasName() ? stored.getName() : null,
+        stored.hasAuthToken() ? stored.getAuthToken() : null,
+        stored.hasSalt() ? stored.getSalt() : null,
+        stored.hasGcmId() ? stored.getGcmId() : null,
+        stored.hasApnId() ? stored.getApnId() : null,
+        stored.hasVoipApnId() ? stored.getVoipApnId() : null,
+        stored.getFetchesMessages(),
+        stored.getRegistrationId(),
+        signedPreKey,
+        stored.getLastSeen(),
+        stored.getCreated(),
+        stored.hasUserAgent() ? stored.getUserAgent() : null,
+        stored.getUninstalledFeedback(),
+        capabilities);
+
+    device.setPushTimestamp(stored.getPushTimestamp());
+
+    return device;
+  }
+
+  private static StoredAccountBadge encodeBadge(AccountBadge badge) {
+    final StoredAccountBadge.Builder builder = StoredAccountBadge.newBuilder().setVisible(badge.isVisible());
+
+    if (badge.getId() != null) builder.setId(badge.getId());
+
+    if (badge.getExpiration() != null) {
+      builder.setExpirationSeconds(badge.getExpiration().getEpochSecond())
+          .setExpirationNanos(badge.getExpiration().getNano());
+    }
+
+    return builder.build();
+  }
+
+  private static List<AccountBadge> decodeBadges(List<StoredAccountBadge> stored) {
+    final List<AccountBadge> badges = new ArrayList<>(stored.size());
+
+    for (StoredAccountBadge badge : stored) {
+      badges.add(new AccountBadge(badge.hasId() ? badge.getId() : null,
+          badge.hasExpirationSeconds() ? Instant.ofEpochSecond(badge.getExpirationSeconds(), badge.getExpirationNanos()) : null,
+          badge.getVisible()));
+    }
+
+    return badges;
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent account creations into batches. There is no dedicated
+ * thread, and no lock is held while accounts are created: a caller that finds no batch under way leads one, taking
+ * everything queued so far, its own request included, so a lone registration
+ * is created right away on its own. Callers arriving while a batch is under way
+ * queue up, and one of them leads the next batch once it ends; but none waits
+ * longer than {@code maxQueueWait}: should the batch still be going on by then,
+ * a caller whose request hasn't been taken creates it on its own, so that a
+ * slow batch holds up only the registrations in it. Should a batch fail, its
+ * callers each retry their own registration on their own threads.
+ */
+class AccountCreationBatcher {
+
+  private final Logger logger = LoggerFactory.getLogger(AccountCreationBatcher.class);
+
+  private final int maxBatchSize;
+  private final Duration maxQueueWait;
+  private final Function<AccountCreationRequest, Account> singleCreator;
+  private final Function<List<AccountCreationRequest>, List<Account>> batchCreator;
+
+  private final Queue<PendingCreation> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean batchUnderWay = new AtomicBoolean();
+  private final Object batchEnded = new Object();
+
+  AccountCreationBatcher(final int maxBatchSize, final Duration maxQueueWait,
+      final Function<AccountCreationRequest, Account> singleCreator,
+      final Function<List<AccountCreationRequest>, List<Account>> batchCreator) {
+
+    this.maxBatchSize = maxBatchSize;
+    this.maxQueueWait = maxQueueWait;
+    this.singleCreator = singleCreator;
+    this.batchCreator = batchCreator;
+  }
+
+  Account create(final AccountCreationRequest request) {
+    final PendingCreation pending = new PendingCreation(request);
+    queue.add(pending);
+
+    while (true) {
+      if (!pending.future.isDone() && batchUnderWay.compareAndSet(false, true)) {
+        try {
+          final List<PendingCreation> batch = drainBatch();
+
+          if (!batch.isEmpty()) {
+            createBatch(batch);
+          }
+        } finally {
+          synchronized (batchEnded) {
+            batchUnderWay.set(false);
+            batchEnded.notifyAll();
+          }
+        }
+      }
+
+      try {
+        awaitBatchEnd(pending);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        if (queue.remove(pending)) {
+          throw new IllegalStateException("Interrupted while waiting for account creation", e);
+        }
+
+        // a batch has the request already, so its result is waited for
+        // regardless
+        return getResult(pending);
+      }
+
+      if (pending.future.isDone()) {
+        return getResult(pending);
+      }
+
+      if (batchUnderWay.get()) {
+        // removal succeeds only while no batch has taken the request
+        return queue.remove(pending) ? singleCreator.apply(request) : getResult(pending);
+      }
+
+      // the batch ended without this request; lead the next one
+    }
+  }
+
+  /**
+   * Waits for the batch under way, if any, to end, but no longer than
+   * {@code maxQueueWait}.
+   */
+  private void awaitBatchEnd(final PendingCreation pending) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + maxQueueWait.toMillis();
+
+    synchronized (batchEnded) {
+      long remaining = maxQueueWait.toMillis();
+
+      while (batchUnderWay.get() && !pending.future.isDone() && remaining > 0) {
+        batchEnded.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+    }
+  }
+
+  private Account getResult(final PendingCreation pending) {
+    try {
+      return pending.future.join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof BatchFailedException) {
+        return singleCreator.apply(pending.request);
+      }
+
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+  private List<PendingCreation> drainBatch() {
+    final List<PendingCreation> batch = new ArrayList<>();
+    final List<PendingCreation> deferred = new ArrayList<>();
+    final Set<String> userLogins = new HashSet<>();
+
+    PendingCreation next;
+
+    while (batch.size() < maxBatchSize && (next = queue.poll()) != null) {
+      // repeated registrations of the same user login (e.g. client retries) go
+      // into separate batches
+      if (userLogins.add(next.request.getUserLogin())) {
+        batch.add(next);
+      } else {
+        deferred.add(next);
+      }
+    }
+
+    queue.addAll(deferred);
+
+    return batch;
+  }
+
+  private void createBatch(final List<PendingCreation> batch) {
+
+    if (batch.size() == 1) {
+      final PendingCreation pending = batch.get(0);
+
+      try {
+        pending.future.complete(singleCreator.apply(pending.request));
+      } catch (final RuntimeException e) {
+        pending.future.completeExceptionally(e);
+      }
+
+      return;
+    }
+
+    final List<Account> created;
+
+    try {
+      created = batchCreator.apply(batch.stream().map(pending -> pending.request).collect(Collectors.toList()));
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to create a batch of {} accounts, leaving them to be created one by one", batch.size(), e);
+
+      final BatchFailedException batchFailed = new BatchFailedException(e);
+      batch.forEach(pending -> pending.future.completeExceptionally(batchFailed));
+
+      return;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).future.complete(created.get(i));
+    }
+  }
+
+  private static class PendingCreation {
+
+    private final AccountCreationRequest request;
+    private final CompletableFuture<Account> future = new CompletableFuture<>();
+
+    private PendingCreation(final AccountCreationRequest request) {
+      this.request = request;
+    }
+  }
+
+  private static class BatchFailedException extends RuntimeException {
+
+    private BatchFailedException(final Throwable cause) {
+      super(cause);
+    }
+  }
+}
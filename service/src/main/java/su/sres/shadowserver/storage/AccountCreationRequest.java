@@ -0,0 +1,60 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.util.UUID;
+
+import su.sres.shadowserver.entities.AccountAttributes;
+
+/**
+ * The parameters of a single registration, as handed to
+ * {@link AccountsManager#createAll(java.util.List)}.
+ */
+public class AccountCreationRequest {
+
+  private final String userLogin;
+  private final String password;
+  private final String signalAgent;
+  private final AccountAttributes accountAttributes;
+
+  // assigned on the first attempt, so that a failed batch retried one by one
+  // reuses the UUIDs of any accounts it has written already
+  private UUID uuid;
+
+  public AccountCreationRequest(final String userLogin,
+      final String password,
+      final String signalAgent,
+      final AccountAttributes accountAttributes) {
+
+    this.userLogin = userLogin;
+    this.password = password;
+    this.signalAgent = signalAgent;
+    this.accountAttributes = accountAttributes;
+  }
+
+  public String getUserLogin() {
+    return userLogin;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public String getSignalAgent() {
+    return signalAgent;
+  }
+
+  public AccountAttributes getAccountAttributes() {
+    return accountAttributes;
+  }
+
+  UUID getUuid() {
+    return uuid;
+  }
+
+  void setUuid(final UUID uuid) {
+    this.uuid = uuid;
+  }
+}
@@ -7,7 +7,6 @@ package su.sres.shadowserver.storage;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.annotations.VisibleForTesting;
 
 import io.micrometer.core.instrument.Metrics;
@@ -16,25 +15,33 @@ import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.TransactionConflictException;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.AccountWriteFormat;
 import su.sres.shadowserver.util.AttributeValues;
-import su.sres.shadowserver.util.SystemMapper;
 import su.sres.shadowserver.util.UUIDUtil;
 
 public class Accounts extends AbstractScyllaDbStore {
@@ -62,16 +69,25 @@ public class Accounts extends AbstractScyllaDbStore {
   private final String miscTableName;
 
   private final int scanPageSize;
+  private final AccountWriteFormat writeFormat;
 
   private static final Timer CREATE_TIMER = Metrics.timer(name(Accounts.class, "create"));
+  private static final Timer CREATE_ALL_TIMER = Metrics.timer(name(Accounts.class, "createAll"));
   private static final Timer UPDATE_TIMER = Metrics.timer(name(Accounts.class, "update"));
   private static final Timer GET_BY_USER_LOGIN_TIMER = Metrics.timer(name(Accounts.class, "getByUserLogin"));
   private static final Timer GET_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getByUuid"));
+  private static final Timer GET_ALL_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getAllByUuid"));
   private static final Timer GET_ALL_FROM_START_TIMER = Metrics.timer(name(Accounts.class, "getAllFrom"));
   private static final Timer GET_ALL_FROM_OFFSET_TIMER = Metrics.timer(name(Accounts.class, "getAllFromOffset"));
   private static final Timer DELETE_TIMER = Metrics.timer(name(Accounts.class, "delete"));
+  private static final Timer DELETE_ALL_TIMER = Metrics.timer(name(Accounts.class, "deleteAll"));
 
   public Accounts(DynamoDbClient client, String accountsTableName, String userLoginsTableName, String miscTableName, final int scanPageSize) {
+    this(client, accountsTableName, userLoginsTableName, miscTableName, scanPageSize, AccountWriteFormat.JSON);
+  }
+
+  public Accounts(DynamoDbClient client, String accountsTableName, String userLoginsTableName, String miscTableName, final int scanPageSize,
+      final AccountWriteFormat writeFormat) {
     super(client);
 
     this.client = client;
@@ -79,82 +95,151 @@ public class Accounts extends AbstractScyllaDbStore {
     this.userLoginsTableName = userLoginsTableName;
     this.miscTableName = miscTableName;
     this.scanPageSize = scanPageSize;
+    this.writeFormat = writeFormat;
+  }
+
+  /**
+   * @return the format accounts are written in, which the account cache uses too
+   */
+  public AccountWriteFormat getWriteFormat() {
+    return writeFormat;
   }
 
-  public boolean create(Account account, long directoryVersion) {
+  public boolean create(Account account) {
 
     return CREATE_TIMER.record(() -> {
 
-      try {
-        PutItemRequest userLoginConstraintPut = buildPutWriteItemForUserLoginConstraint(account, account.getUuid());
+      PutItemRequest userLoginConstraintPut = buildPutWriteItemForUserLoginConstraint(account, account.getUuid());
 
-        PutItemRequest accountPut = buildPutWriteItemForAccount(account, account.getUuid(), PutItemRequest.builder()
-            .conditionExpression("attribute_not_exists(#number) OR #number = :number")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN))
-            .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getUserLogin()))));
+      PutItemRequest accountPut = buildPutWriteItemForAccount(account, account.getUuid(), PutItemRequest.builder()
+          .conditionExpression("attribute_not_exists(#number) OR #number = :number")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN))
+          .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getUserLogin()))));
 
-        PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
+      try {
+        client.putItem(accountPut);
+      } catch (ConditionalCheckFailedException e) {
 
-        try {
-          client.putItem(accountPut);
-        } catch (ConditionalCheckFailedException e) {
+        throw new IllegalArgumentException("uuid present with different user login");
 
-          throw new IllegalArgumentException("uuid present with different user login");
+      }
 
-        }
+      try {
+        client.putItem(userLoginConstraintPut);
+      } catch (ConditionalCheckFailedException e) {
+
+        // if the user login is found with an uuid that differs that means that the
+        // account is not new (rather it's soft-deleted), and the new uuid is reset to
+        // the old one. The fresh entry in the accounts table is removed in favour of
+        // the already existing one.
+        
+        DeleteItemRequest accountDelete = DeleteItemRequest.builder()
+            .tableName(accountsTableName)
+            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+            .build();
 
-        try {
-          client.putItem(userLoginConstraintPut);
-        } catch (ConditionalCheckFailedException e) {
+        client.deleteItem(accountDelete);          
 
-          // if the user login is found with an uuid that differs that means that the
-          // account is not new (rather it's soft-deleted), and the new uuid is reset to
-          // the old one. The fresh entry in the accounts table is removed in favour of
-          // the already existing one.
-          
-          DeleteItemRequest accountDelete = DeleteItemRequest.builder()
-              .tableName(accountsTableName)
-              .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-              .build();
+        Optional<Account> exAcc = get(account.getUserLogin());
+        UUID uuid = exAcc.get().getUuid();
+        account.setUuid(uuid);
 
-          client.deleteItem(accountDelete);          
+        final int version = exAcc.get().getVersion();
+        account.setVersion(version);
 
-          Optional<Account> exAcc = get(account.getUserLogin());
-          UUID uuid = exAcc.get().getUuid();
-          account.setUuid(uuid);
+        update(account);
 
-          final int version = exAcc.get().getVersion();
-          account.setVersion(version);
+        return false;
 
-          update(account);
-          client.putItem(miscPut);
+      } catch (TransactionConflictException e) {
+        // this should only happen if two clients manage to make concurrent create()
+        // calls
+        throw new ContestedOptimisticLockException();
+      }
 
-          return false;
+      return true;
+    });
+  }
 
-        } catch (TransactionConflictException e) {
-          // this should only happen if two clients manage to make concurrent create()
-          // calls
-          throw new ContestedOptimisticLockException();
+  /**
+   * Creates a batch of accounts. Accounts with user logins not known yet are
+   * written with batch writes and their user logins with conditional puts;
+   * re-registrations of existing user logins go through
+   * {@link #create(Account)} one by one, since they need to be reconciled
+   * with the existing accounts.
+   *
+   * @return UUIDs of the accounts that were brand new
+   */
+  public Set<UUID> createAll(List<Account> accountsToCreate) {
+
+    return CREATE_ALL_TIMER.record(() -> {
+
+      final Set<String> existingUserLogins = batchGetItems(userLoginsTableName,
+          accountsToCreate.stream()
+              .map(account -> Map.of(ATTR_ACCOUNT_USER_LOGIN, AttributeValues.fromString(account.getUserLogin())))
+              .collect(Collectors.toList()),
+          true)
+          .stream()
+          .map(item -> AttributeValues.getString(item, ATTR_ACCOUNT_USER_LOGIN, null))
+          .collect(Collectors.toSet());
+
+      final List<Account> freshAccounts = new ArrayList<>();
+      final List<Account> existingAccounts = new ArrayList<>();
+      final List<WriteRequest> accountWrites = new ArrayList<>();
+
+      for (Account account : accountsToCreate) {
+
+        if (existingUserLogins.contains(account.getUserLogin())) {
+          existingAccounts.add(account);
+          continue;
         }
 
-        client.putItem(miscPut);
+        accountWrites.add(WriteRequest.builder()
+            .putRequest(PutRequest.builder()
+                .item(buildPutWriteItemForAccount(account, account.getUuid(), PutItemRequest.builder()).item())
+                .build())
+            .build());
 
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
+        freshAccounts.add(account);
       }
 
-      return true;
+      // accounts go first, so that a user login never points to a missing account
+      writeInBatches(accountWrites, batch -> executeTableWriteItemsUntilComplete(Map.of(accountsTableName, batch)));
+
+      final Set<UUID> freshUuids = new HashSet<>();
+
+      // user logins are written one by one, since batch writes can't be
+      // conditional; a user login taken since it was looked up above is
+      // reconciled like the ones that were taken already
+      for (Account account : freshAccounts) {
+        try {
+          client.putItem(buildPutWriteItemForUserLoginConstraint(account, account.getUuid()));
+          freshUuids.add(account.getUuid());
+        } catch (ConditionalCheckFailedException e) {
+          existingAccounts.add(account);
+        }
+      }
+
+      for (Account account : existingAccounts) {
+        // a user login already pointing to this very account, as when a batch is
+        // retried, leaves it fresh
+        if (create(account)) {
+          freshUuids.add(account.getUuid());
+        }
+      }
+
+      return freshUuids;
     });
   }
 
-  private PutItemRequest buildPutWriteItemForAccount(Account account, UUID uuid, PutItemRequest.Builder putBuilder) throws JsonProcessingException {
+  private PutItemRequest buildPutWriteItemForAccount(Account account, UUID uuid, PutItemRequest.Builder putBuilder) {
     return putBuilder
         .tableName(accountsTableName)
         .item(Map.of(
             KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid),
             ATTR_ACCOUNT_USER_LOGIN, AttributeValues.fromString(account.getUserLogin()),
             ATTR_ACCOUNT_VD, AttributeValues.fromString("default"),
-            ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
+            ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(AccountCodec.encode(account, writeFormat)),
             ATTR_VERSION, AttributeValues.fromInt(account.getVersion())))
         .build();
   }
@@ -188,26 +273,20 @@ public class Accounts extends AbstractScyllaDbStore {
   // TODO: VD change
   public void update(Account account) throws ContestedOptimisticLockException {
     UPDATE_TIMER.record(() -> {
-      UpdateItemRequest updateItemRequest;
-      try {
-        updateItemRequest = UpdateItemRequest.builder()
-            .tableName(accountsTableName)
-            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-            .updateExpression("SET #data = :data ADD #version :version_increment")
-            .conditionExpression("attribute_exists(#number) AND #version = :version")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN,
-                "#data", ATTR_ACCOUNT_DATA,
-                "#version", ATTR_VERSION))
-            .expressionAttributeValues(Map.of(
-                ":data", AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
-                ":version", AttributeValues.fromInt(account.getVersion()),
-                ":version_increment", AttributeValues.fromInt(1)))
-            .returnValues(ReturnValue.UPDATED_NEW)
-            .build();
-
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
-      }
+      final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+          .tableName(accountsTableName)
+          .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+          .updateExpression("SET #data = :data ADD #version :version_increment")
+          .conditionExpression("attribute_exists(#number) AND #version = :version")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN,
+              "#data", ATTR_ACCOUNT_DATA,
+              "#version", ATTR_VERSION))
+          .expressionAttributeValues(Map.of(
+              ":data", AttributeValues.fromByteArray(AccountCodec.encode(account, writeFormat)),
+              ":version", AttributeValues.fromInt(account.getVersion()),
+              ":version_increment", AttributeValues.fromInt(1)))
+          .returnValues(ReturnValue.UPDATED_NEW)
+          .build();
 
       try {
         UpdateItemResponse response = client.updateItem(updateItemRequest);
@@ -256,6 +335,26 @@ public class Accounts extends AbstractScyllaDbStore {
         .map(Accounts::fromItem));
   }
 
+  /**
+   * Looks up a number of accounts with as few batch reads as possible; accounts
+   * that don't exist are left out of the result.
+   */
+  public List<Account> getAll(final Collection<UUID> uuids) {
+    if (uuids.isEmpty()) {
+      return List.of();
+    }
+
+    return GET_ALL_BY_UUID_TIMER.record(() -> batchGetItems(accountsTableName,
+        uuids.stream()
+            .distinct()
+            .map(uuid -> Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+            .collect(Collectors.toList()),
+        true)
+        .stream()
+        .map(Accounts::fromItem)
+        .collect(Collectors.toList()));
+  }
+
   public AccountCrawlChunk getAllFrom(final UUID from, final int maxCount) {
     final ScanRequest.Builder scanRequestBuilder = ScanRequest.builder()
         .limit(scanPageSize)
@@ -283,7 +382,7 @@ public class Accounts extends AbstractScyllaDbStore {
     return new AccountCrawlChunk(accounts, accounts.size() > 0 ? accounts.get(accounts.size() - 1).getUuid() : null);
   }
 
-  public void delete(UUID uuid, long directoryVersion) {
+  public void delete(UUID uuid) {
     DELETE_TIMER.record(() -> {
       Optional<Account> maybeAccount = get(uuid);
 
@@ -301,11 +400,48 @@ public class Accounts extends AbstractScyllaDbStore {
 
         client.deleteItem(userLoginDelete);
         client.deleteItem(accountDelete);
+      });
+    });
+  }
 
-        PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
-        client.putItem(miscPut);
+  /**
+   * Deletes the given accounts in batches rather than one by one as
+   * {@link #delete(UUID)} does. User logins are deleted with conditional
+   * deletes instead, so that a user login taken over by another account
+   * meanwhile is left alone.
+   */
+  public void deleteAll(Collection<Account> accountsToDelete) {
 
-      });
+    DELETE_ALL_TIMER.record(() -> {
+
+      final Map<UUID, Account> accountsByUuid = new HashMap<>();
+      accountsToDelete.forEach(account -> accountsByUuid.putIfAbsent(account.getUuid(), account));
+
+      final List<WriteRequest> accountDeletes = new ArrayList<>(accountsByUuid.size());
+
+      for (Account account : accountsByUuid.values()) {
+
+        try {
+          client.deleteItem(DeleteItemRequest.builder()
+              .tableName(userLoginsTableName)
+              .key(Map.of(ATTR_ACCOUNT_USER_LOGIN, AttributeValues.fromString(account.getUserLogin())))
+              .conditionExpression("#uuid = :uuid")
+              .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID))
+              .expressionAttributeValues(Map.of(":uuid", AttributeValues.fromUUID(account.getUuid())))
+              .build());
+        } catch (ConditionalCheckFailedException e) {
+          // the user login is gone already or belongs to another account by now
+        }
+
+        accountDeletes.add(WriteRequest.builder()
+            .deleteRequest(DeleteRequest.builder()
+                .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+                .build())
+            .build());
+      }
+
+      // user logins go first, so that a user login never points to a missing account
+      writeInBatches(accountDeletes, batch -> executeTableWriteItemsUntilComplete(Map.of(accountsTableName, batch)));
     });
   }
 
@@ -319,7 +455,7 @@ public class Accounts extends AbstractScyllaDbStore {
       throw new RuntimeException("item missing values");
     }
     try {
-      Account account = SystemMapper.getMapper().readValue(item.get(ATTR_ACCOUNT_DATA).b().asByteArray(), Account.class);
+      Account account = AccountCodec.decode(item.get(ATTR_ACCOUNT_DATA).b().asByteArray());
       account.setUserLogin(item.get(ATTR_ACCOUNT_USER_LOGIN).s());
       // account.setVD(item.get(ATTR_ACCOUNT_VD).s());
       account.setUuid(UUIDUtil.fromByteBuffer(item.get(KEY_ACCOUNT_UUID).b().asByteBuffer()));
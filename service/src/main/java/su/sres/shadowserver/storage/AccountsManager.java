@@ -5,15 +5,18 @@
  */
 package su.sres.shadowserver.storage;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import io.lettuce.core.KeyValue;
 import io.lettuce.core.RedisException;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
 
@@ -21,26 +24,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
 import redis.clients.jedis.Jedis;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import su.sres.shadowserver.auth.AuthenticationCredentials;
+import su.sres.shadowserver.configuration.AccountCreationBatchingConfiguration;
 import su.sres.shadowserver.controllers.AccountController;
 import su.sres.shadowserver.entities.AccountAttributes;
 import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.redis.RedisOperation;
-import su.sres.shadowserver.storage.DirectoryManager.BatchOperationHandle;
 import su.sres.shadowserver.util.Constants;
 import su.sres.shadowserver.util.SystemMapper;
 import su.sres.shadowserver.util.Util;
@@ -54,10 +67,13 @@ public class AccountsManager {
 
   private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private static final Timer createTimer = metricRegistry.timer(name(AccountsManager.class, "create"));
+  private static final Timer createAllTimer = metricRegistry.timer(name(AccountsManager.class, "createAll"));
+  private static final Histogram createBatchSizeHistogram = metricRegistry.histogram(name(AccountsManager.class, "createBatchSize"));
   private static final Timer updateTimer = metricRegistry.timer(name(AccountsManager.class, "update"));
   private static final Timer deleteTimer = metricRegistry.timer(name(AccountsManager.class, "delete"));
   private static final Timer getByUserLoginTimer = metricRegistry.timer(name(AccountsManager.class, "getByUserLogin"));
   private static final Timer getByUuidTimer = metricRegistry.timer(name(AccountsManager.class, "getByUuid"));
+  private static final Timer getAllByUuidTimer = metricRegistry.timer(name(AccountsManager.class, "getAllByUuid"));
 
   // TODO Remove this meter when external dependencies have been resolved
   // Note that this is deliberately namespaced to `AccountController` for metric
@@ -65,10 +81,13 @@ public class AccountsManager {
   private static final Meter newUserMeter = metricRegistry.meter(name(AccountController.class, "brand_new_user"));
 
   private static final Timer redisSetTimer = metricRegistry.timer(name(AccountsManager.class, "redisSet"));
+  private static final Timer redisMultiSetTimer = metricRegistry.timer(name(AccountsManager.class, "redisMultiSet"));
   private static final Timer redisUserLoginGetTimer = metricRegistry
       .timer(name(AccountsManager.class, "redisUserLoginGet"));
   private static final Timer redisUuidGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisUuidGet"));
+  private static final Timer redisUuidMultiGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisUuidMultiGet"));
   private static final Timer redisDeleteTimer = metricRegistry.timer(name(AccountsManager.class, "redisDelete"));
+  private static final Timer invalidateLocalCachesTimer = metricRegistry.timer(name(AccountsManager.class, "invalidateLocalCaches"));
 
   private static final String CREATE_COUNTER_NAME = name(AccountsManager.class, "createCounter");
   private static final String DELETE_COUNTER_NAME = name(AccountsManager.class, "deleteCounter");
@@ -80,13 +99,19 @@ public class AccountsManager {
   private final FaultTolerantRedisCluster cacheCluster;
   private final DeletedAccounts deletedAccounts;
   private final DirectoryManager directory;
-  private final KeysScyllaDb keysScyllaDb;
+  private final PreKeyStore keys;
   private final MessagesManager messagesManager;  
   private final UsernamesManager usernamesManager;
   private final ProfilesManager profilesManager;
   private final StoredVerificationCodeManager pendingAccounts;
   private final ClientPresenceManager clientPresenceManager;
   private final ObjectMapper mapper;
+  @Nullable
+  private final AccountCreationBatcher creationBatcher;
+  private final Executor deletionExecutor;
+
+  @Nullable
+  private final LocalAccountCache localAccountCache;
 
   public enum DeletionReason {
     ADMIN_DELETED("admin"),
@@ -100,29 +125,62 @@ public class AccountsManager {
     }
   }
 
-  private static final String ACCOUNT_CREATION_LOCK_KEY = "AccountCreationLock";
-  private static final String ACCOUNT_REMOVAL_LOCK_KEY = "AccountRemovalLock";
-  private static final String DIRECTORY_RESTORE_LOCK_KEY = "DirectoryRestoreLock";
 
-  private static final int CHUNK_SIZE = 1000;
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final PreKeyStore keys, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keys, messagesManager, usernamesManager, profilesManager, pendingAccounts, clientPresenceManager, null);
+  }
 
-  private final AtomicInteger accountCreateLock;
-  
-  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
-      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager) {    
+  /**
+   * @param localAccountCache an in-process cache for lookups by UUID, or
+   *                          {@code null} to always go to the cache cluster;
+   *                          invalidations are published either way, so that
+   *                          changes made without one still reach the servers
+   *                          that have it
+   */
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final PreKeyStore keys, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keys, messagesManager, usernamesManager, profilesManager, pendingAccounts, clientPresenceManager, localAccountCache,
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * @param deletionExecutor the executor deleting accounts' data from the stores
+   *                         other than the accounts table, concurrently across
+   *                         stores and accounts
+   */
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final PreKeyStore keys, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache,
+      final Executor deletionExecutor) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keys, messagesManager, usernamesManager, profilesManager, pendingAccounts, clientPresenceManager, localAccountCache,
+        deletionExecutor, new AccountCreationBatchingConfiguration());
+  }
+
+  /**
+   * @param creationBatchingConfiguration whether and how concurrent
+   *                                      registrations are coalesced into
+   *                                      batches
+   */
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final PreKeyStore keys, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache,
+      final Executor deletionExecutor, final AccountCreationBatchingConfiguration creationBatchingConfiguration) {
     this.accounts = accounts;
     this.directory = directory;
     this.cacheCluster = cacheCluster;
     this.deletedAccounts = deletedAccounts;
-    this.keysScyllaDb = keysScyllaDb;
+    this.keys = keys;
     this.messagesManager = messagesManager;    
     this.usernamesManager = usernamesManager;
     this.profilesManager = profilesManager;
     this.pendingAccounts = pendingAccounts;
     this.clientPresenceManager = clientPresenceManager;
     this.mapper = SystemMapper.getMapper();
-      
-    accountCreateLock = new AtomicInteger(0);
+    this.creationBatcher = creationBatchingConfiguration.isEnabled()
+        ? new AccountCreationBatcher(creationBatchingConfiguration.getMaxBatchSize(), creationBatchingConfiguration.getMaxQueueWait(),
+            this::createOne, this::createAll)
+        : null;
+    this.localAccountCache = localAccountCache;
+    this.deletionExecutor = deletionExecutor;
   }
 
   // this is used by directory restore and DirectoryUpdater
@@ -130,99 +188,164 @@ public class AccountsManager {
     return accounts.getAll(builder);
   }
 
+  /**
+   * Creates an account. With batching on, registrations arriving while another
+   * is being created are coalesced by {@link AccountCreationBatcher} and created
+   * together through {@link #createAll(List)}; a lone one is created right away
+   * on its own.
+   */
   public Account create(final String userLogin,
       final String password,
       final String signalAgent,
       final AccountAttributes accountAttributes) {
 
-    accountCreateLock.getAndIncrement();
-    setAccountCreationLock();
+    final AccountCreationRequest request = new AccountCreationRequest(userLogin, password, signalAgent, accountAttributes);
 
-    long directoryVersion = getDirectoryVersion();
-    long newDirectoryVersion = directoryVersion + 1L;
+    return creationBatcher != null ? creationBatcher.create(request) : createOne(request);
+  }
+
+  private Account createOne(final AccountCreationRequest request) {
 
     try (Timer.Context ignored = createTimer.time()) {
-      final Account account = new Account();
+      final Account account = buildAccount(request);
+
+      final UUID originalUuid = account.getUuid();
 
-      Device device = new Device();
-      device.setId(Device.MASTER_ID);
-      device.setAuthenticationCredentials(new AuthenticationCredentials(password));
-      device.setFetchesMessages(accountAttributes.getFetchesMessages());
-      device.setRegistrationId(accountAttributes.getRegistrationId());
-      device.setName(accountAttributes.getName());
-      device.setCapabilities(accountAttributes.getCapabilities());
-      device.setCreated(System.currentTimeMillis());
-      device.setLastSeen(Util.todayInMillis());
-      device.setUserAgent(signalAgent);
+      boolean freshUser = scyllaCreate(account);
 
-      account.setUserLogin(userLogin);
+      redisSet(account);
 
-      Optional<UUID> oUUID = deletedAccounts.findUuid(userLogin);
+      // writing the account into the plain directory and the delta log, along with
+      // the incremented directory version
+      commitDirectoryUpdate(Map.of(account.getUserLogin(), account.getUuid()), Set.of());
 
-      // This one will treat the new account the an old one being restored.
-      // Potentially dangerous from the perspective of impersonation attack!
-      if (oUUID.isPresent()) {
-        account.setUuid(oUUID.get());
-        deletedAccounts.remove(userLogin);
+      completeCreation(account, originalUuid, freshUser);
 
-      } else {
-        account.setUuid(UUID.randomUUID());
+      return account;
+    }
+  }
+
+  /**
+   * Creates a number of accounts at once, e.g. when a whole department registers
+   * at the same time. All the accounts share a single directory version bump and
+   * delta, and the fresh ones are written to Scylla in batches rather than one by
+   * one.
+   *
+   * @param requests registrations with pairwise distinct user logins
+   * @return the created accounts, in the order of the requests
+   */
+  public List<Account> createAll(final List<AccountCreationRequest> requests) {
+
+    if (requests.stream().map(AccountCreationRequest::getUserLogin).distinct().count() != requests.size()) {
+      throw new IllegalArgumentException("User logins in a batch must be distinct");
+    }
+
+    try (Timer.Context ignored = createAllTimer.time()) {
+      final List<Account> created = new ArrayList<>(requests.size());
+      final List<UUID> originalUuids = new ArrayList<>(requests.size());
+
+      for (AccountCreationRequest request : requests) {
+        final Account account = buildAccount(request);
+
+        created.add(account);
+        originalUuids.add(account.getUuid());
       }
 
-      account.addDevice(device);
+      // accounts may get their UUIDs replaced here, if their user logins are taken
+      final Set<UUID> freshUuids = accounts.createAll(created);
 
-      account.setUnidentifiedAccessKey(accountAttributes.getUnidentifiedAccessKey());
-      account.setUnrestrictedUnidentifiedAccess(accountAttributes.isUnrestrictedUnidentifiedAccess());
-      account.setDiscoverableByUserLogin(accountAttributes.isDiscoverableByUserLogin());
+      final Map<String, UUID> directoryEntries = new HashMap<>();
 
-      final UUID originalUuid = account.getUuid();
+      for (Account account : created) {
+        redisSet(account);
+        directoryEntries.put(account.getUserLogin(), account.getUuid());
+      }
 
-      boolean freshUser = scyllaCreate(account, newDirectoryVersion);
+      commitDirectoryUpdate(directoryEntries, Set.of());
 
-      // create() sometimes updates the UUID, if there was a user login conflict.
-      // for metrics, we want secondary to run with the same original UUID
-      final UUID actualUuid = account.getUuid();     
+      for (int i = 0; i < created.size(); i++) {
+        final Account account = created.get(i);
 
-      redisSet(account);
+        completeCreation(account, originalUuids.get(i), freshUuids.contains(account.getUuid()));
+      }
+
+      createBatchSizeHistogram.update(requests.size());
+
+      return created;
+    }
+  }
+
+  private Account buildAccount(final AccountCreationRequest request) {
 
-      // building historic directories
-      directory.buildHistoricDirectories(directoryVersion);
+    final AccountAttributes accountAttributes = request.getAccountAttributes();
+    final Account account = new Account();
 
-      // incrementing the directory version in Redis
-      directory.setDirectoryVersion(newDirectoryVersion);
+    Device device = new Device();
+    device.setId(Device.MASTER_ID);
+    device.setAuthenticationCredentials(new AuthenticationCredentials(request.getPassword()));
+    device.setFetchesMessages(accountAttributes.getFetchesMessages());
+    device.setRegistrationId(accountAttributes.getRegistrationId());
+    device.setName(accountAttributes.getName());
+    device.setCapabilities(accountAttributes.getCapabilities());
+    device.setCreated(System.currentTimeMillis());
+    device.setLastSeen(Util.todayInMillis());
+    device.setUserAgent(request.getSignalAgent());
 
-      // writing the account into the plain directory
-      directory.redisUpdatePlainDirectory(account);
+    account.setUserLogin(request.getUserLogin());
 
-      // building incremental updates
-      directory.buildIncrementalUpdates(newDirectoryVersion);
+    if (request.getUuid() == null) {
+      Optional<UUID> oUUID = deletedAccounts.findUuid(request.getUserLogin());
 
-      final Tags tags;
+      // This one will treat the new account the an old one being restored.
+      // Potentially dangerous from the perspective of impersonation attack!
+      if (oUUID.isPresent()) {
+        request.setUuid(oUUID.get());
+        deletedAccounts.remove(request.getUserLogin());
 
-      if (freshUser) {
-        tags = Tags.of("type", "new");
-        newUserMeter.mark();
       } else {
-        tags = Tags.of("type", "reregister");
+        request.setUuid(UUID.randomUUID());
       }
+    }
 
-      Metrics.counter(CREATE_COUNTER_NAME, tags).increment();
+    account.setUuid(request.getUuid());
 
-      pendingAccounts.remove(userLogin);
+    account.addDevice(device);
 
-      if (!originalUuid.equals(actualUuid)) {
-        messagesManager.clear(actualUuid);
-        keysScyllaDb.delete(actualUuid);
-        profilesManager.deleteAll(actualUuid);
-      }
+    account.setUnidentifiedAccessKey(accountAttributes.getUnidentifiedAccessKey());
+    account.setUnrestrictedUnidentifiedAccess(accountAttributes.isUnrestrictedUnidentifiedAccess());
+    account.setDiscoverableByUserLogin(accountAttributes.isDiscoverableByUserLogin());
 
-      return account;
-    } finally {
+    return account;
+  }
 
-      if (accountCreateLock.decrementAndGet() == 0) {
+  private void completeCreation(final Account account, final UUID originalUuid, final boolean freshUser) {
 
-        releaseAccountCreationLock();
-      }
+    // create() sometimes updates the UUID, if there was a user login conflict.
+    // for metrics, we want secondary to run with the same original UUID
+    final UUID actualUuid = account.getUuid();
+
+    final Tags tags;
+
+    if (freshUser) {
+      tags = Tags.of("type", "new");
+      newUserMeter.mark();
+    } else {
+      tags = Tags.of("type", "reregister");
+    }
+
+    Metrics.counter(CREATE_COUNTER_NAME, tags).increment();
+
+    if (!freshUser) {
+      // servers may still have the account as it was before it got re-registered
+      invalidateLocalCaches(actualUuid);
+    }
+
+    pendingAccounts.remove(account.getUserLogin());
+
+    if (!originalUuid.equals(actualUuid)) {
+      messagesManager.clear(actualUuid);
+      keys.delete(actualUuid, account.getDevices().stream().map(Device::getId).collect(Collectors.toList()));
+      profilesManager.deleteAll(actualUuid);
     }
   }
 
@@ -280,6 +403,10 @@ public class AccountsManager {
       updatedAccount = updateWithRetries(account, updater, this::scyllaUpdate, () -> scyllaGet(uuid).get());
 
       redisSet(updatedAccount);
+
+      // other servers may have re-read the old account after the first
+      // invalidation, while Scylla was still being updated
+      invalidateLocalCaches(uuid);
     }
 
     return updatedAccount;
@@ -300,14 +427,7 @@ public class AccountsManager {
       try {
         persister.accept(account);
 
-        final Account updatedAccount;
-        try {
-          updatedAccount = mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
-          updatedAccount.setUuid(account.getUuid());
-        } catch (final IOException e) {
-          // this should really, truly, never happen
-          throw new IllegalArgumentException(e);
-        }
+        final Account updatedAccount = copy(account);
 
         account.markStale();
 
@@ -349,16 +469,67 @@ public class AccountsManager {
 
   public Optional<Account> get(UUID uuid) {
     try (Timer.Context ignored = getByUuidTimer.time()) {
-      Optional<Account> account = redisGet(uuid);
+      if (localAccountCache != null) {
+        // callers may modify the accounts they get, so the cached ones are never
+        // handed out
+        return localAccountCache.get(uuid, this::getFromClusterOrScylla).map(this::copy);
+      }
 
-      if (account.isEmpty()) {
-        account = scyllaGet(uuid);
-        account.ifPresent(this::redisSet);
+      return getFromClusterOrScylla(uuid);
+    }
+  }
+
+  private Optional<Account> getFromClusterOrScylla(UUID uuid) {
+    Optional<Account> account = redisGet(uuid);
+
+    if (account.isEmpty()) {
+      account = scyllaGet(uuid);
+      account.ifPresent(this::redisSet);
+    }
+
+    return account;
+  }
+
+  /**
+   * Looks up a number of accounts at once. Accounts missing from the local
+   * cache, if any, are fetched from the cache cluster with a single MGET, which
+   * the cluster client splits up by node; the rest are read from Scylla in
+   * batches and put into the cache in a single pipeline.
+   *
+   * @return the accounts found, by UUID
+   */
+  public Map<UUID, Account> getAll(Collection<UUID> uuids) {
+    try (Timer.Context ignored = getAllByUuidTimer.time()) {
+      if (localAccountCache != null) {
+        final Map<UUID, Account> copies = new HashMap<>();
+
+        // as with single lookups, the cached accounts are never handed out
+        localAccountCache.getAll(uuids, this::getAllFromClusterOrScylla)
+            .forEach((uuid, account) -> copies.put(uuid, copy(account)));
+
+        return copies;
       }
 
-      return account;
+      return getAllFromClusterOrScylla(uuids);
     }
-  }  
+  }
+
+  private Map<UUID, Account> getAllFromClusterOrScylla(Collection<UUID> uuids) {
+    final Map<UUID, Account> found = redisGetAll(uuids);
+
+    final List<UUID> misses = uuids.stream()
+        .filter(uuid -> !found.containsKey(uuid))
+        .collect(Collectors.toList());
+
+    if (!misses.isEmpty()) {
+      final List<Account> loaded = scyllaGetAll(misses);
+
+      redisSetAll(loaded);
+      loaded.forEach(account -> found.put(account.getUuid(), account));
+    }
+
+    return found;
+  }
 
   public AccountCrawlChunk getAllFromScylla(int length) {    
     return accounts.getAllFromStart(length);
@@ -370,22 +541,33 @@ public class AccountsManager {
 
   public void delete(final HashSet<Account> accountsToDelete, final DeletionReason deletionReason) {
 
-    long directoryVersion = getDirectoryVersion();
-    long newDirectoryVersion = directoryVersion + 1L;
+    try (Timer.Context ignored = deleteTimer.time()) {
 
-    setAccountRemovalLock();
+      // none of these depend on each other, so they all go at once
+      final List<CompletableFuture<Void>> storeDeletions = new ArrayList<>(accountsToDelete.size() * 4);
 
-    try (Timer.Context ignored = deleteTimer.time()) {
+      for (Account account : accountsToDelete) {
+        final UUID uuid = account.getUuid();
+        final List<Long> deviceIds = account.getDevices().stream().map(Device::getId).collect(Collectors.toList());
+
+        storeDeletions.add(CompletableFuture.runAsync(() -> usernamesManager.delete(uuid), deletionExecutor));
+        storeDeletions.add(CompletableFuture.runAsync(() -> profilesManager.deleteAll(uuid), deletionExecutor));
+        storeDeletions.add(CompletableFuture.runAsync(() -> keys.delete(uuid, deviceIds), deletionExecutor));
+        storeDeletions.add(CompletableFuture.runAsync(() -> messagesManager.clear(uuid, deviceIds), deletionExecutor));
+      }
+
+      try {
+        CompletableFuture.allOf(storeDeletions.toArray(new CompletableFuture[0])).join();
+      } catch (final CompletionException e) {
+        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+
+      scyllaDelete(accountsToDelete);
 
       for (Account account : accountsToDelete) {
 
-        usernamesManager.delete(account.getUuid());
-        profilesManager.deleteAll(account.getUuid());
-        keysScyllaDb.delete(account.getUuid());
-        messagesManager.clear(account.getUuid());
         redisDelete(account);
-        scyllaDelete(account, newDirectoryVersion);
-        
+
         RedisOperation.unchecked(() ->
         account.getDevices().forEach(device ->
             clientPresenceManager.displacePresence(account.getUuid(), device.getId())));
@@ -396,47 +578,24 @@ public class AccountsManager {
 
       }
 
-      // building historic directories
-      directory.buildHistoricDirectories(directoryVersion);
-
-      // incrementing directory version in Redis and deleting the account from the
-      // plain directory
-      directory.setDirectoryVersion(newDirectoryVersion);
-      directory.redisRemoveFromPlainDirectory(accountsToDelete);
-
-      // building incremental updates
-      directory.buildIncrementalUpdates(newDirectoryVersion);
+      // deleting the accounts from the plain directory and recording the removals
+      // in the delta log, along with the incremented directory version
+      commitDirectoryUpdate(Map.of(),
+          accountsToDelete.stream().map(Account::getUserLogin).collect(Collectors.toSet()));
 
     } catch (final Exception e) {
       logger.warn("Failed to delete account(s)", e);
 
       throw e;
-
-    } finally {
-
-      releaseAccountRemovalLock();
     }
   }
   
   public void deleteFromDirectory(String userLogin) {
-    long directoryVersion = getDirectoryVersion();
-    long newDirectoryVersion = directoryVersion + 1L;
-    
-    setAccountRemovalLock();    
-    
-    if(directory.retrievePlainDirectory().containsKey(userLogin)) {
-      directory.buildHistoricDirectories(directoryVersion);
-      directory.setDirectoryVersion(newDirectoryVersion);
-      directory.redisRemoveFromPlainDirectory(userLogin);
-      directory.buildIncrementalUpdates(newDirectoryVersion);
-      
-      setDirectoryVersionInScylla(newDirectoryVersion);
+    if(directory.isInPlainDirectory(userLogin)) {
+      commitDirectoryUpdate(Map.of(), Set.of(userLogin));
       
       logger.info("Removed soft-deleted account from directory: " + userLogin);      
-    } 
-    
-    releaseAccountRemovalLock();
-    
+    }
   }
 
   private String getAccountMapKey(String userLogin) {
@@ -448,19 +607,48 @@ public class AccountsManager {
     return "Account3::" + uuid.toString();
   }
 
+  private byte[] getAccountEntityKeyBytes(UUID uuid) {
+    return getAccountEntityKey(uuid).getBytes(StandardCharsets.UTF_8);
+  }
+
   private void redisSet(Account account) {
     try (Timer.Context ignored = redisSetTimer.time()) {
-      final String accountJson = mapper.writeValueAsString(account);
+      final byte[] encodedAccount = AccountCodec.encode(account, accounts.getWriteFormat());
+
+      cacheCluster.useCluster(connection -> connection.sync()
+          .set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString()));
 
+      cacheCluster.useBinaryCluster(connection -> connection.sync()
+          .set(getAccountEntityKeyBytes(account.getUuid()), encodedAccount));
+    }
+  }
+
+  private void redisSetAll(Collection<Account> accounts) {
+    if (accounts.isEmpty()) {
+      return;
+    }
+
+    try (Timer.Context ignored = redisMultiSetTimer.time()) {
+      final List<RedisFuture<String>> futures = new ArrayList<>(accounts.size() * 2);
+
+      // the commands of both connections are sent before waiting for any replies
       cacheCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+        final RedisAdvancedClusterAsyncCommands<String, String> commands = connection.async();
+
+        for (final Account account : accounts) {
+          futures.add(commands.set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString()));
+        }
+      });
+
+      cacheCluster.useBinaryCluster(connection -> {
+        final RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands = connection.async();
 
-        commands.set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString());
-        commands.set(getAccountEntityKey(account.getUuid()), accountJson);
+        for (final Account account : accounts) {
+          futures.add(commands.set(getAccountEntityKeyBytes(account.getUuid()), AccountCodec.encode(account, accounts.getWriteFormat())));
+        }
       });
 
-    } catch (JsonProcessingException e) {
-      throw new IllegalStateException(e);
+      futures.forEach(future -> future.toCompletableFuture().join());
     }
   }
 
@@ -484,9 +672,9 @@ public class AccountsManager {
 
   private Optional<Account> redisGet(UUID uuid) {
     try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
+      final byte[] encodedAccount = cacheCluster.withBinaryCluster(connection -> connection.sync().get(getAccountEntityKeyBytes(uuid)));
+      if (encodedAccount != null) {
+        Account account = AccountCodec.decode(encodedAccount);
         account.setUuid(uuid);
         return Optional.of(account);
       }
@@ -500,12 +688,63 @@ public class AccountsManager {
     }
   }
 
+  private Map<UUID, Account> redisGetAll(Collection<UUID> uuids) {
+    final Map<UUID, Account> found = new HashMap<>();
+
+    if (uuids.isEmpty()) {
+      return found;
+    }
+
+    try (Timer.Context ignored = redisUuidMultiGetTimer.time()) {
+      final List<UUID> orderedUuids = new ArrayList<>(uuids);
+      final List<KeyValue<byte[], byte[]>> values = cacheCluster.withBinaryCluster(connection -> connection.sync()
+          .mget(orderedUuids.stream().map(this::getAccountEntityKeyBytes).toArray(byte[][]::new)));
+
+      // MGET replies in the order of the keys
+      for (int i = 0; i < values.size(); i++) {
+        if (values.get(i).hasValue()) {
+          try {
+            final Account account = AccountCodec.decode(values.get(i).getValue());
+
+            account.setUuid(orderedUuids.get(i));
+            found.put(orderedUuids.get(i), account);
+          } catch (IOException e) {
+            logger.warn("Deserialization error", e);
+          }
+        }
+      }
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
+    }
+
+    return found;
+  }
+
   private void redisDelete(final Account account) {
     try (final Timer.Context ignored = redisDeleteTimer.time()) {
       cacheCluster.useCluster(connection -> connection.sync()
           .del(getAccountMapKey(account.getUserLogin()), getAccountEntityKey(account.getUuid())));
     }
-  }  
+
+    invalidateLocalCaches(account.getUuid());
+  }
+
+  private void invalidateLocalCaches(final UUID uuid) {
+    if (localAccountCache != null) {
+      localAccountCache.invalidate(uuid);
+    }
+
+    try (final Timer.Context ignored = invalidateLocalCachesTimer.time()) {
+      cacheCluster.useCluster(connection -> connection.sync()
+          .publish(LocalAccountCache.INVALIDATION_CHANNEL, uuid.toString()));
+    } catch (final RedisException e) {
+      logger.warn("Failed to publish account invalidation", e);
+    }
+  }
+
+  private Account copy(final Account account) {
+    return new Account(account);
+  }
 
   public long getDirectoryVersion() {
     Jedis jedis = directory.accessDirectoryCache().getWriteResource();
@@ -517,25 +756,39 @@ public class AccountsManager {
 
     if (currentVersion == null || "nil".equals(currentVersion)) {
 
-      try {
-
-        long tmp = getDirectoryVersionFromScylla();         
+      long tmp = recoverDirectoryVersion();
 
-        // restoring the recovered version to redis
-        directory.setDirectoryVersion(tmp);
+      // restoring the recovered version to redis
+      directory.setDirectoryVersion(tmp);
 
-        return tmp;
-
-      } catch (IllegalStateException e) {
-        logger.warn("IllegalStateException received from an Scylla query for directory version, assuming 0.");
-        return 0;
-      }
+      return tmp;
 
     } else {
       return Long.parseLong(currentVersion);
     }
   }
 
+  private long recoverDirectoryVersion() {
+    try {
+      return getDirectoryVersionFromScylla();
+    } catch (IllegalStateException e) {
+      logger.warn("IllegalStateException received from an Scylla query for directory version, assuming 0.");
+      return 0;
+    }
+  }
+
+  /**
+   * Commits a directory update under a newly allocated directory version, then
+   * keeps a copy of the version in Scylla to recover it from should Redis lose
+   * it.
+   */
+  private long commitDirectoryUpdate(Map<String, UUID> upserts, Set<String> removals) {
+    final long newDirectoryVersion = directory.commitDirectoryUpdate(upserts, removals, this::recoverDirectoryVersion);
+    setDirectoryVersionInScylla(newDirectoryVersion);
+
+    return newDirectoryVersion;
+  }
+
   public void restorePlainDirectory() {
 
     // consider for now that we shall restore the directory only if it's completely
@@ -543,32 +796,34 @@ public class AccountsManager {
     if (isPlainDirectoryExisting())
       return;
 
-    setDirectoryRestoreLock();   
+    logger.info("Restoring plain directory from Scylla...");
 
-    BatchOperationHandle batchOperation = directory.startBatchOperation();
-    int contactsProcessed = 0;
+    AtomicInteger contactsProcessed = new AtomicInteger();
 
-    try {
-      logger.info("Restoring plain directory from Scylla...");
-                  
-      final ScanRequest.Builder accountsScanRequestBuilder = ScanRequest.builder();
-      
-        List<Account> accounts = getAll(accountsScanRequestBuilder);
-        contactsProcessed = accounts.size();
+    directory.replacePlainDirectory(() -> {
+      Map<String, UUID> entries = getPlainDirectoryEntriesFromScylla();
+      contactsProcessed.set(entries.size());
+      return entries;
+    }, currentVersion -> Math.max(currentVersion, getDirectoryVersionFromScylla()));
 
-        for (Account account : accounts) {
-          if (!account.isEnabled()) continue;
-          directory.redisUpdatePlainDirectory(batchOperation, account.getUserLogin(), mapper.writeValueAsString(new PlainDirectoryEntryValue(account.getUuid())));          
-        }        
-      
-    } catch (JsonProcessingException e) {
-      logger.error("There were errors while restoring the local directory from Scylla!", e);
-    } finally {
-      directory.stopBatchOperation(batchOperation);
+    logger.info(String.format("Local directory restoration complete (%d contacts processed).", contactsProcessed.get()));
+  }
+
+  /**
+   * @return user logins and UUIDs of all enabled accounts, as they should appear
+   *         in the plain directory
+   */
+  public Map<String, UUID> getPlainDirectoryEntriesFromScylla() {
+
+    Map<String, UUID> entries = new HashMap<>();
+
+    for (Account account : getAll(ScanRequest.builder())) {
+      if (account.isEnabled()) {
+        entries.put(account.getUserLogin(), account.getUuid());
+      }
     }
 
-    logger.info(String.format("Local directory restoration complete (%d contacts processed).", contactsProcessed));
-    releaseDirectoryRestoreLock();
+    return entries;
   }
   
   public long getDirectoryVersionFromScylla() {
@@ -594,52 +849,6 @@ public class AccountsManager {
     }
   }
 
-  public void setAccountCreationLock() {
-    cacheCluster.useCluster(connection -> connection.sync().setex(ACCOUNT_CREATION_LOCK_KEY, 60, ""));
-  }
-
-  public void setAccountRemovalLock() {
-    cacheCluster.useCluster(connection -> connection.sync().setex(ACCOUNT_REMOVAL_LOCK_KEY, 60, ""));
-  }
-
-  public void setDirectoryRestoreLock() {
-    cacheCluster.useCluster(connection -> connection.sync().setex(DIRECTORY_RESTORE_LOCK_KEY, 60, ""));
-  }
-
-  public void releaseAccountCreationLock() {
-    cacheCluster.useCluster(connection -> connection.sync().del(ACCOUNT_CREATION_LOCK_KEY));
-  }
-
-  public void releaseAccountRemovalLock() {
-    cacheCluster.useCluster(connection -> connection.sync().del(ACCOUNT_REMOVAL_LOCK_KEY));
-  }
-
-  public void releaseDirectoryRestoreLock() {
-    cacheCluster.useCluster(connection -> connection.sync().del(DIRECTORY_RESTORE_LOCK_KEY));
-  }
-
-  public boolean getAccountCreationLock() {
-
-    Long exists = cacheCluster.withCluster(connection -> connection.sync().exists(ACCOUNT_CREATION_LOCK_KEY));
-
-    return exists != 0 ? true : false;
-  }
-
-  public boolean getAccountRemovalLock() {
-
-    Long exists = cacheCluster.withCluster(connection -> connection.sync().exists(ACCOUNT_REMOVAL_LOCK_KEY));
-
-    return exists != 0 ? true : false;
-  }
-
-  public boolean getDirectoryRestoreLock() {
-
-    Long exists = cacheCluster.withCluster(connection -> connection.sync().exists(DIRECTORY_RESTORE_LOCK_KEY));
-
-    return exists != 0 ? true : false;
-
-  }
-
   private Optional<Account> scyllaGet(String userLogin) {
     return accounts.get(userLogin);
   }
@@ -648,15 +857,19 @@ public class AccountsManager {
     return accounts.get(uuid);
   }
 
-  private boolean scyllaCreate(Account account, long directoryVersion) {
-    return accounts.create(account, directoryVersion);
+  private List<Account> scyllaGetAll(Collection<UUID> uuids) {
+    return accounts.getAll(uuids);
+  }
+
+  private boolean scyllaCreate(Account account) {
+    return accounts.create(account);
   }
 
   private void scyllaUpdate(Account account) {
     accounts.update(account);
   }
 
-  private void scyllaDelete(final Account account, long directoryVersion) {
-    accounts.delete(account.getUuid(), directoryVersion);
+  private void scyllaDelete(final Collection<Account> accountsToDelete) {
+    accounts.deleteAll(accountsToDelete);
   }  
 }
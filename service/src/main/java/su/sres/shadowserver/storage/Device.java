@@ -89,6 +89,32 @@ public class Device {
     this.capabilities = capabilities;
   }
 
+  /**
+   * Creates a copy of a device; the copy shares nothing with the original that
+   * either of them could modify.
+   */
+  public Device(Device device) {
+    this.id = device.id;
+    this.name = device.name;
+    this.authToken = device.authToken;
+    this.salt = device.salt;
+    this.gcmId = device.gcmId;
+    this.apnId = device.apnId;
+    this.voipApnId = device.voipApnId;
+    this.pushTimestamp = device.pushTimestamp;
+    this.uninstalledFeedback = device.uninstalledFeedback;
+    this.fetchesMessages = device.fetchesMessages;
+    this.registrationId = device.registrationId;
+    this.signedPreKey = device.signedPreKey != null
+        ? new SignedPreKey(device.signedPreKey.getKeyId(), device.signedPreKey.getPublicKey(), device.signedPreKey.getSignature())
+        : null;
+    this.lastSeen = device.lastSeen;
+    this.created = device.created;
+    this.userAgent = device.userAgent;
+    // capabilities are immutable
+    this.capabilities = device.capabilities;
+  }
+
   public String getApnId() {
     return apnId;
   }
@@ -213,6 +239,10 @@ public class Device {
     this.signedPreKey = signedPreKey;
   }
 
+  void setPushTimestamp(long pushTimestamp) {
+    this.pushTimestamp = pushTimestamp;
+  }
+
   public long getPushTimestamp() {
     return pushTimestamp;
   }
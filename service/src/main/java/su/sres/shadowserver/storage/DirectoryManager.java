@@ -11,13 +11,25 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.util.Pair;
 
 public class DirectoryManager {
 
@@ -29,12 +41,20 @@ public class DirectoryManager {
   // TODO: to be deprecated
   private static final String CURRENT_UPDATE = "CurrentUpdate";
 
-  private static final String INCREMENTAL_UPDATE = "UpdateDiff::";
+  // TODO: to be deprecated, superseded by the delta log
+  private static final String LEGACY_INCREMENTAL_UPDATE = "UpdateDiff::";
+  private static final String LEGACY_DIRECTORY_HISTORIC = "DirectoryHistoric::";
 
-  private static final String DIRECTORY_HISTORIC = "DirectoryHistoric::";
+  private static final String DIRECTORY_DELTA = "DirectoryDelta::";
+  static final String DELTA_TOMBSTONE = "-1";
+  private static final String DELTA_FILLER = "";
 
   public static final int INCREMENTAL_UPDATES_TO_HOLD = 100;
-  private static final String DIRECTORY_ACCESS_LOCK_KEY = "DirectoryAccessLock";
+  private static final String DIRECTORY_PLAIN_STAGING = "DirectoryPlainStaging";
+
+  private static final int STAGING_CHUNK_SIZE = 1000;
+  private static final int MAX_REPLACE_ATTEMPTS = 5;
+  private static final int MAX_COMMIT_ATTEMPTS = 20;
 
   private final ObjectMapper objectMapper;
   private final ReplicatedJedisPool redisPool;
@@ -45,258 +65,267 @@ public class DirectoryManager {
     this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
   }
 
-  public BatchOperationHandle startBatchOperation() {
-    Jedis jedis = redisPool.getWriteResource();
-    return new BatchOperationHandle(jedis, jedis.pipelined());
-  }
+  /**
+   * Publishes a set of directory changes as the next directory version. Only the
+   * changed entries are written: the plain directory is patched in place, the
+   * changes are appended to the delta log under the new version, and the delta
+   * falling out of the retention window is dropped. Everything happens in a
+   * single MULTI/EXEC, so readers never observe a version without its delta.
+   * The new version is allocated within the same transaction, with the current
+   * one being watched, so that concurrent updates never publish the same
+   * version; an update that loses the race is retried.
+   *
+   * @param upserts                user logins to be added to (or updated in) the
+   *                               directory
+   * @param removals               user logins to be removed from the directory
+   * @param missingVersionSupplier supplies the current directory version should it
+   *                               be missing from Redis
+   * @return the directory version the changes were published as
+   */
+  public long commitDirectoryUpdate(Map<String, UUID> upserts, Set<String> removals, LongSupplier missingVersionSupplier) {
+
+    HashMap<String, String> delta = new HashMap<>();
+
+    try {
+      for (Map.Entry<String, UUID> upsert : upserts.entrySet()) {
+        delta.put(upsert.getKey(), objectMapper.writeValueAsString(new PlainDirectoryEntryValue(upsert.getValue())));
+      }
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
 
-  public void stopBatchOperation(BatchOperationHandle handle) {
-    Pipeline pipeline = handle.pipeline;
-    Jedis jedis = handle.jedis;
+    for (String removal : removals) {
+      delta.put(removal, DELTA_TOMBSTONE);
+    }
 
-    pipeline.sync();
-    jedis.close();
-  }
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-  void redisUpdatePlainDirectory(Account account) {
+      for (int attempt = 0; attempt < MAX_COMMIT_ATTEMPTS; attempt++) {
 
-    PlainDirectoryEntryValue entryValue = new PlainDirectoryEntryValue(account.getUuid());
+        jedis.watch(DIRECTORY_VERSION);
 
-    try (Jedis jedis = redisPool.getWriteResource()) {
+        @Nullable
+        String currentVersion = jedis.get(DIRECTORY_VERSION);
+        long newVersion = (currentVersion == null || "nil".equals(currentVersion) ? missingVersionSupplier.getAsLong() : Long.parseLong(currentVersion)) + 1L;
 
-      jedis.hset(DIRECTORY_PLAIN, account.getUserLogin(), objectMapper.writeValueAsString(entryValue));
-    } catch (JsonProcessingException e) {
-      logger.warn("JSON Error", e);
-    }
-  }
+        Transaction transaction = jedis.multi();
+
+        for (Map.Entry<String, String> entry : delta.entrySet()) {
+          if (DELTA_TOMBSTONE.equals(entry.getValue())) {
+            transaction.hdel(DIRECTORY_PLAIN, entry.getKey());
+          } else {
+            transaction.hset(DIRECTORY_PLAIN, entry.getKey(), entry.getValue());
+          }
+        }
 
-  public void redisUpdatePlainDirectory(BatchOperationHandle handle, String userLogin, String entryValueString) {
+        // a delta left over under this version, e.g. by an update whose version
+        // was later rolled back, must not leak into the new one
+        transaction.del(getDirectoryDeltaKey(newVersion));
 
-    handle.pipeline.hset(DIRECTORY_PLAIN, userLogin, entryValueString);
-  }
+        // an empty delta still needs to be present, otherwise the version would be
+        // considered missing from the log
+        transaction.hmset(getDirectoryDeltaKey(newVersion), delta.isEmpty() ? Map.of(DELTA_FILLER, DELTA_FILLER) : delta);
 
-  void redisRemoveFromPlainDirectory(HashSet<Account> accountsToRemove) {
-    try (Jedis jedis = redisPool.getWriteResource()) {
+        if (newVersion > INCREMENTAL_UPDATES_TO_HOLD) {
+          transaction.del(getDirectoryDeltaKey(newVersion - INCREMENTAL_UPDATES_TO_HOLD));
+        }
 
-      for (Account account : accountsToRemove) {
+        transaction.set(DIRECTORY_VERSION, String.valueOf(newVersion));
 
-        jedis.hdel(DIRECTORY_PLAIN, account.getUserLogin());
+        if (transaction.exec() != null) {
+          return newVersion;
+        }
       }
     }
-  }
-  
-  void redisRemoveFromPlainDirectory(String userLogin) {
-    try (Jedis jedis = redisPool.getWriteResource()) {
-        jedis.hdel(DIRECTORY_PLAIN, userLogin);      
-    }
-  }
 
-  public void redisRemoveFromPlainDirectory(BatchOperationHandle handle, String userLogin) {
-    handle.pipeline.hdel(DIRECTORY_PLAIN, userLogin);
+    throw new IllegalStateException("Failed to commit a directory update due to concurrent updates");
   }
 
-  public HashMap<String, String> retrievePlainDirectory() {
-
+  public boolean isInPlainDirectory(String userLogin) {
     try (Jedis jedis = redisPool.getWriteResource()) {
 
-      return (HashMap<String, String>) jedis.hgetAll(DIRECTORY_PLAIN);
+      return jedis.hexists(DIRECTORY_PLAIN, userLogin);
     }
   }
 
-  public HashMap<String, String> retrieveIncrementalUpdate(int backoff) {
+  public HashMap<String, String> retrievePlainDirectory() {
 
     try (Jedis jedis = redisPool.getWriteResource()) {
 
-      return (HashMap<String, String>) jedis.hgetAll(getIncrementalUpdateKey(backoff));
+      return (HashMap<String, String>) jedis.hgetAll(DIRECTORY_PLAIN);
     }
   }
 
-  public void setDirectoryVersion(long version) {
-    Jedis jedis = redisPool.getWriteResource();
-    jedis.set(DIRECTORY_VERSION, String.valueOf(version));
-    jedis.close();
-  }
-
-  public String getIncrementalUpdateKey(int backoff) {
-
-    return INCREMENTAL_UPDATE + String.valueOf(backoff);
-  }
-
-  public String getDirectoryHistoricKey(int backoff) {
-
-    if (backoff == 0) {
-      return DIRECTORY_PLAIN;
-    } else {
-      return DIRECTORY_HISTORIC + String.valueOf(backoff);
+  /**
+   * Builds the incremental update leading from one directory version to another
+   * by merging the delta log entries in between; later entries win.
+   *
+   * @return the merged update, or empty if the log does not cover the whole
+   *         range, in which case a full directory needs to be served
+   */
+  public Optional<HashMap<String, String>> retrieveIncrementalUpdate(long fromVersion, long toVersion) {
+
+    if (toVersion - fromVersion > INCREMENTAL_UPDATES_TO_HOLD) {
+      return Optional.empty();
     }
-  }
 
-  public void buildIncrementalUpdates(long directoryVersion) {
+    List<Response<Map<String, String>>> deltas = new ArrayList<>();
 
-    Jedis jedis = redisPool.getWriteResource();
-
-    HashMap<String, String> freshDirectory = retrievePlainDirectory();
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-    // this is 1 or more, since this method is not invoked until the directory
-    // version is incremented from 0;
-    int backoff = calculateBackoff(directoryVersion);
+      Pipeline pipeline = jedis.pipelined();
 
-    for (int i = backoff; i > 0; i--) {
+      for (long version = fromVersion + 1; version <= toVersion; version++) {
+        deltas.add(pipeline.hgetAll(getDirectoryDeltaKey(version)));
+      }
 
-      // here we are making best effort to build the incremental update of depth i
+      pipeline.sync();
+    }
 
-      String targetIncrementalUpdateKey = getIncrementalUpdateKey(i);
+    HashMap<String, String> merge = new HashMap<>();
 
-      // deleting since we need to rewrite it;
-      jedis.del(targetIncrementalUpdateKey);
+    for (Response<Map<String, String>> response : deltas) {
 
-      String directoryHistoricKey = getDirectoryHistoricKey(i);
+      Map<String, String> delta = response.get();
 
-      // if a historic directory is missing, we can't calculate the target incremental
-      // update; so just nullifying it
-      if (!jedis.exists(directoryHistoricKey)) {
-        logger.debug(directoryHistoricKey + " is missing in Redis. Therefore nullifying " + targetIncrementalUpdateKey + " as it's impossible to calculate it");
-        continue;
+      // an evicted or never recorded delta makes the whole range unusable
+      if (delta == null || delta.isEmpty()) {
+        return Optional.empty();
       }
 
-      HashMap<String, String> directoryHistoric = (HashMap<String, String>) jedis.hgetAll(directoryHistoricKey);
-
-      HashMap<String, String> updatedIncrementalUpdate = calculateIncrementalUpdate(directoryHistoric, freshDirectory);
-
-      if (!updatedIncrementalUpdate.isEmpty()) {
-        jedis.hmset(targetIncrementalUpdateKey, updatedIncrementalUpdate);
-      } else {
-        // just a filler for the case when the incremental update is empty
-        jedis.hset(targetIncrementalUpdateKey, "", "");
-      }
+      merge.putAll(delta);
     }
 
-    jedis.close();
-  }
+    merge.remove(DELTA_FILLER);
 
-  public HashMap<String, String> calculateIncrementalUpdate(HashMap<String, String> directoryHistoric, HashMap<String, String> directoryCurrent) {
+    return Optional.of(merge);
+  }
 
+  public void setDirectoryVersion(long version) {
     Jedis jedis = redisPool.getWriteResource();
+    jedis.set(DIRECTORY_VERSION, String.valueOf(version));
+    jedis.close();
+  }
 
-    Set<String> olderFields = directoryHistoric.keySet();
-    Set<String> newerFields = directoryCurrent.keySet();
+  public String getDirectoryDeltaKey(long version) {
 
-    HashMap<String, String> merge = new HashMap<String, String>();
+    return DIRECTORY_DELTA + String.valueOf(version);
+  }
 
-    for (String field : olderFields) {
+  /**
+   * Reads the plain directory together with the directory version it
+   * corresponds to. Both are read in a single MULTI/EXEC, and since every
+   * directory change is committed the same way, the pair is always consistent
+   * without any locking.
+   */
+  public Pair<Optional<Long>, HashMap<String, String>> retrieveVersionedPlainDirectory() {
 
-      if (!newerFields.contains(field)) {
-        // if current directory does not contain the login, means remove it
-        merge.put(field, "-1");
-      } else {
-        // if current directory does contain the login, we need to compare the contents;
-        // the difference means there's been a re-insertion of an account with a
-        // previously deleted login
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-        String currentValue = directoryCurrent.get(field);
+      Transaction transaction = jedis.multi();
 
-        if (!directoryHistoric.get(field).equals(currentValue)) {
-          merge.put(field, currentValue);
-        }
-      }
-    }
+      Response<String> version = transaction.get(DIRECTORY_VERSION);
+      Response<Map<String, String>> entries = transaction.hgetAll(DIRECTORY_PLAIN);
 
-    for (String field : newerFields) {
+      transaction.exec();
 
-      // now checking fields absent in the historic directory but present in the
-      // current one, and copying those
-      if (!olderFields.contains(field)) {
-        merge.put(field, directoryCurrent.get(field));
-      }
+      return new Pair<>(Optional.ofNullable(version.get()).filter(v -> !"nil".equals(v)).map(Long::parseLong),
+          new HashMap<>(entries.get()));
     }
-
-    jedis.close();
-
-    return merge;
   }
 
-  public void buildHistoricDirectories(long directoryVersion) {
+  /**
+   * Replaces the whole plain directory. The new contents are staged aside and
+   * swapped in together with the directory version in a single MULTI/EXEC, so
+   * readers see either the old or the new directory, never a partially rebuilt
+   * one. If a directory update is committed while staging, the replacement is
+   * retried from scratch, so that the update is not lost. The delta log is
+   * cleared along the way, so clients behind the new version get the full
+   * directory.
+   *
+   * @param entriesSupplier supplies the user logins and UUIDs the directory shall
+   *                        consist of; invoked again on every retry
+   * @param versionUpdater  maps the current directory version to the one to be
+   *                        published along with the new directory
+   * @return the published directory version
+   */
+  public long replacePlainDirectory(Supplier<Map<String, UUID>> entriesSupplier, LongUnaryOperator versionUpdater) {
 
-    Jedis jedis = redisPool.getWriteResource();
-    int backoff = calculateBackoff(directoryVersion);
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-    for (int i = backoff; i > 0; i--) {
+      for (int attempt = 0; attempt < MAX_REPLACE_ATTEMPTS; attempt++) {
 
-      String runningKey = getDirectoryHistoricKey(i);
-      String upstreamKey = getDirectoryHistoricKey(i - 1);
+        jedis.watch(DIRECTORY_VERSION);
 
-      // delete the running historic directory since we need to recreate it
-      jedis.del(runningKey);
+        @Nullable
+        String currentVersionString = jedis.get(DIRECTORY_VERSION);
+        long currentVersion = currentVersionString == null || "nil".equals(currentVersionString) ? 0 : Long.parseLong(currentVersionString);
+        long newVersion = versionUpdater.applyAsLong(currentVersion);
 
-      HashMap<String, String> upstream = (HashMap<String, String>) jedis.hgetAll(upstreamKey);
+        Map<String, UUID> entries = entriesSupplier.get();
 
-      // if the next in line historic directory exists, then the running directory is
-      // rewritten with the next in line, otherwise the running one would now be
-      // missing as well
-      if (!upstream.isEmpty()) {
-        jedis.hmset(runningKey, upstream);
-      }
-    }
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.del(DIRECTORY_PLAIN_STAGING);
 
-    jedis.close();
-  }
+        HashMap<String, String> chunk = new HashMap<>();
 
-  public void flushIncrementalUpdates(int backoff, Jedis jedis) {
+        try {
+          for (Map.Entry<String, UUID> entry : entries.entrySet()) {
+            chunk.put(entry.getKey(), objectMapper.writeValueAsString(new PlainDirectoryEntryValue(entry.getValue())));
 
-    for (int i = 1; i <= backoff; i++) {
-      jedis.del(getIncrementalUpdateKey(i));
-    }
-    
-    for (int i = 1; i <= backoff; i++) {
-      jedis.del(getDirectoryHistoricKey(i));
-    }
+            if (chunk.size() >= STAGING_CHUNK_SIZE) {
+              pipeline.hmset(DIRECTORY_PLAIN_STAGING, chunk);
+              chunk = new HashMap<>();
+            }
+          }
+        } catch (JsonProcessingException e) {
+          jedis.unwatch();
+          throw new IllegalArgumentException(e);
+        }
 
-    // TODO: to be deprecated
-    jedis.del(CURRENT_UPDATE);
-  }
+        if (!chunk.isEmpty()) {
+          pipeline.hmset(DIRECTORY_PLAIN_STAGING, chunk);
+        }
 
-  public int calculateBackoff(long directoryVersion) {
+        pipeline.sync();
 
-    if (directoryVersion < INCREMENTAL_UPDATES_TO_HOLD) {
-      return (int) directoryVersion;
-    } else {
-      return INCREMENTAL_UPDATES_TO_HOLD;
-    }
-  }
+        Transaction transaction = jedis.multi();
 
-  public ReplicatedJedisPool accessDirectoryCache() {
-    return redisPool;
-  }
+        if (entries.isEmpty()) {
+          transaction.del(DIRECTORY_PLAIN);
+        } else {
+          transaction.rename(DIRECTORY_PLAIN_STAGING, DIRECTORY_PLAIN);
+        }
 
-  public void setDirectoryReadLock() {
-    Jedis jedis = redisPool.getWriteResource();
+        transaction.set(DIRECTORY_VERSION, String.valueOf(newVersion));
 
-    jedis.setex(DIRECTORY_ACCESS_LOCK_KEY, 60, "");
-    jedis.close();
-  }
+        // the delta log doesn't describe the replacement, so it is cleared; with
+        // the delta of the new version missing, any incremental update spanning
+        // the replacement falls back to a full directory
+        long lastLoggedVersion = Math.max(currentVersion, newVersion);
 
-  public void releaseDirectoryReadLock() {
-    Jedis jedis = redisPool.getWriteResource();
+        for (long version = Math.max(1, lastLoggedVersion - INCREMENTAL_UPDATES_TO_HOLD + 1); version <= lastLoggedVersion; version++) {
+          transaction.del(getDirectoryDeltaKey(version));
+        }
 
-    jedis.del(DIRECTORY_ACCESS_LOCK_KEY);
-    jedis.close();
-  }
+        // TODO: to be deprecated
+        for (int i = 1; i <= INCREMENTAL_UPDATES_TO_HOLD; i++) {
+          transaction.del(LEGACY_INCREMENTAL_UPDATE + i, LEGACY_DIRECTORY_HISTORIC + i);
+        }
+        transaction.del(CURRENT_UPDATE);
 
-  public boolean getDirectoryReadLock() {
-    try (Jedis jedis = redisPool.getWriteResource()) {
+        if (transaction.exec() != null) {
+          return newVersion;
+        }
 
-      return jedis.exists(DIRECTORY_ACCESS_LOCK_KEY);
+        logger.info("Directory changed while being replaced, retrying");
+      }
     }
-  }
-
-  public static class BatchOperationHandle {
 
-    public final Pipeline pipeline;
-    public final Jedis jedis;
+    throw new IllegalStateException("Failed to replace the plain directory due to concurrent updates");
+  }
 
-    public BatchOperationHandle(Jedis jedis, Pipeline pipeline) {
-      this.pipeline = pipeline;
-      this.jedis = jedis;
-    }
+  public ReplicatedJedisPool accessDirectoryCache() {
+    return redisPool;
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+import su.sres.shadowserver.storage.protos.DirectoryResponse;
+import su.sres.shadowserver.util.Constants;
+
+/**
+ * Holds the serialized full directory for the current directory version, so that
+ * every client requesting a full sync gets the same pre-built bytes instead of
+ * each request reading the whole plain directory and building its own protobuf.
+ */
+public class DirectorySnapshotCache {
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer buildTimer = metricRegistry.timer(name(DirectorySnapshotCache.class, "build"));
+  private static final Meter hitMeter = metricRegistry.meter(name(DirectorySnapshotCache.class, "hit"));
+  private static final Meter missMeter = metricRegistry.meter(name(DirectorySnapshotCache.class, "miss"));
+  private static final Histogram sizeHistogram = metricRegistry.histogram(name(DirectorySnapshotCache.class, "size"));
+  private static final Histogram compressedSizeHistogram = metricRegistry.histogram(name(DirectorySnapshotCache.class, "compressedSize"));
+
+  private final boolean compress;
+  private final AtomicReference<DirectorySnapshot> snapshot = new AtomicReference<>();
+
+  public DirectorySnapshotCache(boolean compress) {
+    this.compress = compress;
+  }
+
+  /**
+   * Returns the snapshot of the given directory version (or of a newer one, which
+   * serves a full sync just as well), building it with the supplied response if
+   * no such snapshot is cached yet. Concurrent requests for the same version wait
+   * for a single build.
+   */
+  public DirectorySnapshot get(long version, Supplier<DirectoryResponse> responseSupplier) {
+
+    DirectorySnapshot current = snapshot.get();
+
+    if (current != null && current.getVersion() >= version) {
+      hitMeter.mark();
+      return current;
+    }
+
+    synchronized (this) {
+      current = snapshot.get();
+
+      if (current != null && current.getVersion() >= version) {
+        hitMeter.mark();
+        return current;
+      }
+
+      missMeter.mark();
+
+      DirectorySnapshot built = build(responseSupplier.get());
+
+      // a lagging request must not evict the snapshot of a newer version
+      if (current == null || current.getVersion() < built.getVersion()) {
+        snapshot.set(built);
+      }
+
+      return built;
+    }
+  }
+
+  private DirectorySnapshot build(DirectoryResponse response) {
+
+    try (Timer.Context ignored = buildTimer.time()) {
+
+      byte[] serialized = response.toByteArray();
+      sizeHistogram.update(serialized.length);
+
+      byte[] compressed = null;
+
+      if (compress) {
+        compressed = gzip(serialized);
+        compressedSizeHistogram.update(compressed.length);
+      }
+
+      return new DirectorySnapshot(response.getVersion(), serialized, compressed);
+    }
+  }
+
+  private static byte[] gzip(byte[] input) {
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 64);
+
+    try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(output)) {
+      gzipOutputStream.write(input);
+    } catch (IOException e) {
+      // in-memory streams don't throw
+      throw new AssertionError(e);
+    }
+
+    return output.toByteArray();
+  }
+
+  public static class DirectorySnapshot {
+
+    private final long version;
+    private final byte[] serialized;
+
+    @Nullable
+    private final byte[] compressed;
+
+    private DirectorySnapshot(long version, byte[] serialized, @Nullable byte[] compressed) {
+      this.version = version;
+      this.serialized = serialized;
+      this.compressed = compressed;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public byte[] getSerialized() {
+      return serialized;
+    }
+
+    public Optional<byte[]> getCompressed() {
+      return Optional.ofNullable(compressed);
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import su.sres.shadowserver.entities.PreKey;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Stores one-time prekeys over the native CQL protocol. An account's keys share
+ * a partition, clustered by device and key ID. A key is claimed with a
+ * conditional delete, so that a key is only ever handed out once. Key IDs wrap
+ * around, so the keys' write times, rather than their IDs, tell which keys are
+ * the oldest.
+ */
+public class KeysCql implements PreKeyStore {
+
+  public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS %s ("
+      + "account_uuid uuid, "
+      + "device_id bigint, "
+      + "key_id bigint, "
+      + "public_key text, "
+      + "PRIMARY KEY ((account_uuid), device_id, key_id))";
+
+  // keys read at a time when claiming one; a page is read again only when
+  // concurrent claims have taken every key on the previous one
+  public static final int DEFAULT_TAKE_PAGE_SIZE = 4;
+
+  private static final int MAX_BATCH_SIZE = 50;
+
+  private static final Timer STORE_KEYS_TIMER = Metrics.timer(name(KeysCql.class, "storeKeys"));
+  private static final Timer APPEND_KEYS_TIMER = Metrics.timer(name(KeysCql.class, "appendKeys"));
+  private static final Timer TRIM_KEYS_TIMER = Metrics.timer(name(KeysCql.class, "trimKeys"));
+  private static final Timer TAKE_KEY_FOR_DEVICE_TIMER = Metrics.timer(name(KeysCql.class, "takeKeyForDevice"));
+  private static final Timer TAKE_KEYS_FOR_ACCOUNT_TIMER = Metrics.timer(name(KeysCql.class, "takeKeyForAccount"));
+  private static final Timer GET_KEY_COUNT_TIMER = Metrics.timer(name(KeysCql.class, "getKeyCount"));
+  private static final Timer DELETE_KEYS_FOR_DEVICE_TIMER = Metrics.timer(name(KeysCql.class, "deleteKeysForDevice"));
+  private static final Timer DELETE_KEYS_FOR_ACCOUNT_TIMER = Metrics.timer(name(KeysCql.class, "deleteKeysForAccount"));
+  private static final DistributionSummary CONTESTED_KEY_DISTRIBUTION = Metrics.summary(name(KeysCql.class, "contestedKeys"));
+  private static final DistributionSummary TAKE_ATTEMPTS_DISTRIBUTION = Metrics.summary(name(KeysCql.class, "takeAttempts"));
+  private static final DistributionSummary KEY_COUNT_DISTRIBUTION = Metrics.summary(name(KeysCql.class, "keyCount"));
+
+  private final CqlSession session;
+  private final int takePageSize;
+
+  private final PreparedStatement insert;
+  private final PreparedStatement selectKeyIds;
+  private final PreparedStatement selectWriteTimes;
+  private final PreparedStatement deleteKey;
+  private final PreparedStatement selectCandidates;
+  private final PreparedStatement selectCandidatesAfter;
+  private final PreparedStatement claim;
+  private final PreparedStatement count;
+  private final PreparedStatement deleteForDevice;
+  private final PreparedStatement deleteForAccount;
+
+  public KeysCql(final CqlSession session, final String tableName) {
+    this(session, tableName, DEFAULT_TAKE_PAGE_SIZE);
+  }
+
+  public KeysCql(final CqlSession session, final String tableName, final int takePageSize) {
+    this.session = session;
+    this.takePageSize = takePageSize;
+
+    this.insert = session.prepare("INSERT INTO " + tableName + " (account_uuid, device_id, key_id, public_key) VALUES (?, ?, ?, ?)");
+    this.selectKeyIds = session.prepare("SELECT key_id FROM " + tableName
+        + " WHERE account_uuid = ? AND device_id = ? AND key_id IN ?");
+    this.selectWriteTimes = session.prepare("SELECT key_id, WRITETIME(public_key) FROM " + tableName
+        + " WHERE account_uuid = ? AND device_id = ?");
+    this.deleteKey = session.prepare("DELETE FROM " + tableName + " WHERE account_uuid = ? AND device_id = ? AND key_id = ?");
+    this.selectCandidates = session.prepare("SELECT key_id, public_key FROM " + tableName
+        + " WHERE account_uuid = ? AND device_id = ? LIMIT ?");
+    this.selectCandidatesAfter = session.prepare("SELECT key_id, public_key FROM " + tableName
+        + " WHERE account_uuid = ? AND device_id = ? AND key_id > ? LIMIT ?");
+    this.claim = session.prepare("DELETE FROM " + tableName + " WHERE account_uuid = ? AND device_id = ? AND key_id = ? IF EXISTS");
+    this.count = session.prepare("SELECT COUNT(*) FROM " + tableName + " WHERE account_uuid = ? AND device_id = ?");
+    this.deleteForDevice = session.prepare("DELETE FROM " + tableName + " WHERE account_uuid = ? AND device_id = ?");
+    this.deleteForAccount = session.prepare("DELETE FROM " + tableName + " WHERE account_uuid = ?");
+  }
+
+  @Override
+  public void store(final Account account, final long deviceId, final List<PreKey> keys) {
+    STORE_KEYS_TIMER.record(() -> {
+      // the driver's timestamps increase monotonically, so the inserts land after
+      // the range delete
+      delete(account.getUuid(), deviceId);
+
+      executeInBatches(keys.stream()
+          .map(preKey -> insert.bind(account.getUuid(), deviceId, preKey.getKeyId(), preKey.getPublicKey()))
+          .collect(Collectors.toList()));
+    });
+  }
+
+  /**
+   * Looks up which of the key IDs the device has already, then writes the keys
+   * in unlogged batches, as {@link #store(Account, long, List)} does. A key with
+   * the ID of one the device already has replaces it, as the device no longer
+   * has the old one, and isn't counted as added.
+   */
+  @Override
+  public int append(final Account account, final long deviceId, final List<PreKey> keys) {
+    return APPEND_KEYS_TIMER.record(() -> {
+      if (keys.isEmpty()) {
+        return 0;
+      }
+
+      final Set<Long> keyIds = keys.stream().map(PreKey::getKeyId).collect(Collectors.toSet());
+      final Set<Long> existingKeyIds = new HashSet<>();
+
+      session.execute(selectKeyIds.bind(account.getUuid(), deviceId, new ArrayList<>(keyIds)))
+          .forEach(row -> existingKeyIds.add(row.getLong("key_id")));
+
+      executeInBatches(keys.stream()
+          .map(preKey -> insert.bind(account.getUuid(), deviceId, preKey.getKeyId(), preKey.getPublicKey()))
+          .collect(Collectors.toList()));
+
+      return keyIds.size() - existingKeyIds.size();
+    });
+  }
+
+  /**
+   * Reads the write times of all the device's keys and deletes the keys past
+   * the newest {@code maxKeys}.
+   */
+  @Override
+  public int trim(final Account account, final long deviceId, final int maxKeys) {
+    return TRIM_KEYS_TIMER.record(() -> {
+      final List<Row> rows = session.execute(selectWriteTimes.bind(account.getUuid(), deviceId)).all();
+
+      if (rows.size() <= maxKeys) {
+        return rows.size();
+      }
+
+      final List<Row> newestFirst = new ArrayList<>(rows);
+      newestFirst.sort(Comparator.comparingLong((Row row) -> row.getLong(1)).reversed());
+
+      executeInBatches(newestFirst.subList(maxKeys, newestFirst.size()).stream()
+          .map(row -> deleteKey.bind(account.getUuid(), deviceId, row.getLong("key_id")))
+          .collect(Collectors.toList()));
+
+      return maxKeys;
+    });
+  }
+
+  // statements are sent in unlogged batches of a bounded size, all at once;
+  // they share a partition, so each batch goes to a single replica set
+  private void executeInBatches(final List<BoundStatement> statements) {
+    final List<CompletableFuture<AsyncResultSet>> futures = new ArrayList<>();
+
+    for (int i = 0; i < statements.size(); i += MAX_BATCH_SIZE) {
+      final BatchStatementBuilder batch = BatchStatement.builder(BatchType.UNLOGGED);
+      statements.subList(i, Math.min(i + MAX_BATCH_SIZE, statements.size())).forEach(batch::addStatement);
+
+      futures.add(session.executeAsync(batch.build()).toCompletableFuture());
+    }
+
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+  }
+
+  @Override
+  public Optional<PreKey> take(final Account account, final long deviceId) {
+    return TAKE_KEY_FOR_DEVICE_TIMER.record(() -> {
+      int attempts = 0;
+      boolean claimed = false;
+
+      try {
+        Long lastKeyId = null;
+        List<Row> candidates;
+
+        do {
+          candidates = session.execute(bindTakeQuery(account.getUuid(), deviceId, lastKeyId)).all();
+
+          for (final Row candidate : candidates) {
+            final long keyId = candidate.getLong("key_id");
+            attempts++;
+
+            if (session.execute(claim.bind(account.getUuid(), deviceId, keyId)).wasApplied()) {
+              claimed = true;
+              return Optional.of(new PreKey(keyId, candidate.getString("public_key")));
+            }
+
+            lastKeyId = keyId;
+          }
+        } while (candidates.size() == takePageSize);
+
+        return Optional.empty();
+      } finally {
+        recordTakeAttempts(attempts, claimed);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Optional<PreKey>> takeAsync(final Account account, final long deviceId) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+    final AtomicInteger attempts = new AtomicInteger();
+
+    return takeFromPage(account.getUuid(), deviceId, null, attempts)
+        .whenComplete((preKey, throwable) -> {
+          recordTakeAttempts(attempts.get(), preKey != null && preKey.isPresent());
+          sample.stop(TAKE_KEY_FOR_DEVICE_TIMER);
+        });
+  }
+
+  private CompletableFuture<Optional<PreKey>> takeFromPage(final UUID accountUuid, final long deviceId,
+      @Nullable final Long lastKeyId, final AtomicInteger attempts) {
+
+    return session.executeAsync(bindTakeQuery(accountUuid, deviceId, lastKeyId))
+        .toCompletableFuture()
+        .thenCompose(resultSet -> {
+          final List<Row> candidates = new ArrayList<>(takePageSize);
+          resultSet.currentPage().forEach(candidates::add);
+
+          return claimFirstUncontested(accountUuid, deviceId, candidates, 0, attempts)
+              .thenCompose(preKey -> {
+                if (preKey.isPresent() || candidates.size() < takePageSize) {
+                  return CompletableFuture.completedFuture(preKey);
+                }
+
+                return takeFromPage(accountUuid, deviceId, candidates.get(candidates.size() - 1).getLong("key_id"), attempts);
+              });
+        });
+  }
+
+  private CompletableFuture<Optional<PreKey>> claimFirstUncontested(final UUID accountUuid, final long deviceId,
+      final List<Row> candidates, final int index, final AtomicInteger attempts) {
+
+    if (index >= candidates.size()) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    final Row candidate = candidates.get(index);
+    final long keyId = candidate.getLong("key_id");
+
+    attempts.incrementAndGet();
+
+    return session.executeAsync(claim.bind(accountUuid, deviceId, keyId))
+        .toCompletableFuture()
+        .thenCompose(resultSet -> {
+          if (resultSet.wasApplied()) {
+            return CompletableFuture.completedFuture(Optional.of(new PreKey(keyId, candidate.getString("public_key"))));
+          }
+
+          return claimFirstUncontested(accountUuid, deviceId, candidates, index + 1, attempts);
+        });
+  }
+
+  private BoundStatement bindTakeQuery(final UUID accountUuid, final long deviceId, @Nullable final Long lastKeyId) {
+    return lastKeyId == null
+        ? selectCandidates.bind(accountUuid, deviceId, takePageSize)
+        : selectCandidatesAfter.bind(accountUuid, deviceId, lastKeyId, takePageSize);
+  }
+
+  private static void recordTakeAttempts(final int attempts, final boolean claimed) {
+    TAKE_ATTEMPTS_DISTRIBUTION.record(attempts);
+    CONTESTED_KEY_DISTRIBUTION.record(claimed ? attempts - 1 : attempts);
+  }
+
+  @Override
+  public Map<Long, PreKey> take(final Account account) {
+    return TAKE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
+      final Map<Long, PreKey> preKeysByDeviceId = new HashMap<>();
+
+      for (final Device device : account.getDevices()) {
+        take(account, device.getId()).ifPresent(preKey -> preKeysByDeviceId.put(device.getId(), preKey));
+      }
+
+      return preKeysByDeviceId;
+    });
+  }
+
+  @Override
+  public CompletableFuture<Map<Long, PreKey>> takeAsync(final Account account, final Collection<Long> deviceIds) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return PreKeyStore.super.takeAsync(account, deviceIds)
+        .whenComplete((ignored, throwable) -> sample.stop(TAKE_KEYS_FOR_ACCOUNT_TIMER));
+  }
+
+  @Override
+  public int getCount(final Account account, final long deviceId) {
+    return GET_KEY_COUNT_TIMER.record(() -> {
+      final Row row = session.execute(count.bind(account.getUuid(), deviceId)).one();
+      final int keyCount = row != null ? (int) row.getLong(0) : 0;
+
+      KEY_COUNT_DISTRIBUTION.record(keyCount);
+      return keyCount;
+    });
+  }
+
+  @Override
+  public void delete(final UUID accountUuid) {
+    DELETE_KEYS_FOR_ACCOUNT_TIMER.record(() -> session.execute(deleteForAccount.bind(accountUuid)));
+  }
+
+  @Override
+  public void delete(final UUID accountUuid, final long deviceId) {
+    DELETE_KEYS_FOR_DEVICE_TIMER.record(() -> session.execute(deleteForDevice.bind(accountUuid, deviceId)));
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScriptOutputType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
+
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.KeysUploadMode;
+import su.sres.shadowserver.entities.PreKey;
+import su.sres.shadowserver.redis.ClusterLuaScript;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps a count of each device's prekeys next to a {@link PreKeyStore}, so that
+ * a device's key count is read from a Redis hash rather than counted in the
+ * store. The count is set when keys are stored and decremented as keys are
+ * taken. Concurrent stores and takes can leave it off by a few keys, which
+ * {@link PreKeyCountReconciler} corrects; a count that is missing or has gone
+ * negative is recounted from the store when read.
+ * <p>
+ * With a {@link PreKeyPool}, keys are taken from the device's pool first, and
+ * the count includes the pooled keys.
+ */
+public class KeysManager implements PreKeyStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(KeysManager.class);
+
+  private static final String COUNTS_PREFIX = "prekey_counts::";
+
+  private static final Counter COUNT_HIT_COUNTER = Metrics.counter(name(KeysManager.class, "countRead"), "outcome", "hit");
+  private static final Counter COUNT_MISS_COUNTER = Metrics.counter(name(KeysManager.class, "countRead"), "outcome", "miss");
+
+  private final PreKeyStore keys;
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final KeysUploadMode uploadMode;
+  private final int maxKeysPerDevice;
+
+  @Nullable
+  private final PreKeyPool pool;
+
+  private final ClusterLuaScript setCountScript;
+
+  public KeysManager(final PreKeyStore keys, final FaultTolerantRedisCluster cacheCluster) {
+    this(keys, cacheCluster, KeysUploadMode.REPLACE, Integer.MAX_VALUE);
+  }
+
+  public KeysManager(final PreKeyStore keys, final FaultTolerantRedisCluster cacheCluster,
+      final KeysUploadMode uploadMode, final int maxKeysPerDevice) {
+    this(keys, cacheCluster, uploadMode, maxKeysPerDevice, null);
+  }
+
+  public KeysManager(final PreKeyStore keys, final FaultTolerantRedisCluster cacheCluster,
+      final KeysUploadMode uploadMode, final int maxKeysPerDevice, @Nullable final PreKeyPool pool) {
+    this.keys = keys;
+    this.cacheCluster = cacheCluster;
+    this.uploadMode = uploadMode;
+    this.maxKeysPerDevice = maxKeysPerDevice;
+    this.pool = pool;
+
+    try {
+      this.setCountScript = ClusterLuaScript.fromResource(cacheCluster, "lua/set_prekey_count.lua", ScriptOutputType.INTEGER);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void store(final Account account, final long deviceId, final List<PreKey> preKeys) {
+    keys.store(account, deviceId, preKeys);
+
+    if (pool != null) {
+      pool.clear(account.getUuid(), deviceId);
+    }
+
+    setCount(account.getUuid(), deviceId, (int) preKeys.stream().mapToLong(PreKey::getKeyId).distinct().count());
+  }
+
+  /**
+   * Stores a device's routine upload of new keys. When uploads append, only
+   * the new keys are written and the device's existing keys stay available
+   * meanwhile; the oldest are dropped once the device has more than the cap,
+   * which the maintained count shows without reading the keys.
+   */
+  public void refill(final Account account, final long deviceId, final List<PreKey> preKeys) {
+    if (uploadMode == KeysUploadMode.REPLACE) {
+      store(account, deviceId, preKeys);
+      return;
+    }
+
+    final Optional<Integer> maybeCount = getCachedCount(account.getUuid(), deviceId);
+    final int added;
+
+    try {
+      added = keys.append(account, deviceId, preKeys);
+    } catch (final RuntimeException e) {
+      // some of the keys may have been written, so the count is recounted when
+      // next read
+      deleteCount(account.getUuid(), deviceId);
+      throw e;
+    }
+
+    if (maybeCount.isPresent() && maybeCount.get() + added <= maxKeysPerDevice) {
+      incrementCount(account.getUuid(), deviceId, added);
+    } else {
+      setCount(account.getUuid(), deviceId,
+          keys.trim(account, deviceId, maxKeysPerDevice) + getPooledCount(account.getUuid(), deviceId));
+    }
+  }
+
+  @Override
+  public int append(final Account account, final long deviceId, final List<PreKey> preKeys) {
+    final int added = keys.append(account, deviceId, preKeys);
+
+    // the count may not have been set, so it is recounted when next read
+    // rather than incremented
+    deleteCount(account.getUuid(), deviceId);
+
+    return added;
+  }
+
+  @Override
+  public int trim(final Account account, final long deviceId, final int maxKeys) {
+    final int count = keys.trim(account, deviceId, maxKeys);
+    setCount(account.getUuid(), deviceId, count + getPooledCount(account.getUuid(), deviceId));
+
+    return count;
+  }
+
+  @Override
+  public Optional<PreKey> take(final Account account, final long deviceId) {
+    final Optional<PreKey> pooledKey = pollPool(account, deviceId);
+    final Optional<PreKey> preKey = pooledKey.isPresent() ? pooledKey : keys.take(account, deviceId);
+    preKey.ifPresent(ignored -> decrementCount(account.getUuid(), deviceId));
+
+    return preKey;
+  }
+
+  @Override
+  public CompletableFuture<Optional<PreKey>> takeAsync(final Account account, final long deviceId) {
+    final Optional<PreKey> pooledKey = pollPool(account, deviceId);
+
+    if (pooledKey.isPresent()) {
+      decrementCount(account.getUuid(), deviceId);
+      return CompletableFuture.completedFuture(pooledKey);
+    }
+
+    return keys.takeAsync(account, deviceId).thenApply(preKey -> {
+      preKey.ifPresent(ignored -> decrementCount(account.getUuid(), deviceId));
+      return preKey;
+    });
+  }
+
+  @Override
+  public Map<Long, PreKey> take(final Account account) {
+    final Map<Long, PreKey> preKeysByDeviceId = new HashMap<>();
+
+    for (final Device device : account.getDevices()) {
+      take(account, device.getId()).ifPresent(preKey -> preKeysByDeviceId.put(device.getId(), preKey));
+    }
+
+    return preKeysByDeviceId;
+  }
+
+  private Optional<PreKey> pollPool(final Account account, final long deviceId) {
+    return pool != null ? pool.poll(account, deviceId) : Optional.empty();
+  }
+
+  @Override
+  public int getCount(final Account account, final long deviceId) {
+    final Optional<Integer> maybeCount = getCachedCount(account.getUuid(), deviceId);
+
+    if (maybeCount.isPresent()) {
+      COUNT_HIT_COUNTER.increment();
+      return maybeCount.get();
+    }
+
+    COUNT_MISS_COUNTER.increment();
+
+    final int count = keys.getCount(account, deviceId) + getPooledCount(account.getUuid(), deviceId);
+    setCount(account.getUuid(), deviceId, count);
+
+    return count;
+  }
+
+  /**
+   * Counts the device's keys in the store and corrects the maintained count if
+   * it differs. The correction is a compare-and-set against the count read
+   * before counting, so that a store, refill or take racing with the
+   * reconciliation isn't overwritten with a stale count; such a count is left
+   * for the next reconciliation.
+   *
+   * @return whether the maintained count was missing or wrong and got corrected
+   */
+  public boolean reconcileCount(final Account account, final long deviceId) {
+    final String countsKey = getCountsKey(account.getUuid());
+    final String field = String.valueOf(deviceId);
+
+    try {
+      final String cachedCount = cacheCluster.withCluster(connection -> connection.sync().hget(countsKey, field));
+      final int count = keys.getCount(account, deviceId) + getPooledCount(account.getUuid(), deviceId);
+
+      if (String.valueOf(count).equals(cachedCount)) {
+        return false;
+      }
+
+      return (long) setCountScript.execute(List.of(countsKey),
+          List.of(field, cachedCount != null ? cachedCount : "", String.valueOf(count))) == 1;
+    } catch (final RedisException e) {
+      logger.warn("Failed to reconcile prekey count", e);
+      return false;
+    }
+  }
+
+  /**
+   * Deletes the account's keys, but not its devices' pools; use
+   * {@link #delete(UUID, Collection)} where the devices are known.
+   */
+  @Override
+  public void delete(final UUID accountUuid) {
+    keys.delete(accountUuid);
+    deleteCounts(accountUuid);
+  }
+
+  @Override
+  public void delete(final UUID accountUuid, final Collection<Long> deviceIds) {
+    keys.delete(accountUuid);
+
+    if (pool != null) {
+      pool.clear(accountUuid, deviceIds);
+    }
+
+    deleteCounts(accountUuid);
+  }
+
+  @Override
+  public void delete(final UUID accountUuid, final long deviceId) {
+    keys.delete(accountUuid, deviceId);
+
+    if (pool != null) {
+      pool.clear(accountUuid, deviceId);
+    }
+
+    deleteCount(accountUuid, deviceId);
+  }
+
+  private int getPooledCount(final UUID accountUuid, final long deviceId) {
+    return pool != null ? pool.size(accountUuid, deviceId) : 0;
+  }
+
+  private Optional<Integer> getCachedCount(final UUID accountUuid, final long deviceId) {
+    try {
+      final String count = cacheCluster.withCluster(connection ->
+          connection.sync().hget(getCountsKey(accountUuid), String.valueOf(deviceId)));
+
+      // a decrement of a count that was never set leaves it negative
+      return count != null && Integer.parseInt(count) >= 0 ? Optional.of(Integer.parseInt(count)) : Optional.empty();
+    } catch (final RedisException | NumberFormatException e) {
+      logger.warn("Failed to read prekey count", e);
+      return Optional.empty();
+    }
+  }
+
+  private void setCount(final UUID accountUuid, final long deviceId, final int count) {
+    try {
+      cacheCluster.useCluster(connection ->
+          connection.sync().hset(getCountsKey(accountUuid), String.valueOf(deviceId), String.valueOf(count)));
+    } catch (final RedisException e) {
+      logger.warn("Failed to set prekey count", e);
+    }
+  }
+
+  private void decrementCount(final UUID accountUuid, final long deviceId) {
+    incrementCount(accountUuid, deviceId, -1);
+  }
+
+  private void incrementCount(final UUID accountUuid, final long deviceId, final long amount) {
+    try {
+      cacheCluster.useCluster(connection ->
+          connection.sync().hincrby(getCountsKey(accountUuid), String.valueOf(deviceId), amount));
+    } catch (final RedisException e) {
+      logger.warn("Failed to update prekey count", e);
+    }
+  }
+
+  private void deleteCount(final UUID accountUuid, final long deviceId) {
+    try {
+      cacheCluster.useCluster(connection -> connection.sync().hdel(getCountsKey(accountUuid), String.valueOf(deviceId)));
+    } catch (final RedisException e) {
+      logger.warn("Failed to delete prekey count", e);
+    }
+  }
+
+  private void deleteCounts(final UUID accountUuid) {
+    try {
+      cacheCluster.useCluster(connection -> connection.sync().del(getCountsKey(accountUuid)));
+    } catch (final RedisException e) {
+      logger.warn("Failed to delete prekey counts", e);
+    }
+  }
+
+  private static String getCountsKey(final UUID accountUuid) {
+    return COUNTS_PREFIX + accountUuid;
+  }
+}
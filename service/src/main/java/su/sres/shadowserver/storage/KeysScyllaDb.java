@@ -9,11 +9,14 @@ import com.google.common.annotations.VisibleForTesting;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
@@ -25,48 +28,89 @@ import su.sres.shadowserver.util.AttributeValues;
 import su.sres.shadowserver.util.UUIDUtil;
 
 import java.nio.ByteBuffer;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-public class KeysScyllaDb extends AbstractScyllaDbStore {
+public class KeysScyllaDb extends AbstractScyllaDbStore implements PreKeyStore {
 
   private final String tableName;
+  private final int takePageSize;
+  private final Clock clock;
+
+  // keys read at a time when claiming one; a page is read again only when
+  // concurrent claims have taken every key on the previous one
+  public static final int DEFAULT_TAKE_PAGE_SIZE = 4;
 
   static final String KEY_ACCOUNT_UUID = "U";
   static final String KEY_DEVICE_ID_KEY_ID = "DK";
   static final String KEY_PUBLIC_KEY = "P";
+  // when the key was uploaded; key IDs wrap around, so they don't tell which
+  // keys are the oldest
+  static final String KEY_UPLOADED = "T";
 
   private static final Timer STORE_KEYS_TIMER = Metrics.timer(name(KeysScyllaDb.class, "storeKeys"));
+  private static final Timer APPEND_KEYS_TIMER = Metrics.timer(name(KeysScyllaDb.class, "appendKeys"));
+  private static final Timer TRIM_KEYS_TIMER = Metrics.timer(name(KeysScyllaDb.class, "trimKeys"));
   private static final Timer TAKE_KEY_FOR_DEVICE_TIMER = Metrics.timer(name(KeysScyllaDb.class, "takeKeyForDevice"));
   private static final Timer TAKE_KEYS_FOR_ACCOUNT_TIMER = Metrics.timer(name(KeysScyllaDb.class, "takeKeyForAccount"));
   private static final Timer GET_KEY_COUNT_TIMER = Metrics.timer(name(KeysScyllaDb.class, "getKeyCount"));
   private static final Timer DELETE_KEYS_FOR_DEVICE_TIMER = Metrics.timer(name(KeysScyllaDb.class, "deleteKeysForDevice"));
   private static final Timer DELETE_KEYS_FOR_ACCOUNT_TIMER = Metrics.timer(name(KeysScyllaDb.class, "deleteKeysForAccount"));
   private static final DistributionSummary CONTESTED_KEY_DISTRIBUTION = Metrics.summary(name(KeysScyllaDb.class, "contestedKeys"));
+  private static final DistributionSummary TAKE_ATTEMPTS_DISTRIBUTION = Metrics.summary(name(KeysScyllaDb.class, "takeAttempts"));
   private static final DistributionSummary KEY_COUNT_DISTRIBUTION        = Metrics.summary(name(KeysScyllaDb.class, "keyCount"));
 
   public KeysScyllaDb(final DynamoDbClient scyllaDB, final String tableName) {
-    super(scyllaDB);
+    this(scyllaDB, null, tableName);
+  }
+
+  public KeysScyllaDb(final DynamoDbClient scyllaDB, final DynamoDbAsyncClient scyllaDbAsync, final String tableName) {
+    this(scyllaDB, scyllaDbAsync, tableName, DEFAULT_TAKE_PAGE_SIZE);
+  }
+
+  public KeysScyllaDb(final DynamoDbClient scyllaDB, final DynamoDbAsyncClient scyllaDbAsync, final String tableName,
+      final int takePageSize) {
+    this(scyllaDB, scyllaDbAsync, tableName, takePageSize, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  KeysScyllaDb(final DynamoDbClient scyllaDB, final DynamoDbAsyncClient scyllaDbAsync, final String tableName,
+      final int takePageSize, final Clock clock) {
+    super(scyllaDB, scyllaDbAsync);
     this.tableName = tableName;
+    this.takePageSize = takePageSize;
+    this.clock = clock;
   }
 
+  @Override
   public void store(final Account account, final long deviceId, final List<PreKey> keys) {
     STORE_KEYS_TIMER.record(() -> {
       delete(account.getUuid(), deviceId);
 
+      final long uploaded = clock.millis();
+
       writeInBatches(keys, batch -> {
         List<WriteRequest> items = new ArrayList<>();
         for (final PreKey preKey : batch) {
           items.add(WriteRequest.builder()
               .putRequest(PutRequest.builder()
-                  .item(getItemFromPreKey(account.getUuid(), deviceId, preKey))
+                  .item(getItemFromPreKey(account.getUuid(), deviceId, preKey, uploaded))
                   .build())
               .build());
         }
@@ -75,47 +119,236 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
-  public Optional<PreKey> take(final Account account, final long deviceId) {
-    return TAKE_KEY_FOR_DEVICE_TIMER.record(() -> {
-      final AttributeValue partitionKey = getPartitionKey(account.getUuid());
-      QueryRequest queryRequest = QueryRequest.builder()
+  /**
+   * Writes each key with its own put, all in flight at once when there is an
+   * asynchronous client. A key with the ID of one the device already has
+   * replaces it, as the device no longer has the old one; the puts return the
+   * keys they replace, so that only the new IDs are counted.
+   */
+  @Override
+  public int append(final Account account, final long deviceId, final List<PreKey> keys) {
+    return APPEND_KEYS_TIMER.record(() -> {
+      final long uploaded = clock.millis();
+
+      if (asyncDb() == null) {
+        int added = 0;
+
+        for (final PreKey preKey : keys) {
+          if (db().putItem(buildAppendPut(account.getUuid(), deviceId, preKey, uploaded)).attributes().isEmpty()) {
+            added++;
+          }
+        }
+
+        return added;
+      }
+
+      final AtomicInteger added = new AtomicInteger();
+
+      CompletableFuture.allOf(keys.stream()
+          .map(preKey -> executeAsync(() -> asyncDb().putItem(buildAppendPut(account.getUuid(), deviceId, preKey, uploaded)))
+              .thenAccept(response -> {
+                if (response.attributes().isEmpty()) {
+                  added.incrementAndGet();
+                }
+              }))
+          .toArray(CompletableFuture[]::new))
+          .join();
+
+      return added.get();
+    });
+  }
+
+  private PutItemRequest buildAppendPut(final UUID accountUuid, final long deviceId, final PreKey preKey,
+      final long uploaded) {
+
+    return PutItemRequest.builder()
+        .tableName(tableName)
+        .item(getItemFromPreKey(accountUuid, deviceId, preKey, uploaded))
+        .returnValues(ReturnValue.ALL_OLD)
+        .build();
+  }
+
+  /**
+   * Reads the upload times of all the device's keys and deletes the keys past
+   * the newest {@code maxKeys}. Keys stored before upload times were recorded
+   * count as the oldest.
+   */
+  @Override
+  public int trim(final Account account, final long deviceId, final int maxKeys) {
+    return TRIM_KEYS_TIMER.record(() -> {
+      final QueryRequest queryRequest = QueryRequest.builder()
           .tableName(tableName)
           .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
-          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID, "#uploaded", KEY_UPLOADED))
           .expressionAttributeValues(Map.of(
-              ":uuid", partitionKey,
+              ":uuid", getPartitionKey(account.getUuid()),
               ":sortprefix", getSortKeyPrefix(deviceId)))
-          .projectionExpression(KEY_DEVICE_ID_KEY_ID)
-          .consistentRead(false)
-          .build(); 
+          .projectionExpression("#sort, #uploaded")
+          .consistentRead(true)
+          .build();
+
+      final List<Map<String, AttributeValue>> items = new ArrayList<>();
+      db().queryPaginator(queryRequest).items().forEach(items::add);
+
+      if (items.size() <= maxKeys) {
+        return items.size();
+      }
+
+      items.sort(Comparator.comparingLong(
+          (Map<String, AttributeValue> item) -> AttributeValues.getLong(item, KEY_UPLOADED, 0L)).reversed());
+
+      deleteItems(account.getUuid(), items.subList(maxKeys, items.size()));
 
-      int contestedKeys = 0;
+      return maxKeys;
+    });
+  }
+
+  /**
+   * Claims one of the device's keys. Keys are read a small page at a time and
+   * claimed with a conditional delete, so that a key is handed out only once;
+   * when concurrent claims have taken every key on a page, the next page is read.
+   */
+  @Override
+  public Optional<PreKey> take(final Account account, final long deviceId) {
+    return TAKE_KEY_FOR_DEVICE_TIMER.record(() -> {
+      final AttributeValue partitionKey = getPartitionKey(account.getUuid());
+      int attempts = 0;
+      boolean claimed = false;
 
       try {
-        QueryResponse response = db().query(queryRequest);
-        for (Map<String, AttributeValue> candidate : response.items()) {
-          DeleteItemRequest deleteItemRequest = DeleteItemRequest.builder()
-              .tableName(tableName)
-              .key(Map.of(
-                  KEY_ACCOUNT_UUID, partitionKey,
-                  KEY_DEVICE_ID_KEY_ID, candidate.get(KEY_DEVICE_ID_KEY_ID)))
-              .returnValues(ReturnValue.ALL_OLD)
-              .build();
-          DeleteItemResponse deleteItemResponse = db().deleteItem(deleteItemRequest);
-          if (deleteItemResponse.hasAttributes()) {
-            return Optional.of(getPreKeyFromItem(deleteItemResponse.attributes()));
+        Map<String, AttributeValue> exclusiveStartKey = null;
+
+        do {
+          final QueryResponse page = db().query(buildTakeQuery(account.getUuid(), deviceId, exclusiveStartKey));
+
+          for (Map<String, AttributeValue> candidate : page.items()) {
+            attempts++;
+
+            try {
+              final DeleteItemResponse deleteItemResponse = db().deleteItem(buildTakeDelete(partitionKey, candidate));
+              claimed = true;
+
+              return Optional.of(getPreKeyFromItem(deleteItemResponse.attributes()));
+            } catch (final ConditionalCheckFailedException e) {
+              // claimed by someone else since the page was read
+            }
           }
 
-          contestedKeys++;
-        }
+          exclusiveStartKey = getNextPageStartKey(page);
+        } while (exclusiveStartKey != null);
 
         return Optional.empty();
       } finally {
-        CONTESTED_KEY_DISTRIBUTION.record(contestedKeys);
+        recordTakeAttempts(attempts, claimed);
       }
     });
   }
 
+  /**
+   * Like {@link #take(Account, long)}, but without holding the calling thread
+   * while the key is claimed. Without an asynchronous client, this falls back to
+   * a blocking claim.
+   */
+  @Override
+  public CompletableFuture<Optional<PreKey>> takeAsync(final Account account, final long deviceId) {
+    if (asyncDb() == null) {
+      return CompletableFuture.completedFuture(take(account, deviceId));
+    }
+
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+    final AttributeValue partitionKey = getPartitionKey(account.getUuid());
+    final AtomicInteger attempts = new AtomicInteger();
+
+    return takeFromPage(account.getUuid(), deviceId, partitionKey, null, attempts)
+        .whenComplete((preKey, throwable) -> {
+          recordTakeAttempts(attempts.get(), preKey != null && preKey.isPresent());
+          sample.stop(TAKE_KEY_FOR_DEVICE_TIMER);
+        });
+  }
+
+  private CompletableFuture<Optional<PreKey>> takeFromPage(final UUID accountUuid, final long deviceId,
+      final AttributeValue partitionKey, final Map<String, AttributeValue> exclusiveStartKey, final AtomicInteger attempts) {
+
+    return executeAsync(() -> asyncDb().query(buildTakeQuery(accountUuid, deviceId, exclusiveStartKey)))
+        .thenCompose(page -> takeFirstUncontested(partitionKey, page.items(), 0, attempts)
+            .thenCompose(preKey -> {
+              final Map<String, AttributeValue> nextPageStartKey = getNextPageStartKey(page);
+
+              if (preKey.isPresent() || nextPageStartKey == null) {
+                return CompletableFuture.completedFuture(preKey);
+              }
+
+              return takeFromPage(accountUuid, deviceId, partitionKey, nextPageStartKey, attempts);
+            }));
+  }
+
+  // candidates are claimed one at a time, in order, as the blocking take does
+  private CompletableFuture<Optional<PreKey>> takeFirstUncontested(final AttributeValue partitionKey,
+      final List<Map<String, AttributeValue>> candidates, final int index, final AtomicInteger attempts) {
+
+    if (index >= candidates.size()) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    attempts.incrementAndGet();
+
+    return executeAsync(() -> asyncDb().deleteItem(buildTakeDelete(partitionKey, candidates.get(index))))
+        .handle((deleteItemResponse, throwable) -> {
+          if (throwable == null) {
+            return CompletableFuture.completedFuture(Optional.of(getPreKeyFromItem(deleteItemResponse.attributes())));
+          }
+
+          final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+
+          if (cause instanceof ConditionalCheckFailedException) {
+            return takeFirstUncontested(partitionKey, candidates, index + 1, attempts);
+          }
+
+          return CompletableFuture.<Optional<PreKey>>failedFuture(cause);
+        })
+        .thenCompose(Function.identity());
+  }
+
+  private QueryRequest buildTakeQuery(final UUID accountUuid, final long deviceId,
+      @Nullable final Map<String, AttributeValue> exclusiveStartKey) {
+
+    return QueryRequest.builder()
+        .tableName(tableName)
+        .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+        .expressionAttributeValues(Map.of(
+            ":uuid", getPartitionKey(accountUuid),
+            ":sortprefix", getSortKeyPrefix(deviceId)))
+        .projectionExpression(KEY_DEVICE_ID_KEY_ID)
+        .limit(takePageSize)
+        .exclusiveStartKey(exclusiveStartKey)
+        .consistentRead(false)
+        .build();
+  }
+
+  private DeleteItemRequest buildTakeDelete(final AttributeValue partitionKey, final Map<String, AttributeValue> candidate) {
+    return DeleteItemRequest.builder()
+        .tableName(tableName)
+        .key(Map.of(
+            KEY_ACCOUNT_UUID, partitionKey,
+            KEY_DEVICE_ID_KEY_ID, candidate.get(KEY_DEVICE_ID_KEY_ID)))
+        .conditionExpression("attribute_exists(#uuid)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID))
+        .returnValues(ReturnValue.ALL_OLD)
+        .build();
+  }
+
+  @Nullable
+  private static Map<String, AttributeValue> getNextPageStartKey(final QueryResponse page) {
+    return page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty() ? page.lastEvaluatedKey() : null;
+  }
+
+  private static void recordTakeAttempts(final int attempts, final boolean claimed) {
+    TAKE_ATTEMPTS_DISTRIBUTION.record(attempts);
+    CONTESTED_KEY_DISTRIBUTION.record(claimed ? attempts - 1 : attempts);
+  }
+
+  @Override
   public Map<Long, PreKey> take(final Account account) {
     return TAKE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
       final Map<Long, PreKey> preKeysByDeviceId = new HashMap<>();
@@ -128,6 +361,15 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
+  public CompletableFuture<Map<Long, PreKey>> takeAsync(final Account account, final Collection<Long> deviceIds) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return PreKeyStore.super.takeAsync(account, deviceIds)
+        .whenComplete((ignored, throwable) -> sample.stop(TAKE_KEYS_FOR_ACCOUNT_TIMER));
+  }
+
+  @Override
   public int getCount(final Account account, final long deviceId) {
     return GET_KEY_COUNT_TIMER.record(() -> {
       QueryRequest queryRequest = QueryRequest.builder()
@@ -155,6 +397,7 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
   public void delete(final UUID accountUuid) {
     DELETE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
       final QueryRequest queryRequest = QueryRequest.builder()
@@ -171,6 +414,7 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
   public void delete(final UUID accountUuid, final long deviceId) {
     DELETE_KEYS_FOR_DEVICE_TIMER.record(() -> {
       final QueryRequest queryRequest = QueryRequest.builder()
@@ -189,9 +433,13 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
   }
 
   private void deleteItemsForAccountMatchingQuery(final UUID accountUuid, final QueryRequest querySpec) {
+    deleteItems(accountUuid, db().query(querySpec).items());
+  }
+
+  private void deleteItems(final UUID accountUuid, final List<Map<String, AttributeValue>> items) {
     final AttributeValue partitionKey = getPartitionKey(accountUuid);
 
-    writeInBatches(db().query(querySpec).items(), batch -> {
+    writeInBatches(items, batch -> {
       List<WriteRequest> deletes = new ArrayList<>();
       for (final Map<String, AttributeValue> item : batch) {
         deletes.add(WriteRequest.builder()
@@ -224,11 +472,14 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     return AttributeValues.fromByteBuffer(byteBuffer.flip());
   }
 
-  private Map<String, AttributeValue> getItemFromPreKey(final UUID accountUuid, final long deviceId, final PreKey preKey) {
+  private Map<String, AttributeValue> getItemFromPreKey(final UUID accountUuid, final long deviceId, final PreKey preKey,
+      final long uploaded) {
+
     return Map.of(
         KEY_ACCOUNT_UUID, getPartitionKey(accountUuid),
         KEY_DEVICE_ID_KEY_ID, getSortKey(deviceId, preKey.getKeyId()),
-        KEY_PUBLIC_KEY, AttributeValues.fromString(preKey.getPublicKey()));
+        KEY_PUBLIC_KEY, AttributeValues.fromString(preKey.getPublicKey()),
+        KEY_UPLOADED, AttributeValues.fromLong(uploaded));
   }
 
   private PreKey getPreKeyFromItem(Map<String, AttributeValue> item) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import su.sres.shadowserver.configuration.AccountCacheConfiguration;
+import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.Constants;
+
+/**
+ * An in-process cache of accounts in front of the cache cluster, so that
+ * authenticating a request usually costs no round trips at all. Whenever an
+ * account changes, {@link AccountsManager} publishes its UUID to
+ * {@link #INVALIDATION_CHANNEL}, and every server subscribed to it drops its
+ * copy. Entries also expire after a while, in case an invalidation gets lost.
+ * <p>
+ * Cached accounts are shared, so they must not be modified; {@link AccountsManager}
+ * hands out copies.
+ */
+public class LocalAccountCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
+
+  static final String INVALIDATION_CHANNEL = "account_invalidation";
+
+  private final Cache<UUID, Account> accounts;
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+
+  // counts invalidations, so that a load overlapping one doesn't leave a stale
+  // account behind
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  private final Meter hitMeter;
+  private final Meter missMeter;
+  private final Meter invalidationMeter;
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalAccountCache.class);
+
+  public LocalAccountCache(final FaultTolerantRedisCluster cacheCluster, final AccountCacheConfiguration configuration) {
+    this.accounts = CacheBuilder.newBuilder()
+        .maximumSize(configuration.getMaxSize())
+        .expireAfterWrite(configuration.getTtl().toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    this.pubSubConnection = cacheCluster.createPubSubConnection();
+
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+    metricRegistry.gauge(name(getClass(), "size"), () -> accounts::size);
+
+    this.hitMeter = metricRegistry.meter(name(getClass(), "hit"));
+    this.missMeter = metricRegistry.meter(name(getClass(), "miss"));
+    this.invalidationMeter = metricRegistry.meter(name(getClass(), "invalidation"));
+  }
+
+  @Override
+  public void start() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.addListener(this);
+
+      // invalidations published while the topology was changing may have been
+      // missed, so nothing cached before can be trusted
+      connection.getResources().eventBus().get()
+          .filter(event -> event instanceof ClusterTopologyChangedEvent)
+          .subscribe(event -> {
+            accounts.invalidateAll();
+            subscribe();
+          });
+    });
+
+    subscribe();
+  }
+
+  @Override
+  public void stop() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.removeListener(this);
+      connection.sync().unsubscribe(INVALIDATION_CHANNEL);
+    });
+
+    accounts.invalidateAll();
+  }
+
+  private void subscribe() {
+    // messages published anywhere in a cluster reach subscribers on every node
+    pubSubConnection.usePubSubConnection(connection -> connection.sync().subscribe(INVALIDATION_CHANNEL));
+  }
+
+  /**
+   * Gets an account from the cache, or loads and caches it if it's not there.
+   */
+  Optional<Account> get(final UUID uuid, final Function<UUID, Optional<Account>> loader) {
+    final Account cached = accounts.getIfPresent(uuid);
+
+    if (cached != null) {
+      hitMeter.mark();
+      return Optional.of(cached);
+    }
+
+    missMeter.mark();
+
+    final long invalidationsBeforeLoad = invalidationCount.get();
+    final Optional<Account> loaded = loader.apply(uuid);
+
+    loaded.ifPresent(account -> {
+      accounts.put(uuid, account);
+
+      // the invalidation may have been about this very account and have come
+      // before the account got cached
+      if (invalidationCount.get() != invalidationsBeforeLoad) {
+        accounts.invalidate(uuid);
+      }
+    });
+
+    return loaded;
+  }
+
+  /**
+   * Gets a number of accounts from the cache, loading and caching the missing
+   * ones with a single call to the loader.
+   *
+   * @return the accounts found, by UUID
+   */
+  Map<UUID, Account> getAll(final Collection<UUID> uuids, final Function<Collection<UUID>, Map<UUID, Account>> loader) {
+    final Map<UUID, Account> found = new HashMap<>(accounts.getAllPresent(uuids));
+
+    final Set<UUID> misses = uuids.stream()
+        .filter(uuid -> !found.containsKey(uuid))
+        .collect(Collectors.toSet());
+
+    hitMeter.mark(found.size());
+    missMeter.mark(misses.size());
+
+    if (misses.isEmpty()) {
+      return found;
+    }
+
+    final long invalidationsBeforeLoad = invalidationCount.get();
+    final Map<UUID, Account> loaded = loader.apply(misses);
+
+    accounts.putAll(loaded);
+
+    // any of the invalidations may have been about one of these accounts
+    if (invalidationCount.get() != invalidationsBeforeLoad) {
+      accounts.invalidateAll(loaded.keySet());
+    }
+
+    found.putAll(loaded);
+
+    return found;
+  }
+
+  void invalidate(final UUID uuid) {
+    invalidationCount.incrementAndGet();
+    accounts.invalidate(uuid);
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String channel, final String message) {
+    if (INVALIDATION_CHANNEL.equals(channel)) {
+      try {
+        invalidate(UUID.fromString(message));
+        invalidationMeter.mark();
+      } catch (final IllegalArgumentException e) {
+        logger.warn("Unexpected account invalidation message: {}", message);
+      }
+    }
+  }
+}
@@ -5,15 +5,36 @@
  */
 package su.sres.shadowserver.storage;
 
+import java.util.concurrent.CompletableFuture;
+
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+
 /**
  * A message availability listener is notified when new messages are available
  * for a specific device for a specific account. Availability listeners are also
  * notified when messages are moved from the message cache to long-term storage
- * as an optimization hint to implementing classes.
+ * as an optimization hint to implementing classes. Listeners able to deliver
+ * messages themselves may also be handed messages directly, bypassing the
+ * message cache.
  */
 public interface MessageAvailabilityListener {
 
   void handleNewMessagesAvailable();
  
   void handleMessagesPersisted();
+
+  /**
+   * Delivers a message without it ever being queued.
+   *
+   * @return a future that yields {@code true} once the client has acknowledged
+   *         the message, or {@code false} if it wasn't delivered; it must
+   *         complete in bounded time, failing with a {@link java.util.concurrent.TimeoutException}
+   *         if the client doesn't respond. Anything but {@code true}, including
+   *         an exceptional completion, has the message queued, except for an
+   *         ephemeral message timing out, which would be too old to be read
+   *         from the queue by then
+   */
+  default CompletableFuture<Boolean> handleLocalMessage(final Envelope message) {
+    return CompletableFuture.completedFuture(false);
+  }
 }
@@ -11,6 +11,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.dropwizard.lifecycle.Managed;
 import org.slf4j.Logger;
@@ -23,9 +24,15 @@ import su.sres.shadowserver.util.Util;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -38,30 +45,56 @@ public class MessagePersister implements Managed {
   private final Duration persistDelay;
 
   private static final String DISABLE_PERSISTER_FEATURE_FLAG = "DISABLE_MESSAGE_PERSISTER";
-  private final Thread[] workerThreads = new Thread[WORKER_THREAD_COUNT];
+  private final Thread[] workerThreads;
   private volatile boolean running;
 
+  private final int queuesInFlightPerWorker;
+
+  // persists queues on behalf of the workers; null if each worker persists one
+  // queue at a time on its own thread
+  private final ExecutorService queuePersistExecutor;
+
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer getQueuesTimer = metricRegistry.timer(name(MessagePersister.class, "getQueues"));
   private final Timer persistQueueTimer = metricRegistry.timer(name(MessagePersister.class, "persistQueue"));  
   private final Meter persistQueueExceptionMeter = metricRegistry.meter(name(MessagePersister.class, "persistQueueException"));
   private final Histogram queueCountHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
   private final Histogram queueSizeHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
+  private final Meter persistedMessagesMeter = metricRegistry.meter(name(MessagePersister.class, "persistedMessages"));
+  private final Histogram slotBacklogHistogram = metricRegistry.histogram(name(MessagePersister.class, "slotBacklog"));
 
   static final int QUEUE_BATCH_LIMIT = 100;
   static final int MESSAGE_BATCH_LIMIT = 100;
   
   private static final long EXCEPTION_PAUSE_MILLIS = Duration.ofSeconds(3).toMillis();
 
-  private static final int WORKER_THREAD_COUNT = 4;
+  static final int DEFAULT_WORKER_THREAD_COUNT = 4;
+  static final int DEFAULT_QUEUES_IN_FLIGHT_PER_WORKER = 1;
 
   private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
 
   public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfiguration dynamicConfig, final Duration persistDelay) {
+    this(messagesCache, messagesManager, accountsManager, dynamicConfig, persistDelay, DEFAULT_WORKER_THREAD_COUNT, DEFAULT_QUEUES_IN_FLIGHT_PER_WORKER);
+  }
+
+  public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfiguration dynamicConfig, final Duration persistDelay,
+      final int workerThreadCount, final int queuesInFlightPerWorker) {
+
+    if (workerThreadCount < 1 || queuesInFlightPerWorker < 1) {
+      throw new IllegalArgumentException("Worker thread count and queues in flight per worker must both be positive");
+    }
+
     this.messagesCache = messagesCache;
     this.messagesManager = messagesManager;
     this.accountsManager = accountsManager;
     this.persistDelay = persistDelay;
+    this.workerThreads = new Thread[workerThreadCount];
+    this.queuesInFlightPerWorker = queuesInFlightPerWorker;
+    this.queuePersistExecutor = queuesInFlightPerWorker > 1
+        ? Executors.newFixedThreadPool(workerThreadCount * queuesInFlightPerWorker,
+            new ThreadFactoryBuilder().setNameFormat("MessagePersisterQueue-%d").setDaemon(true).build())
+        : null;
+
     for (int i = 0; i < workerThreads.length; i++) {
       workerThreads[i] = new Thread(() -> {
         while (running) {
@@ -109,33 +142,39 @@ public class MessagePersister implements Managed {
         logger.warn("Interrupted while waiting for worker thread to complete current operation");
       }
     }
+
+    if (queuePersistExecutor != null) {
+      queuePersistExecutor.shutdown();
+
+      try {
+        queuePersistExecutor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (final InterruptedException e) {
+        logger.warn("Interrupted while waiting for queues to finish persisting");
+      }
+    }
   }
 
   @VisibleForTesting
   int persistNextQueues(final Instant currentTime) {
     final int slot = messagesCache.getNextSlotToPersist();
+    final Instant maxTime = currentTime.minus(persistDelay);
+
+    slotBacklogHistogram.update(messagesCache.getPersistBacklogSize(slot, maxTime));
 
     List<String> queuesToPersist;
     int queuesPersisted = 0;
 
     do {
       try (final Timer.Context ignored = getQueuesTimer.time()) {
-        queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
+        queuesToPersist = messagesCache.getQueuesToPersist(slot, maxTime, QUEUE_BATCH_LIMIT);
       }
 
-      for (final String queue : queuesToPersist) {
-        final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
-        final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
-
-        try {
-          persistQueue(accountUuid, deviceId);
-        } catch (final Exception e) {
-          persistQueueExceptionMeter.mark();
-          logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
-          messagesCache.addQueueToPersist(accountUuid, deviceId);
-          
-          Util.sleep(EXCEPTION_PAUSE_MILLIS);
+      if (queuePersistExecutor == null) {
+        for (final String queue : queuesToPersist) {
+          persistQueueOrScheduleRetry(queue);
         }
+      } else {
+        persistQueuesConcurrently(queuesToPersist);
       }
 
       queuesPersisted += queuesToPersist.size();
@@ -144,6 +183,39 @@ public class MessagePersister implements Managed {
     return queuesPersisted;
   }
 
+  /**
+   * Persists the given queues with up to {@link #queuesInFlightPerWorker} of them
+   * in flight at once, and returns when all of them are done.
+   */
+  private void persistQueuesConcurrently(final List<String> queues) {
+    final Semaphore queuesInFlight = new Semaphore(queuesInFlightPerWorker);
+    final List<CompletableFuture<Void>> futures = new ArrayList<>(queues.size());
+
+    for (final String queue : queues) {
+      queuesInFlight.acquireUninterruptibly();
+
+      futures.add(CompletableFuture.runAsync(() -> persistQueueOrScheduleRetry(queue), queuePersistExecutor)
+          .whenComplete((ignored, throwable) -> queuesInFlight.release()));
+    }
+
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+  }
+
+  private void persistQueueOrScheduleRetry(final String queue) {
+    final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
+    final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
+
+    try {
+      persistQueue(accountUuid, deviceId);
+    } catch (final Exception e) {
+      persistQueueExceptionMeter.mark();
+      logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
+      messagesCache.addQueueToPersist(accountUuid, deviceId);
+
+      Util.sleep(EXCEPTION_PAUSE_MILLIS);
+    }
+  }
+
   @VisibleForTesting
   void persistQueue(final UUID accountUuid, final long deviceId) {
 
@@ -166,6 +238,7 @@ public class MessagePersister implements Managed {
 
           messagesManager.persistMessages(accountUuid, deviceId, messages);
           messageCount += messages.size();
+          persistedMessagesMeter.mark(messages.size());
 
         } while (!messages.isEmpty());
 
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+/**
+ * Durable storage for messages persisted from the message cache. Messages are
+ * kept per destination account and read back per device, oldest first.
+ */
+public interface MessageStore {
+
+  void store(List<MessageProtos.Envelope> messages, UUID destinationAccountUuid, long destinationDeviceId);
+
+  List<OutgoingMessageEntity> load(UUID destinationAccountUuid, long destinationDeviceId, int requestedNumberOfMessagesToFetch);
+
+  CompletableFuture<List<OutgoingMessageEntity>> loadAsync(UUID destinationAccountUuid, long destinationDeviceId, int requestedNumberOfMessagesToFetch);
+
+  Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(UUID destinationAccountUuid, UUID messageUuid);
+
+  void deleteMessages(UUID destinationAccountUuid, long destinationDeviceId, Map<UUID, Long> serverTimestampsByGuid);
+
+  void deleteAllMessagesForAccount(UUID destinationAccountUuid);
+
+  void deleteAllMessagesForDevice(UUID destinationAccountUuid, long destinationDeviceId);
+}
@@ -6,9 +6,12 @@
 package su.sres.shadowserver.storage;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.Range;
 import io.lettuce.core.ScoredValue;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.ZAddArgs;
@@ -27,6 +30,9 @@ import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.EnvelopeCodec;
+import su.sres.shadowserver.util.EnvelopeUtil;
+import su.sres.shadowserver.util.Pair;
 import su.sres.shadowserver.util.RedisClusterUtil;
 
 import java.io.IOException;
@@ -34,6 +40,7 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,6 +52,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -59,11 +67,21 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private final ClusterLuaScript getItemsScript;
   private final ClusterLuaScript removeQueueScript;
   private final ClusterLuaScript getQueuesToPersistScript;
+  private final ClusterLuaScript unlockQueueScript;
+  private final ClusterLuaScript clearQueueListenerScript;
+
+  // if set, devices' queues are marked as listened to by this server, and the
+  // scripts touching those queues notify it on its own channel instead of each
+  // queue needing keyspace notification subscriptions of its own
+  private final boolean serverChannelNotifications;
+  private final EnvelopeCodec envelopeCodec;
+  private final String serverId = UUID.randomUUID().toString();
 
   private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new HashMap<>();
   private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new IdentityHashMap<>();
 
   private final Timer insertTimer = Metrics.timer(name(MessagesCache.class, "insert"));
+  private final Timer insertBatchTimer = Metrics.timer(name(MessagesCache.class, "insertBatch"));
   private final Timer getMessagesTimer = Metrics.timer(name(MessagesCache.class, "get"));
   private final Timer getQueuesToPersistTimer = Metrics.timer(name(MessagesCache.class, "getQueuesToPersist"));
   private final Timer clearQueueTimer = Metrics.timer(name(MessagesCache.class, "clear"));
@@ -71,6 +89,8 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private final Counter newMessageNotificationCounter = Metrics.counter(name(MessagesCache.class, "newMessageNotification"));
   private final Counter queuePersistedNotificationCounter = Metrics.counter(
       name(MessagesCache.class, "queuePersisted"));
+  private final Counter serverChannelMessageCounter = Metrics.counter(
+      name(MessagesCache.class, "serverChannelMessage"));
   private final Counter staleEphemeralMessagesCounter = Metrics.counter(
       name(MessagesCache.class, "staleEphemeralMessages"));
 
@@ -80,6 +100,12 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private static final String QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue::";
   private static final String PERSISTING_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_persisting::";
 
+  private static final String SERVER_CHANNEL_PREFIX = "message_availability::";
+  private static final String NEW_MESSAGE_NOTIFICATION_PREFIX = "new:";
+  private static final String PERSISTED_NOTIFICATION_PREFIX = "persisted:";
+
+  private static final long QUEUE_LISTENER_TTL_SECONDS = Duration.ofDays(90).toSeconds();
+
   private static final Duration MAX_EPHEMERAL_MESSAGE_DELAY = Duration.ofSeconds(10);
 
   private static final String REMOVE_TIMER_NAME = name(MessagesCache.class, "remove");
@@ -90,6 +116,20 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private static final Logger logger = LoggerFactory.getLogger(MessagesCache.class);
 
   public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService) throws IOException {
+    this(insertCluster, readDeleteCluster, notificationExecutorService, false);
+  }
+
+  public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService,
+      final boolean serverChannelNotifications) throws IOException {
+    this(insertCluster, readDeleteCluster, notificationExecutorService, serverChannelNotifications, EnvelopeCodec.UNCOMPRESSED);
+  }
+
+  /**
+   * @param envelopeCodec the codec queued envelopes are written with; envelopes
+   *                      written with any codec are read regardless
+   */
+  public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService,
+      final boolean serverChannelNotifications, final EnvelopeCodec envelopeCodec) throws IOException {
 
     this.readDeleteCluster = readDeleteCluster;
     this.pubSubConnection = readDeleteCluster.createPubSubConnection();
@@ -101,6 +141,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     this.getItemsScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_items.lua", ScriptOutputType.MULTI);
     this.removeQueueScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_queue.lua", ScriptOutputType.STATUS);
     this.getQueuesToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_queues_to_persist.lua", ScriptOutputType.MULTI);
+    this.unlockQueueScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/unlock_queue_for_persistence.lua", ScriptOutputType.STATUS);
+    this.clearQueueListenerScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/clear_queue_listener.lua", ScriptOutputType.INTEGER);
+    this.serverChannelNotifications = serverChannelNotifications;
+    this.envelopeCodec = envelopeCodec;
   }
 
   @Override
@@ -112,14 +156,29 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
           .filter(event -> event instanceof ClusterTopologyChangedEvent)
           .subscribe(event -> resubscribeAll());
     });
+
+    if (serverChannelNotifications) {
+      subscribeForServerChannel();
+    }
   }
 
   @Override
   public void stop() {
+    if (serverChannelNotifications) {
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().unsubscribe(getServerChannel(serverId)));
+    }
+
     pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().unsubscribe());
   }
 
   private void resubscribeAll() {
+    if (serverChannelNotifications) {
+      logger.info("Got topology change event, resubscribing server channel");
+      subscribeForServerChannel();
+
+      return;
+    }
+
     logger.info("Got topology change event, resubscribing all keyspace notifications");
 
     final Set<String> queueNames;
@@ -137,10 +196,39 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
     return (long) insertTimer.record(() -> insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
         getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-        getQueueIndexKey(destinationUuid, destinationDevice)),
-        List.of(messageWithGuid.toByteArray(),
+        getQueueIndexKey(destinationUuid, destinationDevice),
+        getQueueListenerKey(destinationUuid, destinationDevice)),
+        List.of(envelopeCodec.encode(messageWithGuid.toByteArray()),
             String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
-            guid.toString().getBytes(StandardCharsets.UTF_8))));
+            guid.toString().getBytes(StandardCharsets.UTF_8),
+            getQueueName(destinationUuid, destinationDevice).getBytes(StandardCharsets.UTF_8))));
+  }
+
+  /**
+   * Inserts a message into each of the given device queues. The inserts are
+   * pipelined, so a batch costs about a round trip per cluster node instead of
+   * one per message.
+   *
+   * @param messages messages by destination account UUID and device ID; each
+   *                 message must already carry its server GUID
+   */
+  public void insert(final Map<Pair<UUID, Long>, MessageProtos.Envelope> messages) {
+    final List<List<byte[]>> keys = new ArrayList<>(messages.size());
+    final List<List<byte[]>> args = new ArrayList<>(messages.size());
+
+    messages.forEach((destination, message) -> {
+      keys.add(List.of(getMessageQueueKey(destination.first(), destination.second()),
+          getMessageQueueMetadataKey(destination.first(), destination.second()),
+          getQueueIndexKey(destination.first(), destination.second()),
+          getQueueListenerKey(destination.first(), destination.second())));
+
+      args.add(List.of(envelopeCodec.encode(message.toByteArray()),
+          String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
+          message.getServerGuid().getBytes(StandardCharsets.UTF_8),
+          getQueueName(destination.first(), destination.second()).getBytes(StandardCharsets.UTF_8)));
+    });
+
+    insertBatchTimer.record(() -> insertScript.executeBinaryBatch(keys, args));
   }
 
   public Optional<OutgoingMessageEntity> remove(final UUID destinationUuid, final long destinationDevice,
@@ -163,7 +251,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
     for (final byte[] bytes : serialized) {
       try {
-        removedMessages.add(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(bytes)));
+        removedMessages.add(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(EnvelopeCodec.decode(bytes))));
       } catch (final InvalidProtocolBufferException e) {
         logger.warn("Failed to parse envelope", e);
       }
@@ -193,7 +281,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
         for (int i = 0; i < queueItems.size() - 1; i += 2) {
           try {
-            final MessageProtos.Envelope message = MessageProtos.Envelope.parseFrom(queueItems.get(i));
+            // the queued bytes are kept as they are, to be delivered without
+            // re-serializing the envelope
+            final ByteString serializedMessage = UnsafeByteOperations.unsafeWrap(EnvelopeCodec.decode(queueItems.get(i)));
+            final MessageProtos.Envelope message = MessageProtos.Envelope.parseFrom(serializedMessage);
             if (message.getEphemeral() && message.getTimestamp() < earliestAllowableEphemeralTimestamp) {
               staleEphemeralMessageGuids.add(UUID.fromString(message.getServerGuid()));
               continue;
@@ -201,7 +292,8 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
             final long id = Long.parseLong(new String(queueItems.get(i + 1), StandardCharsets.UTF_8));
 
-            messageEntities.add(constructEntityFromEnvelope(id, message));
+            messageEntities.add(constructEntityFromEnvelope(id, message,
+                message.hasEphemeral() ? EnvelopeUtil.clearEphemeral(serializedMessage) : serializedMessage));
           } catch (InvalidProtocolBufferException e) {
             logger.warn("Failed to parse envelope", e);
           }
@@ -230,7 +322,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
       for (final ScoredValue<byte[]> scoredMessage : scoredMessages) {
         try {
-          envelopes.add(MessageProtos.Envelope.parseFrom(scoredMessage.getValue()));
+          envelopes.add(MessageProtos.Envelope.parseFrom(EnvelopeCodec.decode(scoredMessage.getValue())));
         } catch (InvalidProtocolBufferException e) {
           logger.warn("Failed to parse envelope", e);
         }
@@ -243,10 +335,26 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   public void clear(final UUID destinationUuid) {
     // TODO Remove null check in a fully UUID-based world
     if (destinationUuid != null) {
-      for (int i = 1; i < 256; i++) {
-        clear(destinationUuid, i);
-      }
+      clear(destinationUuid, LongStream.range(1, 256).boxed().collect(Collectors.toList()));
+    }
+  }
+
+  /**
+   * Clears the queues of the given devices of an account. The scripts are
+   * pipelined, so that this costs about a round trip rather than one per device.
+   */
+  public void clear(final UUID destinationUuid, final Collection<Long> deviceIds) {
+    final List<List<byte[]>> keys = new ArrayList<>(deviceIds.size());
+    final List<List<byte[]>> args = new ArrayList<>(deviceIds.size());
+
+    for (final long deviceId : deviceIds) {
+      keys.add(List.of(getMessageQueueKey(destinationUuid, deviceId),
+          getMessageQueueMetadataKey(destinationUuid, deviceId),
+          getQueueIndexKey(destinationUuid, deviceId)));
+      args.add(Collections.emptyList());
     }
+
+    clearQueueTimer.record(() -> removeQueueScript.executeBinaryBatch(keys, args));
   }
 
   public void clear(final UUID destinationUuid, final long deviceId) {
@@ -267,6 +375,13 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
             String.valueOf(limit))));
   }
 
+  /**
+   * Returns the number of queues in the given slot with messages old enough to persist.
+   */
+  long getPersistBacklogSize(final int slot, final Instant maxTime) {
+    return readDeleteCluster.withBinaryCluster(connection -> connection.sync().zcount(getQueueIndexKey(slot), Range.create(0L, maxTime.toEpochMilli())));
+  }
+
   void addQueueToPersist(final UUID accountUuid, final long deviceId) {
     readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(), getMessageQueueKey(accountUuid, deviceId)));
   }
@@ -276,7 +391,8 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   void unlockQueueForPersistence(final UUID accountUuid, final long deviceId) {
-    readDeleteCluster.useBinaryCluster(connection -> connection.sync().del(getPersistInProgressKey(accountUuid, deviceId)));
+    unlockQueueScript.executeBinary(List.of(getPersistInProgressKey(accountUuid, deviceId), getQueueListenerKey(accountUuid, deviceId)),
+        List.of(getQueueName(accountUuid, deviceId).getBytes(StandardCharsets.UTF_8)));
   }
 
   public void addMessageAvailabilityListener(final UUID destinationUuid, final long deviceId, final MessageAvailabilityListener listener) {
@@ -287,13 +403,29 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
       queueNamesByMessageListener.put(listener, queueName);
     }
 
-    subscribeForKeyspaceNotifications(queueName);
+    if (serverChannelNotifications) {
+      readDeleteCluster.useBinaryCluster(connection -> connection.sync().setex(getQueueListenerKey(destinationUuid, deviceId),
+          QUEUE_LISTENER_TTL_SECONDS, serverId.getBytes(StandardCharsets.UTF_8)));
+    } else {
+      subscribeForKeyspaceNotifications(queueName);
+    }
+  }
+
+  Optional<MessageAvailabilityListener> getMessageAvailabilityListener(final UUID destinationUuid, final long deviceId) {
+    return findListener(getQueueName(destinationUuid, deviceId));
   }
 
   public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
     final String queueName = queueNamesByMessageListener.remove(listener);
 
-    unsubscribeFromKeyspaceNotifications(queueName);
+    if (serverChannelNotifications) {
+      if (queueName != null) {
+        // the device may have connected to another server in the meantime
+        clearQueueListenerScript.executeBinary(List.of(getQueueListenerKey(queueName)), List.of(serverId.getBytes(StandardCharsets.UTF_8)));
+      }
+    } else {
+      unsubscribeFromKeyspaceNotifications(queueName);
+    }
 
     synchronized (messageListenersByQueueName) {
 
@@ -317,6 +449,11 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         .unsubscribe(getKeyspaceChannels(queueName)));
   }
 
+  private void subscribeForServerChannel() {
+    // messages published anywhere in a cluster reach subscribers on every node
+    pubSubConnection.usePubSubConnection(connection -> connection.sync().subscribe(getServerChannel(serverId)));
+  }
+
   private static String[] getKeyspaceChannels(final String queueName) {
     return new String[] {
         QUEUE_KEYSPACE_PREFIX + "{" + queueName + "}",
@@ -328,11 +465,14 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   public void message(final RedisClusterNode node, final String channel, final String message) {
     pubSubMessageCounter.increment();
 
-    if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
+    if (serverChannelNotifications && channel.startsWith(SERVER_CHANNEL_PREFIX)) {
+      serverChannelMessageCounter.increment();
+      handleServerChannelMessage(message);
+    } else if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
       newMessageNotificationCounter.increment();
       notificationExecutorService.execute(() -> {
         try {
-          findListener(channel).ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
+          findListener(getQueueNameFromKeyspaceChannel(channel)).ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
         } catch (final Exception e) {
           logger.warn("Unexpected error handling new message", e);
         }
@@ -341,7 +481,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
       queuePersistedNotificationCounter.increment();
       notificationExecutorService.execute(() -> {
         try {
-          findListener(channel).ifPresent(MessageAvailabilityListener::handleMessagesPersisted);
+          findListener(getQueueNameFromKeyspaceChannel(channel)).ifPresent(MessageAvailabilityListener::handleMessagesPersisted);
         } catch (final Exception e) {
           logger.warn("Unexpected error handling messages persisted", e);
         }
@@ -349,9 +489,35 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     }
   }
 
-  private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
-    final String queueName = getQueueNameFromKeyspaceChannel(keyspaceChannel);
+  private void handleServerChannelMessage(final String message) {
+    if (message.startsWith(NEW_MESSAGE_NOTIFICATION_PREFIX)) {
+      newMessageNotificationCounter.increment();
+      final String queueName = message.substring(NEW_MESSAGE_NOTIFICATION_PREFIX.length());
 
+      notificationExecutorService.execute(() -> {
+        try {
+          findListener(queueName).ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
+        } catch (final Exception e) {
+          logger.warn("Unexpected error handling new message", e);
+        }
+      });
+    } else if (message.startsWith(PERSISTED_NOTIFICATION_PREFIX)) {
+      queuePersistedNotificationCounter.increment();
+      final String queueName = message.substring(PERSISTED_NOTIFICATION_PREFIX.length());
+
+      notificationExecutorService.execute(() -> {
+        try {
+          findListener(queueName).ifPresent(MessageAvailabilityListener::handleMessagesPersisted);
+        } catch (final Exception e) {
+          logger.warn("Unexpected error handling messages persisted", e);
+        }
+      });
+    } else {
+      logger.warn("Unexpected message availability notification: {}", message);
+    }
+  }
+
+  private Optional<MessageAvailabilityListener> findListener(final String queueName) {
     synchronized (messageListenersByQueueName) {
       return Optional.ofNullable(messageListenersByQueueName.get(queueName));
     }
@@ -359,6 +525,11 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
   @VisibleForTesting
   static OutgoingMessageEntity constructEntityFromEnvelope(long id, MessageProtos.Envelope envelope) {
+    return constructEntityFromEnvelope(id, envelope, null);
+  }
+
+  private static OutgoingMessageEntity constructEntityFromEnvelope(long id, MessageProtos.Envelope envelope,
+      ByteString serializedEnvelope) {
     return new OutgoingMessageEntity(id, true,
         envelope.hasServerGuid() ? UUID.fromString(envelope.getServerGuid()) : null,
         envelope.getType().getNumber(),
@@ -369,7 +540,8 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         envelope.getSourceDevice(),
         envelope.hasLegacyMessage() ? envelope.getLegacyMessage().toByteArray() : null,
         envelope.hasContent() ? envelope.getContent().toByteArray() : null,
-        envelope.hasServerTimestamp() ? envelope.getServerTimestamp() : 0);
+        envelope.hasServerTimestamp() ? envelope.getServerTimestamp() : 0,
+        serializedEnvelope);
   }
 
   @VisibleForTesting
@@ -402,6 +574,18 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     return ("user_queue_index::{" + RedisClusterUtil.getMinimalHashTag(slot) + "}").getBytes(StandardCharsets.UTF_8);
   }
 
+  private static byte[] getQueueListenerKey(final UUID accountUuid, final long deviceId) {
+    return getQueueListenerKey(getQueueName(accountUuid, deviceId));
+  }
+
+  private static byte[] getQueueListenerKey(final String queueName) {
+    return ("user_queue_listener::{" + queueName + "}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String getServerChannel(final String serverId) {
+    return SERVER_CHANNEL_PREFIX + serverId;
+  }
+
   private static byte[] getPersistInProgressKey(final UUID accountUuid, final long deviceId) {
     return ("user_queue_persisting::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
   }
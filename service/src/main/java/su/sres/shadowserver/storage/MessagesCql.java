@@ -0,0 +1,291 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static io.micrometer.core.instrument.Metrics.timer;
+
+/**
+ * Stores messages over the native CQL protocol. A destination account's messages
+ * share a partition, clustered by device, server timestamp and GUID, so a
+ * device's queue is a contiguous, ordered slice of the partition rather than a
+ * sort key prefix match.
+ */
+public class MessagesCql implements MessageStore {
+
+  public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS %s ("
+      + "destination_uuid uuid, "
+      + "destination_device bigint, "
+      + "server_timestamp bigint, "
+      + "guid uuid, "
+      + "type int, "
+      + "relay text, "
+      + "timestamp bigint, "
+      + "source text, "
+      + "source_uuid uuid, "
+      + "source_device int, "
+      + "message blob, "
+      + "content blob, "
+      + "PRIMARY KEY ((destination_uuid), destination_device, server_timestamp, guid))";
+
+  // statements in a batch all go to one partition, so the batch is applied as a
+  // single mutation; the limit only keeps the mutation reasonably small
+  private static final int MAX_BATCH_SIZE = 50;
+
+  // the position of the TTL bind marker in the insert
+  private static final int TTL_INDEX = 12;
+
+  private static final int RESULT_SET_CHUNK_SIZE = AbstractScyllaDbStore.RESULT_SET_CHUNK_SIZE;
+
+  private final Timer storeTimer = timer(name(getClass(), "store"));
+  private final Timer loadTimer = timer(name(getClass(), "load"));
+  private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteByKey = timer(name(getClass(), "delete", "key"));
+  private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
+  private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
+
+  private final CqlSession session;
+  private final Duration timeToLive;
+
+  private final PreparedStatement insert;
+  private final PreparedStatement selectForDevice;
+  private final PreparedStatement selectByGuid;
+  private final PreparedStatement deleteByPrimaryKey;
+  private final PreparedStatement deleteForDevice;
+  private final PreparedStatement deleteForAccount;
+
+  public MessagesCql(final CqlSession session, final String tableName, final Duration timeToLive) {
+    this.session = session;
+    this.timeToLive = timeToLive;
+
+    this.insert = session.prepare("INSERT INTO " + tableName
+        + " (destination_uuid, destination_device, server_timestamp, guid, type, relay, timestamp, source, source_uuid, source_device, message, content)"
+        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) USING TTL ?");
+    this.selectForDevice = session.prepare("SELECT * FROM " + tableName
+        + " WHERE destination_uuid = ? AND destination_device = ? LIMIT ?");
+    // the filter is bounded by the partition, as the message UUID index is with Alternator
+    this.selectByGuid = session.prepare("SELECT * FROM " + tableName
+        + " WHERE destination_uuid = ? AND guid = ? ALLOW FILTERING");
+    this.deleteByPrimaryKey = session.prepare("DELETE FROM " + tableName
+        + " WHERE destination_uuid = ? AND destination_device = ? AND server_timestamp = ? AND guid = ?");
+    this.deleteForDevice = session.prepare("DELETE FROM " + tableName
+        + " WHERE destination_uuid = ? AND destination_device = ?");
+    this.deleteForAccount = session.prepare("DELETE FROM " + tableName
+        + " WHERE destination_uuid = ?");
+  }
+
+  @Override
+  public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
+    storeTimer.record(() -> {
+      final List<BoundStatement> inserts = new ArrayList<>(messages.size());
+
+      for (final MessageProtos.Envelope message : messages) {
+        inserts.add(bindInsert(message, destinationAccountUuid, destinationDeviceId));
+      }
+
+      executeInBatches(inserts);
+    });
+  }
+
+  private BoundStatement bindInsert(final MessageProtos.Envelope message, final UUID destinationAccountUuid, final long destinationDeviceId) {
+    // optional columns that are absent are left unset rather than bound to null,
+    // so that they don't leave tombstones behind
+    final BoundStatementBuilder builder = insert.boundStatementBuilder()
+        .setUuid("destination_uuid", destinationAccountUuid)
+        .setLong("destination_device", destinationDeviceId)
+        .setLong("server_timestamp", message.getServerTimestamp())
+        .setUuid("guid", UUID.fromString(message.getServerGuid()))
+        .setInt("type", message.getType().getNumber())
+        .setLong("timestamp", message.getTimestamp())
+        .setInt(TTL_INDEX, getTtlForMessage(message));
+
+    if (message.hasRelay() && message.getRelay().length() > 0) {
+      builder.setString("relay", message.getRelay());
+    }
+    if (message.hasSource()) {
+      builder.setString("source", message.getSource());
+    }
+    if (message.hasSourceUuid()) {
+      builder.setUuid("source_uuid", UUID.fromString(message.getSourceUuid()));
+    }
+    if (message.hasSourceDevice()) {
+      builder.setInt("source_device", message.getSourceDevice());
+    }
+    if (message.hasLegacyMessage()) {
+      builder.setByteBuffer("message", message.getLegacyMessage().asReadOnlyByteBuffer());
+    }
+    if (message.hasContent()) {
+      builder.setByteBuffer("content", message.getContent().asReadOnlyByteBuffer());
+    }
+
+    return builder.build();
+  }
+
+  @Override
+  public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    return loadTimer.record(() -> {
+      final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
+      final List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
+
+      // further pages, if any, are fetched as the rows are iterated
+      for (final Row row : session.execute(selectForDevice.bind(destinationAccountUuid, destinationDeviceId, numberOfMessagesToFetch))) {
+        messageEntities.add(convertRowToOutgoingMessageEntity(row));
+      }
+
+      return messageEntities;
+    });
+  }
+
+  @Override
+  public CompletableFuture<List<OutgoingMessageEntity>> loadAsync(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
+    final List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return session.executeAsync(selectForDevice.bind(destinationAccountUuid, destinationDeviceId, numberOfMessagesToFetch))
+        .thenCompose(resultSet -> collectRemainingPages(resultSet, messageEntities))
+        .toCompletableFuture()
+        .whenComplete((ignored, throwable) -> sample.stop(loadTimer));
+  }
+
+  private CompletionStage<List<OutgoingMessageEntity>> collectRemainingPages(final AsyncResultSet resultSet,
+      final List<OutgoingMessageEntity> messageEntities) {
+
+    for (final Row row : resultSet.currentPage()) {
+      messageEntities.add(convertRowToOutgoingMessageEntity(row));
+    }
+
+    if (resultSet.hasMorePages()) {
+      return resultSet.fetchNextPage().thenCompose(nextPage -> collectRemainingPages(nextPage, messageEntities));
+    }
+
+    return CompletableFuture.completedFuture(messageEntities);
+  }
+
+  @Override
+  public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(final UUID destinationAccountUuid, final UUID messageUuid) {
+    return deleteByGuid.record(() -> {
+      final Row row = session.execute(selectByGuid.bind(destinationAccountUuid, messageUuid)).one();
+
+      if (row == null) {
+        return Optional.empty();
+      }
+
+      // two concurrent deletes of the same message may both return it, which only
+      // means a duplicate delivery receipt
+      final OutgoingMessageEntity message = convertRowToOutgoingMessageEntity(row);
+
+      session.execute(deleteByPrimaryKey.bind(destinationAccountUuid, row.getLong("destination_device"),
+          message.getServerTimestamp(), messageUuid));
+
+      return Optional.of(message);
+    });
+  }
+
+  @Override
+  public void deleteMessages(final UUID destinationAccountUuid, final long destinationDeviceId, final Map<UUID, Long> serverTimestampsByGuid) {
+    deleteByKey.record(() -> {
+      final List<BoundStatement> deletes = new ArrayList<>(serverTimestampsByGuid.size());
+
+      serverTimestampsByGuid.forEach((guid, serverTimestamp) ->
+          deletes.add(deleteByPrimaryKey.bind(destinationAccountUuid, destinationDeviceId, serverTimestamp, guid)));
+
+      executeInBatches(deletes);
+    });
+  }
+
+  @Override
+  public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
+    deleteByAccount.record(() -> session.execute(deleteForAccount.bind(destinationAccountUuid)));
+  }
+
+  @Override
+  public void deleteAllMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    deleteByDevice.record(() -> session.execute(deleteForDevice.bind(destinationAccountUuid, destinationDeviceId)));
+  }
+
+  // the statements must all be for one partition
+  private void executeInBatches(final List<BoundStatement> statements) {
+    final List<CompletableFuture<AsyncResultSet>> futures = new ArrayList<>();
+
+    for (int i = 0; i < statements.size(); i += MAX_BATCH_SIZE) {
+      final BatchStatementBuilder batch = BatchStatement.builder(BatchType.UNLOGGED);
+
+      for (final BoundStatement statement : statements.subList(i, Math.min(i + MAX_BATCH_SIZE, statements.size()))) {
+        batch.addStatement(statement);
+      }
+
+      futures.add(session.executeAsync(batch.build()).toCompletableFuture());
+    }
+
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+  private int getTtlForMessage(final MessageProtos.Envelope message) {
+    // CQL expiry is relative to the write, where Alternator's is an absolute time
+    final long expiresAtSeconds = message.getServerTimestamp() / 1000 + timeToLive.getSeconds();
+    return (int) Math.max(1, expiresAtSeconds - System.currentTimeMillis() / 1000);
+  }
+
+  private static OutgoingMessageEntity convertRowToOutgoingMessageEntity(final Row row) {
+    return new OutgoingMessageEntity(-1L, false,
+        row.getUuid("guid"),
+        row.getInt("type"),
+        row.getString("relay"),
+        row.getLong("timestamp"),
+        row.getString("source"),
+        row.getUuid("source_uuid"),
+        row.getInt("source_device"),
+        getBytes(row.getByteBuffer("message")),
+        getBytes(row.getByteBuffer("content")),
+        row.getLong("server_timestamp"));
+  }
+
+  private static byte[] getBytes(final ByteBuffer buffer) {
+    if (buffer == null) {
+      return null;
+    }
+
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+
+    return bytes;
+  }
+}
@@ -9,17 +9,28 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.metrics.PushLatencyManager;
 import su.sres.shadowserver.redis.RedisOperation;
 import su.sres.shadowserver.entities.MessageProtos.Envelope;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.Pair;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -34,17 +45,37 @@ public class MessagesManager {
       name(MessagesManager.class, "cacheMissByGuid"));
 
   private static final Meter persistMessageMeter = metricRegistry.meter(name(MessagesManager.class, "persistMessage"));
+  private static final Meter localDeliveryMeter = metricRegistry.meter(name(MessagesManager.class, "localDelivery"));
+  private static final Meter localDeliveryFallbackMeter = metricRegistry.meter(name(MessagesManager.class, "localDeliveryFallback"));
+  private static final Meter localDeliveryExpiredMeter = metricRegistry.meter(name(MessagesManager.class, "localDeliveryExpired"));
 
-  private final MessagesScyllaDb messagesScyllaDb;
+  private final MessageStore messageStore;
   private final MessagesCache messagesCache;
   private final PushLatencyManager pushLatencyManager;
   private final ReportMessageManager reportMessageManager;
+  private final Executor queueReadExecutor;
+
+  /**
+   * Builds a manager that reads cached messages on the thread loading the
+   * persisted ones, for callers that don't read messages asynchronously.
+   */
+  public MessagesManager(MessageStore messageStore, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager) {
+    this(messageStore, messagesCache, pushLatencyManager, reportMessageManager, MoreExecutors.directExecutor());
+  }
 
-  public MessagesManager(MessagesScyllaDb messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager) {
-    this.messagesScyllaDb = messagesScyllaDb;
+  /**
+   * @param queueReadExecutor the executor cached messages are read on once the
+   *                          persisted messages have been loaded asynchronously,
+   *                          so that the blocking cache reads don't hold the
+   *                          store client's completion threads
+   */
+  public MessagesManager(MessageStore messageStore, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager,
+      final Executor queueReadExecutor) {
+    this.messageStore = messageStore;
     this.messagesCache = messagesCache;
     this.pushLatencyManager = pushLatencyManager;
     this.reportMessageManager = reportMessageManager;
+    this.queueReadExecutor = queueReadExecutor;
   }
 
   public void insert(UUID destinationUuid, long destinationDevice, Envelope message) {
@@ -55,7 +86,77 @@ public class MessagesManager {
     if (message.hasSource() && !destinationUuid.toString().equals(message.getSourceUuid())) {
       reportMessageManager.store(message.getSource(), messageGuid);
     }
-  }  
+  }
+
+  /**
+   * Inserts a message into each of the given device queues at once.
+   *
+   * @param messages messages by destination account UUID and device ID
+   */
+  public void insert(final Map<Pair<UUID, Long>, Envelope> messages) {
+    final Map<Pair<UUID, Long>, Envelope> messagesWithGuids = new HashMap<>(messages.size());
+
+    messages.forEach((destination, message) -> {
+      final UUID messageGuid = UUID.randomUUID();
+
+      messagesWithGuids.put(destination, message.toBuilder().setServerGuid(messageGuid.toString()).build());
+
+      if (message.hasSource() && !destination.first().toString().equals(message.getSourceUuid())) {
+        reportMessageManager.store(message.getSource(), messageGuid);
+      }
+    });
+
+    messagesCache.insert(messagesWithGuids);
+  }
+
+  /**
+   * Hands a message straight to the destination device's connection, if it's
+   * connected to this server. Should the client not acknowledge the message,
+   * it gets inserted into the device's queue after all.
+   *
+   * @return whether the device is connected here and has been handed the message
+   */
+  public boolean deliverLocally(final UUID destinationUuid, final long destinationDevice, final Envelope message) {
+    final Optional<MessageAvailabilityListener> maybeListener = messagesCache.getMessageAvailabilityListener(destinationUuid, destinationDevice);
+
+    if (maybeListener.isEmpty()) {
+      return false;
+    }
+
+    final UUID messageGuid = UUID.randomUUID();
+    final Envelope messageWithGuid = message.toBuilder().setServerGuid(messageGuid.toString()).build();
+
+    if (message.hasSource() && !destinationUuid.toString().equals(message.getSourceUuid())) {
+      reportMessageManager.store(message.getSource(), messageGuid);
+    }
+
+    localDeliveryMeter.mark();
+
+    CompletableFuture<Boolean> delivery;
+
+    try {
+      delivery = maybeListener.get().handleLocalMessage(messageWithGuid);
+    } catch (final RuntimeException e) {
+      delivery = CompletableFuture.failedFuture(e);
+    }
+
+    // anything but an acknowledgement, such as a timeout or the connection
+    // closing, leaves the message to be queued; an ephemeral message that timed
+    // out, though, is past the cache's ephemeral delay already and would be
+    // dropped on read anyway
+    delivery.whenComplete((acknowledged, throwable) -> {
+      final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+
+      if (cause instanceof TimeoutException && message.getEphemeral()) {
+        localDeliveryExpiredMeter.mark();
+      } else if (throwable != null || !Boolean.TRUE.equals(acknowledged)) {
+        localDeliveryFallbackMeter.mark();
+        RedisOperation.unchecked(() -> messagesCache.insert(messageGuid, destinationUuid, destinationDevice, messageWithGuid));
+      }
+    });
+
+    return true;
+  }
 
   public boolean hasCachedMessages(final UUID destinationUuid, final long destinationDevice) {
     return messagesCache.hasMessages(destinationUuid, destinationDevice);
@@ -67,7 +168,7 @@ public class MessagesManager {
     List<OutgoingMessageEntity> messageList = new ArrayList<>();
 
     if (!cachedMessagesOnly) {
-      messageList.addAll(messagesScyllaDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE));
+      messageList.addAll(messageStore.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE));
     }
 
     if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
@@ -77,15 +178,46 @@ public class MessagesManager {
     return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
   }
 
+  /**
+   * Like {@link #getMessagesForDevice}, but the persisted messages are read
+   * without holding the calling thread.
+   */
+  public CompletableFuture<OutgoingMessageEntityList> getMessagesForDeviceAsync(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly) {
+    RedisOperation.unchecked(() -> pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent));
+
+    final CompletableFuture<List<OutgoingMessageEntity>> persistedMessages = cachedMessagesOnly
+        ? CompletableFuture.completedFuture(List.of())
+        : messageStore.loadAsync(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE);
+
+    return persistedMessages.thenApplyAsync(persisted -> {
+      final List<OutgoingMessageEntity> messageList = new ArrayList<>(persisted);
+
+      if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
+        messageList.addAll(messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size()));
+      }
+
+      return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
+    }, queueReadExecutor);
+  }
+
   public void clear(UUID destinationUuid) {
     messagesCache.clear(destinationUuid);
-    messagesScyllaDb.deleteAllMessagesForAccount(destinationUuid);
+    messageStore.deleteAllMessagesForAccount(destinationUuid);
+  }
+
+  /**
+   * Clears an account's messages, emptying the cached queues of the given
+   * devices only, rather than of every possible device.
+   */
+  public void clear(UUID destinationUuid, Collection<Long> deviceIds) {
+    messagesCache.clear(destinationUuid, deviceIds);
+    messageStore.deleteAllMessagesForAccount(destinationUuid);
   }
 
   public void clear(UUID destinationUuid, long deviceId) {
     messagesCache.clear(destinationUuid, deviceId);
 
-    messagesScyllaDb.deleteAllMessagesForDevice(destinationUuid, deviceId);
+    messageStore.deleteAllMessagesForDevice(destinationUuid, deviceId);
   }  
 
   public Optional<OutgoingMessageEntity> delete(UUID destinationUuid, long destinationDeviceId, UUID guid) {
@@ -93,7 +225,7 @@ public class MessagesManager {
 
     if (removed.isEmpty()) {
 
-      removed = messagesScyllaDb.deleteMessageByDestinationAndGuid(destinationUuid, guid);
+      removed = messageStore.deleteMessageByDestinationAndGuid(destinationUuid, guid);
       cacheMissByGuidMeter.mark();
     } else {
       cacheHitByGuidMeter.mark();
@@ -102,13 +234,51 @@ public class MessagesManager {
     return removed;
   }
 
+  /**
+   * Deletes a number of messages of a device, as returned by
+   * {@link #getMessagesForDevice}, at once. Cached messages are removed from the
+   * cache in one go; the others, along with any cached messages persisted since
+   * they were read, are deleted from the database in batches.
+   */
+  public void deleteMessages(final UUID destinationUuid, final long destinationDeviceId, final Collection<OutgoingMessageEntity> messages) {
+    final List<UUID> cachedMessageGuids = new ArrayList<>();
+    final Map<UUID, Long> persistedMessages = new HashMap<>();
+
+    for (final OutgoingMessageEntity message : messages) {
+      if (message.isCached()) {
+        cachedMessageGuids.add(message.getGuid());
+      } else {
+        persistedMessages.put(message.getGuid(), message.getServerTimestamp());
+      }
+    }
+
+    if (!cachedMessageGuids.isEmpty()) {
+      final Set<UUID> removedGuids = messagesCache.remove(destinationUuid, destinationDeviceId, cachedMessageGuids).stream()
+          .map(OutgoingMessageEntity::getGuid)
+          .collect(Collectors.toSet());
+
+      cacheHitByGuidMeter.mark(removedGuids.size());
+
+      for (final OutgoingMessageEntity message : messages) {
+        if (message.isCached() && !removedGuids.contains(message.getGuid())) {
+          persistedMessages.put(message.getGuid(), message.getServerTimestamp());
+          cacheMissByGuidMeter.mark();
+        }
+      }
+    }
+
+    if (!persistedMessages.isEmpty()) {
+      messageStore.deleteMessages(destinationUuid, destinationDeviceId, persistedMessages);
+    }
+  }
+
   public void persistMessages(final UUID destinationUuid, final long destinationDeviceId, final List<Envelope> messages) {
 
     final List<Envelope> nonEphemeralMessages = messages.stream()
         .filter(envelope -> !envelope.getEphemeral())
         .collect(Collectors.toList());
 
-    messagesScyllaDb.store(nonEphemeralMessages, destinationUuid, destinationDeviceId);
+    messageStore.store(nonEphemeralMessages, destinationUuid, destinationDeviceId);
     messagesCache.remove(destinationUuid, destinationDeviceId,
         messages.stream().map(message -> UUID.fromString(message.getServerGuid())).collect(Collectors.toList()));
 
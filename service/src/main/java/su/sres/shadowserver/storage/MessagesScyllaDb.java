@@ -1,6 +1,8 @@
 package su.sres.shadowserver.storage;
 
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
@@ -26,12 +28,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static io.micrometer.core.instrument.Metrics.timer;
 
-public class MessagesScyllaDb extends AbstractScyllaDbStore {
+public class MessagesScyllaDb extends AbstractScyllaDbStore implements MessageStore {
 
   private static final String KEY_PARTITION = "H";
   private static final String KEY_SORT = "S";
@@ -52,23 +57,71 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
   private final Timer loadTimer = timer(name(getClass(), "load"));
   private final Timer deleteBySourceAndTimestamp = timer(name(getClass(), "delete", "sourceAndTimestamp"));
   private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteBySortKey = timer(name(getClass(), "delete", "sortKey"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
 
   private final String tableName;
   private final Duration timeToLive;
 
+  // bounds the batch writes in flight through the asynchronous client across
+  // all callers; null if there's no asynchronous client
+  private final Semaphore batchWritesInFlight;
+
   public MessagesScyllaDb(DynamoDbClient scyllaDb, String tableName, Duration timeToLive) {
-    super(scyllaDb);
+    this(scyllaDb, null, tableName, timeToLive, 0);
+  }
+
+  public MessagesScyllaDb(DynamoDbClient scyllaDb, DynamoDbAsyncClient scyllaDbAsync, String tableName, Duration timeToLive, int maxConcurrentBatchWrites) {
+    super(scyllaDb, scyllaDbAsync);
     this.tableName = tableName;
     this.timeToLive = timeToLive;
+    this.batchWritesInFlight = scyllaDbAsync != null ? new Semaphore(maxConcurrentBatchWrites) : null;
   }
 
+  /**
+   * Stores the given messages. With an asynchronous client, the batches are
+   * written concurrently; either way, this returns when all of them are written.
+   */
+  @Override
   public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
-    storeTimer.record(() -> writeInBatches(messages, (messageBatch) -> storeBatch(messageBatch, destinationAccountUuid, destinationDeviceId)));
+    if (batchWritesInFlight == null) {
+      storeTimer.record(() -> writeInBatches(messages, (messageBatch) -> executeTableWriteItemsUntilComplete(
+          Map.of(tableName, buildWriteItems(messageBatch, destinationAccountUuid, destinationDeviceId)))));
+    } else {
+      storeTimer.record(() -> storeConcurrently(messages, destinationAccountUuid, destinationDeviceId));
+    }
   }
 
-  private void storeBatch(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
+  private void storeConcurrently(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
+    final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    writeInBatches(messages, (messageBatch) -> {
+      // the batch list gets reused, so the write items must be built right away
+      final Map<String, List<WriteRequest>> items = Map.of(tableName, buildWriteItems(messageBatch, destinationAccountUuid, destinationDeviceId));
+
+      batchWritesInFlight.acquireUninterruptibly();
+
+      try {
+        futures.add(executeTableWriteItemsUntilCompleteAsync(items).whenComplete((ignored, throwable) -> batchWritesInFlight.release()));
+      } catch (final RuntimeException e) {
+        batchWritesInFlight.release();
+        throw e;
+      }
+    });
+
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+  private List<WriteRequest> buildWriteItems(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
     if (messages.size() > DYNAMO_DB_MAX_BATCH_SIZE) {
       throw new IllegalArgumentException("Maximum batch size of " + DYNAMO_DB_MAX_BATCH_SIZE + " execeeded with " + messages.size() + " messages");
     }
@@ -108,25 +161,14 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
           .build()).build());
     }
 
-    executeTableWriteItemsUntilComplete(Map.of(tableName, writeItems));
+    return writeItems;
   }
 
+  @Override
   public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
     return loadTimer.record(() -> {
       final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
-      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-      final QueryRequest queryRequest = QueryRequest.builder()
-          .tableName(tableName)
-          .consistentRead(true)
-          .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
-          .expressionAttributeNames(Map.of(
-              "#part", KEY_PARTITION,
-              "#sort", KEY_SORT))
-          .expressionAttributeValues(Map.of(
-              ":part", partitionKey,
-              ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
-          .limit(numberOfMessagesToFetch)
-          .build();
+      final QueryRequest queryRequest = buildLoadQuery(destinationAccountUuid, destinationDeviceId, numberOfMessagesToFetch);
       List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
       for (Map<String, AttributeValue> message : db().queryPaginator(queryRequest).items()) {
         messageEntities.add(convertItemToOutgoingMessageEntity(message));
@@ -138,8 +180,45 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
       }
       return messageEntities;
     });
-  }  
+  }
+
+  /**
+   * Like {@link #load}, but without holding the calling thread while the
+   * messages are read. Without an asynchronous client, this falls back to a
+   * blocking read.
+   */
+  @Override
+  public CompletableFuture<List<OutgoingMessageEntity>> loadAsync(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    if (asyncDb() == null) {
+      return CompletableFuture.completedFuture(load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch));
+    }
 
+    final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return queryAsync(buildLoadQuery(destinationAccountUuid, destinationDeviceId, numberOfMessagesToFetch), numberOfMessagesToFetch)
+        .thenApply(items -> items.stream()
+            .map(this::convertItemToOutgoingMessageEntity)
+            .collect(Collectors.toList()))
+        .whenComplete((ignored, throwable) -> sample.stop(loadTimer));
+  }
+
+  private QueryRequest buildLoadQuery(final UUID destinationAccountUuid, final long destinationDeviceId, final int numberOfMessagesToFetch) {
+    return QueryRequest.builder()
+        .tableName(tableName)
+        .consistentRead(true)
+        .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
+        .expressionAttributeNames(Map.of(
+            "#part", KEY_PARTITION,
+            "#sort", KEY_SORT))
+        .expressionAttributeValues(Map.of(
+            ":part", convertPartitionKey(destinationAccountUuid),
+            ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
+        .limit(numberOfMessagesToFetch)
+        .build();
+  }
+
+  @Override
   public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(final UUID destinationAccountUuid, final UUID messageUuid) {
     return deleteByGuid.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -160,6 +239,32 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  /**
+   * Deletes a number of messages of a device. The messages' keys are derived
+   * from their GUIDs and server timestamps, so unlike deleting by GUID alone,
+   * this takes no queries, only batch writes.
+   *
+   * @param serverTimestampsByGuid the server timestamps of the messages to delete, by message GUID
+   */
+  @Override
+  public void deleteMessages(final UUID destinationAccountUuid, final long destinationDeviceId, final Map<UUID, Long> serverTimestampsByGuid) {
+    deleteBySortKey.record(() -> {
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+
+      writeInBatches(serverTimestampsByGuid.entrySet(), entries -> {
+        final List<WriteRequest> deletes = entries.stream()
+            .map(entry -> WriteRequest.builder()
+                .deleteRequest(DeleteRequest.builder().key(Map.of(
+                    KEY_PARTITION, partitionKey,
+                    KEY_SORT, convertSortKey(destinationDeviceId, entry.getValue(), entry.getKey()))).build())
+                .build())
+            .collect(Collectors.toList());
+
+        executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
+      });
+    });
+  }
+
   @Nonnull
   private Optional<OutgoingMessageEntity> deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(AttributeValue partitionKey, QueryRequest queryRequest) {
     Optional<OutgoingMessageEntity> result = Optional.empty();
@@ -179,6 +284,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     return result;
   }
 
+  @Override
   public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
     deleteByAccount.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -194,6 +300,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
   public void deleteAllMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId) {
     deleteByDevice.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Corrects the prekey counts maintained by {@link KeysManager} as the account
+ * database is crawled, by counting every device's keys in the store.
+ */
+public class PreKeyCountReconciler extends AccountDatabaseCrawlerListener {
+
+  private static final Counter CHECKED_COUNTER = Metrics.counter(name(PreKeyCountReconciler.class, "checked"));
+  private static final Counter MISMATCH_COUNTER = Metrics.counter(name(PreKeyCountReconciler.class, "mismatch"));
+
+  private final KeysManager keysManager;
+
+  public PreKeyCountReconciler(final KeysManager keysManager) {
+    this.keysManager = keysManager;
+  }
+
+  @Override
+  public void onCrawlStart() {
+  }
+
+  @Override
+  public void onCrawlEnd(final Optional<UUID> fromUuid) {
+  }
+
+  @Override
+  protected void onCrawlChunk(final Optional<UUID> fromUuid, final List<Account> chunkAccounts) {
+    for (final Account account : chunkAccounts) {
+      for (final Device device : account.getDevices()) {
+        CHECKED_COUNTER.increment();
+
+        if (keysManager.reconcileCount(account, device.getId())) {
+          MISMATCH_COUNTER.increment();
+        }
+      }
+    }
+  }
+}
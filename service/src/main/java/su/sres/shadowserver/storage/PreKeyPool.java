@@ -0,0 +1,215 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScriptOutputType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import su.sres.shadowserver.entities.PreKey;
+import su.sres.shadowserver.redis.ClusterLuaScript;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.SystemMapper;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Pools keys of devices whose keys are claimed often, such as those of a busy
+ * support account, in Redis lists, so that those claims are a single atomic
+ * {@code LPOP} instead of contested deletes in one store partition.
+ * <p>
+ * A pooled key has already been claimed from the store, so that it can't be
+ * handed out twice, and the device's key count includes its pool. Keys are
+ * moved into a pool in the background, one at a time, while the device stays
+ * hot. Should the cache cluster lose a pool, its keys are lost as if they had
+ * been claimed, and the device's next refill replaces them.
+ * <p>
+ * Clearing a pool bumps the device's pool generation, and keys are only pushed
+ * while the generation is the one the refill started with, so that a refill
+ * racing with a new upload can't refill the pool with discarded keys.
+ */
+public class PreKeyPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(PreKeyPool.class);
+
+  private static final String POOL_PREFIX = "prekey_pool::";
+  private static final String CLAIMS_PREFIX = "prekey_claims::";
+  private static final String GENERATION_PREFIX = "prekey_pool_generation::";
+
+  private static final long CLAIM_WINDOW_SECONDS = 60;
+  // comfortably longer than any refill
+  private static final long GENERATION_TTL_SECONDS = 3600;
+
+  private static final Counter POOL_HIT_COUNTER = Metrics.counter(name(PreKeyPool.class, "poll"), "outcome", "hit");
+  private static final Counter POOL_MISS_COUNTER = Metrics.counter(name(PreKeyPool.class, "poll"), "outcome", "miss");
+  private static final Counter POOLED_KEYS_COUNTER = Metrics.counter(name(PreKeyPool.class, "pooledKeys"));
+  private static final Counter DISCARDED_KEYS_COUNTER = Metrics.counter(name(PreKeyPool.class, "discardedKeys"));
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final PreKeyStore keys;
+  private final Executor refillExecutor;
+  private final int size;
+  private final int hotClaimsPerMinute;
+  private final ClusterLuaScript pushScript;
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+  private final Set<String> refillsInProgress = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param keys the store keys are moved from; its takes must not go through a
+   *             pool themselves
+   */
+  public PreKeyPool(final FaultTolerantRedisCluster cacheCluster, final PreKeyStore keys, final Executor refillExecutor,
+      final int size, final int hotClaimsPerMinute) {
+
+    this.cacheCluster = cacheCluster;
+    this.keys = keys;
+    this.refillExecutor = refillExecutor;
+    this.size = size;
+    this.hotClaimsPerMinute = hotClaimsPerMinute;
+
+    try {
+      this.pushScript = ClusterLuaScript.fromResource(cacheCluster, "lua/pool_prekey.lua", ScriptOutputType.INTEGER);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Takes a key from the device's pool, and has the pool topped up if the
+   * device's keys are being claimed often.
+   */
+  public Optional<PreKey> poll(final Account account, final long deviceId) {
+    final String poolKey = getPoolKey(account.getUuid(), deviceId);
+
+    Optional<PreKey> preKey = Optional.empty();
+
+    try {
+      final String pooledKey = cacheCluster.withCluster(connection -> connection.sync().lpop(poolKey));
+
+      if (pooledKey != null) {
+        preKey = Optional.of(mapper.readValue(pooledKey, PreKey.class));
+      }
+    } catch (final RedisException | IOException e) {
+      logger.warn("Failed to take pooled prekey", e);
+    }
+
+    (preKey.isPresent() ? POOL_HIT_COUNTER : POOL_MISS_COUNTER).increment();
+
+    try {
+      recordClaim(account, deviceId, poolKey);
+    } catch (final RedisException e) {
+      logger.warn("Failed to record prekey claim", e);
+    }
+
+    return preKey;
+  }
+
+  public int size(final UUID accountUuid, final long deviceId) {
+    try {
+      return cacheCluster.withCluster(connection -> connection.sync().llen(getPoolKey(accountUuid, deviceId))).intValue();
+    } catch (final RedisException e) {
+      logger.warn("Failed to get prekey pool size", e);
+      return 0;
+    }
+  }
+
+  public void clear(final UUID accountUuid, final long deviceId) {
+    final String generationKey = getGenerationKey(accountUuid, deviceId);
+
+    try {
+      // the generation goes up before the pool is emptied, so that a refill under
+      // way can't push a discarded key once the pool is empty
+      cacheCluster.useCluster(connection -> {
+        connection.sync().incr(generationKey);
+        connection.sync().expire(generationKey, GENERATION_TTL_SECONDS);
+        connection.sync().del(getPoolKey(accountUuid, deviceId));
+      });
+    } catch (final RedisException e) {
+      logger.warn("Failed to clear prekey pool", e);
+    }
+  }
+
+  public void clear(final UUID accountUuid, final Collection<Long> deviceIds) {
+    deviceIds.forEach(deviceId -> clear(accountUuid, deviceId));
+  }
+
+  private void recordClaim(final Account account, final long deviceId, final String poolKey) {
+    final String claimsKey = CLAIMS_PREFIX + "{" + account.getUuid() + "}::" + deviceId;
+    final long claims = cacheCluster.withCluster(connection -> connection.sync().incr(claimsKey));
+
+    if (claims == 1) {
+      cacheCluster.useCluster(connection -> connection.sync().expire(claimsKey, CLAIM_WINDOW_SECONDS));
+    }
+
+    if (claims >= hotClaimsPerMinute && refillsInProgress.add(poolKey)) {
+      try {
+        refillExecutor.execute(() -> refill(account, deviceId, poolKey));
+      } catch (final RejectedExecutionException e) {
+        refillsInProgress.remove(poolKey);
+      }
+    }
+  }
+
+  private void refill(final Account account, final long deviceId, final String poolKey) {
+    final String generationKey = getGenerationKey(account.getUuid(), deviceId);
+
+    try {
+      // read before any key is taken, so that a clear after that is noticed
+      final String generation = Optional.ofNullable(
+          cacheCluster.withCluster(connection -> connection.sync().get(generationKey))).orElse("0");
+
+      long pooled = cacheCluster.withCluster(connection -> connection.sync().llen(poolKey));
+
+      while (pooled < size) {
+        final Optional<PreKey> preKey = keys.take(account, deviceId);
+
+        if (preKey.isEmpty()) {
+          break;
+        }
+
+        pooled = (long) pushScript.execute(List.of(poolKey, generationKey),
+            List.of(generation, mapper.writeValueAsString(preKey.get())));
+
+        if (pooled < 0) {
+          DISCARDED_KEYS_COUNTER.increment();
+          break;
+        }
+
+        POOLED_KEYS_COUNTER.increment();
+      }
+    } catch (final RuntimeException | JsonProcessingException e) {
+      logger.warn("Failed to refill prekey pool", e);
+    } finally {
+      refillsInProgress.remove(poolKey);
+    }
+  }
+
+  private static String getPoolKey(final UUID accountUuid, final long deviceId) {
+    return POOL_PREFIX + "{" + accountUuid + "}::" + deviceId;
+  }
+
+  private static String getGenerationKey(final UUID accountUuid, final long deviceId) {
+    return GENERATION_PREFIX + "{" + accountUuid + "}::" + deviceId;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import su.sres.shadowserver.entities.PreKey;
+
+/**
+ * Storage for the one-time prekeys of each device. A taken key is removed, so
+ * that no two callers ever get the same one.
+ */
+public interface PreKeyStore {
+
+  void store(Account account, long deviceId, List<PreKey> keys);
+
+  /**
+   * Adds keys to the device's existing ones. A key whose ID the device already
+   * has replaces the stored one, since the device has discarded it when it
+   * reused the ID.
+   *
+   * @return the number of key IDs the device didn't have before
+   */
+  int append(Account account, long deviceId, List<PreKey> keys);
+
+  /**
+   * Deletes the device's oldest keys beyond the given number. Key IDs wrap
+   * around, so the keys are ordered by when they were uploaded, not by ID.
+   *
+   * @return the number of keys the device has left
+   */
+  int trim(Account account, long deviceId, int maxKeys);
+
+  Optional<PreKey> take(Account account, long deviceId);
+
+  CompletableFuture<Optional<PreKey>> takeAsync(Account account, long deviceId);
+
+  Map<Long, PreKey> take(Account account);
+
+  /**
+   * Claims a key for each of the given devices, with all the claims in flight
+   * at once rather than one device after another.
+   *
+   * @return the claimed keys by device ID; devices with no keys left are absent
+   */
+  default CompletableFuture<Map<Long, PreKey>> takeAsync(Account account, Collection<Long> deviceIds) {
+    final Map<Long, PreKey> preKeysByDeviceId = new ConcurrentHashMap<>();
+
+    return CompletableFuture.allOf(deviceIds.stream()
+        .map(deviceId -> takeAsync(account, deviceId)
+            .thenAccept(maybePreKey -> maybePreKey.ifPresent(preKey -> preKeysByDeviceId.put(deviceId, preKey))))
+        .toArray(CompletableFuture[]::new))
+        .thenApply(ignored -> preKeysByDeviceId);
+  }
+
+  int getCount(Account account, long deviceId);
+
+  void delete(UUID accountUuid);
+
+  /**
+   * Deletes all of an account's keys, like {@link #delete(UUID)}, for stores that
+   * keep something per device besides the keys themselves and need to know the
+   * account's devices to remove it.
+   */
+  default void delete(UUID accountUuid, Collection<Long> deviceIds) {
+    delete(accountUuid);
+  }
+
+  void delete(UUID accountUuid, long deviceId);
+}
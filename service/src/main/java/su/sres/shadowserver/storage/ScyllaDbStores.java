@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+
+import io.dropwizard.lifecycle.Managed;
+
+import javax.annotation.Nullable;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.StorageBackend;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.CqlSessionFromConfig;
+
+/**
+ * Builds the prekey and message stores for the configured storage backend. With
+ * the CQL backend, both stores share one session, which is closed when the
+ * stores are stopped or closed.
+ */
+public class ScyllaDbStores implements Managed, AutoCloseable {
+
+  private final ScyllaDbConfiguration scyllaConfig;
+
+  @Nullable
+  private final CqlSession cqlSession;
+
+  private final PreKeyStore preKeyStore;
+  private final MessageStore messageStore;
+
+  /**
+   * Builds stores for commands, which don't need the asynchronous client.
+   */
+  public ScyllaDbStores(final ScyllaDbConfiguration scyllaConfig, final DynamoDbClient scyllaDbClient) {
+    this(scyllaConfig, scyllaDbClient, null, 0);
+  }
+
+  public ScyllaDbStores(final ScyllaDbConfiguration scyllaConfig, final DynamoDbClient scyllaDbClient,
+      @Nullable final DynamoDbAsyncClient scyllaDbAsyncClient, final int maxConcurrentMessageBatchWrites) {
+
+    this.scyllaConfig = scyllaConfig;
+    this.cqlSession = scyllaConfig.getStorageBackend() == StorageBackend.CQL
+        ? CqlSessionFromConfig.session(scyllaConfig.getCqlConfiguration())
+        : null;
+
+    if (cqlSession != null) {
+      this.preKeyStore = new KeysCql(cqlSession, scyllaConfig.getKeysTableName(), scyllaConfig.getKeysTakePageSize());
+      this.messageStore = new MessagesCql(cqlSession, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+    } else {
+      this.preKeyStore = new KeysScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getKeysTableName(),
+          scyllaConfig.getKeysTakePageSize());
+      this.messageStore = new MessagesScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getMessagesTableName(),
+          scyllaConfig.getTimeToLive(), maxConcurrentMessageBatchWrites);
+    }
+  }
+
+  public PreKeyStore getPreKeyStore() {
+    return preKeyStore;
+  }
+
+  public MessageStore getMessageStore() {
+    return messageStore;
+  }
+
+  public KeysManager buildKeysManager(final FaultTolerantRedisCluster cacheCluster, @Nullable final PreKeyPool preKeyPool) {
+    return new KeysManager(preKeyStore, cacheCluster, scyllaConfig.getKeysUploadMode(), scyllaConfig.getKeysMaxPerDevice(),
+        preKeyPool);
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+    close();
+  }
+
+  @Override
+  public void close() {
+    if (cqlSession != null) {
+      cqlSession.close();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.CqlSessionBuilder;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+
+import java.net.InetSocketAddress;
+
+import su.sres.shadowserver.configuration.CqlConfiguration;
+
+public class CqlSessionFromConfig {
+
+  private static final int DEFAULT_PORT = 9042;
+
+  /**
+   * Builds a session bound to the configured keyspace. The driver's default load
+   * balancing policy routes each statement to a replica of its partition, since
+   * prepared statements carry their routing key, and the Scylla driver picks the
+   * shard owning the partition on that replica.
+   */
+  public static CqlSession session(CqlConfiguration config) {
+    return builder(config)
+        .withKeyspace(config.getKeyspace())
+        .build();
+  }
+
+  /**
+   * Builds a session builder without a keyspace, for creating the keyspace itself.
+   */
+  public static CqlSessionBuilder builder(CqlConfiguration config) {
+    final DriverConfigLoader configLoader = DriverConfigLoader.programmaticBuilder()
+        .withDuration(DefaultDriverOption.REQUEST_TIMEOUT, config.getRequestTimeout())
+        .withInt(DefaultDriverOption.REQUEST_PAGE_SIZE, config.getPageSize())
+        .withString(DefaultDriverOption.REQUEST_CONSISTENCY, "LOCAL_QUORUM")
+        .withString(DefaultDriverOption.REQUEST_SERIAL_CONSISTENCY, "LOCAL_SERIAL")
+        .build();
+
+    final CqlSessionBuilder builder = CqlSession.builder()
+        .withConfigLoader(configLoader)
+        .withLocalDatacenter(config.getLocalDatacenter());
+
+    for (final String contactPoint : config.getContactPoints()) {
+      builder.addContactPoint(parseContactPoint(contactPoint));
+    }
+
+    if (config.getUsername() != null) {
+      builder.withAuthCredentials(config.getUsername(), config.getPassword());
+    }
+
+    return builder;
+  }
+
+  private static InetSocketAddress parseContactPoint(final String contactPoint) {
+    final int separator = contactPoint.lastIndexOf(':');
+
+    if (separator < 0) {
+      return new InetSocketAddress(contactPoint, DEFAULT_PORT);
+    }
+
+    return new InetSocketAddress(contactPoint.substring(0, separator), Integer.parseInt(contactPoint.substring(separator + 1)));
+  }
+}
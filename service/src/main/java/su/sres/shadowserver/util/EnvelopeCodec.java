@@ -0,0 +1,208 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.util.Arrays;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Optionally compresses serialized envelopes for the message cache.
+ * <p>
+ * A compressed envelope starts with a zero byte, which no serialized envelope
+ * can start with, since a protobuf field tag is never zero. It is followed by
+ * the compression algorithm's ID, the uncompressed length as four big-endian
+ * bytes and the compressed envelope. Anything else is an envelope stored as it
+ * is, so that envelopes queued before compression was turned on, or by servers
+ * that don't compress, stay readable, and every codec can decode every entry
+ * whatever it compresses with.
+ */
+public class EnvelopeCodec {
+
+  public enum Compression {
+    NONE((byte) 0),
+    LZ4((byte) 1),
+    ZSTD((byte) 2);
+
+    private final byte id;
+
+    Compression(final byte id) {
+      this.id = id;
+    }
+  }
+
+  public static final EnvelopeCodec UNCOMPRESSED = new EnvelopeCodec(Compression.NONE, 0);
+
+  private static final byte COMPRESSED_MARKER = 0;
+  private static final int HEADER_LENGTH = 6;
+
+  // envelopes come from clients, and this bounds what a corrupt or crafted
+  // length field can make us allocate
+  private static final int MAX_UNCOMPRESSED_LENGTH = 1024 * 1024;
+
+  private static final int ZSTD_LEVEL = 3;
+
+  private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+  private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+  private static final String ENVELOPE_BYTES_COUNTER_NAME = name(EnvelopeCodec.class, "envelopeBytes");
+  private static final String STORED_BYTES_COUNTER_NAME = name(EnvelopeCodec.class, "storedBytes");
+  private static final String SKIPPED_COUNTER_NAME = name(EnvelopeCodec.class, "skipped");
+  private static final String COMPRESSION_TAG_NAME = "compression";
+  private static final String REASON_TAG_NAME = "reason";
+
+  private final Compression compression;
+  private final int threshold;
+
+  private final Counter envelopeBytesCounter;
+  private final Counter storedBytesCounter;
+  private final Counter belowThresholdCounter;
+  private final Counter incompressibleCounter;
+  private final DistributionSummary compressionRatioPercent;
+
+  /**
+   * @param compression the algorithm to compress envelopes with
+   * @param threshold the size in bytes below which envelopes are stored as they
+   *                  are, since small envelopes gain little and the header costs
+   *                  six bytes
+   */
+  public EnvelopeCodec(final Compression compression, final int threshold) {
+    this.compression = compression;
+    this.threshold = threshold;
+
+    final String compressionTag = compression.name().toLowerCase();
+
+    this.envelopeBytesCounter = Metrics.counter(ENVELOPE_BYTES_COUNTER_NAME, COMPRESSION_TAG_NAME, compressionTag);
+    this.storedBytesCounter = Metrics.counter(STORED_BYTES_COUNTER_NAME, COMPRESSION_TAG_NAME, compressionTag);
+    this.belowThresholdCounter = Metrics.counter(SKIPPED_COUNTER_NAME, COMPRESSION_TAG_NAME, compressionTag, REASON_TAG_NAME, "belowThreshold");
+    this.incompressibleCounter = Metrics.counter(SKIPPED_COUNTER_NAME, COMPRESSION_TAG_NAME, compressionTag, REASON_TAG_NAME, "incompressible");
+    this.compressionRatioPercent = DistributionSummary.builder(name(EnvelopeCodec.class, "compressionRatioPercent"))
+        .tag(COMPRESSION_TAG_NAME, compressionTag)
+        .publishPercentiles(0.5, 0.9)
+        .register(Metrics.globalRegistry);
+  }
+
+  public byte[] encode(final byte[] serializedEnvelope) {
+    if (compression == Compression.NONE) {
+      return serializedEnvelope;
+    }
+
+    envelopeBytesCounter.increment(serializedEnvelope.length);
+
+    if (serializedEnvelope.length < threshold) {
+      belowThresholdCounter.increment();
+      storedBytesCounter.increment(serializedEnvelope.length);
+
+      return serializedEnvelope;
+    }
+
+    final byte[] encoded = compress(serializedEnvelope);
+
+    if (encoded.length >= serializedEnvelope.length) {
+      // mostly ciphertext, which doesn't compress; the envelope is kept as it is
+      // so that reading it costs no decompression
+      incompressibleCounter.increment();
+      storedBytesCounter.increment(serializedEnvelope.length);
+
+      return serializedEnvelope;
+    }
+
+    compressionRatioPercent.record(100.0 * encoded.length / serializedEnvelope.length);
+    storedBytesCounter.increment(encoded.length);
+
+    return encoded;
+  }
+
+  public static byte[] decode(final byte[] encoded) throws InvalidProtocolBufferException {
+    if (encoded.length == 0 || encoded[0] != COMPRESSED_MARKER) {
+      return encoded;
+    }
+
+    if (encoded.length < HEADER_LENGTH) {
+      throw new InvalidProtocolBufferException("Truncated compressed envelope");
+    }
+
+    final int uncompressedLength = ((encoded[2] & 0xff) << 24) | ((encoded[3] & 0xff) << 16)
+        | ((encoded[4] & 0xff) << 8) | (encoded[5] & 0xff);
+
+    if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_LENGTH) {
+      throw new InvalidProtocolBufferException("Bad uncompressed envelope length: " + uncompressedLength);
+    }
+
+    final byte[] decoded = new byte[uncompressedLength];
+
+    if (encoded[1] == Compression.LZ4.id) {
+      try {
+        LZ4_DECOMPRESSOR.decompress(encoded, HEADER_LENGTH, decoded, 0, uncompressedLength);
+      } catch (final LZ4Exception e) {
+        throw new InvalidProtocolBufferException(e.getMessage());
+      }
+    } else if (encoded[1] == Compression.ZSTD.id) {
+      final long decodedLength = Zstd.decompressByteArray(decoded, 0, uncompressedLength,
+          encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH);
+
+      if (Zstd.isError(decodedLength) || decodedLength != uncompressedLength) {
+        throw new InvalidProtocolBufferException("Failed to decompress envelope");
+      }
+    } else {
+      throw new InvalidProtocolBufferException("Unknown envelope compression: " + encoded[1]);
+    }
+
+    return decoded;
+  }
+
+  private byte[] compress(final byte[] serializedEnvelope) {
+    final int length = serializedEnvelope.length;
+
+    if (length > MAX_UNCOMPRESSED_LENGTH) {
+      return serializedEnvelope;
+    }
+
+    final byte[] buffer;
+    final int compressedLength;
+
+    switch (compression) {
+      case LZ4:
+        buffer = new byte[HEADER_LENGTH + LZ4_COMPRESSOR.maxCompressedLength(length)];
+        compressedLength = LZ4_COMPRESSOR.compress(serializedEnvelope, 0, length, buffer, HEADER_LENGTH, buffer.length - HEADER_LENGTH);
+        break;
+
+      case ZSTD:
+        buffer = new byte[HEADER_LENGTH + (int) Zstd.compressBound(length)];
+        final long zstdLength = Zstd.compressByteArray(buffer, HEADER_LENGTH, buffer.length - HEADER_LENGTH,
+            serializedEnvelope, 0, length, ZSTD_LEVEL);
+
+        if (Zstd.isError(zstdLength)) {
+          return serializedEnvelope;
+        }
+
+        compressedLength = (int) zstdLength;
+        break;
+
+      default:
+        throw new AssertionError("Unexpected compression: " + compression);
+    }
+
+    buffer[0] = COMPRESSED_MARKER;
+    buffer[1] = compression.id;
+    buffer[2] = (byte) (length >>> 24);
+    buffer[3] = (byte) (length >>> 16);
+    buffer[4] = (byte) (length >>> 8);
+    buffer[5] = (byte) length;
+
+    return Arrays.copyOf(buffer, HEADER_LENGTH + compressedLength);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+
+import java.io.IOException;
+
+public class EnvelopeUtil {
+
+  private static final int EPHEMERAL_FIELD_NUMBER = Envelope.EPHEMERAL_FIELD_NUMBER;
+
+  /**
+   * Removes the ephemeral flag from a serialized envelope without parsing and
+   * re-serializing the rest of it. The result shares the bytes of the given
+   * envelope, so neither may be modified afterwards.
+   */
+  public static ByteString clearEphemeral(final ByteString serializedEnvelope) throws InvalidProtocolBufferException {
+    final CodedInputStream input = serializedEnvelope.newCodedInput();
+
+    ByteString result = ByteString.EMPTY;
+    int copiedUpTo = 0;
+
+    try {
+      while (!input.isAtEnd()) {
+        final int fieldStart = input.getTotalBytesRead();
+        final int tag = input.readTag();
+
+        if (!input.skipField(tag)) {
+          break;
+        }
+
+        if (WireFormat.getTagFieldNumber(tag) == EPHEMERAL_FIELD_NUMBER) {
+          result = result.concat(serializedEnvelope.substring(copiedUpTo, fieldStart));
+          copiedUpTo = input.getTotalBytesRead();
+        }
+      }
+    } catch (final InvalidProtocolBufferException e) {
+      throw e;
+    } catch (final IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+
+    return copiedUpTo == 0 ? serializedEnvelope : result.concat(serializedEnvelope.substring(copiedUpTo));
+  }
+}
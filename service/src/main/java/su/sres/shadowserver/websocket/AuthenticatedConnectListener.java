@@ -11,6 +11,7 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 
 import su.sres.shadowserver.auth.AuthenticatedAccount;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.push.ApnFallbackManager;
 import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.push.MessageSender;
@@ -46,18 +47,21 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
   private final ApnFallbackManager apnFallbackManager;
   private final ClientPresenceManager clientPresenceManager;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final MessageDeliveryConfiguration messageDeliveryConfiguration;
 
   public AuthenticatedConnectListener(ReceiptSender receiptSender,
       MessagesManager messagesManager,
       final MessageSender messageSender, ApnFallbackManager apnFallbackManager,
       ClientPresenceManager clientPresenceManager,
-      ScheduledExecutorService retrySchedulingExecutor) {
+      ScheduledExecutorService retrySchedulingExecutor,
+      MessageDeliveryConfiguration messageDeliveryConfiguration) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.messageSender = messageSender;
     this.apnFallbackManager = apnFallbackManager;
     this.clientPresenceManager = clientPresenceManager;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.messageDeliveryConfiguration = messageDeliveryConfiguration;
   }
 
   @Override
@@ -69,7 +73,8 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
       final WebSocketConnection connection = new WebSocketConnection(receiptSender,
           messagesManager, auth, device,
           context.getClient(),
-          retrySchedulingExecutor);
+          retrySchedulingExecutor,
+          messageDeliveryConfiguration);
 
       openWebsocketCounter.inc();
       try {
@@ -11,10 +11,13 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import su.sres.shadowserver.auth.AuthenticatedAccount;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.controllers.MessageController;
 import su.sres.shadowserver.controllers.NoSuchUserException;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
@@ -41,13 +44,19 @@ import su.sres.websocket.messages.WebSocketResponseMessage;
 
 import javax.ws.rs.WebApplicationException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
@@ -69,6 +78,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final Histogram primaryDeviceMessageTime = metricRegistry.histogram(name(MessageController.class, "primary_device_message_delivery_duration"));
   private static final Meter sendMessageMeter = metricRegistry.meter(name(WebSocketConnection.class, "send_message"));
   private static final Meter messageAvailableMeter = metricRegistry.meter(name(WebSocketConnection.class, "messagesAvailable")); 
+  private static final Meter localMessageMeter = metricRegistry.meter(name(WebSocketConnection.class, "localMessage"));
   private static final Meter messagesPersistedMeter = metricRegistry.meter(name(WebSocketConnection.class, "messagesPersisted"));
   private static final Meter bytesSentMeter = metricRegistry.meter(name(WebSocketConnection.class, "bytes_sent"));
   private static final Meter sendFailuresMeter = metricRegistry.meter(name(WebSocketConnection.class, "send_failures"));
@@ -80,6 +90,8 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final String QUEUE_DRAIN_RETRY_COUNTER_NAME = name(WebSocketConnection.class, "queueDrainRetry");
   private static final String DISPLACEMENT_COUNTER_NAME = name(WebSocketConnection.class, "displacement");
   private static final String NON_SUCCESS_RESPONSE_COUNTER_NAME = name(WebSocketConnection.class, "clientNonSuccessResponse");
+  private static final String SEND_WINDOW_OCCUPANCY_DISTRIBUTION_NAME = name(WebSocketConnection.class, "sendWindowOccupancy");
+  private static final String QUEUE_DRAIN_RATE_DISTRIBUTION_NAME = name(WebSocketConnection.class, "queueDrainRate");
   private static final String STATUS_CODE_TAG = "status";
   private static final String STATUS_MESSAGE_TAG = "message";
 
@@ -93,6 +105,10 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final long RETRY_DELAY_MILLIS = 1_000;
   private static final int RETRY_DELAY_JITTER_MILLIS = 500;
 
+  // a locally delivered message the client hasn't acknowledged by then gets
+  // queued, unless it's ephemeral
+  static final long LOCAL_MESSAGE_ACK_TIMEOUT_MILLIS = 30_000;
+
   private static final Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
 
   private final ReceiptSender receiptSender;
@@ -105,6 +121,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private final ScheduledExecutorService retrySchedulingExecutor;
 
   private final boolean isDesktopClient;
+  private final int sendWindow;
 
   private final Semaphore processStoredMessagesSemaphore = new Semaphore(1);
   private final AtomicReference<StoredMessageState> storedMessageState = new AtomicReference<>(StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE);
@@ -128,6 +145,16 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       Device device,
       WebSocketClient client,
       ScheduledExecutorService retrySchedulingExecutor) {
+    this(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor, new MessageDeliveryConfiguration());
+  }
+
+  public WebSocketConnection(ReceiptSender receiptSender,
+      MessagesManager messagesManager,
+      AuthenticatedAccount auth,
+      Device device,
+      WebSocketClient client,
+      ScheduledExecutorService retrySchedulingExecutor,
+      MessageDeliveryConfiguration messageDeliveryConfiguration) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.auth = auth;
@@ -144,6 +171,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
 
     this.isDesktopClient = maybePlatform.map(platform -> platform == ClientPlatform.DESKTOP).orElse(false);
+    this.sendWindow = messageDeliveryConfiguration.getSendWindow(maybePlatform.orElse(null));
   }
 
   public void start() {
@@ -161,26 +189,34 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     client.close(1000, "OK");
   }
 
-  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
+  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message) {
     // clear ephemeral field from the envelope
-    final Optional<byte[]> body = Optional.ofNullable(message.toBuilder().clearEphemeral().build().toByteArray());
+    final ByteString body = message.hasEphemeral() ? message.toBuilder().clearEphemeral().build().toByteString() : message.toByteString();
+
+    return sendMessage(body, message.getType(), message.getTimestamp(), message.hasSource() ? message.getSourceUuid() : null);
+  }
 
+  /**
+   * Sends a serialized envelope to the client, and a delivery receipt to its
+   * sender once the client acknowledges it.
+   */
+  private CompletableFuture<WebSocketResponseMessage> sendMessage(final ByteString body, final Envelope.Type type, final long timestamp,
+      final String receiptSourceUuid) {
     sendMessageMeter.mark();
     sentMessageCounter.increment();
-    bytesSentMeter.mark(body.map(bytes -> bytes.length).orElse(0));
+    bytesSentMeter.mark(body.size());
 
     // X-Signal-Key: false must be sent until Android stops assuming it missing
     // means true
     return client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false", TimestampHeaderUtil.getTimestampHeader()), body).whenComplete((response, throwable) -> {
       if (throwable == null) {
         if (isSuccessResponse(response)) {
-          if (storedMessageInfo.isPresent()) {
-            messagesManager.delete(auth.getAccount().getUuid(), device.getId(), storedMessageInfo.get().getGuid());
-          }
+          if (type != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
+            recordMessageDeliveryDuration(timestamp, device);
 
-          if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
-            recordMessageDeliveryDuration(message.getTimestamp(), device);
-            sendDeliveryReceiptFor(message);
+            if (receiptSourceUuid != null) {
+              sendDeliveryReceiptFor(receiptSourceUuid, timestamp);
+            }
           }
         } else {
           final List<Tag> tags = new ArrayList<>(
@@ -208,18 +244,15 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendDeliveryReceiptFor(Envelope message) {
-    if (!message.hasSource())
-      return;
-
+  private void sendDeliveryReceiptFor(String sourceUuid, long timestamp) {
     try {
-      receiptSender.sendReceipt(auth, UUID.fromString(message.getSourceUuid()), message.getTimestamp());
+      receiptSender.sendReceipt(auth, UUID.fromString(sourceUuid), timestamp);
     } catch (NoSuchUserException e) {
       logger.info("No longer registered: {}", e.getMessage());
     } catch (WebApplicationException e) {
       logger.warn("Bad federated response for receipt: {}", e.getResponse().getStatus());
     } catch (IllegalArgumentException e) {
-      logger.error("Could not parse UUID: {}", message.getSourceUuid());
+      logger.error("Could not parse UUID: {}", sourceUuid);
     }
   }
 
@@ -233,7 +266,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final StoredMessageState state = storedMessageState.getAndSet(StoredMessageState.EMPTY);
       final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
 
-      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture);
+      new StoredMessageDrain(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture).drain();
 
       queueClearedFuture.whenComplete((v, cause) -> {
         if (cause == null) {
@@ -284,70 +317,301 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendNextMessagePage(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
-    try {
-      final OutgoingMessageEntityList messages = messagesManager
-          .getMessagesForDevice(auth.getAccount().getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly);
-
-      final CompletableFuture<?>[] sendFutures = new CompletableFuture[messages.getMessages().size()];
-
-      for (int i = 0; i < messages.getMessages().size(); i++) {
-        final OutgoingMessageEntity message = messages.getMessages().get(i);
-        final Envelope.Builder builder = Envelope.newBuilder()
-            .setType(Envelope.Type.valueOf(message.getType()))
-            .setTimestamp(message.getTimestamp())
-            .setServerTimestamp(message.getServerTimestamp());
-
-        if (!Util.isEmpty(message.getSource())) {
-          builder.setSource(message.getSource())
-              .setSourceDevice(message.getSourceDevice());
-          if (message.getSourceUuid() != null) {
-            builder.setSourceUuid(message.getSourceUuid().toString());
-          }
+  /**
+   * Sends the stored messages of a queue, keeping up to a window of them in
+   * flight rather than waiting for a whole page to be acknowledged. The next page
+   * is read as soon as the current one has been sent, while its last messages
+   * still await acknowledgement. Acknowledged messages are deleted before every
+   * read, and whatever a read returns that has already been sent is skipped.
+   * <p>
+   * Sends complete on whatever thread the client's responses arrive on, so the
+   * drain's state is only ever touched by the one thread running {@link #drain()}
+   * at a time.
+   */
+  private class StoredMessageDrain {
+
+    private final boolean cachedMessagesOnly;
+    private final CompletableFuture<Void> queueClearedFuture;
+
+    private final long startTime = System.currentTimeMillis();
+    private final DistributionSummary windowOccupancy;
+    private final List<Tag> tags;
+
+    private final AtomicInteger pendingWork = new AtomicInteger();
+    private final Queue<SendResult> sendResults = new ConcurrentLinkedQueue<>();
+    private final Queue<ReadResult> readResults = new ConcurrentLinkedQueue<>();
+
+    // messages read so far; a read may return them again until they're deleted
+    private final Set<UUID> readGuids = new HashSet<>();
+    private final Deque<OutgoingMessageEntity> unsentMessages = new ArrayDeque<>();
+    private final List<OutgoingMessageEntity> acknowledgedMessages = new ArrayList<>();
+
+    private int inFlight;
+    private int sent;
+    private boolean hasMore = true;
+    private boolean reading;
+    private boolean stalled;
+    private Throwable failure;
+    private boolean finished;
+
+    private StoredMessageDrain(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
+      this.cachedMessagesOnly = cachedMessagesOnly;
+      this.queueClearedFuture = queueClearedFuture;
+
+      this.tags = List.of(UserAgentTagUtil.getPlatformTag(client.getUserAgent()));
+      this.windowOccupancy = Metrics.summary(SEND_WINDOW_OCCUPANCY_DISTRIBUTION_NAME, tags);
+    }
+
+    void drain() {
+      if (pendingWork.getAndIncrement() != 0) {
+        return;
+      }
+
+      do {
+        advance();
+      } while (pendingWork.decrementAndGet() != 0);
+    }
+
+    private void advance() {
+      while (!finished) {
+        collectSendResults();
+        collectReadResult();
+
+        if (failure == null) {
+          sendWithinWindow();
         }
 
-        if (message.getMessage() != null) {
-          builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+        if (failure != null) {
+          // whatever is still in flight may yet be acknowledged
+          if (inFlight == 0 && !reading) {
+            finish(failure);
+          }
+
+          return;
         }
 
-        if (message.getContent() != null) {
-          builder.setContent(ByteString.copyFrom(message.getContent()));
+        if (!unsentMessages.isEmpty() || reading) {
+          return;
         }
 
-        if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-          builder.setRelay(message.getRelay());
+        if (hasMore && (!stalled || inFlight == 0)) {
+          readNextPage();
+        } else {
+          if (!hasMore && inFlight == 0) {
+            finish(null);
+          }
+
+          return;
         }
+      }
+    }
 
-        builder.setServerGuid(message.getGuid().toString());
+    private void collectSendResults() {
+      SendResult result;
 
-        final Envelope envelope = builder.build();
+      while ((result = sendResults.poll()) != null) {
+        inFlight--;
 
-        if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
-          messagesManager.delete(auth.getAccount().getUuid(), device.getId(), message.getGuid());
-          discardedMessagesMeter.mark();
+        if (result.acknowledged) {
+          acknowledgedMessages.add(result.message);
+        } else if (result.cause != null && failure == null) {
+          failure = result.cause;
+        }
+      }
 
-          sendFutures[i] = CompletableFuture.completedFuture(null);
-        } else {
-          sendFutures[i] = sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getGuid())));
+      if (acknowledgedMessages.size() >= sendWindow) {
+        try {
+          deleteAcknowledgedMessages();
+        } catch (final Exception e) {
+          failure = e;
         }
       }
+    }
 
-      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
-        if (cause == null) {
-          if (messages.hasMore()) {
-            sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
-          } else {
-            queueClearedFuture.complete(null);
+    private void sendWithinWindow() {
+      while (inFlight < sendWindow && !unsentMessages.isEmpty()) {
+        final OutgoingMessageEntity message = unsentMessages.poll();
+
+        try {
+          // stored envelopes go out as the store serialized them, when it did
+          final ByteString envelope = message.getEnvelope().orElseGet(() -> buildEnvelope(message).toByteString());
+
+          if (envelope.size() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
+            acknowledgedMessages.add(message);
+            discardedMessagesMeter.mark();
+
+            continue;
           }
-        } else {
-          queueClearedFuture.completeExceptionally(cause);
+
+          final String receiptSourceUuid = !Util.isEmpty(message.getSource()) && message.getSourceUuid() != null
+              ? message.getSourceUuid().toString()
+              : null;
+
+          inFlight++;
+          sent++;
+          windowOccupancy.record(inFlight);
+
+          sendMessage(envelope, Envelope.Type.forNumber(message.getType()), message.getTimestamp(), receiptSourceUuid)
+              .whenComplete((response, throwable) -> {
+                sendResults.add(new SendResult(message, throwable == null && isSuccessResponse(response), throwable));
+                drain();
+              });
+        } catch (final Exception e) {
+          failure = e;
+          return;
         }
+      }
+    }
+
+    private void readNextPage() {
+      final CompletableFuture<OutgoingMessageEntityList> page;
+
+      try {
+        deleteAcknowledgedMessages();
+
+        // the page is read without holding this thread; its result is picked up
+        // by whichever thread drives the drain next
+        page = messagesManager
+            .getMessagesForDeviceAsync(auth.getAccount().getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly);
+      } catch (final Exception e) {
+        failure = e;
+        return;
+      }
+
+      reading = true;
+
+      page.whenComplete((messages, throwable) -> {
+        readResults.add(new ReadResult(messages, throwable));
+        drain();
       });
-    } catch (final Exception e) {
-      queueClearedFuture.completeExceptionally(e);
+    }
+
+    private void collectReadResult() {
+      final ReadResult result = readResults.poll();
+
+      if (result == null) {
+        return;
+      }
+
+      reading = false;
+
+      if (result.cause != null) {
+        if (failure == null) {
+          failure = result.cause;
+        }
+
+        return;
+      }
+
+      for (final OutgoingMessageEntity message : result.messages.getMessages()) {
+        if (readGuids.add(message.getGuid())) {
+          unsentMessages.add(message);
+        }
+      }
+
+      hasMore = result.messages.hasMore();
+
+      // a page made up of messages in flight; wait for them to be acknowledged
+      // and deleted before reading again
+      stalled = unsentMessages.isEmpty() && hasMore;
+
+      if (stalled && inFlight == 0 && failure == null) {
+        // the messages at the head of the queue were sent but not acknowledged,
+        // so reading again would only return them again
+        failure = new IllegalStateException("Unacknowledged messages fill a page");
+      }
+    }
+
+    private void deleteAcknowledgedMessages() {
+      if (!acknowledgedMessages.isEmpty()) {
+        messagesManager.deleteMessages(auth.getAccount().getUuid(), device.getId(), new ArrayList<>(acknowledgedMessages));
+        acknowledgedMessages.clear();
+      }
+    }
+
+    private void finish(final Throwable failure) {
+      Throwable cause = failure;
+      finished = true;
+
+      // whatever the client did acknowledge gets deleted even if the drain as a
+      // whole failed, so that it isn't sent again on retry
+      try {
+        deleteAcknowledgedMessages();
+      } catch (final Exception e) {
+        if (cause == null) {
+          cause = e;
+        }
+      }
+
+      if (sent > 0) {
+        final long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        Metrics.summary(QUEUE_DRAIN_RATE_DISTRIBUTION_NAME, tags).record(sent * 1000.0 / duration);
+      }
+
+      if (cause == null) {
+        queueClearedFuture.complete(null);
+      } else {
+        queueClearedFuture.completeExceptionally(cause);
+      }
     }
   }
 
+  private static class SendResult {
+
+    private final OutgoingMessageEntity message;
+    private final boolean acknowledged;
+    private final Throwable cause;
+
+    private SendResult(final OutgoingMessageEntity message, final boolean acknowledged, final Throwable cause) {
+      this.message = message;
+      this.acknowledged = acknowledged;
+      this.cause = cause;
+    }
+  }
+
+  private static class ReadResult {
+
+    private final OutgoingMessageEntityList messages;
+    private final Throwable cause;
+
+    private ReadResult(final OutgoingMessageEntityList messages, final Throwable cause) {
+      this.messages = messages;
+      this.cause = cause;
+    }
+  }
+
+  private static Envelope buildEnvelope(final OutgoingMessageEntity message) {
+    final Envelope.Builder builder = Envelope.newBuilder()
+        .setType(Envelope.Type.valueOf(message.getType()))
+        .setTimestamp(message.getTimestamp())
+        .setServerTimestamp(message.getServerTimestamp());
+
+    if (!Util.isEmpty(message.getSource())) {
+      builder.setSource(message.getSource())
+          .setSourceDevice(message.getSourceDevice());
+      if (message.getSourceUuid() != null) {
+        builder.setSourceUuid(message.getSourceUuid().toString());
+      }
+    }
+
+    // the entity's arrays are never modified, so the envelope may share them
+    if (message.getMessage() != null) {
+      builder.setLegacyMessage(UnsafeByteOperations.unsafeWrap(message.getMessage()));
+    }
+
+    if (message.getContent() != null) {
+      builder.setContent(UnsafeByteOperations.unsafeWrap(message.getContent()));
+    }
+
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
+    }
+
+    builder.setServerGuid(message.getGuid().toString());
+
+    return builder.build();
+  }
+
   @Override
   public void handleNewMessagesAvailable() {
     messageAvailableMeter.mark();
@@ -365,21 +629,25 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     processStoredMessages();
   }
 
+  @Override
+  public CompletableFuture<Boolean> handleLocalMessage(final Envelope message) {
+    if (!client.isOpen() || (isDesktopClient && message.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE)) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    localMessageMeter.mark();
+
+    // the send fails if the connection closes before the client responds, and
+    // times out with a TimeoutException if the client doesn't respond at all
+    return sendMessage(message)
+        .orTimeout(LOCAL_MESSAGE_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+        .thenApply(this::isSuccessResponse);
+  }
+
   @Override
   public void handleDisplacement() {
     Metrics.counter(DISPLACEMENT_COUNTER_NAME, List.of(UserAgentTagUtil.getPlatformTag(client.getUserAgent()))).increment();
     client.hardDisconnectQuietly();
   }
 
-  private static class StoredMessageInfo {
-    private final UUID guid;
-
-    public StoredMessageInfo(UUID guid) {
-      this.guid = guid;
-    }
-
-    public UUID getGuid() {
-      return guid;
-    }
-  }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.workers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+
+import io.dropwizard.Application;
+import io.dropwizard.cli.EnvironmentCommand;
+import io.dropwizard.setup.Environment;
+import net.sourceforge.argparse4j.inf.Namespace;
+import su.sres.shadowserver.WhisperServerConfiguration;
+import su.sres.shadowserver.configuration.CqlConfiguration;
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
+import su.sres.shadowserver.storage.KeysCql;
+import su.sres.shadowserver.storage.MessagesCql;
+import su.sres.shadowserver.util.CqlSessionFromConfig;
+
+public class CreateCqlTablesCommand extends EnvironmentCommand<WhisperServerConfiguration> {
+
+  private final Logger logger = LoggerFactory.getLogger(CreateCqlTablesCommand.class);
+
+  public CreateCqlTablesCommand() {
+    super(new Application<WhisperServerConfiguration>() {
+      @Override
+      public void run(WhisperServerConfiguration configuration, Environment environment)
+          throws Exception {
+
+      }
+    }, "createcqltables", "Creates the CQL keyspace and the messages and keys tables");
+  }
+
+  @Override
+  protected void run(Environment environment, Namespace namespace,
+      WhisperServerConfiguration config)
+      throws Exception {
+
+    environment.getObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    ScyllaDbConfiguration scyllaConfig = config.getScyllaDbConfiguration();
+    CqlConfiguration cqlConfig = scyllaConfig.getCqlConfiguration();
+
+    String keyspace = cqlConfig.getKeyspace();
+
+    try (CqlSession session = CqlSessionFromConfig.builder(cqlConfig).build()) {
+
+      logger.info("Creating the " + keyspace + " keyspace...");
+
+      session.execute("CREATE KEYSPACE IF NOT EXISTS " + keyspace
+          + " WITH replication = {'class': 'NetworkTopologyStrategy', '" + cqlConfig.getLocalDatacenter() + "': "
+          + cqlConfig.getReplicationFactor() + "}");
+
+      logger.info("Creating the messages and keys tables...");
+
+      session.execute(String.format(MessagesCql.CREATE_TABLE, keyspace + "." + scyllaConfig.getMessagesTableName()));
+      session.execute(String.format(KeysCql.CREATE_TABLE, keyspace + "." + scyllaConfig.getKeysTableName()));
+
+      logger.info("Done");
+    }
+  }
+}
@@ -44,15 +44,16 @@ import su.sres.shadowserver.storage.Accounts;
 import su.sres.shadowserver.storage.DeletedAccounts;
 import su.sres.shadowserver.storage.DirectoryManager;
 import su.sres.shadowserver.storage.FaultTolerantDatabase;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.KeysManager;
 import su.sres.shadowserver.storage.MessagesCache;
 import su.sres.shadowserver.storage.MessagesManager;
-import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.MessageStore;
 import su.sres.shadowserver.storage.Profiles;
 import su.sres.shadowserver.storage.ProfilesManager;
 import su.sres.shadowserver.storage.ReportMessageManager;
 import su.sres.shadowserver.storage.ReportMessageScyllaDb;
 import su.sres.shadowserver.storage.ReservedUsernames;
+import su.sres.shadowserver.storage.ScyllaDbStores;
 import su.sres.shadowserver.storage.StoredVerificationCodeManager;
 import su.sres.shadowserver.storage.Usernames;
 import su.sres.shadowserver.storage.UsernamesManager;
@@ -88,6 +89,8 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
   protected void run(Environment environment, Namespace namespace,
       WhisperServerConfiguration configuration)
       throws Exception {
+    ScyllaDbStores scyllaDbStores = null;
+
     try {
       String[] users = namespace.getString("user").split(",");
       int amount = users.length;
@@ -181,13 +184,14 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_add_command", configuration.getDirectoryConfiguration().getUrl(), configuration.getDirectoryConfiguration().getReplicaUrls(), configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration())
           .getRedisClientPool();
 
-      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize());
+      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize(), scyllaConfig.getAccountWriteFormat());
       VerificationCodeStore pendingAccounts = new VerificationCodeStore(scyllaDbClient, scyllaConfig.getPendingAccountsTableName());
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      scyllaDbStores = new ScyllaDbStores(scyllaConfig, scyllaDbClient);
+      KeysManager keysManager = scyllaDbStores.buildKeysManager(cacheCluster, null);
+      MessageStore messageStore = scyllaDbStores.getMessageStore();
 
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
@@ -206,9 +210,9 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messageStore, messagesCache, pushLatencyManager, reportMessageManager);
 
-      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
+      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysManager, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
 
       for (String user : users) {
         Optional<UUID> oUUID = deletedAccounts.findUuid(user);
@@ -246,6 +250,10 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
     } catch (Exception ex) {
       logger.warn("Adding Exception", ex);
       throw new RuntimeException(ex);
+    } finally {
+      if (scyllaDbStores != null) {
+        scyllaDbStores.close();
+      }
     }
   }
 
@@ -39,15 +39,16 @@ import su.sres.shadowserver.storage.Accounts;
 import su.sres.shadowserver.storage.DeletedAccounts;
 import su.sres.shadowserver.storage.DirectoryManager;
 import su.sres.shadowserver.storage.FaultTolerantDatabase;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.KeysManager;
 import su.sres.shadowserver.storage.MessagesCache;
 import su.sres.shadowserver.storage.MessagesManager;
-import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.MessageStore;
 import su.sres.shadowserver.storage.Profiles;
 import su.sres.shadowserver.storage.ProfilesManager;
 import su.sres.shadowserver.storage.ReportMessageManager;
 import su.sres.shadowserver.storage.ReportMessageScyllaDb;
 import su.sres.shadowserver.storage.ReservedUsernames;
+import su.sres.shadowserver.storage.ScyllaDbStores;
 import su.sres.shadowserver.storage.StoredVerificationCodeManager;
 import su.sres.shadowserver.storage.Usernames;
 import su.sres.shadowserver.storage.UsernamesManager;
@@ -82,6 +83,8 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
   protected void run(Environment environment, Namespace namespace,
       WhisperServerConfiguration configuration)
       throws Exception {
+    ScyllaDbStores scyllaDbStores = null;
+
     try {
       String[] users = namespace.getString("user").split(",");
 
@@ -103,12 +106,13 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
       DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());      
       VerificationCodeStore pendingAccounts = new VerificationCodeStore(scyllaDbClient, scyllaConfig.getPendingAccountsTableName());
            
-      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(),scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize());
+      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(),scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize(), scyllaConfig.getAccountWriteFormat());
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      scyllaDbStores = new ScyllaDbStores(scyllaConfig, scyllaDbClient);
+      KeysManager keysManager = scyllaDbStores.buildKeysManager(cacheCluster, null);
+      MessageStore messageStore = scyllaDbStores.getMessageStore();
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_delete_command", configuration.getDirectoryConfiguration().getUrl(), configuration.getDirectoryConfiguration().getReplicaUrls(), configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration())
@@ -126,19 +130,11 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
       ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);           
       
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messageStore, messagesCache, pushLatencyManager, reportMessageManager);
       DirectoryManager directory = new DirectoryManager(redisClient);
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
-      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
-
-      if (accountsManager.getAccountCreationLock() ||
-          directory.getDirectoryReadLock() ||
-          accountsManager.getDirectoryRestoreLock()) {
-
-        logger.warn("There's a pending operation on directory right now, please try again a bit later");
-        return;
-      }
+      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysManager, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
 
       HashSet<Account> accountsToDelete = new HashSet<Account>();
 
@@ -161,6 +157,10 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
     } catch (Exception ex) {
       logger.warn("Removal Exception!", ex);
       throw new RuntimeException(ex);
+    } finally {
+      if (scyllaDbStores != null) {
+        scyllaDbStores.close();
+      }
     }
   }
 }
@@ -36,15 +36,16 @@ import su.sres.shadowserver.storage.Accounts;
 import su.sres.shadowserver.storage.DeletedAccounts;
 import su.sres.shadowserver.storage.DirectoryManager;
 import su.sres.shadowserver.storage.FaultTolerantDatabase;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.KeysManager;
 import su.sres.shadowserver.storage.MessagesCache;
 import su.sres.shadowserver.storage.MessagesManager;
-import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.MessageStore;
 import su.sres.shadowserver.storage.Profiles;
 import su.sres.shadowserver.storage.ProfilesManager;
 import su.sres.shadowserver.storage.ReportMessageManager;
 import su.sres.shadowserver.storage.ReportMessageScyllaDb;
 import su.sres.shadowserver.storage.ReservedUsernames;
+import su.sres.shadowserver.storage.ScyllaDbStores;
 import su.sres.shadowserver.storage.StoredVerificationCodeManager;
 import su.sres.shadowserver.storage.Usernames;
 import su.sres.shadowserver.storage.UsernamesManager;
@@ -68,6 +69,8 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
   @Override
   protected void run(Environment environment, Namespace namespace, WhisperServerConfiguration configuration)
       throws Exception {
+    ScyllaDbStores scyllaDbStores = null;
+
     try {
       environment.getObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
@@ -96,12 +99,13 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster,
           Executors.newSingleThreadScheduledExecutor(), keyspaceNotificationDispatchExecutor);
           
-      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize());
+      Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize(), scyllaConfig.getAccountWriteFormat());
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      scyllaDbStores = new ScyllaDbStores(scyllaConfig, scyllaDbClient);
+      KeysManager keysManager = scyllaDbStores.buildKeysManager(cacheCluster, null);
+      MessageStore messageStore = scyllaDbStores.getMessageStore();
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_directory_command",
@@ -118,26 +122,23 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);
             
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messageStore, messagesCache, pushLatencyManager, reportMessageManager);
 
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
-      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
+      AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysManager, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
 
       PlainDirectoryUpdater updater = new PlainDirectoryUpdater(accountsManager);
 
-      if (accountsManager.getAccountCreationLock() || directory.getDirectoryReadLock()
-          || accountsManager.getDirectoryRestoreLock()) {
-
-        logger.warn("There's a pending operation on directory right now, please try again a bit later");
-        return;
-      }
-
       updater.updateFromLocalDatabase();
 
     } catch (Exception ex) {
       logger.warn("Directory Exception", ex);
       throw new RuntimeException(ex);
+    } finally {
+      if (scyllaDbStores != null) {
+        scyllaDbStores.close();
+      }
     }
   }
 }
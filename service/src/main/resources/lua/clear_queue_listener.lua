@@ -0,0 +1,9 @@
+local queueListenerKey = KEYS[1]
+local serverId         = ARGV[1]
+
+if redis.call("GET", queueListenerKey) == serverId then
+    redis.call("DEL", queueListenerKey)
+    return 1
+end
+
+return 0
\ No newline at end of file
@@ -1,9 +1,11 @@
 local queueKey           = KEYS[1]
 local queueMetadataKey   = KEYS[2]
 local queueTotalIndexKey = KEYS[3]
+local queueListenerKey   = KEYS[4]
 local message            = ARGV[1]
 local currentTime        = ARGV[2]
 local guid               = ARGV[3]
+local queueName          = ARGV[4]
 
 if redis.call("HEXISTS", queueMetadataKey, guid) == 1 then
     return tonumber(redis.call("HGET", queueMetadataKey, guid))
@@ -19,4 +21,12 @@ redis.call("EXPIRE", queueKey, 7776000)         -- 90 days
 redis.call("EXPIRE", queueMetadataKey, 7776000) -- 90 days
 
 redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
+
+-- let the server the device is connected to know, if it asked to be told directly
+local listeningServer = redis.call("GET", queueListenerKey)
+
+if listeningServer then
+    redis.call("PUBLISH", "message_availability::" .. listeningServer, "new:" .. queueName)
+end
+
 return messageId
\ No newline at end of file
@@ -0,0 +1,12 @@
+local poolKey       = KEYS[1]
+local generationKey = KEYS[2]
+local generation    = ARGV[1]
+local preKey        = ARGV[2]
+
+-- the pool has been cleared since the refill started, so the key may be one
+-- the device has discarded since
+if (redis.call("GET", generationKey) or "0") ~= generation then
+    return -1
+end
+
+return redis.call("RPUSH", poolKey, preKey)
@@ -0,0 +1,13 @@
+local countsKey     = KEYS[1]
+local deviceId      = ARGV[1]
+local expectedCount = ARGV[2]
+local count         = ARGV[3]
+
+-- a count that changed since it was read was updated by a store or take the
+-- reconciliation may have missed, so it is left for the next one
+if (redis.call("HGET", countsKey, deviceId) or "") ~= expectedCount then
+    return 0
+end
+
+redis.call("HSET", countsKey, deviceId, count)
+return 1
@@ -0,0 +1,12 @@
+local presenceKey     = KEYS[1]
+local managerId       = ARGV[1]
+local displacePrefix  = ARGV[2]
+
+local displacedManagerId = redis.call("GET", presenceKey)
+
+redis.call("SET", presenceKey, managerId)
+
+-- tell the manager holding the presence until now that its client was displaced
+if displacedManagerId and displacedManagerId ~= managerId then
+    redis.call("PUBLISH", "presence::manager::" .. displacedManagerId, displacePrefix .. presenceKey)
+end
\ No newline at end of file
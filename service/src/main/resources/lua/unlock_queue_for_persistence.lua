@@ -0,0 +1,11 @@
+local persistInProgressKey = KEYS[1]
+local queueListenerKey     = KEYS[2]
+local queueName            = ARGV[1]
+
+redis.call("DEL", persistInProgressKey)
+
+local listeningServer = redis.call("GET", queueListenerKey)
+
+if listeningServer then
+    redis.call("PUBLISH", "message_availability::" .. listeningServer, "persisted:" .. queueName)
+end
\ No newline at end of file
@@ -1,30 +1,53 @@
+-- Takes permits from a leaky bucket, or just checks whether it has them (dry run).
+-- Buckets are stored as hashes holding the space remaining ("s") and the time of
+-- the last update ("t"); the bucket size and leak rate always come from the
+-- current configuration. Buckets written by older versions as JSON strings are
+-- read as they are and converted on the first update. A negative amount gives
+-- permits back, e.g. the unused part of a lease.
+--
+-- Returns 0 if the permits are available, -1 if the amount exceeds the bucket
+-- size, and otherwise the number of milliseconds until enough space leaks out.
+
 local bucketId = KEYS[1]
 
 local bucketSize = tonumber(ARGV[1])
 local leakRatePerMillis = tonumber(ARGV[2])
 local currentTimeMillis = tonumber(ARGV[3])
 local amount = tonumber(ARGV[4])
+local ttlSeconds = tonumber(ARGV[5])
+local dryRun = ARGV[6] == "1"
 
-local leakyBucket
+local spaceRemaining = bucketSize
+local lastUpdateTimeMillis = currentTimeMillis
 
-if redis.call("EXISTS", bucketId) == 1 then
-    leakyBucket = cjson.decode(redis.call("GET", bucketId))
-else
-    leakyBucket = {
-        bucketSize = bucketSize,
-        leakRatePerMillis = leakRatePerMillis,
-        spaceRemaining = bucketSize,
-        lastUpdateTimeMillis = currentTimeMillis
-    }
+local bucketType = redis.call("TYPE", bucketId)["ok"]
+
+if bucketType == "hash" then
+    local fields = redis.call("HMGET", bucketId, "s", "t")
+    spaceRemaining = tonumber(fields[1])
+    lastUpdateTimeMillis = tonumber(fields[2])
+elseif bucketType == "string" then
+    local legacyBucket = cjson.decode(redis.call("GET", bucketId))
+    spaceRemaining = legacyBucket["spaceRemaining"]
+    lastUpdateTimeMillis = legacyBucket["lastUpdateTimeMillis"]
 end
 
-local elapsedTime = currentTimeMillis - leakyBucket["lastUpdateTimeMillis"]
-local updatedSpaceRemaining = math.min(leakyBucket["bucketSize"], math.floor(leakyBucket["spaceRemaining"] + (elapsedTime * leakyBucket["leakRatePerMillis"])))
+local elapsedTime = currentTimeMillis - lastUpdateTimeMillis
+local updatedSpaceRemaining = math.min(bucketSize, math.floor(spaceRemaining + (elapsedTime * leakRatePerMillis)))
 
 if updatedSpaceRemaining >= amount then
-    leakyBucket["spaceRemaining"] = updatedSpaceRemaining - amount
-    redis.call("SET", bucketId, cjson.encode(leakyBucket))
-    return true
+    if not dryRun then
+        if bucketType == "string" then
+            redis.call("DEL", bucketId)
+        end
+
+        redis.call("HMSET", bucketId, "s", updatedSpaceRemaining - amount, "t", currentTimeMillis)
+        redis.call("EXPIRE", bucketId, ttlSeconds)
+    end
+
+    return 0
+elseif amount > bucketSize then
+    return -1
 else
-    return false
-end
\ No newline at end of file
+    return math.ceil((amount - updatedSpaceRemaining) / leakRatePerMillis)
+end
@@ -32,6 +32,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import io.dropwizard.auth.PolymorphicAuthValueFactoryProvider;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
@@ -51,16 +52,19 @@ import su.sres.shadowserver.mappers.ServerRejectedExceptionMapper;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.Device;
-import su.sres.shadowserver.storage.KeysScyllaDb;
+import su.sres.shadowserver.storage.KeysManager;
 import su.sres.shadowserver.util.AccountsHelper;
 import su.sres.shadowserver.util.AuthHelper;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -91,7 +95,7 @@ class KeysControllerTest {
   private final SignedPreKey SAMPLE_SIGNED_KEY3 = new SignedPreKey(3333, "barfoo", "sig33");
   private final SignedPreKey VALID_DEVICE_SIGNED_KEY = new SignedPreKey(89898, "zoofarb", "sigvalid");
 
-  private static final KeysScyllaDb keysScyllaDb = mock(KeysScyllaDb.class);
+  private static final KeysManager keysManager = mock(KeysManager.class);
   private static final AccountsManager accounts = mock(AccountsManager.class);
   private final static PreKeyRateLimiter           preKeyRateLimiter           = mock(PreKeyRateLimiter.class          );
   private final static RateLimitChallengeManager   rateLimitChallengeManager   = mock(RateLimitChallengeManager.class  );
@@ -108,7 +112,7 @@ class KeysControllerTest {
       .addResource(new RateLimitChallengeExceptionMapper(rateLimitChallengeManager))
       .addResource(new ServerRejectedExceptionMapper())
       .addResource(
-          new KeysController(rateLimiters, keysScyllaDb, accounts, preKeyRateLimiter, rateLimitChallengeManager))
+          new KeysController(rateLimiters, keysManager, accounts, preKeyRateLimiter, rateLimitChallengeManager))
       .build();
 
 
@@ -167,14 +171,14 @@ class KeysControllerTest {
     
     when(rateLimiters.getPreKeysLimiter()).thenReturn(rateLimiter);
 
-    when(keysScyllaDb.take(eq(existsAccount), eq(1L))).thenReturn(Optional.of(SAMPLE_KEY));
+    when(keysManager.takeAsync(any(Account.class), anyLong())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(keysManager.takeAsync(eq(existsAccount), eq(1L))).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY)));
 
-    when(keysScyllaDb.take(existsAccount)).thenReturn(Map.of(1L, SAMPLE_KEY,
+    when(keysManager.takeAsync(eq(existsAccount), anyCollection())).thenReturn(CompletableFuture.completedFuture(Map.of(1L, SAMPLE_KEY,
         2L, SAMPLE_KEY2,
-        3L, SAMPLE_KEY3,
-        4L, SAMPLE_KEY4));
+        4L, SAMPLE_KEY4)));
 
-    when(keysScyllaDb.getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L))).thenReturn(5);
+    when(keysManager.getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L))).thenReturn(5);
 
     when(AuthHelper.VALID_DEVICE.getSignedPreKey()).thenReturn(VALID_DEVICE_SIGNED_KEY);
     when(AuthHelper.VALID_ACCOUNT.getIdentityKey()).thenReturn(null);
@@ -183,7 +187,7 @@ class KeysControllerTest {
   @AfterEach
   void teardown() {
     reset(
-        keysScyllaDb,
+        keysManager,
         accounts,       
         preKeyRateLimiter,
         existsAccount,
@@ -202,7 +206,7 @@ class KeysControllerTest {
 
     assertThat(result.getCount()).isEqualTo(4);
 
-    verify(keysScyllaDb).getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L));
+    verify(keysManager).getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L));
   }  
 
   @Test
@@ -251,8 +255,8 @@ class KeysControllerTest {
     assertThat(result.getDevice(1).getPreKey().getPublicKey()).isEqualTo(SAMPLE_KEY.getPublicKey());
     assertThat(result.getDevice(1).getSignedPreKey()).isEqualTo(existsAccount.getDevice(1).get().getSignedPreKey());
 
-    verify(keysScyllaDb).take(eq(existsAccount), eq(1L));
-    verifyNoMoreInteractions(keysScyllaDb);
+    verify(keysManager).takeAsync(eq(existsAccount), eq(1L));
+    verifyNoMoreInteractions(keysManager);
   }
 
   @Test
@@ -268,8 +272,8 @@ class KeysControllerTest {
     assertThat(result.getDevice(1).getPreKey().getPublicKey()).isEqualTo(SAMPLE_KEY.getPublicKey());
     assertThat(result.getDevice(1).getSignedPreKey()).isEqualTo(existsAccount.getDevice(1).get().getSignedPreKey());
 
-    verify(keysScyllaDb).take(eq(existsAccount), eq(1L));
-    verifyNoMoreInteractions(keysScyllaDb);
+    verify(keysManager).takeAsync(eq(existsAccount), eq(1L));
+    verifyNoMoreInteractions(keysManager);
   }
   
   @Test
@@ -293,7 +297,7 @@ class KeysControllerTest {
         .header(OptionalAccess.UNIDENTIFIED, AuthHelper.getUnidentifiedAccessHeader("9999".getBytes())).get();
 
     assertThat(response.getStatus()).isEqualTo(401);
-    verifyNoMoreInteractions(keysScyllaDb);
+    verifyNoMoreInteractions(keysManager);
   }
 
   @Test
@@ -302,7 +306,7 @@ class KeysControllerTest {
         .header(OptionalAccess.UNIDENTIFIED, "$$$$$$$$$").get();
 
     assertThat(response.getStatus()).isEqualTo(401);
-    verifyNoMoreInteractions(keysScyllaDb);
+    verifyNoMoreInteractions(keysManager);
   }
 
   @Test
@@ -350,8 +354,9 @@ class KeysControllerTest {
     assertThat(signedPreKey).isNull();
     assertThat(deviceId).isEqualTo(4);
 
-    verify(keysScyllaDb).take(eq(existsAccount));
-    verifyNoMoreInteractions(keysScyllaDb);
+    // the disabled device 3 gets no key claimed
+    verify(keysManager).takeAsync(eq(existsAccount), argThat(deviceIds -> Set.copyOf(deviceIds).equals(Set.of(1L, 2L, 4L))));
+    verifyNoMoreInteractions(keysManager);
   }
 
   @Test
@@ -406,7 +411,7 @@ class KeysControllerTest {
     assertThat(response.getStatus()).isEqualTo(204);
 
     ArgumentCaptor<List> listCaptor = ArgumentCaptor.forClass(List.class);
-    verify(keysScyllaDb).store(eqUuid(AuthHelper.VALID_ACCOUNT), eq(1L), listCaptor.capture());
+    verify(keysManager).store(eqUuid(AuthHelper.VALID_ACCOUNT), eq(1L), listCaptor.capture());
 
     List<PreKey> capturedList = listCaptor.getValue();
     assertThat(capturedList.size()).isEqualTo(1);
@@ -418,6 +423,26 @@ class KeysControllerTest {
     verify(accounts).update(eq(AuthHelper.VALID_ACCOUNT), any());
   }
 
+  @Test
+  void putKeysSameIdentityTestV2() {
+    final PreKey preKey = new PreKey(31337, "foobar");
+    final SignedPreKey signedPreKey = new SignedPreKey(31338, "foobaz", "myvalidsig");
+    final String identityKey = "barbar";
+
+    when(AuthHelper.VALID_ACCOUNT.getIdentityKey()).thenReturn(identityKey);
+
+    PreKeyState preKeyState = new PreKeyState(identityKey, signedPreKey, List.of(preKey));
+
+    Response response = resources.getJerseyTest().target("/v2/keys").request()
+        .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_UUID, AuthHelper.VALID_PASSWORD))
+        .put(Entity.entity(preKeyState, MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(204);
+
+    verify(keysManager).refill(eqUuid(AuthHelper.VALID_ACCOUNT), eq(1L), eq(List.of(preKey)));
+    verify(keysManager, never()).store(any(), anyLong(), any());
+  }
+
   @Test
   void disabledPutKeysTestV2() {
     final PreKey preKey = new PreKey(31337, "foobar");
@@ -439,7 +464,7 @@ class KeysControllerTest {
     assertThat(response.getStatus()).isEqualTo(204);
 
     ArgumentCaptor<List> listCaptor = ArgumentCaptor.forClass(List.class);
-    verify(keysScyllaDb).store(eqUuid(AuthHelper.DISABLED_ACCOUNT), eq(1L), listCaptor.capture());
+    verify(keysManager).store(eqUuid(AuthHelper.DISABLED_ACCOUNT), eq(1L), listCaptor.capture());
 
     List<PreKey> capturedList = listCaptor.getValue();
     assertThat(capturedList.size()).isEqualTo(1);
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.limits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class LocalPermitLeasesTest {
+
+  @Test
+  void testTakeFromLease() {
+    final LocalPermitLeases leases = new LocalPermitLeases(5, Duration.ofSeconds(10));
+
+    assertFalse(leases.tryTake("key", 1, 0));
+
+    leases.add("key", 2, 0);
+
+    assertTrue(leases.tryTake("key", 1, 1_000));
+    assertTrue(leases.hasPermits("key", 1, 1_000));
+    assertTrue(leases.tryTake("key", 1, 1_000));
+    assertFalse(leases.tryTake("key", 1, 1_000));
+  }
+
+  @Test
+  void testExpiredLeaseReturned() {
+    final LocalPermitLeases leases = new LocalPermitLeases(5, Duration.ofSeconds(10));
+
+    leases.add("key", 4, 0);
+    assertTrue(leases.tryTake("key", 1, 1_000));
+
+    assertEquals(Map.of(), leases.collectUnused(1_000));
+
+    assertFalse(leases.tryTake("key", 1, 10_000));
+    assertEquals(Map.of("key", 3), leases.collectUnused(11_000));
+    assertEquals(Map.of(), leases.collectUnused(20_000));
+  }
+
+  @Test
+  void testReplacedLeaseReturned() {
+    final LocalPermitLeases leases = new LocalPermitLeases(5, Duration.ofSeconds(10));
+
+    leases.add("key", 1, 0);
+    leases.add("key", 4, 1_000);
+
+    assertEquals(Map.of("key", 1), leases.collectUnused(1_000));
+  }
+
+  @Test
+  void testDiscard() {
+    final LocalPermitLeases leases = new LocalPermitLeases(5, Duration.ofSeconds(10));
+
+    leases.add("key", 4, 0);
+    leases.discard("key");
+
+    assertFalse(leases.tryTake("key", 1, 1_000));
+    assertEquals(Map.of(), leases.collectUnused(10_000));
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.limits;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+
+class RateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  @Test
+  void testValidate() {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1.0);
+    final String key = UUID.randomUUID().toString();
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+
+    final RateLimitExceededException e = assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(key));
+    assertTrue(e.getRetryDuration().toMillis() > 0);
+
+    rateLimiter.clear(key);
+    assertDoesNotThrow(() -> rateLimiter.validate(key, 2));
+  }
+
+  @Test
+  void testHasAvailablePermits() throws RateLimitExceededException {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1.0);
+    final String key = UUID.randomUUID().toString();
+
+    assertTrue(rateLimiter.hasAvailablePermits(key, 2));
+    assertTrue(rateLimiter.hasAvailablePermits(key, 2));
+
+    rateLimiter.validate(key);
+
+    assertTrue(rateLimiter.hasAvailablePermits(key, 1));
+    assertFalse(rateLimiter.hasAvailablePermits(key, 2));
+    assertThrows(IllegalArgumentException.class, () -> rateLimiter.hasAvailablePermits(key, 3));
+  }
+
+  @Test
+  void testLegacyBucket() {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1.0);
+    final String key = UUID.randomUUID().toString();
+    final String bucketName = rateLimiter.getBucketName(key);
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync().set(bucketName,
+        "{\"bucketSize\":2,\"leakRatePerMillis\":1.6666666666666667E-5,\"spaceRemaining\":1,\"lastUpdateTimeMillis\":"
+            + System.currentTimeMillis() + "}"));
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(key));
+
+    assertEquals("hash", REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection -> connection.sync().type(bucketName)));
+  }
+}
@@ -125,6 +125,43 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
 	}
     }
 
+    @Test(timeout = 10_000)
+    public void testRemoteDisplacementOnManagerChannel() throws Exception {
+	final UUID accountUuid = UUID.randomUUID();
+	final long deviceId = 1;
+
+	final AtomicBoolean displaced = new AtomicBoolean(false);
+
+	final ClientPresenceManager localManager = new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, true);
+	final ClientPresenceManager remoteManager = new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, true);
+
+	localManager.start();
+	remoteManager.start();
+
+	try {
+	    localManager.setPresent(accountUuid, deviceId, () -> {
+		synchronized (displaced) {
+		    displaced.set(true);
+		    displaced.notifyAll();
+		}
+	    });
+
+	    remoteManager.setPresent(accountUuid, deviceId, NO_OP);
+
+	    synchronized (displaced) {
+		while (!displaced.get()) {
+		    displaced.wait();
+		}
+	    }
+
+	    assertFalse(localManager.isLocallyPresent(accountUuid, deviceId));
+	    assertTrue(remoteManager.isPresent(accountUuid, deviceId));
+	} finally {
+	    localManager.stop();
+	    remoteManager.stop();
+	}
+    }
+
     @Test(timeout = 10_000)
     public void testRemoteDisplacementAfterTopologyChange() throws InterruptedException {
 	final UUID accountUuid = UUID.randomUUID();
@@ -16,7 +16,11 @@ import su.sres.shadowserver.metrics.PushLatencyManager;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessagesManager;
+import su.sres.shadowserver.util.Pair;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 
@@ -87,6 +91,26 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  void testSendOnlineMessageClientLocallyPresent() throws Exception {
+    when(clientPresenceManager.isLocallyPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(messagesManager.deliverLocally(eq(ACCOUNT_UUID), eq(DEVICE_ID), any())).thenReturn(true);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    messageSender.sendMessage(account, device, message, true);
+
+    final ArgumentCaptor<MessageProtos.Envelope> envelopeArgumentCaptor = ArgumentCaptor.forClass(
+        MessageProtos.Envelope.class);
+
+    verify(messagesManager).deliverLocally(eq(ACCOUNT_UUID), eq(DEVICE_ID), envelopeArgumentCaptor.capture());
+    assertTrue(envelopeArgumentCaptor.getValue().getEphemeral());
+
+    verify(clientPresenceManager, never()).isPresent(any(), anyLong());
+    verify(messagesManager, never()).insert(any(), anyLong(), any());
+    verifyNoInteractions(fcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
   @Test
   void testSendOnlineMessageClientNotPresent() throws Exception {
     when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
@@ -153,6 +177,56 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  void testSendMessages() {
+    final Account otherAccount = mock(Account.class);
+    final Device otherDevice = mock(Device.class);
+    final Account unregisteredAccount = mock(Account.class);
+    final Device unregisteredDevice = mock(Device.class);
+    final UUID otherAccountUuid = UUID.randomUUID();
+
+    when(otherAccount.getUuid()).thenReturn(otherAccountUuid);
+    when(otherDevice.getId()).thenReturn(DEVICE_ID);
+    when(unregisteredAccount.getUuid()).thenReturn(UUID.randomUUID());
+    when(unregisteredDevice.getId()).thenReturn(DEVICE_ID);
+
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(otherDevice.getFetchesMessages()).thenReturn(true);
+    when(clientPresenceManager.getPresent(any())).thenReturn(Set.of(new Pair<>(otherAccountUuid, DEVICE_ID)));
+
+    final List<Pair<Account, Device>> undeliverable = messageSender.sendMessages(Map.of(
+        new Pair<>(account, device), message,
+        new Pair<>(otherAccount, otherDevice), message,
+        new Pair<>(unregisteredAccount, unregisteredDevice), message), false);
+
+    assertEquals(List.of(new Pair<>(unregisteredAccount, unregisteredDevice)), undeliverable);
+
+    final ArgumentCaptor<Map<Pair<UUID, Long>, MessageProtos.Envelope>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(messagesManager).insert(captor.capture());
+
+    assertEquals(Set.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), new Pair<>(otherAccountUuid, DEVICE_ID)), captor.getValue().keySet());
+
+    // only the absent device gets notified
+    verify(fcmSender).sendMessage(any());
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testSendOnlineMessages() {
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(clientPresenceManager.getPresent(any())).thenReturn(Set.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID)));
+
+    messageSender.sendMessages(Map.of(new Pair<>(account, device), message), true);
+
+    final ArgumentCaptor<Map<Pair<UUID, Long>, MessageProtos.Envelope>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(messagesManager).insert(captor.capture());
+
+    assertTrue(captor.getValue().get(new Pair<>(ACCOUNT_UUID, DEVICE_ID)).getEphemeral());
+    verifyNoInteractions(fcmSender);
+  }
+
   private MessageProtos.Envelope generateRandomMessage() {
     return MessageProtos.Envelope.newBuilder()
         .setTimestamp(System.currentTimeMillis())
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.AccountWriteFormat;
+import su.sres.shadowserver.entities.SignedPreKey;
+import su.sres.shadowserver.storage.Device.DeviceCapabilities;
+import su.sres.shadowserver.util.SystemMapper;
+
+class AccountCodecTest {
+
+  @Test
+  void testRoundTrip() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account, AccountWriteFormat.BINARY));
+
+    assertThat(toJson(decoded)).isEqualTo(toJson(account));
+  }
+
+  @Test
+  void testRoundTripEmpty() throws IOException {
+    final Account account = new Account();
+    account.setDiscoverableByUserLogin(false);
+
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account, AccountWriteFormat.BINARY));
+
+    assertThat(toJson(decoded)).isEqualTo(toJson(account));
+    assertThat(decoded.getUserLogin()).isNull();
+    assertThat(decoded.getUnidentifiedAccessKey()).isEmpty();
+  }
+
+  @Test
+  void testDecodeJson() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(SystemMapper.getMapper().writeValueAsBytes(account));
+
+    assertThat(toJson(decoded)).isEqualTo(toJson(account));
+  }
+
+  @Test
+  void testEncodeJson() throws IOException {
+    final Account account = buildAccount();
+    final byte[] encoded = AccountCodec.encode(account, AccountWriteFormat.JSON);
+
+    // nodes that only read JSON can read it
+    assertThat(toJson(SystemMapper.getMapper().readValue(encoded, Account.class))).isEqualTo(toJson(account));
+    assertThat(toJson(AccountCodec.decode(encoded))).isEqualTo(toJson(account));
+  }
+
+  @Test
+  void testDecodeUnknownFormat() {
+    assertThrows(IOException.class, () -> AccountCodec.decode(new byte[] { 42, 1, 2 }));
+    assertThrows(IOException.class, () -> AccountCodec.decode(new byte[0]));
+  }
+
+  @Test
+  void testEncodingSmallerThanJson() throws IOException {
+    final Account account = buildAccount();
+
+    assertThat(AccountCodec.encode(account, AccountWriteFormat.BINARY).length)
+        .isLessThan(SystemMapper.getMapper().writeValueAsBytes(account).length);
+  }
+
+  @Test
+  void testCopy() throws IOException {
+    final Account account = buildAccount();
+    final Account copy = new Account(account);
+
+    assertThat(toJson(copy)).isEqualTo(toJson(account));
+    assertThat(copy.getUuid()).isEqualTo(account.getUuid());
+
+    copy.getDevice(Device.MASTER_ID).orElseThrow().setLastSeen(0);
+    copy.getUnidentifiedAccessKey().orElseThrow()[0] = 0;
+    copy.removeBadge(Clock.systemUTC(), "badge");
+
+    assertThat(account.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen()).isNotZero();
+    assertThat(account.getUnidentifiedAccessKey().orElseThrow()[0]).isEqualTo((byte) 7);
+    assertThat(account.getBadges()).hasSize(1);
+  }
+
+  private static Account buildAccount() {
+    final Device master = new Device(Device.MASTER_ID, "master", "token", "salt", "gcm", null, null, false, 1234,
+        new SignedPreKey(17, "public", "signature"), 1_600_000_000_000L, 1_500_000_000_000L, "agent", 0,
+        new DeviceCapabilities(true, true, true, true, false, true, true, false, true));
+
+    final Device linked = new Device(2, null, "token2", "salt2", null, null, null, true, 5678, null,
+        1_600_000_000_000L, 1_500_000_000_000L, null, 0, null);
+
+    final HashSet<Device> devices = new HashSet<>(List.of(master, linked));
+
+    final Account account = new Account("johndoe", UUID.randomUUID(), devices, new byte[] { 7, 7, 7, 7 });
+    account.setIdentityKey("identity");
+    account.setCurrentProfileVersion("version");
+    account.setProfileName("name");
+    account.setAvatar("avatar");
+    account.setVersion(3);
+    account.addBadge(Clock.systemUTC(), new AccountBadge("badge", Instant.now().plusSeconds(3600), true));
+
+    return account;
+  }
+
+  private static String toJson(final Account account) throws IOException {
+    return SystemMapper.getMapper().writeValueAsString(account);
+  }
+}
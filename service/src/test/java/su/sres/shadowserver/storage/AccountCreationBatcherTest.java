@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import su.sres.shadowserver.entities.AccountAttributes;
+
+class AccountCreationBatcherTest {
+
+  private static final Duration MAX_QUEUE_WAIT = Duration.ofSeconds(1);
+
+  private ExecutorService executor;
+
+  @BeforeEach
+  void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void testLoneCreation() {
+    final List<List<AccountCreationRequest>> batches = new ArrayList<>();
+
+    final AccountCreationBatcher batcher = new AccountCreationBatcher(10, MAX_QUEUE_WAIT, AccountCreationBatcherTest::buildAccount, requests -> {
+      batches.add(requests);
+      return requests.stream().map(AccountCreationBatcherTest::buildAccount).collect(Collectors.toList());
+    });
+
+    assertEquals("alice", batcher.create(buildRequest("alice")).getUserLogin());
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test
+  void testConcurrentCreationsBatched() throws Exception {
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final List<Set<String>> batches = new CopyOnWriteArrayList<>();
+
+    final AccountCreationBatcher batcher = new AccountCreationBatcher(10, MAX_QUEUE_WAIT, request -> {
+      firstStarted.countDown();
+
+      try {
+        releaseFirst.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      return buildAccount(request);
+    }, requests -> {
+      batches.add(requests.stream().map(AccountCreationRequest::getUserLogin).collect(Collectors.toSet()));
+      return requests.stream().map(AccountCreationBatcherTest::buildAccount).collect(Collectors.toList());
+    });
+
+    final CompletableFuture<Account> first = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("alice")), executor);
+    firstStarted.await();
+
+    final CompletableFuture<Account> second = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("bob")), executor);
+    final CompletableFuture<Account> third = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("carol")), executor);
+
+    // give the latecomers a moment to queue up behind the first creation
+    Thread.sleep(100);
+    releaseFirst.countDown();
+
+    assertEquals("alice", first.get(1, TimeUnit.SECONDS).getUserLogin());
+    assertEquals("bob", second.get(1, TimeUnit.SECONDS).getUserLogin());
+    assertEquals("carol", third.get(1, TimeUnit.SECONDS).getUserLogin());
+
+    assertEquals(List.of(Set.of("bob", "carol")), batches);
+  }
+
+  @Test
+  void testFailedBatchCreatedOneByOne() throws Exception {
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+    final AccountCreationBatcher batcher = new AccountCreationBatcher(10, MAX_QUEUE_WAIT, request -> {
+      if ("alice".equals(request.getUserLogin())) {
+        firstStarted.countDown();
+
+        try {
+          releaseFirst.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      if ("bob".equals(request.getUserLogin())) {
+        throw new IllegalStateException();
+      }
+
+      return buildAccount(request);
+    }, requests -> {
+      throw new RuntimeException("batch failed");
+    });
+
+    final CompletableFuture<Account> first = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("alice")), executor);
+    firstStarted.await();
+
+    final CompletableFuture<Account> second = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("bob")), executor);
+    final CompletableFuture<Account> third = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("carol")), executor);
+
+    Thread.sleep(100);
+    releaseFirst.countDown();
+
+    assertEquals("alice", first.get(1, TimeUnit.SECONDS).getUserLogin());
+    assertEquals("carol", third.get(1, TimeUnit.SECONDS).getUserLogin());
+
+    final Exception e = assertThrows(Exception.class, () -> second.get(1, TimeUnit.SECONDS));
+    assertTrue(e.getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  void testSlowBatchBypassed() throws Exception {
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+    final AccountCreationBatcher batcher = new AccountCreationBatcher(10, Duration.ofMillis(50), request -> {
+      if ("alice".equals(request.getUserLogin())) {
+        firstStarted.countDown();
+
+        try {
+          releaseFirst.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      return buildAccount(request);
+    }, requests -> {
+      throw new AssertionError("nothing should be batched");
+    });
+
+    final CompletableFuture<Account> first = CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("alice")), executor);
+    firstStarted.await();
+
+    // the second registration doesn't wait for the first one to finish
+    assertEquals("bob", CompletableFuture.supplyAsync(() -> batcher.create(buildRequest("bob")), executor)
+        .get(1, TimeUnit.SECONDS).getUserLogin());
+    assertFalse(first.isDone());
+
+    releaseFirst.countDown();
+    assertEquals("alice", first.get(1, TimeUnit.SECONDS).getUserLogin());
+  }
+
+  private static AccountCreationRequest buildRequest(final String userLogin) {
+    return new AccountCreationRequest(userLogin, "password", "agent", new AccountAttributes());
+  }
+
+  private static Account buildAccount(final AccountCreationRequest request) {
+    final Account account = new Account();
+    account.setUserLogin(request.getUserLogin());
+
+    return account;
+  }
+}
@@ -16,6 +16,7 @@ import static org.mockito.Mockito.when;
 
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
 
 import java.io.IOException;
 import java.time.Instant;
@@ -144,6 +145,7 @@ class AccountsManagerConcurrentModificationIntegrationTest {
 
     Jedis jedis = mock(Jedis.class);
     when(directoryManager.accessDirectoryCache().getWriteResource()).thenReturn(jedis);
+    when(jedis.multi()).thenReturn(mock(Transaction.class));
 
     final UUID uuid;
     {
@@ -8,17 +8,20 @@ package su.sres.shadowserver.storage;
 import io.lettuce.core.RedisException;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
 
 import org.junit.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
 
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.AccountWriteFormat;
 import su.sres.shadowserver.entities.AccountAttributes;
 import su.sres.shadowserver.entities.SignedPreKey;
 import su.sres.shadowserver.push.ClientPresenceManager;
@@ -28,10 +31,16 @@ import su.sres.shadowserver.util.JsonHelpers;
 import su.sres.shadowserver.util.RedisClusterHelper;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static junit.framework.TestCase.assertSame;
@@ -40,7 +49,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
@@ -60,6 +69,7 @@ class AccountsManagerTest {
   private DirectoryManager directory;
   
   private RedisAdvancedClusterCommands<String, String> commands;
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
   private AccountsManager accountsManager;
   private Jedis jedis;
   private KeysScyllaDb keys;
@@ -85,11 +95,13 @@ class AccountsManagerTest {
     
     //noinspection unchecked
     commands = mock(RedisAdvancedClusterCommands.class);
+    //noinspection unchecked
+    binaryCommands = mock(RedisAdvancedClusterCommands.class);
     
     accountsManager = new AccountsManager(        
         accounts,
         directory,
-        RedisClusterHelper.buildMockRedisCluster(commands),
+        RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
         mock(DeletedAccounts.class),
         keys,
         messagesManager,        
@@ -99,13 +111,17 @@ class AccountsManagerTest {
         mock(ClientPresenceManager.class));
   }
 
+  private static byte[] accountKey(final UUID uuid) {
+    return ("Account3::" + uuid).getBytes(StandardCharsets.UTF_8);
+  }
+
   @Test
   void testGetAccountByNumberInCache() {
     
     UUID uuid = UUID.randomUUID();
         
     when(commands.get(eq("AccountMap::johndoe"))).thenReturn(uuid.toString());
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get("johndoe");
 
@@ -114,8 +130,9 @@ class AccountsManagerTest {
     assertEquals(account.get().getProfileName(), "test");
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(eq(accountKey(uuid)));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
         
     verifyNoInteractions(accounts);
   }
@@ -125,7 +142,7 @@ class AccountsManagerTest {
     
     UUID uuid = UUID.randomUUID();
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get(uuid);
 
@@ -134,7 +151,7 @@ class AccountsManagerTest {
     assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(eq(accountKey(uuid)));
     verifyNoMoreInteractions(commands);    
     
     verifyNoInteractions(accounts);
@@ -157,13 +174,33 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(eq(accountKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
   }
 
+  @ParameterizedTest
+  @EnumSource(AccountWriteFormat.class)
+  void testCacheWriteFormat(final AccountWriteFormat writeFormat) throws IOException {
+    UUID uuid = UUID.randomUUID();
+    Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
+
+    when(accounts.getWriteFormat()).thenReturn(writeFormat);
+    when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn(null);
+    when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
+
+    accountsManager.get(uuid);
+
+    final ArgumentCaptor<byte[]> encodedCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(binaryCommands).set(eq(accountKey(uuid)), encodedCaptor.capture());
+
+    assertEquals(writeFormat == AccountWriteFormat.JSON, encodedCaptor.getValue()[0] == '{');
+    assertEquals("johndoe", AccountCodec.decode(encodedCaptor.getValue()).getUserLogin());
+  }
+
   @Test
   void testGetAccountByUuidNotInCache() {
     final boolean dynamoEnabled = true;
@@ -171,7 +208,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn(null);
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -179,10 +216,11 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(eq(accountKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(eq(accountKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -204,8 +242,9 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(eq(accountKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
@@ -217,7 +256,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.get(eq(accountKey(uuid)))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
     
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -225,10 +264,11 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(eq(accountKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(eq(accountKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -240,7 +280,7 @@ class AccountsManagerTest {
       UUID                                         uuid                = UUID.randomUUID();
       Account                                      account             = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
                   
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+      when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn(null);
       when(accounts.get(uuid)).thenReturn(Optional.of(new Account("+14152222222", uuid, new HashSet<>(), new byte[16])));
       doThrow(ContestedOptimisticLockException.class)
           .doAnswer(ACCOUNT_UPDATE_ANSWER)
@@ -267,10 +307,10 @@ class AccountsManagerTest {
       UUID                                         uuid                = UUID.randomUUID();
       Account                                      account             = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
       
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+      when(binaryCommands.get(eq(accountKey(uuid)))).thenReturn(null);
       when(accounts.get(uuid)).thenReturn(Optional.empty())
                                       .thenReturn(Optional.of(account));
-      when(accounts.create(any(), anyLong())).thenThrow(ContestedOptimisticLockException.class);     
+      when(accounts.create(any())).thenThrow(ContestedOptimisticLockException.class);     
 
       accountsManager.update(account, a -> {});
 
@@ -314,13 +354,13 @@ class AccountsManagerTest {
     
     @Test
     void testCreateFreshAccount() throws InterruptedException {
-      when(accounts.create(any(), anyLong())).thenReturn(true);
+      when(accounts.create(any())).thenReturn(true);
 
       final String e164 = "+18005550123";
       final AccountAttributes attributes = new AccountAttributes(false, 0, null, true, null);
       accountsManager.create(e164, "password", null, attributes);
 
-      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin())), anyLong());
+      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin())));
       verifyNoInteractions(keys);
       verifyNoInteractions(messagesManager);
       verifyNoInteractions(profilesManager);
@@ -330,7 +370,7 @@ class AccountsManagerTest {
     void testReregisterAccount() throws InterruptedException {
       final UUID existingUuid = UUID.randomUUID();
 
-      when(accounts.create(any(), anyLong())).thenAnswer(invocation -> {
+      when(accounts.create(any())).thenAnswer(invocation -> {
         invocation.getArgument(0, Account.class).setUuid(existingUuid);
         return false;
       });
@@ -339,8 +379,8 @@ class AccountsManagerTest {
       final AccountAttributes attributes = new AccountAttributes(false, 0, null, true, null);
       accountsManager.create(e164, "password", null, attributes);
 
-      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin()) && existingUuid.equals(account.getUuid())), anyLong());
-      verify(keys).delete(existingUuid);
+      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin()) && existingUuid.equals(account.getUuid())));
+      verify(keys).delete(eq(existingUuid), anyCollection());
       verify(messagesManager).clear(existingUuid);
       verify(profilesManager).deleteAll(existingUuid);
     }
@@ -355,22 +395,59 @@ class AccountsManagerTest {
         return null;
       }).when(deletedAccountsManager).lockAndTake(anyString(), any()); */
 
-      when(accounts.create(any(), anyLong())).thenReturn(true);
+      when(accounts.create(any())).thenReturn(true);
 
       final String e164 = "+18005550123";
       final AccountAttributes attributes = new AccountAttributes(false, 0, null, true, null);
       accountsManager.create(e164, "password", null, attributes);
 
-      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin()) && recentlyDeletedUuid.equals(account.getUuid())), anyLong());
+      verify(accounts).create(argThat(account -> e164.equals(account.getUserLogin()) && recentlyDeletedUuid.equals(account.getUuid())));
       verifyNoInteractions(keys);
       verifyNoInteractions(messagesManager);
       verifyNoInteractions(profilesManager);
     }
     
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3})
+    void testDelete(final int deviceCount) {
+      when(directory.accessDirectoryCache().getWriteResource()).thenReturn(jedis);
+      when(jedis.multi()).thenReturn(mock(Transaction.class));
+
+      final Account account = new Account("+18005550123", UUID.randomUUID(), new HashSet<>(), new byte[16]);
+      final Account otherAccount = new Account("+18005550124", UUID.randomUUID(), new HashSet<>(), new byte[16]);
+
+      for (long deviceId = 1; deviceId <= deviceCount; deviceId++) {
+        final Device device = new Device();
+        device.setId(deviceId);
+        account.addDevice(device);
+      }
+
+      final Device otherDevice = new Device();
+      otherDevice.setId(Device.MASTER_ID);
+      otherAccount.addDevice(otherDevice);
+
+      final HashSet<Account> accountsToDelete = new HashSet<>(Set.of(account, otherAccount));
+
+      accountsManager.delete(accountsToDelete, AccountsManager.DeletionReason.EXPIRED);
+
+      verify(keys).delete(eq(account.getUuid()), anyCollection());
+      verify(profilesManager).deleteAll(account.getUuid());
+      verify(messagesManager).clear(eq(account.getUuid()),
+          argThat((Collection<Long> deviceIds) -> deviceIds.size() == deviceCount && deviceIds.containsAll(
+              LongStream.rangeClosed(1, deviceCount).boxed().collect(Collectors.toList()))));
+      verify(messagesManager).clear(otherAccount.getUuid(), List.of(Device.MASTER_ID));
+      verify(messagesManager, never()).clear(any(UUID.class));
+
+      // one write of the accounts and the directory version for the whole batch
+      verify(accounts).deleteAll(eq(accountsToDelete));
+      verify(accounts, never()).delete(any());
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void testCreateWithDiscoverability(final boolean discoverable) {
       when(directory.accessDirectoryCache().getWriteResource()).thenReturn(jedis);
+      when(jedis.multi()).thenReturn(mock(Transaction.class));
       
       final AccountAttributes attributes = new AccountAttributes(false, 0, null, discoverable, null);
       final Account account = accountsManager.create("+18005550123", "password", null, attributes);
@@ -382,6 +459,7 @@ class AccountsManagerTest {
     @ValueSource(booleans = {true, false})
     void testCreateWithStorageCapability(final boolean hasStorage) {      
       when(directory.accessDirectoryCache().getWriteResource()).thenReturn(jedis);
+      when(jedis.multi()).thenReturn(mock(Transaction.class));
       
       final AccountAttributes attributes = new AccountAttributes(false, 0, null, true,
           new DeviceCapabilities(false, false, false, hasStorage, false, false, false, false, false));
@@ -36,15 +36,19 @@ import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import org.jdbi.v3.core.transaction.TransactionException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 import com.fasterxml.uuid.UUIDComparator;
 
 import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.AccountWriteFormat;
 import su.sres.shadowserver.entities.SignedPreKey;
 import su.sres.shadowserver.util.AttributeValues;
 
@@ -112,14 +116,13 @@ class AccountsTest {
   void testStore() {
     Device  device  = generateDevice (1                                            );
     Account account = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(device));
-    long directoryVersion = 10L;
 
-    boolean freshUser = accounts.create(account, directoryVersion);
+    boolean freshUser = accounts.create(account);
 
     assertThat(freshUser).isTrue();
     verifyStoredState("+14151112222", account.getUuid(), account);
     
-    freshUser = accounts.create(account, directoryVersion + 1L);
+    freshUser = accounts.create(account);
     assertThat(freshUser).isTrue();
 
     verifyStoredState("+14151112222", account.getUuid(), account);  
@@ -133,9 +136,8 @@ class AccountsTest {
     devices.add(generateDevice(2));
 
     Account account = generateAccount("+14151112222", UUID.randomUUID(), devices);
-    long directoryVersion = 10L;
 
-    accounts.create(account, directoryVersion);
+    accounts.create(account);
 
     verifyStoredState("+14151112222", account.getUuid(), account);
   }
@@ -148,7 +150,6 @@ class AccountsTest {
 
     UUID uuidFirst = UUID.randomUUID();
     Account accountFirst = generateAccount("+14151112222", uuidFirst, devicesFirst);
-    long directoryVersion = 10L;
 
     Set<Device> devicesSecond = new HashSet<>();
     devicesSecond.add(generateDevice(1));
@@ -157,8 +158,8 @@ class AccountsTest {
     UUID uuidSecond = UUID.randomUUID();
     Account accountSecond = generateAccount("+14152221111", uuidSecond, devicesSecond);
 
-    accounts.create(accountFirst, directoryVersion);
-    accounts.create(accountSecond, directoryVersion + 1);
+    accounts.create(accountFirst);
+    accounts.create(accountSecond);
 
     Optional<Account> retrievedFirst = accounts.get("+14151112222");
     Optional<Account> retrievedSecond = accounts.get("+14152221111");
@@ -179,14 +180,36 @@ class AccountsTest {
     verifyStoredState("+14152221111", uuidSecond, retrievedSecond.get(), accountSecond);
   }
 
+  @Test
+  void testRetrieveAll() {
+    UUID uuidFirst = UUID.randomUUID();
+    Account accountFirst = generateAccount("+14151112222", uuidFirst);
+
+    UUID uuidSecond = UUID.randomUUID();
+    Account accountSecond = generateAccount("+14152221111", uuidSecond);
+
+    accounts.create(accountFirst);
+    accounts.create(accountSecond);
+
+    final Map<UUID, Account> retrieved = accounts.getAll(List.of(uuidFirst, uuidSecond, UUID.randomUUID()))
+        .stream()
+        .collect(Collectors.toMap(Account::getUuid, account -> account));
+
+    assertThat(retrieved).hasSize(2);
+
+    verifyStoredState("+14151112222", uuidFirst, retrieved.get(uuidFirst), accountFirst);
+    verifyStoredState("+14152221111", uuidSecond, retrieved.get(uuidSecond), accountSecond);
+
+    assertThat(accounts.getAll(List.of())).isEmpty();
+  }
+
   @Test
   void testOverwrite() {
     Device  device  = generateDevice (1);
     UUID    firstUuid = UUID.randomUUID();
     Account account   = generateAccount("+14151112222", firstUuid, Collections.singleton(device));
-    long directoryVersion = 10L;
 
-    accounts.create(account, directoryVersion);
+    accounts.create(account);
     
     verifyStoredState("+14151112222", account.getUuid(), account);
     
@@ -199,23 +222,65 @@ class AccountsTest {
     device = generateDevice(1);
     account = generateAccount("+14151112222", secondUuid, Collections.singleton(device));
 
-    final boolean freshUser = accounts.create(account, directoryVersion + 1);
+    final boolean freshUser = accounts.create(account);
     assertThat(freshUser).isFalse();
     verifyStoredState("+14151112222", firstUuid, account);
 
     device = generateDevice(1);
     Account invalidAccount = generateAccount("+14151113333", firstUuid, Collections.singleton(device));
 
-    assertThatThrownBy(() -> accounts.create(invalidAccount, directoryVersion + 2));
+    assertThatThrownBy(() -> accounts.create(invalidAccount));
+  }
+
+  @Test
+  void testCreateAll() {
+    final UUID existingUuid = UUID.randomUUID();
+    accounts.create(generateAccount("+14151112222", existingUuid, Collections.singleton(generateDevice(1))));
+
+    final UUID reregisteredUuid = UUID.randomUUID();
+    final UUID freshUuid = UUID.randomUUID();
+    final Account reregistered = generateAccount("+14151112222", reregisteredUuid, Collections.singleton(generateDevice(1)));
+    final Account fresh = generateAccount("+14151113333", freshUuid, Collections.singleton(generateDevice(1)));
+
+    assertThat(accounts.createAll(List.of(reregistered, fresh))).containsExactly(freshUuid);
+
+    verifyStoredState("+14151112222", existingUuid, reregistered);
+    verifyStoredState("+14151113333", freshUuid, fresh);
+    assertThat(accounts.get(reregisteredUuid)).isEmpty();
+
+    // a batch retried as a whole creates nothing anew
+    assertThat(accounts.createAll(List.of(fresh))).containsExactly(freshUuid);
+    verifyStoredState("+14151113333", freshUuid, fresh);
+  }
+
+  @ParameterizedTest
+  @EnumSource(AccountWriteFormat.class)
+  void testWriteFormat(final AccountWriteFormat writeFormat) {
+    final Accounts formatAccounts = new Accounts(dynamoDbExtension.getDynamoDbClient(), dynamoDbExtension.getTableName(),
+        NUMBERS_TABLE_NAME, MISC_TABLE_NAME, SCAN_PAGE_SIZE, writeFormat);
+
+    final Device device = generateDevice(1);
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(device));
+
+    formatAccounts.create(account);
+    assertThat(getStoredData(account.getUuid())[0] == '{').isEqualTo(writeFormat == AccountWriteFormat.JSON);
+    verifyStoredState("+14151112222", account.getUuid(), account);
+
+    device.setName("foobar");
+    formatAccounts.update(account);
+    assertThat(getStoredData(account.getUuid())[0] == '{').isEqualTo(writeFormat == AccountWriteFormat.JSON);
+    verifyStoredState("+14151112222", account.getUuid(), account);
+
+    // accounts written in either format are read by either
+    assertThat(accounts.get(account.getUuid())).isPresent();
   }
 
   @Test
   void testUpdate() {
     Device  device  = generateDevice (1                                            );
     Account account = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(device));
-    long directoryVersion = 10L;    
 
-    accounts.create(account, directoryVersion);
+    accounts.create(account);
 
     device.setName("foobar");
 
@@ -279,7 +344,7 @@ class AccountsTest {
     for (int i = 1; i <= 100; i++) {
       Account account = generateAccount("+1" + String.format("%03d", i), UUID.randomUUID());
       users.add(account);
-      accounts.create(account, 5L);
+      accounts.create(account);
     }
 
     users.sort((account, t1) -> UUIDComparator.staticCompare(account.getUuid(), t1.getUuid()));
@@ -327,15 +392,14 @@ class AccountsTest {
     final Account deletedAccount  = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(deletedDevice));
     final Device  retainedDevice  = generateDevice (1);
     final Account retainedAccount = generateAccount("+14151112345", UUID.randomUUID(), Collections.singleton(retainedDevice));
-    long directoryVersion = 10L;
 
-    accounts.create(deletedAccount, directoryVersion);
-    accounts.create(retainedAccount, directoryVersion + 1);
+    accounts.create(deletedAccount);
+    accounts.create(retainedAccount);
 
     assertThat(accounts.get(deletedAccount.getUuid())).isPresent();
     assertThat(accounts.get(retainedAccount.getUuid())).isPresent();
 
-    accounts.delete(deletedAccount.getUuid(), directoryVersion + 2);
+    accounts.delete(deletedAccount.getUuid());
 
     assertThat(accounts.get(deletedAccount.getUuid())).isNotPresent();
 
@@ -345,7 +409,7 @@ class AccountsTest {
       final Account recreatedAccount = generateAccount(deletedAccount.getUserLogin(), UUID.randomUUID(),
           Collections.singleton(generateDevice(1)));
 
-      final boolean freshUser = accounts.create(recreatedAccount, directoryVersion + 3L);
+      final boolean freshUser = accounts.create(recreatedAccount);
 
       assertThat(freshUser).isTrue();
 
@@ -355,13 +419,32 @@ class AccountsTest {
     }    
   }
 
+  @Test
+  void testDeleteAll() {
+    final Account deletedAccount = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+    final Account retainedAccount = generateAccount("+14151112345", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+
+    accounts.create(deletedAccount);
+    accounts.create(retainedAccount);
+
+    // a stale copy of an account whose user login has been taken over since
+    final Account staleAccount = generateAccount(retainedAccount.getUserLogin(), UUID.randomUUID(),
+        Collections.singleton(generateDevice(1)));
+
+    accounts.deleteAll(List.of(deletedAccount, deletedAccount, staleAccount));
+
+    assertThat(accounts.get(deletedAccount.getUuid())).isNotPresent();
+    assertThat(accounts.get(deletedAccount.getUserLogin())).isNotPresent();
+
+    verifyStoredState(retainedAccount.getUserLogin(), retainedAccount.getUuid(), accounts.get(retainedAccount.getUserLogin()).get(), retainedAccount);
+  }
+
   @Test
   void testMissing() {
     Device  device  = generateDevice (1                                            );
     Account account = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(device));
-    long directoryVersion = 10L;
 
-    accounts.create(account, directoryVersion);
+    accounts.create(account);
 
     Optional<Account> retrieved = accounts.get("+11111111");
     assertThat(retrieved.isPresent()).isFalse();
@@ -443,6 +526,15 @@ class AccountsTest {
     return new Account(number, uuid, devices, unidentifiedAccessKey);
   }
 
+  private byte[] getStoredData(UUID uuid) {
+    return dynamoDbExtension.getDynamoDbClient().getItem(GetItemRequest.builder()
+        .tableName(dynamoDbExtension.getTableName())
+        .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+        .consistentRead(true)
+        .build())
+        .item().get(Accounts.ATTR_ACCOUNT_DATA).b().asByteArray();
+  }
+
   private void verifyStoredState(String number, UUID uuid, Account expecting) {
     final DynamoDbClient db = dynamoDbExtension.getDynamoDbClient();
 
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs a single-node Scylla container for tests of the CQL stores, and creates
+ * their tables in a fresh keyspace. Tests are skipped where Docker is not
+ * available.
+ */
+public class CqlExtension implements BeforeAllCallback, AfterAllCallback {
+
+  static final String KEYSPACE = "shadow_test";
+  static final String MESSAGES_TABLE_NAME = "messages_test";
+  static final String KEYS_TABLE_NAME = "keys_test";
+
+  private static final int CQL_PORT = 9042;
+
+  private GenericContainer<?> container;
+  private CqlSession session;
+
+  @Override
+  public void beforeAll(final ExtensionContext context) {
+    assumeTrue(DockerClientFactory.instance().isDockerAvailable(), "Docker is not available");
+
+    container = new GenericContainer<>("scylladb/scylla:5.1")
+        .withCommand("--smp", "1", "--memory", "512M", "--overprovisioned", "1", "--developer-mode", "1")
+        .withExposedPorts(CQL_PORT)
+        .waitingFor(Wait.forLogMessage(".*Starting listening for CQL clients.*", 1))
+        .withStartupTimeout(Duration.ofMinutes(3));
+
+    container.start();
+
+    final InetSocketAddress contactPoint = new InetSocketAddress(container.getHost(), container.getMappedPort(CQL_PORT));
+
+    try (final CqlSession setupSession = CqlSession.builder()
+        .addContactPoint(contactPoint)
+        .withLocalDatacenter("datacenter1")
+        .build()) {
+
+      setupSession.execute("CREATE KEYSPACE IF NOT EXISTS " + KEYSPACE
+          + " WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}");
+      setupSession.execute(String.format(MessagesCql.CREATE_TABLE, KEYSPACE + "." + MESSAGES_TABLE_NAME));
+      setupSession.execute(String.format(KeysCql.CREATE_TABLE, KEYSPACE + "." + KEYS_TABLE_NAME));
+    }
+
+    session = CqlSession.builder()
+        .addContactPoint(contactPoint)
+        .withLocalDatacenter("datacenter1")
+        .withKeyspace(KEYSPACE)
+        .build();
+  }
+
+  @Override
+  public void afterAll(final ExtensionContext context) {
+    if (session != null) {
+      session.close();
+    }
+
+    if (container != null) {
+      container.stop();
+    }
+  }
+
+  public CqlSession getSession() {
+    return session;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.redis.ReplicatedJedisPool;
+
+class DirectoryManagerIntegrationTest {
+
+  private static RedisServer redisServer;
+
+  private JedisPool jedisPool;
+  private DirectoryManager directoryManager;
+
+  @BeforeAll
+  static void setUpBeforeAll() throws Exception {
+    assumeFalse(System.getProperty("os.name").equalsIgnoreCase("windows"));
+
+    redisServer = RedisServer.builder()
+        .setting("appendonly no")
+        .setting("save \"\"")
+        .setting("dir " + System.getProperty("java.io.tmpdir"))
+        .port(RedisClusterExtension.getNextRedisClusterPort())
+        .build();
+
+    redisServer.start();
+  }
+
+  @BeforeEach
+  void setUp() {
+    jedisPool = new JedisPool("127.0.0.1", redisServer.ports().get(0));
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      jedis.flushAll();
+    }
+
+    directoryManager = new DirectoryManager(new ReplicatedJedisPool("directory", jedisPool, List.of(jedisPool),
+        new CircuitBreakerConfiguration()));
+  }
+
+  @AfterEach
+  void tearDown() {
+    jedisPool.close();
+  }
+
+  @AfterAll
+  static void tearDownAfterAll() {
+    if (redisServer != null) {
+      redisServer.stop();
+    }
+  }
+
+  @Test
+  void testCommitDirectoryUpdateOverwritesStaleDelta() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      jedis.set(DirectoryManager.DIRECTORY_VERSION, "6");
+      jedis.hset(directoryManager.getDirectoryDeltaKey(7), "mallory", "{\"uuid\":\"" + UUID.randomUUID() + "\"}");
+    }
+
+    assertEquals(7, directoryManager.commitDirectoryUpdate(Map.of(), Set.of("bob"), () -> 0));
+
+    assertEquals(Optional.of(Map.of("bob", DirectoryManager.DELTA_TOMBSTONE)),
+        directoryManager.retrieveIncrementalUpdate(6, 7));
+  }
+
+  @Test
+  void testReplacePlainDirectoryClearsDeltaLog() {
+    directoryManager.setDirectoryVersion(6);
+    directoryManager.commitDirectoryUpdate(Map.of("alice", UUID.randomUUID()), Set.of(), () -> 0);
+    directoryManager.commitDirectoryUpdate(Map.of(), Set.of("alice"), () -> 0);
+
+    assertEquals(9, directoryManager.replacePlainDirectory(() -> Map.of("bob", UUID.randomUUID()), v -> v + 1));
+    assertEquals(Optional.empty(), directoryManager.retrieveIncrementalUpdate(6, 9));
+    assertEquals(Optional.empty(), directoryManager.retrieveIncrementalUpdate(8, 9));
+
+    directoryManager.commitDirectoryUpdate(Map.of(), Set.of("bob"), () -> 0);
+
+    assertEquals(Optional.empty(), directoryManager.retrieveIncrementalUpdate(8, 10));
+    assertEquals(Optional.of(Map.of("bob", DirectoryManager.DELTA_TOMBSTONE)),
+        directoryManager.retrieveIncrementalUpdate(9, 10));
+  }
+
+  @Test
+  void testReplacePlainDirectoryKeepingVersionClearsDeltaLog() {
+    directoryManager.setDirectoryVersion(6);
+    directoryManager.commitDirectoryUpdate(Map.of("alice", UUID.randomUUID()), Set.of(), () -> 0);
+
+    assertEquals(7, directoryManager.replacePlainDirectory(() -> Map.of("bob", UUID.randomUUID()), v -> v));
+    assertEquals(Optional.empty(), directoryManager.retrieveIncrementalUpdate(6, 7));
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import su.sres.shadowserver.redis.ReplicatedJedisPool;
+
+class DirectoryManagerTest {
+
+  private Jedis jedis;
+  private Pipeline pipeline;
+  private Transaction transaction;
+  private DirectoryManager directoryManager;
+
+  @BeforeEach
+  void setUp() {
+    final ReplicatedJedisPool redisPool = mock(ReplicatedJedisPool.class);
+
+    jedis = mock(Jedis.class);
+    pipeline = mock(Pipeline.class);
+    transaction = mock(Transaction.class);
+
+    when(redisPool.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(jedis.multi()).thenReturn(transaction);
+
+    directoryManager = new DirectoryManager(redisPool);
+  }
+
+  @Test
+  void testCommitDirectoryUpdate() {
+    final UUID uuid = UUID.randomUUID();
+
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn("6");
+    when(transaction.exec()).thenReturn(List.of());
+
+    assertEquals(7, directoryManager.commitDirectoryUpdate(Map.of("alice", uuid), Set.of("bob"), () -> 0));
+
+    verify(jedis).watch(DirectoryManager.DIRECTORY_VERSION);
+    verify(transaction).hset(eq(DirectoryManager.DIRECTORY_PLAIN), eq("alice"), anyString());
+    verify(transaction).hdel(DirectoryManager.DIRECTORY_PLAIN, "bob");
+
+    final InOrder inOrder = inOrder(transaction);
+    inOrder.verify(transaction).del("DirectoryDelta::7");
+    inOrder.verify(transaction).hmset(eq("DirectoryDelta::7"), any());
+
+    verify(transaction).set(DirectoryManager.DIRECTORY_VERSION, "7");
+    verify(transaction).del(anyString());
+  }
+
+  @Test
+  void testCommitDirectoryUpdateTrimsLog() {
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn(String.valueOf(DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD + 4));
+    when(transaction.exec()).thenReturn(List.of());
+
+    directoryManager.commitDirectoryUpdate(Map.of(), Set.of("bob"), () -> 0);
+
+    verify(transaction).del("DirectoryDelta::5");
+  }
+
+  @Test
+  void testCommitDirectoryUpdateRetriesOnConcurrentUpdate() {
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn("6", "7");
+    when(transaction.exec()).thenReturn(null, List.of());
+
+    assertEquals(8, directoryManager.commitDirectoryUpdate(Map.of(), Set.of("bob"), () -> 0));
+
+    verify(transaction).hmset(eq("DirectoryDelta::7"), any());
+    verify(transaction).hmset(eq("DirectoryDelta::8"), any());
+    verify(transaction).set(DirectoryManager.DIRECTORY_VERSION, "8");
+  }
+
+  @Test
+  void testCommitDirectoryUpdateMissingVersion() {
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn(null);
+    when(transaction.exec()).thenReturn(List.of());
+
+    assertEquals(43, directoryManager.commitDirectoryUpdate(Map.of(), Set.of("bob"), () -> 42));
+  }
+
+  @Test
+  void testRetrieveIncrementalUpdateMergesDeltas() {
+    mockDelta(4, Map.of("alice", "{\"uuid\":\"a\"}", "bob", "{\"uuid\":\"b\"}"));
+    mockDelta(5, Map.of("alice", DirectoryManager.DELTA_TOMBSTONE));
+    mockDelta(6, Map.of("", ""));
+
+    final Optional<HashMap<String, String>> maybeUpdate = directoryManager.retrieveIncrementalUpdate(3, 6);
+
+    assertTrue(maybeUpdate.isPresent());
+    assertEquals(Map.of("alice", DirectoryManager.DELTA_TOMBSTONE, "bob", "{\"uuid\":\"b\"}"), maybeUpdate.get());
+  }
+
+  @Test
+  void testRetrieveIncrementalUpdateMissingDelta() {
+    mockDelta(4, Map.of("alice", "{\"uuid\":\"a\"}"));
+    mockDelta(5, Map.of());
+
+    assertTrue(directoryManager.retrieveIncrementalUpdate(3, 5).isEmpty());
+  }
+
+  @Test
+  void testRetrieveIncrementalUpdateOutOfWindow() {
+    assertTrue(directoryManager.retrieveIncrementalUpdate(0, DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD + 1).isEmpty());
+  }
+
+  @Test
+  void testReplacePlainDirectory() {
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn("7");
+    when(transaction.exec()).thenReturn(List.of());
+
+    final long version = directoryManager.replacePlainDirectory(() -> Map.of("alice", UUID.randomUUID()), v -> v + 1);
+
+    assertEquals(8, version);
+    verify(jedis).watch(DirectoryManager.DIRECTORY_VERSION);
+    verify(pipeline).hmset(eq("DirectoryPlainStaging"), any());
+    verify(transaction).rename("DirectoryPlainStaging", DirectoryManager.DIRECTORY_PLAIN);
+    verify(transaction).set(DirectoryManager.DIRECTORY_VERSION, "8");
+
+    for (int i = 1; i <= 8; i++) {
+      verify(transaction).del("DirectoryDelta::" + i);
+    }
+  }
+
+  @Test
+  void testReplacePlainDirectoryRetriesOnConcurrentUpdate() {
+    when(jedis.get(DirectoryManager.DIRECTORY_VERSION)).thenReturn("7", "8");
+    when(transaction.exec()).thenReturn(null, List.of());
+
+    final AtomicInteger supplied = new AtomicInteger();
+
+    final long version = directoryManager.replacePlainDirectory(() -> {
+      supplied.incrementAndGet();
+      return Map.of("alice", UUID.randomUUID());
+    }, v -> v + 1);
+
+    assertEquals(9, version);
+    assertEquals(2, supplied.get());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void mockDelta(final long version, final Map<String, String> delta) {
+    final Response<Map<String, String>> response = mock(Response.class);
+
+    when(response.get()).thenReturn(delta);
+    when(pipeline.hgetAll("DirectoryDelta::" + version)).thenReturn(response);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import su.sres.shadowserver.storage.DirectorySnapshotCache.DirectorySnapshot;
+import su.sres.shadowserver.storage.protos.DirectoryResponse;
+import su.sres.shadowserver.storage.protos.DirectoryUpdate;
+
+class DirectorySnapshotCacheTest {
+
+  @Test
+  void testSnapshotBuiltOncePerVersion() {
+    final DirectorySnapshotCache cache = new DirectorySnapshotCache(false);
+    final AtomicInteger builds = new AtomicInteger();
+
+    final DirectorySnapshot first = cache.get(5, () -> {
+      builds.incrementAndGet();
+      return buildResponse(5);
+    });
+
+    final DirectorySnapshot second = cache.get(5, () -> {
+      builds.incrementAndGet();
+      return buildResponse(5);
+    });
+
+    assertSame(first, second);
+    assertEquals(1, builds.get());
+    assertTrue(first.getCompressed().isEmpty());
+    assertArrayEquals(buildResponse(5).toByteArray(), first.getSerialized());
+
+    assertEquals(6, cache.get(6, () -> buildResponse(6)).getVersion());
+  }
+
+  @Test
+  void testNewerSnapshotServesOlderVersion() {
+    final DirectorySnapshotCache cache = new DirectorySnapshotCache(false);
+
+    final DirectorySnapshot newer = cache.get(6, () -> buildResponse(6));
+
+    assertSame(newer, cache.get(5, () -> buildResponse(5)));
+  }
+
+  @Test
+  void testBuiltVersionAheadOfRequested() {
+    final DirectorySnapshotCache cache = new DirectorySnapshotCache(false);
+
+    // the directory moved on between reading the version and reading the entries
+    final DirectorySnapshot snapshot = cache.get(5, () -> buildResponse(6));
+
+    assertEquals(6, snapshot.getVersion());
+    assertSame(snapshot, cache.get(6, () -> buildResponse(6)));
+  }
+
+  @Test
+  void testCompressedSnapshot() throws IOException {
+    final DirectorySnapshot snapshot = new DirectorySnapshotCache(true).get(5, () -> buildResponse(5));
+
+    assertTrue(snapshot.getCompressed().isPresent());
+
+    try (final GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(snapshot.getCompressed().get()))) {
+      assertArrayEquals(snapshot.getSerialized(), inputStream.readAllBytes());
+    }
+  }
+
+  private static DirectoryResponse buildResponse(final long version) {
+    return DirectoryResponse.newBuilder()
+        .setVersion(version)
+        .setDirectoryUpdate(DirectoryUpdate.newBuilder()
+            .setType(DirectoryUpdate.Type.FULL)
+            .putAllDirectoryEntry(Map.of("alice", "{\"uuid\":\"a\"}", "bob", "{\"uuid\":\"b\"}")))
+        .build();
+  }
+}
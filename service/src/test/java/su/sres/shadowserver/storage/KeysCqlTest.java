@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import su.sres.shadowserver.entities.PreKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class KeysCqlTest {
+
+  private static final long DEVICE_ID = 1L;
+
+  private Account account;
+  private KeysCql keysCql;
+
+  @RegisterExtension
+  static CqlExtension cqlExtension = new CqlExtension();
+
+  @BeforeEach
+  void setup() {
+    keysCql = new KeysCql(cqlExtension.getSession(), CqlExtension.KEYS_TABLE_NAME);
+
+    account = mock(Account.class);
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+  }
+
+  @Test
+  void testStore() {
+    assertEquals(0, keysCql.getCount(account, DEVICE_ID));
+
+    keysCql.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key")));
+    assertEquals(1, keysCql.getCount(account, DEVICE_ID));
+
+    keysCql.store(account, DEVICE_ID, List.of(new PreKey(2, "different-public-key"), new PreKey(3, "third-public-key")));
+    assertEquals(2, keysCql.getCount(account, DEVICE_ID), "Storing keys should replace all prior keys for the device");
+  }
+
+  @Test
+  void testAppendAndTrim() {
+    keysCql.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "second-key")));
+
+    assertEquals(2, keysCql.append(account, DEVICE_ID,
+        List.of(new PreKey(2, "replacement-key"), new PreKey(3, "third-key"), new PreKey(4, "fourth-key"))),
+        "Keys with IDs the device already has should not be counted as added");
+    assertEquals(4, keysCql.getCount(account, DEVICE_ID));
+
+    assertEquals(4, keysCql.trim(account, DEVICE_ID, 5));
+    assertEquals(3, keysCql.trim(account, DEVICE_ID, 3));
+    assertEquals(3, keysCql.getCount(account, DEVICE_ID));
+
+    assertEquals(Optional.of(new PreKey(2, "replacement-key")), keysCql.take(account, DEVICE_ID),
+        "Appending should replace keys with reused IDs and trimming should drop the oldest");
+  }
+
+  @Test
+  void testTrimAfterKeyIdWraparound() {
+    keysCql.store(account, DEVICE_ID, List.of(new PreKey(0xfffffe, "old-key"), new PreKey(0xffffff, "last-key")));
+    keysCql.append(account, DEVICE_ID, List.of(new PreKey(0, "wrapped-key")));
+
+    assertEquals(1, keysCql.trim(account, DEVICE_ID, 1));
+    assertEquals(Optional.of(new PreKey(0, "wrapped-key")), keysCql.take(account, DEVICE_ID));
+  }
+
+  @Test
+  void testTakeAccountAndDeviceId() {
+    assertEquals(Optional.empty(), keysCql.take(account, DEVICE_ID));
+
+    final PreKey preKey = new PreKey(1, "public-key");
+    final PreKey secondPreKey = new PreKey(2, "different-pre-key");
+
+    keysCql.store(account, DEVICE_ID, List.of(preKey, secondPreKey));
+    assertEquals(Optional.of(preKey), keysCql.take(account, DEVICE_ID));
+    assertEquals(Optional.of(secondPreKey), keysCql.takeAsync(account, DEVICE_ID).join());
+    assertEquals(Optional.empty(), keysCql.takeAsync(account, DEVICE_ID).join());
+  }
+
+  @Test
+  void testTakeAccount() {
+    final Device firstDevice = mock(Device.class);
+    final Device secondDevice = mock(Device.class);
+
+    when(firstDevice.getId()).thenReturn(DEVICE_ID);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID + 1);
+    when(account.getDevices()).thenReturn(Set.of(firstDevice, secondDevice));
+
+    final PreKey firstDevicePreKey = new PreKey(1, "public-key");
+    final PreKey secondDevicePreKey = new PreKey(2, "second-device-public-key");
+
+    keysCql.store(account, DEVICE_ID, List.of(firstDevicePreKey));
+    keysCql.store(account, DEVICE_ID + 1, List.of(secondDevicePreKey));
+
+    assertEquals(Map.of(DEVICE_ID, firstDevicePreKey, DEVICE_ID + 1, secondDevicePreKey), keysCql.take(account));
+    assertEquals(0, keysCql.getCount(account, DEVICE_ID));
+    assertEquals(0, keysCql.getCount(account, DEVICE_ID + 1));
+  }
+
+  @Test
+  void testDelete() {
+    keysCql.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "different-public-key")));
+    keysCql.store(account, DEVICE_ID + 1, List.of(new PreKey(3, "public-key-for-different-device")));
+
+    keysCql.delete(account.getUuid(), DEVICE_ID);
+
+    assertEquals(0, keysCql.getCount(account, DEVICE_ID));
+    assertEquals(1, keysCql.getCount(account, DEVICE_ID + 1));
+
+    keysCql.delete(account.getUuid());
+
+    assertEquals(0, keysCql.getCount(account, DEVICE_ID + 1));
+  }
+}
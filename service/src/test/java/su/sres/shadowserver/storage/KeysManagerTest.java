@@ -0,0 +1,243 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import su.sres.shadowserver.configuration.ScyllaDbConfiguration.KeysUploadMode;
+import su.sres.shadowserver.entities.PreKey;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.RedisClusterHelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+class KeysManagerTest {
+
+  private static final long DEVICE_ID = 1L;
+
+  private RedisAdvancedClusterCommands<String, String> commands;
+  private PreKeyStore keys;
+  private Account account;
+  private String countsKey;
+  private FaultTolerantRedisCluster cacheCluster;
+
+  private KeysManager keysManager;
+
+  @BeforeEach
+  void setUp() {
+    //noinspection unchecked
+    commands = mock(RedisAdvancedClusterCommands.class);
+    keys = mock(PreKeyStore.class);
+
+    cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+
+    final UUID uuid = UUID.randomUUID();
+    account = mock(Account.class);
+    when(account.getUuid()).thenReturn(uuid);
+    countsKey = "prekey_counts::" + uuid;
+
+    keysManager = new KeysManager(keys, cacheCluster);
+  }
+
+  @Test
+  void testStoreSetsCount() {
+    keysManager.store(account, DEVICE_ID, List.of(new PreKey(1, "a"), new PreKey(2, "b"), new PreKey(2, "b")));
+
+    verify(keys).store(account, DEVICE_ID, List.of(new PreKey(1, "a"), new PreKey(2, "b"), new PreKey(2, "b")));
+    verify(commands).hset(countsKey, "1", "2");
+  }
+
+  @Test
+  void testRefillReplaces() {
+    keysManager.refill(account, DEVICE_ID, List.of(new PreKey(1, "a")));
+
+    verify(keys).store(account, DEVICE_ID, List.of(new PreKey(1, "a")));
+    verify(keys, never()).append(any(), anyLong(), any());
+  }
+
+  @Test
+  void testRefillAppendsBelowCap() {
+    final KeysManager appendingKeysManager = new KeysManager(keys, cacheCluster, KeysUploadMode.APPEND, 10);
+
+    when(commands.hget(countsKey, "1")).thenReturn("3");
+    when(keys.append(account, DEVICE_ID, List.of(new PreKey(4, "d"), new PreKey(5, "e")))).thenReturn(2);
+
+    appendingKeysManager.refill(account, DEVICE_ID, List.of(new PreKey(4, "d"), new PreKey(5, "e")));
+
+    verify(commands).hincrby(countsKey, "1", 2);
+    verify(keys, never()).store(any(), anyLong(), any());
+    verify(keys, never()).trim(any(), anyLong(), anyInt());
+  }
+
+  @Test
+  void testRefillAppendsAndTrims() {
+    final KeysManager appendingKeysManager = new KeysManager(keys, cacheCluster, KeysUploadMode.APPEND, 4);
+
+    when(commands.hget(countsKey, "1")).thenReturn("3");
+    when(keys.append(account, DEVICE_ID, List.of(new PreKey(4, "d"), new PreKey(5, "e")))).thenReturn(2);
+    when(keys.trim(account, DEVICE_ID, 4)).thenReturn(4);
+
+    appendingKeysManager.refill(account, DEVICE_ID, List.of(new PreKey(4, "d"), new PreKey(5, "e")));
+
+    verify(keys).trim(account, DEVICE_ID, 4);
+    verify(commands).hset(countsKey, "1", "4");
+  }
+
+  @Test
+  void testRefillAppendsWithoutCount() {
+    final KeysManager appendingKeysManager = new KeysManager(keys, cacheCluster, KeysUploadMode.APPEND, 10);
+
+    when(commands.hget(countsKey, "1")).thenReturn(null);
+    when(keys.append(account, DEVICE_ID, List.of(new PreKey(4, "d")))).thenReturn(1);
+    when(keys.trim(account, DEVICE_ID, 10)).thenReturn(6);
+
+    appendingKeysManager.refill(account, DEVICE_ID, List.of(new PreKey(4, "d")));
+
+    verify(commands).hset(countsKey, "1", "6");
+  }
+
+  @Test
+  void testRefillAppendFailure() {
+    final KeysManager appendingKeysManager = new KeysManager(keys, cacheCluster, KeysUploadMode.APPEND, 10);
+
+    when(commands.hget(countsKey, "1")).thenReturn("3");
+    when(keys.append(account, DEVICE_ID, List.of(new PreKey(4, "d")))).thenThrow(RuntimeException.class);
+
+    assertThrows(RuntimeException.class, () -> appendingKeysManager.refill(account, DEVICE_ID, List.of(new PreKey(4, "d"))));
+    verify(commands).hdel(countsKey, "1");
+  }
+
+  @Test
+  void testTakeDecrementsCount() {
+    when(keys.take(account, DEVICE_ID)).thenReturn(Optional.of(new PreKey(1, "a")));
+    when(keys.takeAsync(account, DEVICE_ID)).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(keys.takeAsync(account, DEVICE_ID + 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(new PreKey(2, "b"))));
+
+    assertEquals(Optional.of(new PreKey(1, "a")), keysManager.take(account, DEVICE_ID));
+    verify(commands).hincrby(countsKey, "1", -1);
+
+    assertEquals(Map.of(DEVICE_ID + 1, new PreKey(2, "b")), keysManager.takeAsync(account, List.of(DEVICE_ID, DEVICE_ID + 1)).join());
+    verify(commands).hincrby(countsKey, "2", -1);
+    verifyNoMoreInteractions(commands);
+  }
+
+  @Test
+  void testTakeFromPool() {
+    final PreKeyPool pool = mock(PreKeyPool.class);
+    final KeysManager pooledKeysManager = new KeysManager(keys, cacheCluster, KeysUploadMode.REPLACE, Integer.MAX_VALUE, pool);
+
+    when(pool.poll(account, DEVICE_ID)).thenReturn(Optional.of(new PreKey(1, "a")), Optional.empty());
+    when(keys.takeAsync(account, DEVICE_ID)).thenReturn(CompletableFuture.completedFuture(Optional.of(new PreKey(2, "b"))));
+
+    assertEquals(Optional.of(new PreKey(1, "a")), pooledKeysManager.takeAsync(account, DEVICE_ID).join());
+    verify(keys, never()).takeAsync(account, DEVICE_ID);
+
+    assertEquals(Optional.of(new PreKey(2, "b")), pooledKeysManager.takeAsync(account, DEVICE_ID).join());
+    verify(commands, times(2)).hincrby(countsKey, "1", -1);
+
+    when(commands.hget(countsKey, "1")).thenReturn(null);
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(3);
+    when(pool.size(account.getUuid(), DEVICE_ID)).thenReturn(2);
+
+    assertEquals(5, pooledKeysManager.getCount(account, DEVICE_ID), "The count should include pooled keys");
+
+    pooledKeysManager.store(account, DEVICE_ID, List.of(new PreKey(3, "c")));
+    verify(pool).clear(account.getUuid(), DEVICE_ID);
+
+    pooledKeysManager.delete(account.getUuid(), List.of(DEVICE_ID));
+    verify(pool).clear(account.getUuid(), List.of(DEVICE_ID));
+  }
+
+  @Test
+  void testGetCountFromCache() {
+    when(commands.hget(countsKey, "1")).thenReturn("7");
+
+    assertEquals(7, keysManager.getCount(account, DEVICE_ID));
+    verify(keys, never()).getCount(any(), anyLong());
+  }
+
+  @Test
+  void testGetCountMissing() {
+    when(commands.hget(countsKey, "1")).thenReturn(null);
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(5);
+
+    assertEquals(5, keysManager.getCount(account, DEVICE_ID));
+    verify(commands).hset(countsKey, "1", "5");
+  }
+
+  @Test
+  void testGetCountNegative() {
+    when(commands.hget(countsKey, "1")).thenReturn("-1");
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(3);
+
+    assertEquals(3, keysManager.getCount(account, DEVICE_ID));
+    verify(commands).hset(countsKey, "1", "3");
+  }
+
+  @Test
+  void testGetCountRedisUnavailable() {
+    when(commands.hget(countsKey, "1")).thenThrow(RedisException.class);
+    when(commands.hset(countsKey, "1", "4")).thenThrow(RedisException.class);
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(4);
+
+    assertEquals(4, keysManager.getCount(account, DEVICE_ID));
+  }
+
+  @Test
+  void testReconcileCount() {
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(4);
+
+    when(commands.hget(countsKey, "1")).thenReturn("4");
+    assertFalse(keysManager.reconcileCount(account, DEVICE_ID));
+    verify(commands, never()).evalsha(any(), any(), any(), any());
+
+    when(commands.hget(countsKey, "1")).thenReturn("6");
+    when(commands.evalsha(any(), any(), any(), any())).thenReturn(1L);
+    assertTrue(keysManager.reconcileCount(account, DEVICE_ID));
+  }
+
+  @Test
+  void testReconcileCountChangedMeanwhile() {
+    when(keys.getCount(account, DEVICE_ID)).thenReturn(4);
+    when(commands.hget(countsKey, "1")).thenReturn("6");
+    when(commands.evalsha(any(), any(), any(), any())).thenReturn(0L);
+
+    assertFalse(keysManager.reconcileCount(account, DEVICE_ID));
+    verify(commands, never()).hset(any(String.class), any(String.class), any(String.class));
+  }
+
+  @Test
+  void testDelete() {
+    keysManager.delete(account.getUuid(), DEVICE_ID);
+    verify(keys).delete(account.getUuid(), DEVICE_ID);
+    verify(commands).hdel(countsKey, "1");
+
+    keysManager.delete(account.getUuid());
+    verify(keys).delete(account.getUuid());
+    verify(commands).del(countsKey);
+  }
+}
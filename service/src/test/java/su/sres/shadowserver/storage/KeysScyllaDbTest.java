@@ -12,6 +12,9 @@ import org.junit.Test;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import su.sres.shadowserver.entities.PreKey;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -90,6 +93,39 @@ public class KeysScyllaDbTest {
     assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID + 1));
   }
 
+  @Test
+  public void testAppendAndTrim() {
+    keysDynamoDb = buildKeysScyllaDb(1_000);
+    keysDynamoDb.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "second-key")));
+
+    keysDynamoDb = buildKeysScyllaDb(2_000);
+    assertEquals("Keys with IDs the device already has should not be counted as added",
+        2, keysDynamoDb.append(account, DEVICE_ID,
+            List.of(new PreKey(2, "replacement-key"), new PreKey(3, "third-key"), new PreKey(4, "fourth-key"))));
+    assertEquals(4, keysDynamoDb.getCount(account, DEVICE_ID));
+
+    assertEquals(4, keysDynamoDb.trim(account, DEVICE_ID, 5));
+    assertEquals(3, keysDynamoDb.trim(account, DEVICE_ID, 3));
+    assertEquals(3, keysDynamoDb.getCount(account, DEVICE_ID));
+
+    assertEquals("Appending should replace keys with reused IDs and trimming should drop the oldest",
+        Optional.of(new PreKey(2, "replacement-key")), keysDynamoDb.take(account, DEVICE_ID));
+  }
+
+  @Test
+  public void testTrimAfterKeyIdWraparound() {
+    buildKeysScyllaDb(1_000).store(account, DEVICE_ID, List.of(new PreKey(0xfffffe, "old-key"), new PreKey(0xffffff, "last-key")));
+    buildKeysScyllaDb(2_000).append(account, DEVICE_ID, List.of(new PreKey(0, "wrapped-key")));
+
+    assertEquals(1, keysDynamoDb.trim(account, DEVICE_ID, 1));
+    assertEquals(Optional.of(new PreKey(0, "wrapped-key")), keysDynamoDb.take(account, DEVICE_ID));
+  }
+
+  private KeysScyllaDb buildKeysScyllaDb(final long millis) {
+    return new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(), null, KeysScyllaDbRule.TABLE_NAME,
+        KeysScyllaDb.DEFAULT_TAKE_PAGE_SIZE, Clock.fixed(Instant.ofEpochMilli(millis), ZoneId.systemDefault()));
+  }
+
   @Test
   public void testTakeAccountAndDeviceId() {
     assertEquals(Optional.empty(), keysDynamoDb.take(account, DEVICE_ID));
@@ -101,6 +137,68 @@ public class KeysScyllaDbTest {
     assertEquals(1, keysDynamoDb.getCount(account, DEVICE_ID));
   }
 
+  @Test
+  public void testTakeAsync() {
+    final KeysScyllaDb asyncKeysScyllaDb =
+        new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(), dynamoDbRule.getDynamoDbAsyncClient(), KeysScyllaDbRule.TABLE_NAME);
+
+    assertEquals(Optional.empty(), asyncKeysScyllaDb.takeAsync(account, DEVICE_ID).join());
+
+    final PreKey preKey = new PreKey(1, "public-key");
+    final PreKey secondPreKey = new PreKey(2, "different-pre-key");
+
+    keysDynamoDb.store(account, DEVICE_ID, List.of(preKey, secondPreKey));
+    assertEquals(Optional.of(preKey), asyncKeysScyllaDb.takeAsync(account, DEVICE_ID).join());
+    assertEquals(Optional.of(secondPreKey), asyncKeysScyllaDb.takeAsync(account, DEVICE_ID).join());
+    assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID));
+  }
+
+  @Test
+  public void testTakeAsyncForDevices() {
+    final KeysScyllaDb asyncKeysScyllaDb =
+        new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(), dynamoDbRule.getDynamoDbAsyncClient(), KeysScyllaDbRule.TABLE_NAME);
+
+    assertEquals(Collections.emptyMap(), asyncKeysScyllaDb.takeAsync(account, List.of(DEVICE_ID, DEVICE_ID + 1)).join());
+
+    final PreKey firstDevicePreKey = new PreKey(1, "public-key");
+    final PreKey secondDevicePreKey = new PreKey(2, "second-key");
+    final PreKey thirdDevicePreKey = new PreKey(3, "third-key");
+
+    keysDynamoDb.store(account, DEVICE_ID, List.of(firstDevicePreKey));
+    keysDynamoDb.store(account, DEVICE_ID + 1, List.of(secondDevicePreKey));
+    keysDynamoDb.store(account, DEVICE_ID + 2, List.of(thirdDevicePreKey));
+
+    assertEquals(Map.of(DEVICE_ID, firstDevicePreKey, DEVICE_ID + 1, secondDevicePreKey),
+        asyncKeysScyllaDb.takeAsync(account, List.of(DEVICE_ID, DEVICE_ID + 1)).join());
+
+    assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID));
+    assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID + 1));
+    assertEquals("Devices not asked for should keep their keys",
+        1, keysDynamoDb.getCount(account, DEVICE_ID + 2));
+  }
+
+  @Test
+  public void testTakePagesThroughKeys() {
+    final KeysScyllaDb pagingKeysScyllaDb = new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(),
+        dynamoDbRule.getDynamoDbAsyncClient(), KeysScyllaDbRule.TABLE_NAME, 2);
+
+    final List<PreKey> preKeys = List.of(new PreKey(1, "one"), new PreKey(2, "two"), new PreKey(3, "three"),
+        new PreKey(4, "four"), new PreKey(5, "five"));
+
+    keysDynamoDb.store(account, DEVICE_ID, preKeys);
+
+    for (int i = 0; i < preKeys.size(); i++) {
+      final Optional<PreKey> taken = i % 2 == 0
+          ? pagingKeysScyllaDb.take(account, DEVICE_ID)
+          : pagingKeysScyllaDb.takeAsync(account, DEVICE_ID).join();
+
+      assertEquals(Optional.of(preKeys.get(i)), taken);
+    }
+
+    assertEquals(Optional.empty(), pagingKeysScyllaDb.take(account, DEVICE_ID));
+    assertEquals(Optional.empty(), pagingKeysScyllaDb.takeAsync(account, DEVICE_ID).join());
+  }
+
   @Test
   public void testGetCount() {
     assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID));
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import su.sres.shadowserver.configuration.AccountCacheConfiguration;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+
+class LocalAccountCacheTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private LocalAccountCache localAccountCache;
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private final Function<UUID, Optional<Account>> loader = uuid -> {
+    loads.incrementAndGet();
+
+    final Account account = new Account();
+    account.setUuid(uuid);
+
+    return Optional.of(account);
+  };
+
+  @BeforeEach
+  void setUp() {
+    localAccountCache = new LocalAccountCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), new AccountCacheConfiguration());
+    localAccountCache.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    localAccountCache.stop();
+  }
+
+  @Test
+  void testGet() {
+    final UUID uuid = UUID.randomUUID();
+
+    final Account account = localAccountCache.get(uuid, loader).orElseThrow();
+
+    assertEquals(uuid, account.getUuid());
+    assertSame(account, localAccountCache.get(uuid, loader).orElseThrow());
+    assertEquals(1, loads.get());
+
+    localAccountCache.invalidate(uuid);
+
+    localAccountCache.get(uuid, loader);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testMissingNotCached() {
+    final UUID uuid = UUID.randomUUID();
+
+    assertTrue(localAccountCache.get(uuid, ignored -> Optional.empty()).isEmpty());
+
+    localAccountCache.get(uuid, loader);
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void testInvalidationDuringLoad() {
+    final UUID uuid = UUID.randomUUID();
+
+    localAccountCache.get(uuid, ignored -> {
+      localAccountCache.invalidate(uuid);
+      return loader.apply(uuid);
+    });
+
+    localAccountCache.get(uuid, loader);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testGetAll() {
+    final UUID cachedUuid = UUID.randomUUID();
+    final UUID missingUuid = UUID.randomUUID();
+    final UUID uncachedUuid = UUID.randomUUID();
+
+    final Account cached = localAccountCache.get(cachedUuid, loader).orElseThrow();
+    final List<Collection<UUID>> loadedUuids = new ArrayList<>();
+
+    final Map<UUID, Account> found = localAccountCache.getAll(List.of(cachedUuid, missingUuid, uncachedUuid), uuids -> {
+      loadedUuids.add(uuids);
+      return Map.of(uncachedUuid, loader.apply(uncachedUuid).orElseThrow());
+    });
+
+    assertEquals(Set.of(cachedUuid, uncachedUuid), found.keySet());
+    assertSame(cached, found.get(cachedUuid));
+    assertEquals(List.of(Set.of(missingUuid, uncachedUuid)), loadedUuids);
+
+    assertSame(found.get(uncachedUuid), localAccountCache.get(uncachedUuid, loader).orElseThrow());
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testInvalidationDuringGetAll() {
+    final UUID uuid = UUID.randomUUID();
+
+    localAccountCache.getAll(List.of(uuid), uuids -> {
+      localAccountCache.invalidate(uuid);
+      return Map.of(uuid, loader.apply(uuid).orElseThrow());
+    });
+
+    localAccountCache.get(uuid, loader);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testRemoteInvalidation() throws InterruptedException {
+    final UUID uuid = UUID.randomUUID();
+
+    localAccountCache.get(uuid, loader);
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync()
+        .publish(LocalAccountCache.INVALIDATION_CHANNEL, uuid.toString()));
+
+    for (int i = 0; i < 50 && loads.get() < 2; i++) {
+      Thread.sleep(100);
+      localAccountCache.get(uuid, loader);
+    }
+
+    assertEquals(2, loads.get());
+  }
+}
@@ -45,6 +45,7 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
   private MessagesScyllaDb messagesScyllaDb;
   private MessagePersister messagePersister;
   private AccountsManager accountsManager;
+  private MessagesManager messagesManager;
 
   private static final UUID DESTINATION_ACCOUNT_UUID = UUID.randomUUID();
   private static final String DESTINATION_ACCOUNT_NUMBER = "+18005551234";
@@ -57,7 +58,7 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
   public void setUp() throws Exception {
     super.setUp();
 
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    messagesManager = mock(MessagesManager.class);
     final DynamicConfiguration dynamicConfiguration = mock(DynamicConfiguration.class);
 
     messagesScyllaDb = mock(MessagesScyllaDb.class);
@@ -164,6 +165,41 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
     assertEquals(queueCount * messagesPerQueue, messagesCaptor.getAllValues().stream().mapToInt(List::size).sum());
   }
 
+  @Test
+  public void testPersistNextQueuesConcurrently() {
+    final MessagePersister concurrentMessagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager,
+        mock(DynamicConfiguration.class), PERSIST_DELAY, 1, 8);
+
+    final int slot = 7;
+    final int queueCount = MessagePersister.QUEUE_BATCH_LIMIT + 7;
+    final int messagesPerQueue = 10;
+    final Instant now = Instant.now();
+
+    for (int i = 0; i < queueCount; i++) {
+      final String queueName = generateRandomQueueNameForSlot(slot);
+      final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queueName);
+      final long deviceId = MessagesCache.getDeviceIdFromQueueName(queueName);
+
+      when(accountsManager.get(accountUuid)).thenReturn(Optional.of(mock(Account.class)));
+
+      insertMessages(accountUuid, deviceId, messagesPerQueue, now);
+    }
+
+    setNextSlotToPersist(slot);
+
+    try {
+      assertEquals(queueCount, concurrentMessagePersister.persistNextQueues(now.plus(PERSIST_DELAY)));
+    } finally {
+      concurrentMessagePersister.stop();
+    }
+
+    final ArgumentCaptor<List<MessageProtos.Envelope>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+
+    verify(messagesScyllaDb, atLeastOnce()).store(messagesCaptor.capture(), any(UUID.class), anyLong());
+    assertEquals(queueCount * messagesPerQueue, messagesCaptor.getAllValues().stream().mapToInt(List::size).sum());
+    assertEquals(0, messagesCache.getPersistBacklogSize(slot, now.plus(PERSIST_DELAY)));
+  }
+
   @Test
   public void testPersistQueueRetry() {
     final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
@@ -9,6 +9,7 @@ import junitparams.Parameters;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+import su.sres.shadowserver.util.EnvelopeCodec;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Before;
@@ -170,6 +171,61 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertEquals(expectedMessages, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
   }
 
+  @Test
+  public void testGetMessagesKeepsSerializedEnvelope() throws Exception {
+    final UUID messageGuid = UUID.randomUUID();
+    final MessageProtos.Envelope message = generateRandomMessage(messageGuid, true).toBuilder()
+        .setTimestamp(System.currentTimeMillis())
+        .setEphemeral(true)
+        .build();
+
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+
+    final List<OutgoingMessageEntity> messages = messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10);
+
+    assertEquals(1, messages.size());
+    assertTrue(messages.get(0).getEnvelope().isPresent());
+
+    final MessageProtos.Envelope delivered = MessageProtos.Envelope.parseFrom(messages.get(0).getEnvelope().get());
+
+    assertFalse(delivered.hasEphemeral());
+    assertEquals(message.toBuilder().clearEphemeral().setServerGuid(messageGuid.toString()).build(), delivered);
+  }
+
+  @Test
+  @Parameters({ "LZ4", "ZSTD" })
+  public void testCompressedEnvelopes(final EnvelopeCodec.Compression compression) throws Exception {
+    final MessagesCache compressingMessagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService,
+        false, new EnvelopeCodec(compression, 64));
+
+    final List<MessageProtos.Envelope> messages = new ArrayList<>();
+
+    for (int i = 0; i < 10; i++) {
+      final UUID messageGuid = UUID.randomUUID();
+      final MessageProtos.Envelope message = generateRandomMessage(messageGuid, false).toBuilder()
+          // compressible content, and small content that stays below the threshold
+          .setContent(ByteString.copyFromUtf8(i % 2 == 0 ? "compressible ".repeat(50) : "small"))
+          .build();
+
+      compressingMessagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+      messages.add(message);
+    }
+
+    // envelopes are read regardless of the codec a cache writes with
+    final List<OutgoingMessageEntity> retrieved = messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messages.size());
+
+    assertEquals(messages.size(), retrieved.size());
+
+    for (int i = 0; i < messages.size(); i++) {
+      assertEquals(messages.get(i), MessageProtos.Envelope.parseFrom(retrieved.get(i).getEnvelope().get()));
+    }
+
+    assertEquals(messages, messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, messages.size()));
+
+    assertEquals(MessagesCache.constructEntityFromEnvelope(0, messages.get(0)),
+        messagesCache.remove(DESTINATION_UUID, DESTINATION_DEVICE_ID, UUID.fromString(messages.get(0).getServerGuid())).orElseThrow());
+  }
+
   @Test
   @Parameters({ "true", "false" })
   public void testClearQueueForDevice(final boolean sealedSender) {
@@ -333,4 +389,61 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
 
     assertTrue(notified.get());
   }
+
+  @Test(timeout = 5_000L)
+  public void testNotifyListenerOnServerChannel() throws Exception {
+    final MessagesCache serverChannelMessagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, true);
+    serverChannelMessagesCache.start();
+
+    final AtomicBoolean newMessagesNotified = new AtomicBoolean(false);
+    final AtomicBoolean persistedNotified = new AtomicBoolean(false);
+    final UUID messageGuid = UUID.randomUUID();
+
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+        synchronized (newMessagesNotified) {
+          newMessagesNotified.set(true);
+          newMessagesNotified.notifyAll();
+        }
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+        synchronized (persistedNotified) {
+          persistedNotified.set(true);
+          persistedNotified.notifyAll();
+        }
+      }
+    };
+
+    try {
+      serverChannelMessagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+
+      // any server's inserts reach the listening server's channel
+      messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+
+      synchronized (newMessagesNotified) {
+        while (!newMessagesNotified.get()) {
+          newMessagesNotified.wait();
+        }
+      }
+
+      messagesCache.lockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+      messagesCache.unlockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+      synchronized (persistedNotified) {
+        while (!persistedNotified.get()) {
+          persistedNotified.wait();
+        }
+      }
+
+      serverChannelMessagesCache.removeMessageAvailabilityListener(listener);
+
+      assertEquals(0, (long) getRedisCluster().withCluster(connection ->
+          connection.sync().exists("user_queue_listener::{" + MessagesCache.getQueueName(DESTINATION_UUID, DESTINATION_DEVICE_ID) + "}")));
+    } finally {
+      serverChannelMessagesCache.stop();
+    }
+  }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.google.protobuf.ByteString;
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessagesCqlTest {
+
+  private static final Random random = new Random();
+  private static final MessageProtos.Envelope MESSAGE1;
+  private static final MessageProtos.Envelope MESSAGE2;
+
+  static {
+    final long serverTimestamp = System.currentTimeMillis();
+    MessageProtos.Envelope.Builder builder = MessageProtos.Envelope.newBuilder();
+    builder.setType(MessageProtos.Envelope.Type.UNIDENTIFIED_SENDER);
+    builder.setTimestamp(123456789L);
+    builder.setContent(ByteString.copyFrom(new byte[] { (byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF }));
+    builder.setServerGuid(UUID.randomUUID().toString());
+    builder.setServerTimestamp(serverTimestamp);
+
+    MESSAGE1 = builder.build();
+
+    builder.setType(MessageProtos.Envelope.Type.CIPHERTEXT);
+    builder.setSource("12348675309");
+    builder.setSourceUuid(UUID.randomUUID().toString());
+    builder.setSourceDevice(1);
+    builder.setContent(ByteString.copyFromUtf8("MOO"));
+    builder.setServerGuid(UUID.randomUUID().toString());
+    builder.setServerTimestamp(serverTimestamp + 1);
+
+    MESSAGE2 = builder.build();
+  }
+
+  private MessagesCql messagesCql;
+
+  @RegisterExtension
+  static CqlExtension cqlExtension = new CqlExtension();
+
+  @BeforeEach
+  void setup() {
+    messagesCql = new MessagesCql(cqlExtension.getSession(), CqlExtension.MESSAGES_TABLE_NAME, Duration.ofDays(14));
+  }
+
+  @Test
+  void testSimpleFetchAfterInsert() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int destinationDeviceId = random.nextInt(255) + 1;
+    messagesCql.store(List.of(MESSAGE2, MESSAGE1), destinationUuid, destinationDeviceId);
+
+    final List<OutgoingMessageEntity> messagesStored = messagesCql.load(destinationUuid, destinationDeviceId, 100);
+    assertThat(messagesStored).hasSize(2);
+    assertThat(messagesStored.get(0)).satisfies(retrieved -> verify(retrieved, MESSAGE1));
+    assertThat(messagesStored.get(1)).satisfies(retrieved -> verify(retrieved, MESSAGE2));
+  }
+
+  @Test
+  void testLoadAsync() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int destinationDeviceId = random.nextInt(255) + 1;
+    final long serverTimestamp = System.currentTimeMillis();
+    final List<MessageProtos.Envelope> messages = new ArrayList<>();
+
+    // more messages than fit in one batch
+    for (int i = 0; i < 101; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(serverTimestamp + i)
+          .build());
+    }
+
+    messagesCql.store(messages, destinationUuid, destinationDeviceId);
+
+    assertThat(messagesCql.loadAsync(destinationUuid, destinationDeviceId, 2).join())
+        .hasSize(2)
+        .satisfies(loaded -> {
+          verify(loaded.get(0), messages.get(0));
+          verify(loaded.get(1), messages.get(1));
+        });
+
+    assertThat(messagesCql.loadAsync(destinationUuid, destinationDeviceId, 100).join())
+        .isEqualTo(messagesCql.load(destinationUuid, destinationDeviceId, 100));
+  }
+
+  @Test
+  void testDeleteMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesCql.store(List.of(MESSAGE1, MESSAGE2), destinationUuid, 1);
+
+    messagesCql.deleteMessages(destinationUuid, 1,
+        Map.of(UUID.fromString(MESSAGE1.getServerGuid()), MESSAGE1.getServerTimestamp()));
+
+    assertThat(messagesCql.load(destinationUuid, 1, 100)).hasSize(1)
+        .element(0).satisfies(retrieved -> verify(retrieved, MESSAGE2));
+  }
+
+  @Test
+  void testDeleteForDestinationDevice() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesCql.store(List.of(MESSAGE1), destinationUuid, 1);
+    messagesCql.store(List.of(MESSAGE2), destinationUuid, 2);
+
+    messagesCql.deleteAllMessagesForDevice(destinationUuid, 2);
+
+    assertThat(messagesCql.load(destinationUuid, 1, 100)).hasSize(1);
+    assertThat(messagesCql.load(destinationUuid, 2, 100)).isEmpty();
+
+    messagesCql.deleteAllMessagesForAccount(destinationUuid);
+
+    assertThat(messagesCql.load(destinationUuid, 1, 100)).isEmpty();
+  }
+
+  @Test
+  void testDeleteMessageByDestinationAndGuid() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesCql.store(List.of(MESSAGE1), destinationUuid, 1);
+    messagesCql.store(List.of(MESSAGE2), destinationUuid, 2);
+
+    assertThat(messagesCql.deleteMessageByDestinationAndGuid(destinationUuid, UUID.fromString(MESSAGE2.getServerGuid())))
+        .hasValueSatisfying(deleted -> verify(deleted, MESSAGE2));
+
+    assertThat(messagesCql.load(destinationUuid, 1, 100)).hasSize(1);
+    assertThat(messagesCql.load(destinationUuid, 2, 100)).isEmpty();
+    assertThat(messagesCql.deleteMessageByDestinationAndGuid(destinationUuid, UUID.fromString(MESSAGE2.getServerGuid()))).isEmpty();
+  }
+
+  private static void verify(OutgoingMessageEntity retrieved, MessageProtos.Envelope inserted) {
+    assertThat(retrieved.getTimestamp()).isEqualTo(inserted.getTimestamp());
+    assertThat(retrieved.getSource()).isEqualTo(inserted.hasSource() ? inserted.getSource() : null);
+    assertThat(retrieved.getSourceUuid()).isEqualTo(inserted.hasSourceUuid() ? UUID.fromString(inserted.getSourceUuid()) : null);
+    assertThat(retrieved.getSourceDevice()).isEqualTo(inserted.getSourceDevice());
+    assertThat(retrieved.getType()).isEqualTo(inserted.getType().getNumber());
+    assertThat(retrieved.getContent()).isEqualTo(inserted.hasContent() ? inserted.getContent().toByteArray() : null);
+    assertThat(retrieved.getServerTimestamp()).isEqualTo(inserted.getServerTimestamp());
+    assertThat(retrieved.getGuid()).isEqualTo(UUID.fromString(inserted.getServerGuid()));
+  }
+}
@@ -1,14 +1,28 @@
 package su.sres.shadowserver.storage;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 import org.junit.jupiter.api.Test;
 import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.metrics.PushLatencyManager;
 
 class MessagesManagerTest {
@@ -43,4 +57,77 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void deliverLocally() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final Envelope message = Envelope.newBuilder().setEphemeral(true).build();
+
+    when(messagesCache.getMessageAvailabilityListener(destinationUuid, 1L)).thenReturn(Optional.empty());
+
+    assertFalse(messagesManager.deliverLocally(destinationUuid, 1L, message));
+
+    final MessageAvailabilityListener listener = mock(MessageAvailabilityListener.class);
+    when(messagesCache.getMessageAvailabilityListener(destinationUuid, 1L)).thenReturn(Optional.of(listener));
+    when(listener.handleLocalMessage(any())).thenReturn(CompletableFuture.completedFuture(true));
+
+    assertTrue(messagesManager.deliverLocally(destinationUuid, 1L, message));
+    verify(messagesCache, never()).insert(any(UUID.class), any(UUID.class), anyLong(), any(Envelope.class));
+
+    // messages the client doesn't acknowledge get queued after all
+    when(listener.handleLocalMessage(any())).thenReturn(CompletableFuture.completedFuture(false));
+
+    assertTrue(messagesManager.deliverLocally(destinationUuid, 1L, message));
+    verify(messagesCache).insert(any(UUID.class), eq(destinationUuid), eq(1L), any(Envelope.class));
+
+    // as do messages whose connection closes
+    when(listener.handleLocalMessage(any())).thenReturn(CompletableFuture.failedFuture(new IOException()));
+
+    assertTrue(messagesManager.deliverLocally(destinationUuid, 1L, message));
+    verify(messagesCache, times(2)).insert(any(UUID.class), eq(destinationUuid), eq(1L), any(Envelope.class));
+  }
+
+  @Test
+  void deliverLocallyTimeout() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final Envelope ephemeralMessage = Envelope.newBuilder().setEphemeral(true).build();
+    final Envelope message = Envelope.newBuilder().build();
+
+    final MessageAvailabilityListener listener = mock(MessageAvailabilityListener.class);
+    when(messagesCache.getMessageAvailabilityListener(destinationUuid, 1L)).thenReturn(Optional.of(listener));
+    // as it comes from a stage dependent on the timed out one
+    when(listener.handleLocalMessage(any()))
+        .thenReturn(CompletableFuture.failedFuture(new CompletionException(new TimeoutException())));
+
+    // an ephemeral message would be too old to be read from the queue by the
+    // time the client is given up on
+    assertTrue(messagesManager.deliverLocally(destinationUuid, 1L, ephemeralMessage));
+    verify(messagesCache, never()).insert(any(UUID.class), any(UUID.class), anyLong(), any(Envelope.class));
+
+    assertTrue(messagesManager.deliverLocally(destinationUuid, 1L, message));
+    verify(messagesCache).insert(any(UUID.class), eq(destinationUuid), eq(1L), any(Envelope.class));
+  }
+
+  @Test
+  void deleteMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    final OutgoingMessageEntity cached = buildMessage(true, 1_000L);
+    final OutgoingMessageEntity persistedSinceRead = buildMessage(true, 2_000L);
+    final OutgoingMessageEntity persisted = buildMessage(false, 3_000L);
+
+    when(messagesCache.remove(destinationUuid, 1L, List.of(cached.getGuid(), persistedSinceRead.getGuid())))
+        .thenReturn(List.of(cached));
+
+    messagesManager.deleteMessages(destinationUuid, 1L, List.of(cached, persistedSinceRead, persisted));
+
+    verify(messagesDynamoDb).deleteMessages(destinationUuid, 1L, Map.of(
+        persistedSinceRead.getGuid(), persistedSinceRead.getServerTimestamp(),
+        persisted.getGuid(), persisted.getServerTimestamp()));
+  }
+
+  private static OutgoingMessageEntity buildMessage(final boolean cached, final long serverTimestamp) {
+    return new OutgoingMessageEntity(0, cached, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, serverTimestamp,
+        null, null, 0, null, new byte[16], serverTimestamp);
+  }
 }
@@ -11,7 +11,9 @@ import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.util.MessagesDynamoDbExtension;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 import java.util.function.Consumer;
@@ -90,6 +92,77 @@ class MessagesScyllaDbTest {
     assertThat(messagesStored).element(2).satisfies(verify(MESSAGE2));
   }
 
+  @Test
+  void testStoreConcurrently() {
+    final MessagesScyllaDb concurrentMessagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14), 2);
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final int destinationDeviceId = random.nextInt(255) + 1;
+    final long serverTimestamp = System.currentTimeMillis();
+    final List<MessageProtos.Envelope> messages = new ArrayList<>();
+
+    // enough messages for more batches than may be in flight at once
+    for (int i = 0; i < MessagesScyllaDb.DYNAMO_DB_MAX_BATCH_SIZE * 3 + 1; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(serverTimestamp + i)
+          .build());
+    }
+
+    concurrentMessagesScyllaDb.store(messages, destinationUuid, destinationDeviceId);
+
+    final List<OutgoingMessageEntity> messagesStored = messagesScyllaDb.load(destinationUuid, destinationDeviceId, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+    assertThat(messagesStored).hasSize(messages.size());
+
+    for (int i = 0; i < messages.size(); i++) {
+      assertThat(messagesStored).element(i).satisfies(verify(messages.get(i)));
+    }
+  }
+
+  @Test
+  void testLoadAsync() {
+    final MessagesScyllaDb asyncMessagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14), 2);
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final int destinationDeviceId = random.nextInt(255) + 1;
+    final long serverTimestamp = System.currentTimeMillis();
+    final List<MessageProtos.Envelope> messages = new ArrayList<>();
+
+    // more messages than fit in one load
+    for (int i = 0; i < MessagesScyllaDb.RESULT_SET_CHUNK_SIZE + 1; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(serverTimestamp + i)
+          .build());
+    }
+
+    messagesScyllaDb.store(messages, destinationUuid, destinationDeviceId);
+
+    assertThat(asyncMessagesScyllaDb.loadAsync(destinationUuid, destinationDeviceId, 2).join())
+        .hasSize(2)
+        .satisfies(loaded -> {
+          assertThat(loaded).element(0).satisfies(verify(messages.get(0)));
+          assertThat(loaded).element(1).satisfies(verify(messages.get(1)));
+        });
+
+    assertThat(asyncMessagesScyllaDb.loadAsync(destinationUuid, destinationDeviceId, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE).join())
+        .isEqualTo(messagesScyllaDb.load(destinationUuid, destinationDeviceId, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE));
+  }
+
+  @Test
+  void testDeleteMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesScyllaDb.store(List.of(MESSAGE1, MESSAGE2, MESSAGE3), destinationUuid, 1);
+
+    messagesScyllaDb.deleteMessages(destinationUuid, 1, Map.of(
+        UUID.fromString(MESSAGE1.getServerGuid()), MESSAGE1.getServerTimestamp(),
+        UUID.fromString(MESSAGE3.getServerGuid()), MESSAGE3.getServerTimestamp()));
+
+    assertThat(messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1).element(0).satisfies(verify(MESSAGE2));
+  }
+
   @Test
   void testDeleteForDestination() {
     final UUID destinationUuid = UUID.randomUUID();
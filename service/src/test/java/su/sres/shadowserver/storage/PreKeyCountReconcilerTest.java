@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+class PreKeyCountReconcilerTest {
+
+  @Test
+  void testReconcilesEveryDevice() {
+    final KeysManager keysManager = mock(KeysManager.class);
+
+    final Device firstDevice = mock(Device.class);
+    final Device secondDevice = mock(Device.class);
+    when(firstDevice.getId()).thenReturn(1L);
+    when(secondDevice.getId()).thenReturn(2L);
+
+    final Account firstAccount = mock(Account.class);
+    final Account secondAccount = mock(Account.class);
+    when(firstAccount.getDevices()).thenReturn(Set.of(firstDevice, secondDevice));
+    when(secondAccount.getDevices()).thenReturn(Set.of(firstDevice));
+
+    when(keysManager.reconcileCount(firstAccount, 2L)).thenReturn(true);
+
+    new PreKeyCountReconciler(keysManager).onCrawlChunk(Optional.empty(), List.of(firstAccount, secondAccount));
+
+    verify(keysManager).reconcileCount(firstAccount, 1L);
+    verify(keysManager).reconcileCount(firstAccount, 2L);
+    verify(keysManager).reconcileCount(secondAccount, 1L);
+    verifyNoMoreInteractions(keysManager);
+  }
+}
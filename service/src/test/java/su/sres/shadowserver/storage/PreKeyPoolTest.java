@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import su.sres.shadowserver.entities.PreKey;
+import su.sres.shadowserver.util.RedisClusterHelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PreKeyPoolTest {
+
+  private static final long DEVICE_ID = 1L;
+  private static final int POOL_SIZE = 3;
+  private static final int HOT_CLAIMS_PER_MINUTE = 5;
+
+  private RedisAdvancedClusterCommands<String, String> commands;
+  private PreKeyStore keys;
+  private Account account;
+  private String poolKey;
+  private String claimsKey;
+  private String generationKey;
+
+  private PreKeyPool preKeyPool;
+
+  @BeforeEach
+  void setUp() {
+    //noinspection unchecked
+    commands = mock(RedisAdvancedClusterCommands.class);
+    keys = mock(PreKeyStore.class);
+
+    final UUID uuid = UUID.randomUUID();
+    account = mock(Account.class);
+    when(account.getUuid()).thenReturn(uuid);
+
+    poolKey = "prekey_pool::{" + uuid + "}::" + DEVICE_ID;
+    claimsKey = "prekey_claims::{" + uuid + "}::" + DEVICE_ID;
+    generationKey = "prekey_pool_generation::{" + uuid + "}::" + DEVICE_ID;
+
+    preKeyPool = new PreKeyPool(RedisClusterHelper.buildMockRedisCluster(commands), keys, MoreExecutors.directExecutor(),
+        POOL_SIZE, HOT_CLAIMS_PER_MINUTE);
+  }
+
+  @Test
+  void testPoll() {
+    when(commands.lpop(poolKey)).thenReturn("{\"keyId\":1,\"publicKey\":\"a\"}", (String) null);
+    when(commands.incr(claimsKey)).thenReturn(1L, 2L);
+
+    assertEquals(Optional.of(new PreKey(1, "a")), preKeyPool.poll(account, DEVICE_ID));
+    assertEquals(Optional.empty(), preKeyPool.poll(account, DEVICE_ID));
+
+    verify(commands).expire(claimsKey, 60);
+    verify(keys, never()).take(account, DEVICE_ID);
+  }
+
+  @Test
+  void testRefillWhenHot() {
+    when(commands.lpop(poolKey)).thenReturn(null);
+    when(commands.incr(claimsKey)).thenReturn((long) HOT_CLAIMS_PER_MINUTE);
+    when(commands.llen(poolKey)).thenReturn(1L);
+    when(commands.evalsha(any(), any(), any(), any())).thenReturn(2L, 3L);
+    when(keys.take(account, DEVICE_ID)).thenReturn(Optional.of(new PreKey(2, "b")), Optional.of(new PreKey(3, "c")));
+
+    preKeyPool.poll(account, DEVICE_ID);
+
+    verify(keys, times(2)).take(account, DEVICE_ID);
+    verify(commands, times(2)).evalsha(any(), any(), any(), any());
+  }
+
+  @Test
+  void testRefillStopsAfterClear() {
+    when(commands.lpop(poolKey)).thenReturn(null);
+    when(commands.incr(claimsKey)).thenReturn((long) HOT_CLAIMS_PER_MINUTE);
+    when(commands.get(generationKey)).thenReturn("4");
+    when(commands.llen(poolKey)).thenReturn(0L);
+    when(commands.evalsha(any(), any(), any(), any())).thenReturn(-1L);
+    when(keys.take(account, DEVICE_ID)).thenReturn(Optional.of(new PreKey(2, "b")));
+
+    preKeyPool.poll(account, DEVICE_ID);
+
+    verify(keys, times(1)).take(account, DEVICE_ID);
+  }
+
+  @Test
+  void testClear() {
+    preKeyPool.clear(account.getUuid(), List.of(DEVICE_ID));
+
+    final InOrder inOrder = inOrder(commands);
+    inOrder.verify(commands).incr(generationKey);
+    inOrder.verify(commands).del(poolKey);
+  }
+
+  @Test
+  void testNoRefillWhenCold() {
+    when(commands.lpop(poolKey)).thenReturn(null);
+    when(commands.incr(claimsKey)).thenReturn((long) HOT_CLAIMS_PER_MINUTE - 1);
+
+    preKeyPool.poll(account, DEVICE_ID);
+
+    verify(keys, never()).take(account, DEVICE_ID);
+    verify(commands, never()).evalsha(any(), any(), any(), any());
+  }
+
+  @Test
+  void testPollRedisUnavailable() {
+    when(commands.lpop(poolKey)).thenThrow(RedisException.class);
+    when(commands.incr(claimsKey)).thenThrow(RedisException.class);
+
+    assertEquals(Optional.empty(), preKeyPool.poll(account, DEVICE_ID));
+    verify(keys, never()).take(account, DEVICE_ID);
+    verify(commands, never()).expire(anyString(), anyLong());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.security.SecureRandom;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.util.EnvelopeCodec.Compression;
+
+class EnvelopeCodecTest {
+
+  @ParameterizedTest
+  @EnumSource(value = Compression.class, names = { "LZ4", "ZSTD" })
+  void testRoundTrip(final Compression compression) throws InvalidProtocolBufferException {
+    final byte[] serialized = generateEnvelope(ByteString.copyFromUtf8("compressible ".repeat(100))).toByteArray();
+    final byte[] encoded = new EnvelopeCodec(compression, 64).encode(serialized);
+
+    assertTrue(encoded.length < serialized.length);
+    assertEquals(0, encoded[0]);
+    assertArrayEquals(serialized, EnvelopeCodec.decode(encoded));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Compression.class)
+  void testBelowThreshold(final Compression compression) throws InvalidProtocolBufferException {
+    final byte[] serialized = generateEnvelope(ByteString.copyFromUtf8("small")).toByteArray();
+
+    assertSame(serialized, new EnvelopeCodec(compression, 1024).encode(serialized));
+    assertSame(serialized, EnvelopeCodec.decode(serialized));
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = Compression.class, names = { "LZ4", "ZSTD" })
+  void testIncompressible(final Compression compression) {
+    final byte[] ciphertext = new byte[1024];
+    new SecureRandom().nextBytes(ciphertext);
+
+    final byte[] serialized = generateEnvelope(ByteString.copyFrom(ciphertext)).toByteArray();
+
+    assertSame(serialized, new EnvelopeCodec(compression, 64).encode(serialized));
+  }
+
+  @Test
+  void testDecodeMalformed() {
+    assertThrows(InvalidProtocolBufferException.class, () -> EnvelopeCodec.decode(new byte[] { 0, 1, 0 }));
+    assertThrows(InvalidProtocolBufferException.class, () -> EnvelopeCodec.decode(new byte[] { 0, 9, 0, 0, 0, 1, 0 }));
+    assertThrows(InvalidProtocolBufferException.class, () -> EnvelopeCodec.decode(new byte[] { 0, 1, 0x7f, 0, 0, 0, 0 }));
+  }
+
+  private static Envelope generateEnvelope(final ByteString content) {
+    return Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setTimestamp(1_600_000_000_000L)
+        .setServerTimestamp(1_600_000_000_100L)
+        .setSourceUuid(UUID.randomUUID().toString())
+        .setSourceDevice(2)
+        .setContent(content)
+        .setServerGuid(UUID.randomUUID().toString())
+        .build();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+
+class EnvelopeUtilTest {
+
+  @ParameterizedTest
+  @ValueSource(booleans = {true, false})
+  void testClearEphemeral(final boolean ephemeral) throws InvalidProtocolBufferException {
+    final Envelope envelope = generateEnvelope().toBuilder().setEphemeral(ephemeral).build();
+    final Envelope cleared = Envelope.parseFrom(EnvelopeUtil.clearEphemeral(envelope.toByteString()));
+
+    assertFalse(cleared.hasEphemeral());
+    assertEquals(envelope.toBuilder().clearEphemeral().build(), cleared);
+  }
+
+  @Test
+  void testClearEphemeralNotSet() throws InvalidProtocolBufferException {
+    final ByteString serialized = generateEnvelope().toByteString();
+
+    assertSame(serialized, EnvelopeUtil.clearEphemeral(serialized));
+  }
+
+  @Test
+  void testClearEphemeralFirstField() throws InvalidProtocolBufferException {
+    final Envelope envelope = generateEnvelope();
+    final ByteString serialized = Envelope.newBuilder().setEphemeral(true).build().toByteString()
+        .concat(envelope.toByteString());
+
+    assertEquals(envelope, Envelope.parseFrom(EnvelopeUtil.clearEphemeral(serialized)));
+  }
+
+  @Test
+  void testClearEphemeralMalformed() {
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> EnvelopeUtil.clearEphemeral(ByteString.copyFrom(new byte[] { 0x42, 0x10, 0x01 })));
+  }
+
+  private static Envelope generateEnvelope() {
+    return Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setTimestamp(1_600_000_000_000L)
+        .setServerTimestamp(1_600_000_000_100L)
+        .setSource("sender")
+        .setSourceUuid(UUID.randomUUID().toString())
+        .setSourceDevice(2)
+        .setContent(ByteString.copyFromUtf8("content"))
+        .setServerGuid(UUID.randomUUID().toString())
+        .build();
+  }
+}
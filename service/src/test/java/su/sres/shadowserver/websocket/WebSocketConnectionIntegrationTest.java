@@ -152,10 +152,10 @@ class WebSocketConnectionIntegrationTest {
       final AtomicBoolean queueCleared = new AtomicBoolean(false);
 
       when(successResponse.getStatus()).thenReturn(200);
-      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/message"), anyList(), any())).thenReturn(
+      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/message"), anyList(), any(ByteString.class))).thenReturn(
           CompletableFuture.completedFuture(successResponse));
 
-      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), anyList(), any())).thenAnswer(
+      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), anyList(), eq(Optional.empty()))).thenAnswer(
           (Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
             synchronized (queueCleared) {
               queueCleared.set(true);
@@ -173,8 +173,7 @@ class WebSocketConnectionIntegrationTest {
         }
       }
 
-      @SuppressWarnings("unchecked") final ArgumentCaptor<Optional<byte[]>> messageBodyCaptor = ArgumentCaptor.forClass(
-          Optional.class);
+      final ArgumentCaptor<ByteString> messageBodyCaptor = ArgumentCaptor.forClass(ByteString.class);
 
       verify(webSocketClient, times(persistedMessageCount + cachedMessageCount)).sendRequest(eq("PUT"),
           eq("/api/v1/message"), anyList(), messageBodyCaptor.capture());
@@ -182,14 +181,12 @@ class WebSocketConnectionIntegrationTest {
 
       final List<MessageProtos.Envelope> sentMessages = new ArrayList<>();
 
-      for (final Optional<byte[]> maybeMessageBody : messageBodyCaptor.getAllValues()) {
-        maybeMessageBody.ifPresent(messageBytes -> {
-          try {
-            sentMessages.add(MessageProtos.Envelope.parseFrom(messageBytes));
-          } catch (final InvalidProtocolBufferException e) {
-            fail("Could not parse sent message");
-          }
-        });
+      for (final ByteString messageBody : messageBodyCaptor.getAllValues()) {
+        try {
+          sentMessages.add(MessageProtos.Envelope.parseFrom(messageBody));
+        } catch (final InvalidProtocolBufferException e) {
+          fail("Could not parse sent message");
+        }
       }
 
       assertEquals(expectedMessages, sentMessages);
@@ -225,13 +222,12 @@ class WebSocketConnectionIntegrationTest {
         expectedMessages.add(envelope);
       }
 
-      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/message"), anyList(), any())).thenReturn(
+      when(webSocketClient.sendRequest(eq("PUT"), eq("/api/v1/message"), anyList(), any(ByteString.class))).thenReturn(
           CompletableFuture.failedFuture(new IOException("Connection closed")));
 
       webSocketConnection.processStoredMessages();
 
-      // noinspection unchecked
-      ArgumentCaptor<Optional<byte[]>> messageBodyCaptor = ArgumentCaptor.forClass(Optional.class);
+      ArgumentCaptor<ByteString> messageBodyCaptor = ArgumentCaptor.forClass(ByteString.class);
 
       verify(webSocketClient, atMost(persistedMessageCount + cachedMessageCount)).sendRequest(eq("PUT"),
           eq("/api/v1/message"), anyList(), messageBodyCaptor.capture());
@@ -239,7 +235,6 @@ class WebSocketConnectionIntegrationTest {
           eq(Optional.empty()));
 
       final List<MessageProtos.Envelope> sentMessages = messageBodyCaptor.getAllValues().stream()
-          .map(Optional::get)
           .map(messageBytes -> {
             try {
               return Envelope.parseFrom(messageBytes);
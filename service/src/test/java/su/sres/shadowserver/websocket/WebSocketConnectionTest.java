@@ -38,6 +38,7 @@ import su.sres.websocket.messages.WebSocketResponseMessage;
 import su.sres.websocket.session.WebSocketSessionContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -56,6 +57,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import io.dropwizard.auth.basic.BasicCredentials;
 import su.sres.shadowserver.auth.AccountAuthenticator;
 import su.sres.shadowserver.auth.AuthenticatedAccount;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.push.ApnFallbackManager;
@@ -195,14 +197,14 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
 
     when(client.getUserAgent()).thenReturn(userAgent);
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any()))
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), any(ByteString.class)))
         .thenAnswer(new Answer<CompletableFuture<WebSocketResponseMessage>>() {
           @Override
           public CompletableFuture<WebSocketResponseMessage> answer(InvocationOnMock invocationOnMock) throws Throwable {
@@ -217,7 +219,7 @@ public class WebSocketConnectionTest {
 
     connection.start();
     verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class),
-        ArgumentMatchers.<Optional<byte[]>>any());
+        any(ByteString.class));
 
     assertEquals(3, futures.size());
 
@@ -228,7 +230,8 @@ public class WebSocketConnectionTest {
     futures.get(0).completeExceptionally(new IOException());
     futures.get(2).completeExceptionally(new IOException());
 
-    verify(storedMessages, times(1)).delete(eq(accountUuid), eq(2L), eq(outgoingMessages.get(1).getGuid()));
+    verify(storedMessages, times(1)).deleteMessages(eq(accountUuid), eq(2L),
+        argThat(acknowledged -> acknowledged.size() == 1 && acknowledged.contains(outgoingMessages.get(1))));
     verify(receiptSender, times(1)).sendReceipt(eq(auth), eq(senderOneUuid), eq(2222L));
 
     connection.stop();
@@ -248,17 +251,17 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false))
-        .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false))
-        .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
 
     final AtomicInteger sendCounter = new AtomicInteger(0);
 
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
       synchronized (sendCounter) {
         sendCounter.incrementAndGet();
         sendCounter.notifyAll();
@@ -293,7 +296,7 @@ public class WebSocketConnectionTest {
     }
 
     verify(client, times(1)).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
-    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class));
   }
 
   @Test
@@ -356,14 +359,14 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(pendingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
+        .thenReturn(CompletableFuture.completedFuture(pendingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
 
     when(client.getUserAgent()).thenReturn(userAgent);
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any()))
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), any(ByteString.class)))
         .thenAnswer(new Answer<CompletableFuture<WebSocketResponseMessage>>() {
           @Override
           public CompletableFuture<WebSocketResponseMessage> answer(InvocationOnMock invocationOnMock) throws Throwable {
@@ -379,7 +382,7 @@ public class WebSocketConnectionTest {
     connection.start();
 
     verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class),
-        ArgumentMatchers.<Optional<byte[]>>any());
+        any(ByteString.class));
 
     assertEquals(futures.size(), 2);
 
@@ -407,7 +410,7 @@ public class WebSocketConnectionTest {
     final AtomicBoolean threadWaiting = new AtomicBoolean(false);
     final AtomicBoolean returnMessageList = new AtomicBoolean(false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer((Answer<OutgoingMessageEntityList>) invocation -> {
+    when(messagesManager.getMessagesForDeviceAsync(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer((Answer<CompletableFuture<OutgoingMessageEntityList>>) invocation -> {
       synchronized (threadWaiting) {
         threadWaiting.set(true);
         threadWaiting.notifyAll();
@@ -419,7 +422,7 @@ public class WebSocketConnectionTest {
         }
       }
 
-      return new OutgoingMessageEntityList(Collections.emptyList(), false);
+      return CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false));
     });
 
     final Thread[] threads = new Thread[10];
@@ -451,7 +454,7 @@ public class WebSocketConnectionTest {
       thread.join();
     }
 
-    verify(messagesManager).getMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false));
+    verify(messagesManager).getMessagesForDeviceAsync(any(UUID.class), anyLong(), anyString(), eq(false));
   }
 
   @Test(timeout = 5000L)
@@ -473,16 +476,16 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, true);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
-        .thenReturn(firstPage)
-        .thenReturn(secondPage);
+    when(messagesManager.getMessagesForDeviceAsync(account.getUuid(), 1L, client.getUserAgent(), false))
+        .thenReturn(CompletableFuture.completedFuture(firstPage))
+        .thenReturn(CompletableFuture.completedFuture(secondPage));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
 
     final CountDownLatch sendLatch = new CountDownLatch(firstPageMessages.size() + secondPageMessages.size());
 
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
       sendLatch.countDown();
       return CompletableFuture.completedFuture(successResponse);
     });
@@ -491,7 +494,7 @@ public class WebSocketConnectionTest {
 
     sendLatch.await();
 
-    verify(client, times(firstPageMessages.size() + secondPageMessages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client, times(firstPageMessages.size() + secondPageMessages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class));
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
@@ -510,14 +513,14 @@ public class WebSocketConnectionTest {
     final List<OutgoingMessageEntity> messages = List.of(createMessage(1L, false, "senderE164", senderUuid, 1111L, false, "message the first"));
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(messages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(firstPage);
+    when(messagesManager.getMessagesForDeviceAsync(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(CompletableFuture.completedFuture(firstPage));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
 
     final CountDownLatch sendLatch = new CountDownLatch(messages.size());
 
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer(invocation -> {
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer(invocation -> {
       sendLatch.countDown();
       return CompletableFuture.completedFuture(successResponse);
     });
@@ -526,14 +529,9 @@ public class WebSocketConnectionTest {
 
     sendLatch.await();
 
-    verify(client, times(messages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), argThat(argument -> {
-      if (argument.isEmpty()) {
-        return false;
-      }
-
-      final byte[] body = argument.get();
+    verify(client, times(messages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), ArgumentMatchers.<ByteString>argThat(argument -> {
       try {
-        final Envelope envelope = Envelope.parseFrom(body);
+        final Envelope envelope = Envelope.parseFrom(argument);
         if (!envelope.hasSourceUuid() || envelope.getSourceUuid().length() == 0) {
           return false;
         }
@@ -545,6 +543,110 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test
+  public void testProcessStoredMessagesSendsSerializedEnvelope() throws InterruptedException {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final OutgoingMessageEntity stored = createMessage(1L, true, "senderE164", UUID.randomUUID(), 1111L, false, "message the first");
+    final ByteString serializedEnvelope = Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setTimestamp(stored.getTimestamp())
+        .setServerGuid(stored.getGuid().toString())
+        .build()
+        .toByteString();
+
+    final OutgoingMessageEntity message = new OutgoingMessageEntity(stored.getId(), stored.isCached(), stored.getGuid(),
+        stored.getType(), stored.getRelay(), stored.getTimestamp(), stored.getSource(), stored.getSourceUuid(),
+        stored.getSourceDevice(), stored.getMessage(), stored.getContent(), stored.getServerTimestamp(), serializedEnvelope);
+
+    when(messagesManager.getMessagesForDeviceAsync(account.getUuid(), 1L, client.getUserAgent(), false))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(message), false)));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    final CountDownLatch sendLatch = new CountDownLatch(1);
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer(invocation -> {
+      sendLatch.countDown();
+      return CompletableFuture.completedFuture(successResponse);
+    });
+
+    connection.processStoredMessages();
+
+    sendLatch.await();
+
+    // the stored bytes go out as they are, rather than an envelope rebuilt from the entity
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), ArgumentMatchers.<ByteString>argThat(body -> body == serializedEnvelope));
+  }
+
+  @Test
+  public void testProcessStoredMessagesWithinSendWindow() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final MessageDeliveryConfiguration messageDeliveryConfiguration = mock(MessageDeliveryConfiguration.class);
+    final UUID accountUuid = UUID.randomUUID();
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(accountUuid);
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+    when(messageDeliveryConfiguration.getSendWindow(any())).thenReturn(2);
+
+    final List<OutgoingMessageEntity> firstPageMessages = List.of(
+        createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+        createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
+
+    final OutgoingMessageEntity thirdMessage = createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third");
+
+    // messages in flight haven't been deleted yet, so the second read returns them again
+    when(messagesManager.getMessagesForDeviceAsync(accountUuid, 1L, "Test-UA", false))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(firstPageMessages, true)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(firstPageMessages.get(0), firstPageMessages.get(1), thirdMessage), false)));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new ArrayList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer(invocation -> {
+      final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+      futures.add(future);
+      return future;
+    });
+
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, messageDeliveryConfiguration);
+
+    connection.processStoredMessages();
+
+    // the next page is read while the first is in flight, but the window is full
+    verify(messagesManager, times(2)).getMessagesForDeviceAsync(accountUuid, 1L, "Test-UA", false);
+    assertEquals(2, futures.size());
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    futures.get(0).complete(successResponse);
+
+    // only the message not already sent goes out
+    assertEquals(3, futures.size());
+
+    futures.get(1).complete(successResponse);
+    futures.get(2).complete(successResponse);
+
+    // acknowledged messages are deleted a window at a time
+    verify(messagesManager).deleteMessages(eq(accountUuid), eq(1L),
+        argThat(acknowledged -> acknowledged.size() == 2 && acknowledged.containsAll(firstPageMessages)));
+    verify(messagesManager).deleteMessages(eq(accountUuid), eq(1L),
+        argThat(acknowledged -> acknowledged.size() == 1 && acknowledged.contains(thirdMessage)));
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
   @Test
   public void testProcessStoredMessagesSingleEmptyCall() {
     final MessagesManager messagesManager = mock(MessagesManager.class);
@@ -557,8 +659,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -596,17 +698,17 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, false);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(firstPage)
-        .thenReturn(secondPage)
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(firstPage))
+        .thenReturn(CompletableFuture.completedFuture(secondPage))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
 
     final CountDownLatch sendLatch = new CountDownLatch(firstPageMessages.size() + secondPageMessages.size());
 
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
       connection.handleNewMessagesAvailable();
       sendLatch.countDown();
 
@@ -617,7 +719,7 @@ public class WebSocketConnectionTest {
 
     sendLatch.await();
 
-    verify(client, times(firstPageMessages.size() + secondPageMessages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client, times(firstPageMessages.size() + secondPageMessages.size())).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class));
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
@@ -634,8 +736,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -649,11 +751,11 @@ public class WebSocketConnectionTest {
     // anything.
     connection.processStoredMessages();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager).getMessagesForDeviceAsync(account.getUuid(), device.getId(), client.getUserAgent(), false);
 
     connection.handleNewMessagesAvailable();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), true);
+    verify(messagesManager).getMessagesForDeviceAsync(account.getUuid(), device.getId(), client.getUserAgent(), true);
   }
 
   @Test
@@ -669,8 +771,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -685,7 +787,7 @@ public class WebSocketConnectionTest {
     connection.processStoredMessages();
     connection.handleMessagesPersisted();
 
-    verify(messagesManager, times(2)).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager, times(2)).getMessagesForDeviceAsync(account.getUuid(), device.getId(), client.getUserAgent(), false);
   }
 
   @Test
@@ -727,15 +829,15 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Desktop/1.2.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
 
     when(client.getUserAgent()).thenReturn(userAgent);
     when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class),
-        ArgumentMatchers.<Optional<byte[]>>any()))
+        any(ByteString.class)))
             .thenAnswer(new Answer<CompletableFuture<WebSocketResponseMessage>>() {
               @Override
               public CompletableFuture<WebSocketResponseMessage> answer(InvocationOnMock invocationOnMock)
@@ -749,7 +851,7 @@ public class WebSocketConnectionTest {
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client, retrySchedulingExecutor);
 
     connection.start();
-    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any());
+    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), any(ByteString.class));
 
     assertEquals(2, futures.size());
 
@@ -760,8 +862,9 @@ public class WebSocketConnectionTest {
 
     // We should delete all three messages even though we only sent two; one got
     // discarded because it was too big for
-    // desktop clients.
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    // desktop clients. They're all deleted at once, along with the rest of the page.
+    verify(storedMessages, times(1)).deleteMessages(eq(accountUuid), eq(2L),
+        argThat(acknowledged -> acknowledged.containsAll(outgoingMessages) && acknowledged.size() == 3));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -806,14 +909,14 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Signal-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
 
     when(client.getUserAgent()).thenReturn(userAgent);
-    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any()))
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), any(ByteString.class)))
         .thenAnswer(new Answer<CompletableFuture<WebSocketResponseMessage>>() {
           @Override
           public CompletableFuture<WebSocketResponseMessage> answer(InvocationOnMock invocationOnMock) throws Throwable {
@@ -826,7 +929,7 @@ public class WebSocketConnectionTest {
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client, retrySchedulingExecutor);
 
     connection.start();
-    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any());
+    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), any(ByteString.class));
 
     assertEquals(3, futures.size());
 
@@ -836,7 +939,8 @@ public class WebSocketConnectionTest {
     futures.get(1).complete(response);
     futures.get(2).complete(response);
 
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages, times(1)).deleteMessages(eq(accountUuid), eq(2L),
+        argThat(acknowledged -> acknowledged.containsAll(outgoingMessages) && acknowledged.size() == 3));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -855,7 +959,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
         .thenThrow(new RedisException("OH NO"));
 
     when(retrySchedulingExecutor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer((Answer<ScheduledFuture<?>>) invocation -> {
@@ -886,7 +990,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Signal-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDeviceAsync(account.getUuid(), device.getId(), userAgent, false))
         .thenThrow(new RedisException("OH NO"));
 
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -900,6 +1004,50 @@ public class WebSocketConnectionTest {
     verify(client, never()).close(anyInt(), anyString());
   }
 
+  @Test
+  public void testHandleLocalMessage() {
+    final MessagesManager storedMessages = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+
+    when(client.isOpen()).thenReturn(true);
+    when(client.getUserAgent()).thenReturn("Shadow-Android/4.68.3");
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    final WebSocketResponseMessage failureResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+    when(failureResponse.getStatus()).thenReturn(500);
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class)))
+        .thenReturn(CompletableFuture.completedFuture(successResponse))
+        .thenReturn(CompletableFuture.completedFuture(failureResponse));
+
+    final Envelope message = Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setTimestamp(System.currentTimeMillis())
+        .setServerGuid(UUID.randomUUID().toString())
+        .setEphemeral(true)
+        .build();
+
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client, retrySchedulingExecutor);
+
+    assertTrue(connection.handleLocalMessage(message).join());
+    assertFalse(connection.handleLocalMessage(message).join());
+
+    // locally delivered messages aren't queued, so there's nothing to delete
+    verify(storedMessages, never()).deleteMessages(any(), anyLong(), any());
+
+    // a connection closing before the client responds fails the pending request
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class)))
+        .thenReturn(CompletableFuture.failedFuture(new IOException("Connection closed!")));
+
+    assertTrue(connection.handleLocalMessage(message).isCompletedExceptionally());
+
+    when(client.isOpen()).thenReturn(false);
+
+    assertFalse(connection.handleLocalMessage(message).join());
+    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(ByteString.class));
+  }
+
   private OutgoingMessageEntity createMessage(long id, boolean cached, String sender, UUID senderUuid, long timestamp, boolean receipt, String content) {
     return new OutgoingMessageEntity(id, cached, UUID.randomUUID(), receipt ? Envelope.Type.SERVER_DELIVERY_RECEIPT_VALUE : Envelope.Type.CIPHERTEXT_VALUE,
         null, timestamp, sender, senderUuid, 1, content.getBytes(), null, 0);
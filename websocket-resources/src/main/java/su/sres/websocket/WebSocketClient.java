@@ -4,6 +4,7 @@
  */
 package su.sres.websocket;
 
+import com.google.protobuf.ByteString;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
@@ -47,12 +48,27 @@ public class WebSocketClient {
       List<String> headers,
       Optional<byte[]> body) {
     final long requestId = generateRequestId();
+
+    return sendRequest(requestId, messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body));
+  }
+
+  /**
+   * Sends a request with a body that's already serialized, such as a stored
+   * envelope, so that it's only copied once, into the outgoing frame.
+   */
+  public CompletableFuture<WebSocketResponseMessage> sendRequest(String verb, String path,
+      List<String> headers,
+      ByteString body) {
+    final long requestId = generateRequestId();
+
+    return sendRequest(requestId, messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body));
+  }
+
+  private CompletableFuture<WebSocketResponseMessage> sendRequest(long requestId, WebSocketMessage requestMessage) {
     final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
 
     pendingRequestMapper.put(requestId, future);
 
-    WebSocketMessage requestMessage = messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body);
-
     try {
       remoteEndpoint.sendBytes(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
         @Override
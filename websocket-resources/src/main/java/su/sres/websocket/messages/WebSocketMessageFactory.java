@@ -5,6 +5,8 @@
 package su.sres.websocket.messages;
 
 
+import com.google.protobuf.ByteString;
+
 import java.util.List;
 import java.util.Optional;
 
@@ -19,6 +21,11 @@ public interface WebSocketMessageFactory {
                                         List<String> headers,
                                         Optional<byte[]> body);
 
+  public WebSocketMessage createRequest(Optional<Long> requestId,
+                                        String verb, String path,
+                                        List<String> headers,
+                                        ByteString body);
+
   public WebSocketMessage createResponse(long requestId, int status, String message,
                                          List<String> headers,
                                          Optional<byte[]> body);
@@ -27,6 +27,15 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
                                         String verb, String path,
                                         List<String> headers,
                                         Optional<byte[]> body)
+  {
+    return createRequest(requestId, verb, path, headers, body.map(ByteString::copyFrom).orElse(null));
+  }
+
+  @Override
+  public WebSocketMessage createRequest(Optional<Long> requestId,
+                                        String verb, String path,
+                                        List<String> headers,
+                                        ByteString body)
   {
     SubProtocol.WebSocketRequestMessage.Builder requestMessage =
         SubProtocol.WebSocketRequestMessage.newBuilder()
@@ -37,8 +46,8 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
       requestMessage.setId(requestId.get());
     }
 
-    if (body.isPresent()) {
-      requestMessage.setBody(ByteString.copyFrom(body.get()));
+    if (body != null) {
+      requestMessage.setBody(body);
     }
 
     if (headers != null) {